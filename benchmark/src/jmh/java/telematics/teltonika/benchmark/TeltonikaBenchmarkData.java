@@ -0,0 +1,108 @@
+package telematics.teltonika.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.openremote.model.asset.AssetTypeInfo;
+import org.openremote.model.teltonika.TeltonikaConfigurationAsset;
+import org.openremote.model.teltonika.TeltonikaModelConfigurationAsset;
+import org.openremote.model.teltonika.TeltonikaParameter;
+import org.openremote.model.util.UniqueIdentifierGenerator;
+import org.openremote.model.util.ValueUtil;
+import org.openremote.model.value.AttributeDescriptor;
+import telematics.teltonika.TeltonikaConfiguration;
+import telematics.teltonika.TeltonikaMQTTHandler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The inputs of the benchmarks: a configuration built from the real parameter catalogue of the FMC003, and the payloads
+ * of the test corpus, without any database or container.
+ */
+public final class TeltonikaBenchmarkData {
+
+    /**
+     * The root directory of the project, which is passed in by the build.
+     */
+    public static final String ROOT_PROPERTY = "teltonika.benchmark.root";
+
+    public static final String MODEL_NUMBER = "FMC003";
+    public static final Path PARAMETER_FILE = Paths.get("deployment", "manager", "fleet", "FMC003.json");
+    public static final Path PAYLOAD_CORPUS = Paths.get("test", "src", "test", "resources", "teltonika", "SortedPayloads.json");
+
+    /**
+     * A Codec 8 AVL data field from the protocol documentation, starting at the codec ID.
+     */
+    public static final String CODEC_8_AVL_DATA = "08010000016B40D8EA30010000000000000000000000000000000105021503010101425E0F01F10000601A014E000000000000000001";
+
+    private TeltonikaBenchmarkData() {
+    }
+
+    public static Path getRoot() {
+        return Paths.get(System.getProperty(ROOT_PROPERTY, ".."));
+    }
+
+    public static TeltonikaConfiguration createConfiguration() {
+        ObjectMapper mapper = new ObjectMapper();
+        TeltonikaParameter[] parameters;
+        try {
+            parameters = mapper.readValue(Files.readString(getRoot().resolve(PARAMETER_FILE)), TeltonikaParameter[].class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        TeltonikaConfigurationAsset master = new TeltonikaConfigurationAsset("Teltonika Device Configuration");
+        master.setId(UniqueIdentifierGenerator.generateId());
+        master.setEnabled(true);
+        master.setCheckForImei(false);
+        master.setDefaultModelNumber(MODEL_NUMBER);
+        master.setCommandTopic("sendToDevice");
+        master.setResponseTopic("response");
+        master.setStorePayloads(false);
+
+        TeltonikaModelConfigurationAsset model = new TeltonikaModelConfigurationAsset(MODEL_NUMBER);
+        model.setId(UniqueIdentifierGenerator.generateId());
+        model.setModelNumber(MODEL_NUMBER);
+        model.setParameterData(parameters);
+
+        Map<String, AttributeDescriptor<?>> assetDescriptors = ValueUtil.getAssetInfo(TeltonikaMQTTHandler.TELTONIKA_DEVICE_ASSET_CLASS)
+                .map(AssetTypeInfo::getAttributeDescriptors)
+                .orElse(Collections.emptyMap());
+
+        return new TeltonikaConfiguration(master, List.of(model), new Date(), assetDescriptors);
+    }
+
+    /**
+     * @return The payloads of the corpus, in the order in which they were recorded, each in its own heap buffer.
+     */
+    public static List<ByteBuf> loadPayloads() {
+        ObjectMapper mapper = new ObjectMapper();
+        List<ByteBuf> payloads = new ArrayList<>();
+        try {
+            for (JsonNode payload : mapper.readTree(getRoot().resolve(PAYLOAD_CORPUS).toFile())) {
+                payloads.add(Unpooled.wrappedBuffer(mapper.writeValueAsBytes(payload)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (payloads.isEmpty()) {
+            throw new IllegalStateException("The payload corpus is empty");
+        }
+        return payloads;
+    }
+
+    public static ByteBuf codec8AvlData() {
+        return Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(CODEC_8_AVL_DATA));
+    }
+}
@@ -0,0 +1,100 @@
+package telematics.teltonika.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import org.openremote.model.attribute.AttributeMap;
+import org.openremote.model.syslog.SyslogCategory;
+import org.openjdk.jmh.annotations.*;
+import telematics.teltonika.ITeltonikaPayload;
+import telematics.teltonika.TeltonikaConfiguration;
+import telematics.teltonika.TeltonikaParameterData;
+import telematics.teltonika.TeltonikaPayloadFactory;
+import telematics.teltonika.codec.TeltonikaAvlDecoder;
+import telematics.teltonika.codec.TeltonikaAvlPacket;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+
+/**
+ * Measures the decode and mapping path of the Teltonika handler, one payload of the corpus per invocation.
+ * <p>
+ * Every benchmark reports the throughput and the latency percentiles; run with {@code -prof gc} (the default of the
+ * build) for the allocation rate per payload. The nested classes run the same benchmarks single-threaded and with
+ * several threads, to show contention on shared state such as the configuration and its parameter indexes.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class TeltonikaPayloadBenchmark {
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaPayloadBenchmark.class);
+
+    @State(Scope.Benchmark)
+    public static class Corpus {
+        TeltonikaConfiguration config;
+        ByteBuf[] payloads;
+        ByteBuf codec8AvlData;
+
+        @Setup
+        public void setup() {
+            config = TeltonikaBenchmarkData.createConfiguration();
+            List<ByteBuf> loaded = TeltonikaBenchmarkData.loadPayloads();
+            payloads = loaded.toArray(new ByteBuf[0]);
+            codec8AvlData = TeltonikaBenchmarkData.codec8AvlData();
+        }
+    }
+
+    /**
+     * Walks through the corpus, so that every thread sees all payloads instead of a single one.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        ByteBuf next(Corpus corpus) {
+            ByteBuf payload = corpus.payloads[next];
+            next = next + 1 == corpus.payloads.length ? 0 : next + 1;
+            return payload;
+        }
+    }
+
+    @Benchmark
+    public ITeltonikaPayload decode(Corpus corpus, Cursor cursor) throws IOException {
+        return TeltonikaPayloadFactory.getPayload(cursor.next(corpus), TeltonikaBenchmarkData.MODEL_NUMBER, corpus.config);
+    }
+
+    @Benchmark
+    public Map<TeltonikaParameterData, Object> decodeAndResolve(Corpus corpus, Cursor cursor) throws IOException {
+        ITeltonikaPayload payload = TeltonikaPayloadFactory.getPayload(cursor.next(corpus), TeltonikaBenchmarkData.MODEL_NUMBER, corpus.config);
+        return payload.getAttributesFromPayload(corpus.config, null);
+    }
+
+    @Benchmark
+    public AttributeMap decodeAndMap(Corpus corpus, Cursor cursor) throws IOException {
+        ITeltonikaPayload payload = TeltonikaPayloadFactory.getPayload(cursor.next(corpus), TeltonikaBenchmarkData.MODEL_NUMBER, corpus.config);
+        return payload.getAttributes(payload.getAttributesFromPayload(corpus.config, null), corpus.config, LOG);
+    }
+
+    @Benchmark
+    public TeltonikaAvlPacket decodeCodec8(Corpus corpus) {
+        return TeltonikaAvlDecoder.decode(corpus.codec8AvlData.duplicate());
+    }
+
+    @Threads(1)
+    public static class SingleThreaded extends TeltonikaPayloadBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends TeltonikaPayloadBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class AllThreads extends TeltonikaPayloadBenchmark {
+    }
+}
@@ -5,7 +5,6 @@ import org.openremote.container.timer.TimerService;
 import org.openremote.model.asset.Asset;
 import org.openremote.model.attribute.Attribute;
 import org.openremote.model.attribute.AttributeMap;
-import org.openremote.model.value.AttributeDescriptor;
 
 import java.util.Map;
 import java.util.logging.Logger;
@@ -21,5 +20,9 @@ public interface ITeltonikaPayload {
 	 */
 	Map<TeltonikaParameterData, Object> getAttributesFromPayload(TeltonikaConfiguration config, TimerService timerService) throws JsonProcessingException;
 
-	AttributeMap getAttributes(Map<TeltonikaParameterData, Object> payloadMap, TeltonikaConfiguration config, Logger logger, Map<String, AttributeDescriptor<?>> descs);
+	/**
+	 * Converts the parameters returned by {@link #getAttributesFromPayload} to the {@link AttributeMap} to be stored in
+	 * the {@link Asset}.
+	 */
+	AttributeMap getAttributes(Map<TeltonikaParameterData, Object> payloadMap, TeltonikaConfiguration config, Logger logger);
 }
@@ -1,19 +1,32 @@
 package telematics.teltonika;
 
 import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.model.asset.Asset;
 import org.openremote.model.attribute.Attribute;
 import org.openremote.model.custom.CustomValueTypes;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.filter.ParentPredicate;
 import org.openremote.model.query.filter.RealmPredicate;
+import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.teltonika.TeltonikaConfigurationAsset;
 import org.openremote.model.teltonika.TeltonikaModelConfigurationAsset;
+import org.openremote.model.value.AttributeDescriptor;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
 
 /**
  * <p>
@@ -21,27 +34,18 @@ import java.util.stream.Collectors;
  * </p>
  * <br>
  * <p>
- *      It employs the Singleton pattern to ensure that only one instance of the class is created.
- *      We employ the Singleton pattern because retrieving the configuration data is a costly process, which requires a lot
- *      of requests to the database to retrieve the attributes.
- *      We want to ensure that we only retrieve the configuration data once and then use it throughout the application.
+ *      Every instance is an immutable snapshot of the configuration assets, and the current snapshot is held in an
+ *      {@link AtomicReference}. We only keep a single current snapshot because retrieving the configuration data is a
+ *      costly process, which requires a lot of requests to the database to retrieve the attributes.
+ *      Reading the current snapshot never blocks, and all values that are read on the hot path (such as
+ *      {@link #getEnabled()} or {@link #getCommandAttributeName()}) are resolved when the snapshot is built.
  * </p>
  * <br>
  * <p>
  *     The class also employs the Factory pattern in {@code TeltonikaConfigurationFactory} to create the configuration
- *     object. The factory method is used to create the configuration object and to ensure that only one instance of the
- *     configuration object is created.
- *     The factory class does help with managing the instance and creating it, but also helps with keeping it up to date.
- *     To ensure that the configuration object is up to date, the factory class uses a timestamp to check if the
- *     configuration has been used for up to a minute. When a minute has elapsed
- *     (editable using {@code CONFIGURATION_UPDATE_INTERVAL}), it refreshes the instance of the configuration object.
- * </p>
- * <br>
- * <p>
- *     We want to be sure that the configuration is always up to date, even when the user is configuring the asset.
- *     To do so, we employ a sufficient-enough version of the observer pattern on the TeltonikaConfigurationFactory.
- *     When the AttributeEvent handler for configuration asset data detects a change, it triggers a refresh of the
- *     instance.
+ *     object. Snapshots are never refreshed by the threads that read them: the
+ *     {@link telematics.teltonika.helpers.TeltonikaConfigurationLoader} builds a new snapshot in the background
+ *     whenever a configuration asset changes, and optionally at a fixed interval, and then swaps it in.
  * </p>
  * <br>
  * <p>
@@ -57,31 +61,37 @@ import java.util.stream.Collectors;
  *     specific Teltonika device models. They specifically contain the model number and the parameters to be used
  *     for parsing of the payloads received.
  * </p>
+ * <br>
+ * <p>
+ *     Every configuration instance receives a new version, and compiles a {@link TeltonikaParameterIndex} for each of
+ *     its models. Since the indexes are part of the (otherwise unchanged) configuration instance, replacing the instance
+ *     also replaces the indexes in one step. The indexes also hold the compiled {@link TeltonikaParameterCodec} of every
+ *     parameter, which is why the {@link AttributeDescriptor}s of the device asset type are passed in here, and the
+ *     {@link org.openremote.model.teltonika.TeltonikaParameterPolicy}s that the model asset defines.
+ * </p>
  */
 public class TeltonikaConfiguration {
 
-    private static TeltonikaConfiguration instance = null;
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaConfiguration.class);
 
-    public static TeltonikaConfiguration getInstance() throws NullPointerException {
-        if (instance == null) throw new NullPointerException("TeltonikaConfiguration instance is null");
-        //if the update time has elapsed, request update to configuration
-        if (latestUpdateTimestamp == null ||
-                (new Date().getTime() - latestUpdateTimestamp.getTime()) > CONFIGURATION_UPDATE_INTERVAL
-        ) {
-            throw new NullPointerException("TeltonikaConfiguration instance needs to be refreshed.");
-        }
-        return instance;
+    private static final AtomicLong VERSION_COUNTER = new AtomicLong();
+
+    public static final String DEFAULT_COMMAND_ATTRIBUTE_NAME = "sendToDevice";
+
+    private static final AtomicReference<TeltonikaConfiguration> INSTANCE = new AtomicReference<>();
+
+    /**
+     * @return The current configuration snapshot, or {@code null} if no configuration has been loaded yet.
+     */
+    public static TeltonikaConfiguration getInstance() {
+        return INSTANCE.get();
     }
 
     public static void setInstance(TeltonikaConfiguration instance) {
-        TeltonikaConfiguration.instance = instance;
+        INSTANCE.set(instance);
     }
 
-    private static Date latestUpdateTimestamp = null;
-
-    private static final int CONFIGURATION_UPDATE_INTERVAL = 1000 * 60 * 1; // 1 minute
-
-    TeltonikaConfigurationAsset masterAsset;
+    private TeltonikaConfigurationAsset masterAsset;
 
     public TeltonikaConfigurationAsset getMasterAsset() {
         return masterAsset;
@@ -89,19 +99,63 @@ public class TeltonikaConfiguration {
     /**
      * Maps Model Number to Map of parameters: {@code [{"FMCOO3": {<map of parameters>}...]}}
      */
-    HashMap<String, CustomValueTypes.TeltonikaParameterMap> defaultParameterMap = new HashMap<>();
+    private HashMap<String, CustomValueTypes.TeltonikaParameterMap> defaultParameterMap = new HashMap<>();
 
-    private List<TeltonikaModelConfigurationAsset> modelAssets;
+    private List<TeltonikaModelConfigurationAsset> modelAssets = Collections.emptyList();
 
+    /**
+     * The IDs of the master and model configuration assets.
+     */
+    private Set<String> assetIds = Collections.emptySet();
+
+    private Date updatedOn;
+    private boolean enabled;
+    private boolean checkForImei;
+    private boolean storePayloads;
+    private String defaultModelNumber;
+    private String commandAttributeName = DEFAULT_COMMAND_ATTRIBUTE_NAME;
+
+    private final long version = VERSION_COUNTER.incrementAndGet();
+
+    /**
+     * Maps Model Number to the compiled {@link TeltonikaParameterIndex} of that model.
+     */
+    private Map<String, TeltonikaParameterIndex> parameterIndexes = Collections.emptyMap();
 
+    /**
+     * The {@link AttributeDescriptor}s of the asset type that Teltonika payloads are stored in.
+     */
+    private Map<String, AttributeDescriptor<?>> assetDescriptors = Collections.emptyMap();
+
+    /**
+     * The index with only the custom parameters, for models without parameters; built on first use.
+     */
+    private final AtomicReference<TeltonikaParameterIndex> fallbackIndex = new AtomicReference<>();
+
+    /**
+     * The models that the fallback index was returned for, so that each of them is only warned about once.
+     */
+    private final Set<String> modelsWithoutParameters = ConcurrentHashMap.newKeySet();
 
     public TeltonikaConfiguration(TeltonikaConfigurationAsset master, List<TeltonikaModelConfigurationAsset> models, Date date){
+        this(master, models, date, Collections.emptyMap());
+    }
 
+    public TeltonikaConfiguration(TeltonikaConfigurationAsset master, List<TeltonikaModelConfigurationAsset> models, Date date, Map<String, AttributeDescriptor<?>> assetDescriptors){
+
+
+        updatedOn = date;
 
         if (master == null) return;
         if (models.isEmpty()) return;
 
         masterAsset = master;
+        enabled = master.getAttributes().getValue(TeltonikaConfigurationAsset.ENABLED).orElse(false);
+        checkForImei = master.getAttributes().getValue(TeltonikaConfigurationAsset.CHECK_FOR_IMEI).orElse(false);
+        storePayloads = master.getAttributes().getValue(TeltonikaConfigurationAsset.STORE_PAYLOADS).orElse(false);
+        defaultModelNumber = master.getAttributes().getValue(TeltonikaConfigurationAsset.DEFAULT_MODEL_NUMBER).orElse(null);
+        commandAttributeName = master.getAttributes().getValue(TeltonikaConfigurationAsset.COMMAND).orElse(DEFAULT_COMMAND_ATTRIBUTE_NAME);
+        this.assetDescriptors = assetDescriptors;
 
         defaultParameterMap = models.stream().collect(Collectors.toMap(
                 val ->val.getAttributes().get(TeltonikaModelConfigurationAsset.MODEL_NUMBER).get().getValue().get(), // Key Mapper
@@ -110,9 +164,73 @@ public class TeltonikaConfiguration {
                 HashMap::new
         ));
 
-        modelAssets = models;
-        latestUpdateTimestamp = date;
+        parameterIndexes = models.stream().collect(Collectors.toUnmodifiableMap(
+                model -> model.getAttributes().get(TeltonikaModelConfigurationAsset.MODEL_NUMBER).get().getValue().get(),
+                model -> {
+                    String modelNumber = model.getAttributes().get(TeltonikaModelConfigurationAsset.MODEL_NUMBER).get().getValue().get();
+                    TeltonikaParameterIndex index = new TeltonikaParameterIndex(modelNumber, model.getParameterMap(), version, assetDescriptors,
+                            model.getParameterPolicies(), model.getParameterGroupPolicies());
+                    if (index.size() < 10) {
+                        LOG.warning("Parsed " + index.size() + " Teltonika Parameters for model " + modelNumber);
+                    }
+                    return index;
+                },
+                (existing, replacement) -> replacement
+        ));
+
+        modelAssets = List.copyOf(models);
+        assetIds = Stream.concat(Stream.of(master), models.stream())
+                .map(Asset::getId)
+                .collect(Collectors.toUnmodifiableSet());
+
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return When the configuration assets of this snapshot were read.
+     */
+    public Date getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /**
+     * @return Whether the asset is the master or one of the model configuration assets of this configuration.
+     */
+    public boolean isConfigurationAsset(String assetId) {
+        return assetIds.contains(assetId);
+    }
+
+    /**
+     * Returns the {@link TeltonikaParameterIndex} of the given model, falling back to the index of the default model
+     * if the model has no configuration of its own. If neither exists, an index containing only the custom parameters
+     * is returned, which is built once per snapshot and shared by all such models; each of them is only warned about
+     * once per snapshot.
+     */
+    public TeltonikaParameterIndex getParameterIndex(String modelNumber) {
+        TeltonikaParameterIndex index = modelNumber != null ? parameterIndexes.get(modelNumber) : null;
+        if (index == null && defaultModelNumber != null) {
+            index = parameterIndexes.get(defaultModelNumber);
+        }
+        if (index == null) {
+            if (modelsWithoutParameters.add(String.valueOf(modelNumber))) {
+                LOG.warning("Could not find the Teltonika Parameters for model " + modelNumber + ", only the custom parameters are decoded");
+            }
+            index = getFallbackIndex();
+        }
+        return index;
+    }
 
+    private TeltonikaParameterIndex getFallbackIndex() {
+        TeltonikaParameterIndex index = fallbackIndex.get();
+        if (index == null) {
+            // Threads that race here could build it twice, but they all return the one that was set first
+            fallbackIndex.compareAndSet(null, new TeltonikaParameterIndex(null, Collections.emptyMap(), version, assetDescriptors));
+            index = fallbackIndex.get();
+        }
+        return index;
     }
 
     public List<TeltonikaModelConfigurationAsset> getModelAssets() {
@@ -130,7 +248,8 @@ public class TeltonikaConfiguration {
     @Override
     public String toString() {
         return "TeltonikaConfiguration{" +
-                "masterAsset=" + masterAsset +
+                "version=" + version +
+                ", masterAsset=" + masterAsset +
                 ", parameterMap=" + defaultParameterMap +
                 ", modelAssets=" + modelAssets +
                 '}';
@@ -140,16 +259,16 @@ public class TeltonikaConfiguration {
         return modelAssets.stream().map(TeltonikaModelConfigurationAsset::getId).collect(Collectors.toList());
     }
 
-    public Boolean getEnabled(){
-        return masterAsset.getAttribute(TeltonikaConfigurationAsset.ENABLED).get().getValue().get();
+    public boolean getEnabled(){
+        return enabled;
     }
 
     public boolean getCheckForImei() {
-        return masterAsset.getAttribute(TeltonikaConfigurationAsset.CHECK_FOR_IMEI).get().getValue().get();
+        return checkForImei;
     }
 
     public String getDefaultModelNumber() {
-        return masterAsset.getAttribute(TeltonikaConfigurationAsset.DEFAULT_MODEL_NUMBER).get().getValue().get();
+        return defaultModelNumber;
     }
 
     public HashMap<String, CustomValueTypes.TeltonikaParameterMap> getModelParameterMap(String modelNumber) {
@@ -159,11 +278,23 @@ public class TeltonikaConfiguration {
     public Attribute<String> getCommandAttribute(){
         return getMasterAsset().getAttribute(TeltonikaConfigurationAsset.COMMAND).get();
     }
+
+    /**
+     * @return The name of the device asset attribute that commands are written to.
+     */
+    public String getCommandAttributeName() {
+        return commandAttributeName;
+    }
+
+    /**
+     * Returns a new, empty response attribute; the attribute of the master asset is not shared, since callers set the
+     * response of a device on it.
+     */
     public Attribute<String> getResponseAttribute(){
-        return getMasterAsset().getAttribute(TeltonikaConfigurationAsset.RESPONSE).get();
+        return new Attribute<>(TeltonikaConfigurationAsset.RESPONSE);
     }
 
-    public Attribute<Boolean> getStorePayloads(){
-        return getMasterAsset().getAttribute(TeltonikaConfigurationAsset.STORE_PAYLOADS).get();
+    public boolean getStorePayloads(){
+        return storePayloads;
     }
 }
@@ -2,9 +2,11 @@ package telematics.teltonika;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.apache.activemq.artemis.spi.core.protocol.RemotingConnection;
 import org.keycloak.KeycloakSecurityContext;
+import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.timer.TimerService;
 import org.openremote.model.protocol.mqtt.Topic;
 import org.openremote.model.util.UniqueIdentifierGenerator;
@@ -16,35 +18,60 @@ import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.manager.security.ManagerKeycloakIdentityProvider;
 import org.openremote.model.Container;
 import org.openremote.model.asset.Asset;
+import org.openremote.model.asset.AssetEvent;
 import org.openremote.model.asset.AssetFilter;
 import org.openremote.model.asset.AssetTypeInfo;
 import org.openremote.model.attribute.*;
 import org.openremote.model.custom.*;
-import org.openremote.model.datapoint.ValueDatapoint;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.filter.*;
 import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.teltonika.*;
 import org.openremote.model.util.ValueUtil;
 import org.openremote.model.value.*;
-import telematics.teltonika.helpers.TeltonikaConfigurationFactory;
+import telematics.teltonika.codec.TeltonikaAvlPacket;
+import telematics.teltonika.codec.TeltonikaAvlRecord;
+import telematics.teltonika.codec.TeltonikaRecordAcknowledgement;
+import telematics.teltonika.codec.TeltonikaTcpServer;
+import telematics.teltonika.codec.TeltonikaUdpServer;
+import telematics.teltonika.helpers.TeltonikaConfigurationLoader;
+import telematics.teltonika.ingest.TeltonikaAssetWriter;
+import telematics.teltonika.ingest.TeltonikaChangeFilter;
+import telematics.teltonika.ingest.TeltonikaDatapointCompressor;
+import telematics.teltonika.ingest.TeltonikaDatapointFilter;
+import telematics.teltonika.ingest.TeltonikaDatapointWriter;
+import telematics.teltonika.ingest.TeltonikaIngestJournal;
+import telematics.teltonika.ingest.TeltonikaIngestMessage;
+import telematics.teltonika.ingest.TeltonikaIngestPipeline;
+import telematics.teltonika.registry.TeltonikaAttributeSchemaCache;
+import telematics.teltonika.registry.TeltonikaDevice;
+import telematics.teltonika.registry.TeltonikaDeviceRegistry;
+import telematics.teltonika.trip.TeltonikaTripTracker;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.sql.Timestamp;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getBoolean;
+import static org.openremote.model.util.MapAccess.getLong;
+import static org.openremote.model.util.MapAccess.getString;
+import static org.openremote.model.Constants.MASTER_REALM;
+import static telematics.teltonika.helpers.TeltonikaConfigurationLoader.OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS;
+import static telematics.teltonika.helpers.TeltonikaConfigurationLoader.OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS_DEFAULT;
 import static org.openremote.model.value.MetaItemType.*;
 
 public class TeltonikaMQTTHandler extends MQTTHandler {
@@ -52,25 +79,24 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
     public static final Class<? extends  Asset<VehicleAsset>> TELTONIKA_DEVICE_ASSET_CLASS = CarAsset.class;
     public static AssetTypeInfo TELTONIKA_DEVICE_ASSET_INFO = null;
 
-    protected static class TeltonikaDevice {
-        String clientId;
-        String commandTopic;
-
-        public TeltonikaDevice(Topic topic) {
-            this.clientId = topic.getTokens()[1];
-            this.commandTopic = String.format("%s/%s/teltonika/%s/commands",
-                topicRealm(topic),
-                this.clientId,
-                topic.getTokens()[3]);
-        }
-    }
-
     // Ideally, these should be in the Configuration assets, but because I cannot reboot a handler, I cannot change the topics to which the handler handles/subscribes to.
 
     private static final String TELTONIKA_DEVICE_RECEIVE_TOPIC = "data";
     private static final String TELTONIKA_DEVICE_SEND_TOPIC = "commands";
     private static final String TELTONIKA_DEVICE_TOKEN = "teltonika";
 
+    /**
+     * Whether the attributes and datapoints of devices are stored by the {@link TeltonikaAssetWriter} and
+     * {@link TeltonikaDatapointWriter}, which bypasses the attribute event processing chain; see {@link #updateAsset}.
+     */
+    public static final String OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES = "OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES";
+    public static final boolean OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES_DEFAULT = false;
+    public static final String OR_TELTONIKA_TCP_REALM = "OR_TELTONIKA_TCP_REALM";
+    public static final String OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS = "OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS";
+    public static final long OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS_DEFAULT = 10000;
+    public static final String OR_TELTONIKA_HISTORY_INGESTION = "OR_TELTONIKA_HISTORY_INGESTION";
+    public static final boolean OR_TELTONIKA_HISTORY_INGESTION_DEFAULT = true;
+
     private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaMQTTHandler.class);
 
     protected AssetStorageService assetStorageService;
@@ -79,18 +105,33 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
     protected TimerService timerService;
     protected Path DeviceParameterPath;
 
-    protected final ConcurrentMap<String, TeltonikaDevice> connectionSubscriberInfoMap = new ConcurrentHashMap<>();
+    protected final TeltonikaDeviceRegistry deviceRegistry = new TeltonikaDeviceRegistry();
+    protected final TeltonikaAttributeSchemaCache attributeSchemas = new TeltonikaAttributeSchemaCache();
+    private volatile String registryCommandAttributeName;
+    protected TeltonikaIngestPipeline ingestPipeline;
+    protected TeltonikaIngestJournal journal;
+    protected TeltonikaDatapointWriter datapointWriter;
+    protected TeltonikaAssetWriter assetWriter;
+    protected final TeltonikaDatapointFilter datapointFilter = new TeltonikaDatapointFilter();
+    protected TeltonikaChangeFilter changeFilter;
+    protected TeltonikaDatapointCompressor datapointCompressor;
+    protected TeltonikaTripTracker tripTracker;
+    protected boolean batchAttributeUpdates = OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES_DEFAULT;
+    protected boolean historyIngestion = OR_TELTONIKA_HISTORY_INGESTION_DEFAULT;
+    protected TeltonikaTcpServer tcpServer;
+    protected TeltonikaUdpServer udpServer;
+    protected String tcpRealm = MASTER_REALM;
+    protected long tcpAckTimeoutMillis = OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS_DEFAULT;
+    protected ScheduledExecutorService scheduledExecutor;
+
+    protected TeltonikaConfigurationLoader configurationLoader;
 
-    private TeltonikaConfiguration config;
+    /**
+     * Returns the current configuration snapshot, which is loaded when the handler starts and refreshed in the
+     * background by the {@link TeltonikaConfigurationLoader}.
+     */
     private TeltonikaConfiguration getConfig() {
-        try{
-            return TeltonikaConfiguration.getInstance();
-        } catch (NullPointerException e) {
-            TeltonikaConfiguration tempConfig = TeltonikaConfigurationFactory.createConfiguration(assetStorageService, timerService, getParameterFileString());
-            TeltonikaConfiguration.setInstance(tempConfig);
-            config = tempConfig;
-        }
-        return config;
+        return TeltonikaConfiguration.getInstance();
     }
 
     /**
@@ -101,7 +142,8 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
      */
     @Override
     protected boolean topicMatches(Topic topic) {
-        return TELTONIKA_DEVICE_TOKEN.equalsIgnoreCase(topicTokenIndexToString(topic, 2)) && getConfig().getEnabled();
+        TeltonikaConfiguration config = getConfig();
+        return TELTONIKA_DEVICE_TOKEN.equalsIgnoreCase(topicTokenIndexToString(topic, 2)) && config != null && config.getEnabled();
     }
 
 
@@ -117,7 +159,12 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
         timerService = container.getService(TimerService.class);
         TELTONIKA_DEVICE_ASSET_INFO = ValueUtil.getAssetInfo(TELTONIKA_DEVICE_ASSET_CLASS).orElseThrow();
         DeviceParameterPath = container.isDevMode() ? Paths.get("./deployment/manager/fleet/FMC003.json") : Paths.get("/deployment/manager/fleet/FMC003.json");
-        config = TeltonikaConfigurationFactory.createConfiguration(assetStorageService, timerService, getParameterFileString());
+        configurationLoader = new TeltonikaConfigurationLoader(assetStorageService, timerService, this::getParameterFileString, container.getExecutor(), this::onConfigurationLoaded);
+        configurationLoader.load();
+        configurationLoader.schedulePeriodicRefresh(
+                container.getScheduledExecutor(),
+                getLong(container.getConfig(), OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS, OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS_DEFAULT)
+        );
         if (!identityService.isKeycloakEnabled()) {
             isKeycloak = false;
         } else {
@@ -145,26 +192,192 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
                 null,
                 this::handleAssetConfigurationChange
         );
+
+        loadDeviceRegistry();
+
+        // Internal Subscriptions to keep the device registry and the configuration up to date
+        clientEventService.addSubscription(
+                AssetEvent.class,
+                null,
+                this::handleDeviceAssetChange
+        );
+        clientEventService.addSubscription(
+                AssetEvent.class,
+                null,
+                this::handleConfigurationAssetChange
+        );
+        clientEventService.addSubscription(
+                AttributeEvent.class,
+                null,
+                this::handleDeviceModelNumberChange
+        );
+
+        batchAttributeUpdates = getBoolean(container.getConfig(), OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES, OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES_DEFAULT);
+        historyIngestion = getBoolean(container.getConfig(), OR_TELTONIKA_HISTORY_INGESTION, OR_TELTONIKA_HISTORY_INGESTION_DEFAULT);
+        datapointWriter = new TeltonikaDatapointWriter(container.getService(PersistenceService.class), container.getScheduledExecutor(), container.getConfig());
+        datapointWriter.start();
+        assetWriter = new TeltonikaAssetWriter(assetStorageService, datapointWriter, TeltonikaMQTTHandler::applyAttributes, container.getScheduledExecutor(), container.getConfig());
+        assetWriter.start();
+        tripTracker = new TeltonikaTripTracker(AssetDatapointService, container.getConfig());
+        changeFilter = new TeltonikaChangeFilter(container.getConfig());
+        datapointCompressor = new TeltonikaDatapointCompressor(container.getConfig());
+
+        if (getBoolean(container.getConfig(), TeltonikaIngestJournal.OR_TELTONIKA_JOURNAL, TeltonikaIngestJournal.OR_TELTONIKA_JOURNAL_DEFAULT)) {
+            journal = new TeltonikaIngestJournal(container.getScheduledExecutor(), container.getConfig());
+            journal.open();
+        }
+
+        ingestPipeline = new TeltonikaIngestPipeline(TeltonikaIngestPipeline.Options.fromConfig(container.getConfig()))
+                .addStage("decode", this::decodeMessage)
+                .addStage("map", this::mapMessage)
+                .addStage("persist", this::persistMessage);
+        ingestPipeline.onProcessed(this::onProcessed);
+        ingestPipeline.start();
+        if (journal != null) {
+            // Replays the payloads that were not processed before the last shutdown or crash
+            journal.start(ingestPipeline::submit);
+        }
+
+        // Devices that connect over TCP or UDP are not part of an MQTT topic, so they are all created in the same realm
+        tcpRealm = getString(container.getConfig(), OR_TELTONIKA_TCP_REALM, MASTER_REALM);
+        tcpAckTimeoutMillis = getLong(container.getConfig(), OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS, OR_TELTONIKA_TCP_ACK_TIMEOUT_MILLIS_DEFAULT);
+        scheduledExecutor = container.getScheduledExecutor();
+        TeltonikaTcpServer.Listener avlListener = new TeltonikaTcpServer.Listener() {
+            @Override
+            public boolean onConnect(String imei, SocketAddress remoteAddress) {
+                return onTcpConnect(imei, remoteAddress);
+            }
+
+            @Override
+            public CompletionStage<Integer> onRecords(String imei, TeltonikaAvlPacket packet) {
+                return onTcpRecords(imei, packet);
+            }
+        };
+        tcpServer = new TeltonikaTcpServer(container.getConfig(), avlListener);
+        tcpServer.start();
+        udpServer = new TeltonikaUdpServer(container.getConfig(), avlListener);
+        udpServer.start();
     }
 
-    private void handleAssetConfigurationChange(AttributeEvent attributeEvent) {
-//        throw new NotImplementedException();
-        AssetFilter<AttributeEvent> eventFilter = buildConfigurationAssetFilter();
+    @Override
+    public void stop() throws Exception {
+        getLogger().info("Stopping Teltonika MQTT Handler");
+        if (configurationLoader != null) {
+            configurationLoader.cancelPeriodicRefresh();
+        }
+        // Stopped first, so that no more records are submitted to the pipeline
+        if (tcpServer != null) {
+            tcpServer.stop();
+        }
+        if (udpServer != null) {
+            udpServer.stop();
+        }
+        if (ingestPipeline != null) {
+            ingestPipeline.stop();
+        }
+        if (changeFilter != null) {
+            getLogger().info("Teltonika change filter statistics: " + changeFilter);
+        }
+        // Only stopped after the pipeline, so that the assets and datapoints of the drained messages are written as well
+        if (assetWriter != null) {
+            assetWriter.stop();
+        }
+        if (datapointCompressor != null && datapointWriter != null) {
+            datapointCompressor.flush(datapointWriter::write);
+            getLogger().info("Teltonika datapoint compression statistics: " + datapointCompressor);
+        }
+        if (datapointWriter != null) {
+            datapointWriter.stop();
+        }
+        // The payloads that the pipeline discarded or failed to process are still in the journal, and are replayed on the next start
+        if (journal != null) {
+            journal.stop();
+        }
+        super.stop();
+    }
 
-        if(eventFilter.apply(attributeEvent) == null) return;
+    /**
+     * Fills the {@link TeltonikaDeviceRegistry} with all assets that have an IMEI, loading only the attributes that
+     * the registry needs.
+     */
+    private synchronized void loadDeviceRegistry() {
+        registryCommandAttributeName = getCommandAttributeName();
+        List<Asset<?>> assets = assetStorageService.findAll(new AssetQuery()
+                .types(VehicleAsset.class)
+                .attributeNames(VehicleAsset.IMEI.getName())
+                .select(new AssetQuery.Select().attributes(VehicleAsset.IMEI.getName(), VehicleAsset.MODEL_NUMBER.getName(), VehicleAsset.LAST_CONTACT.getName(), registryCommandAttributeName)));
+        assets.forEach(this::registerDevice);
+        getLogger().info("Loaded " + deviceRegistry.size() + " Teltonika devices into the device registry");
+    }
 
-        Asset<?> asset = assetStorageService.find(attributeEvent.getRef().getId());
-//        if (asset.getType() == )
+    /**
+     * Adds the asset to the {@link TeltonikaDeviceRegistry}, if it has a valid IMEI.
+     */
+    private void registerDevice(Asset<?> asset) {
+        long imei = asset.getAttributes().getValue(VehicleAsset.IMEI).map(TeltonikaDeviceRegistry::parseImei).orElse(-1L);
+        if (imei < 0) {
+            return;
+        }
+        String modelNumber = asset.getAttributes().getValue(VehicleAsset.MODEL_NUMBER).orElse(null);
+        deviceRegistry.register(imei, asset.getId(), modelNumber, asset.getRealm(), asset.hasAttribute(getCommandAttributeName()));
+        asset.getAttributes().getValue(VehicleAsset.LAST_CONTACT)
+                .ifPresent(lastContact -> deviceRegistry.updateLastContact(imei, lastContact.getTime()));
+    }
 
-        if(Objects.equals(attributeEvent.getName(), TeltonikaModelConfigurationAsset.PARAMETER_MAP.getName())) {
-            // This means that the parameter map has been updated, hence the new ModelConfigurationAsset is valid.
-            // Hence, the configuration is now out of date, so we need to update it.
-            TeltonikaConfigurationFactory.refreshInstance(assetStorageService, timerService, getParameterFileString());
+    private void handleDeviceAssetChange(AssetEvent assetEvent) {
+        Asset<?> asset = assetEvent.getAsset();
+        if (!(asset instanceof VehicleAsset)) return;
+
+        switch (assetEvent.getCause()) {
+            case CREATE, UPDATE -> {
+                // The IMEI of the asset could have changed, so forget its previous device first
+                long previousImei = deviceRegistry.findImei(asset.getId());
+                long imei = asset.getAttributes().getValue(VehicleAsset.IMEI).map(TeltonikaDeviceRegistry::parseImei).orElse(-1L);
+                if (previousImei >= 0 && previousImei != imei) {
+                    deviceRegistry.unregister(previousImei);
+                }
+                registerDevice(asset);
+                if (!batchAttributeUpdates) {
+                    String modelNumber = asset.getAttributes().getValue(VehicleAsset.MODEL_NUMBER).orElse(null);
+                    attributeSchemas.record(asset.getId(), asset.getAttributes().values(), getConfig().getParameterIndex(modelNumber));
+                }
+            }
+            case DELETE -> {
+                long imei = deviceRegistry.findImei(asset.getId());
+                if (imei >= 0) {
+                    deviceRegistry.unregister(imei);
+                }
+                tripTracker.remove(asset.getId());
+                datapointFilter.remove(asset.getId());
+                assetWriter.remove(asset.getId());
+                attributeSchemas.remove(asset.getId());
+                changeFilter.remove(asset.getId());
+                datapointCompressor.remove(asset.getId());
+            }
+            default -> {}
+        }
+    }
+
+    private void handleDeviceModelNumberChange(AttributeEvent attributeEvent) {
+        if (!Objects.equals(attributeEvent.getName(), VehicleAsset.MODEL_NUMBER.getName())) return;
+
+        long imei = deviceRegistry.findImei(attributeEvent.getId());
+        if (imei < 0) return;
+
+        TeltonikaDevice device = deviceRegistry.get(imei);
+        if (device != null && device.getAssetId() != null) {
+            deviceRegistry.register(imei, device.getAssetId(), (String) attributeEvent.getValue().orElse(null), device.getRealm(), device.isCommandCapable());
         }
+    }
+
+    private void handleAssetConfigurationChange(AttributeEvent attributeEvent) {
+        if (!getConfig().isConfigurationAsset(attributeEvent.getId())) return;
+
         if (Objects.equals(attributeEvent.getName(), TeltonikaModelConfigurationAsset.PARAMETER_DATA.getName())){
             TeltonikaParameter[] newParamList = (TeltonikaParameter[]) attributeEvent.getValue().orElseThrow();
             if(newParamList.length == 0) return;
             getLogger().info("Model map configuration event: " + Arrays.toString(newParamList));
+            Asset<?> asset = assetStorageService.find(attributeEvent.getRef().getId());
             TeltonikaModelConfigurationAsset modelAsset = (TeltonikaModelConfigurationAsset) asset;
             modelAsset = modelAsset.setParameterData(newParamList);
             AttributeEvent modificationEvent = new AttributeEvent(
@@ -172,108 +385,79 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
                     TeltonikaModelConfigurationAsset.PARAMETER_MAP,
                     modelAsset.getParameterMap()
             );
-//            LOG.info("Publishing to client inbound queue: " + attribute.getName());
+            // The configuration is refreshed once the parameter map has been updated
             assetProcessingService.sendAttributeEvent(modificationEvent);
+            return;
         }
 
-
+        // Any other attribute, including the parameter map, means that the configuration is now out of date
+        configurationLoader.requestRefresh();
     }
 
     /**
-     * Creates a filter for the AttributeEvents for all attributes of both Teltonika Configuration assets and Teltonika
-     * Model configuration assets.
-     *
-     * @return Attribute filter for all {@code TeltonikaConfigurationAsset} and {@code TeltonikaModelConfigurationAsset}.
+     * Refreshes the configuration when a configuration asset is created or deleted.
      */
-    private AssetFilter<AttributeEvent> buildConfigurationAssetFilter(){
-
-        List<TeltonikaModelConfigurationAsset> modelAssets = getConfig().getModelAssets();
-
-        TeltonikaConfigurationAsset masterAsset = getConfig().getMasterAsset();
-
-
-        List<Asset<?>> allIds = new ArrayList<>(modelAssets);
-        allIds.add(masterAsset);
+    private void handleConfigurationAssetChange(AssetEvent assetEvent) {
+        if (assetEvent.getCause() == AssetEvent.Cause.READ) return;
 
-        AssetFilter<AttributeEvent> event = new AssetFilter<>();
-        event.setAssetIds((allIds.stream().map(Asset::getId).toArray(String[]::new)));
-        return event;
+        Asset<?> asset = assetEvent.getAsset();
+        if (asset instanceof TeltonikaConfigurationAsset || asset instanceof TeltonikaModelConfigurationAsset) {
+            configurationLoader.requestRefresh();
+        }
     }
 
     /**
-     * Creates a filter for the AttributeEvents that could send a command to a Teltonika Device.
-     *
-     * @return AssetFilter of VehicleAssets that have both {@code getConfig().getResponseAttribute().getName()} and
-     * {@code getConfig().getCommandAttribute().getValue().orElse("sendToDevice")} as attributes.
+     * Called with every new configuration snapshot.
      */
-    private AssetFilter<AttributeEvent> buildCommandAssetFilter(){
-
-        List<Asset<?>> assetsWithAttribute = assetStorageService
-            .findAll(new AssetQuery().types(VehicleAsset.class)
-                .attributeNames(getConfig().getCommandAttribute().getValue().orElse("sendToDevice")));
-        List<String> listOfVehicleAssetIds = assetsWithAttribute.stream()
-            .map(Asset::getId)
-            .toList();
+    private void onConfigurationLoaded(TeltonikaConfiguration configuration) {
+        String loadedCommandAttributeName = registryCommandAttributeName;
+        if (loadedCommandAttributeName != null && !loadedCommandAttributeName.equals(configuration.getCommandAttributeName())) {
+            // The command attribute was renamed, so the registry has to be reloaded to know which assets have the new
+            // attribute
+            loadDeviceRegistry();
+        }
+    }
 
-        AssetFilter<AttributeEvent> event = new AssetFilter<>();
-        event.setAssetIds(listOfVehicleAssetIds.toArray(new String[0]));
-        event.setAttributeNames(getConfig().getCommandAttribute().getValue().orElse("sendToDevice"));
-        return event;
+    private String getCommandAttributeName() {
+        return getConfig().getCommandAttributeName();
     }
 
+    /**
+     * Sends the value of a command attribute to its device. Whether the asset of the event belongs to a device that
+     * can receive commands is looked up in the {@link TeltonikaDeviceRegistry}, which is kept up to date by
+     * {@link AssetEvent}s, so that no asset has to be queried for the attribute events of the fleet. Devices that are
+     * connected over TCP receive the command on their connection, other devices over MQTT.
+     */
     private void handleAttributeMessage(AttributeEvent event) {
+        String commandAttributeName = getCommandAttributeName();
 
-        AssetFilter<AttributeEvent> eventFilter = buildCommandAssetFilter();
-
-        if(eventFilter.apply(event) == null) return;
+        // If this is not an AttributeEvent that updates the command attribute, ignore
+        if (!Objects.equals(event.getName(), commandAttributeName)) return;
 
-        // If this is not an AttributeEvent that updates a getConfig().getCommandAttribute().getValue().orElse("sendToDevice") field, ignore
-        if (!Objects.equals(event.getName(), getConfig().getCommandAttribute().getValue().orElse("sendToDevice"))) return;
-        //Find the asset in question
-        VehicleAsset asset = assetStorageService.find(event.getId(), VehicleAsset.class);
+        TeltonikaDevice deviceInfo = deviceRegistry.getByAssetId(event.getId());
+        if (deviceInfo == null || !deviceInfo.isCommandCapable()) return;
 
-        if(asset == null){
-            getLogger().warning("Couldn't find asset with id "+event.getId()+" when trying to send command to device");
+        if (event.getValue().isEmpty()) {
+            getLogger().warning("Attribute "+commandAttributeName+" was empty");
             return;
         }
+        String command = (String)event.getValue().get();
 
-        // Double check, remove later, sanity checks
-        if(asset.hasAttribute(getConfig().getCommandAttribute().getValue().orElse("sendToDevice"))){
-            if(Objects.equals(event.getId(), asset.getId())){
-
-                //Get the IMEI of the device
-                Optional<Attribute<String>> imei;
-                String imeiString;
-                try {
-                    imei = asset.getAttribute(VehicleAsset.IMEI);
-                    if(imei.isEmpty()) throw new Exception();
-                    if(imei.get().getValue().isEmpty()) throw new Exception();
-                    imeiString = imei.get().getValue().get();
-
-                }catch (Exception e){
-                    getLogger().warning("This Asset does not contain an IMEI! Can't send message!");
-                    return;
-                }
+        String imei = String.valueOf(deviceInfo.getImei());
+        if (tcpServer != null && tcpServer.isConnected(imei)) {
+            sendCommandOverTcp(command, imei);
+            return;
+        }
 
-                // Get the device subscription information, and even if it's subscribed
-                TeltonikaDevice deviceInfo = connectionSubscriberInfoMap.get(imeiString);
-                //If it's null, the device is not subscribed, leave
-                if(deviceInfo == null) {
-                    getLogger().info(String.format("Device %s is not subscribed to topic, not posting message",
-                        imeiString));
-//                    throw new Exception("Device is not connected to server");
-                    // If it is subscribed, check that the attribute's value is not empty, and send the command
-                } else{
-                    if(event.getValue().isPresent()){
-                        sendCommandToTeltonikaDevice((String)event.getValue().get(), deviceInfo);
-                        getLogger().fine("MQTT Message fired");
-                    }
-                    else{
-                        getLogger().warning("Attribute "+getConfig().getCommandAttribute().getValue().orElse("sendToDevice")+" was empty");
-                    }
-                }
-            }
+        //If it's not subscribed, leave
+        if (!deviceInfo.isSubscribed()) {
+            getLogger().info(String.format("Device %s is not subscribed to topic, not posting message",
+                deviceInfo.getImei()));
+            return;
         }
+
+        sendCommandToTeltonikaDevice(command, deviceInfo);
+        getLogger().fine("MQTT Message fired");
     }
 
     /**
@@ -284,7 +468,29 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
      * @param device A {@link TeltonikaDevice} that is currently subscribed, to which to send the message to.
      */
     private void sendCommandToTeltonikaDevice(String command, TeltonikaDevice device) {
-        publishMessage(device.commandTopic, Map.of("CMD", command), MqttQoS.EXACTLY_ONCE);
+        publishMessage(device.getCommandTopic(), Map.of("CMD", command), MqttQoS.EXACTLY_ONCE);
+    }
+
+    /**
+     * Sends a command to a device that is connected over TCP with Codec 12. Its response is submitted to the
+     * {@link TeltonikaIngestPipeline} as an {@code RSP} payload, so that it is written to the response attribute of the
+     * device's asset exactly like the responses of devices that use MQTT.
+     */
+    private void sendCommandOverTcp(String command, String imei) {
+        tcpServer.sendCommand(imei, command).whenComplete((response, error) -> {
+            if (error != null) {
+                getLogger().warning("Failed to send command '" + command + "' to device with IMEI " + imei + " over TCP: " + error);
+                return;
+            }
+            getLogger().fine("Device with IMEI " + imei + " responded to command '" + command + "': " + response);
+            ByteBuf body = Unpooled.copiedBuffer(ValueUtil.asJSON(Map.of("RSP", response)).orElseThrow(), StandardCharsets.UTF_8);
+            TeltonikaIngestMessage message = new TeltonikaIngestMessage(tcpRealm, null, imei, body, timerService.getCurrentTimeMillis());
+            // Completed on the event loop of the device's connection, which must not wait for the pipeline
+            if (!ingestPipeline.submit(message, 0)) {
+                getLogger().warning("Dropped response of device with IMEI " + imei + " to command '" + command + "', the ingest pipeline is full or stopped");
+                message.release();
+            }
+        });
     }
 
     @Override
@@ -348,20 +554,31 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
     public void onSubscribe(RemotingConnection connection, Topic topic) {
         getLogger().info("CONNECT: Device "+topic.getTokens()[1]+" connected to topic "+topic+".");
 
-        connectionSubscriberInfoMap.put(topic.getTokens()[3], new TeltonikaDevice(topic));
+        long imei = TeltonikaDeviceRegistry.parseImei(topic.getTokens()[3]);
+        if (imei < 0) return;
+
+        String commandTopic = String.format("%s/%s/teltonika/%s/commands",
+            topicRealm(topic),
+            topic.getTokens()[1],
+            topic.getTokens()[3]);
+        deviceRegistry.subscribed(imei, topicRealm(topic), topic.getTokens()[1], commandTopic);
     }
 
     @Override
     public void onUnsubscribe(RemotingConnection connection, Topic topic) {
         getLogger().info("DISCONNECT: Device "+topic.getTokens()[1]+" disconnected from topic "+topic+".");
 
-        connectionSubscriberInfoMap.remove(topic.getTokens()[3]);
+        long imei = TeltonikaDeviceRegistry.parseImei(topic.getTokens()[3]);
+        if (imei >= 0) {
+            deviceRegistry.unsubscribed(imei);
+        }
     }
 
     /**
      * Get the set of topics this handler wants to subscribe to for incoming publish messages; messages that match
      * these topics will be passed to {@link #onPublish}.
-     * The listener topics are defined as <code>{realmID}/{userID}/{@value TELTONIKA_DEVICE_TOKEN}/{IMEI}/{@value TELTONIKA_DEVICE_RECEIVE_TOPIC}</code>
+     * The listener topics are defined as <code>{realmID}/{userID}/{@value TELTONIKA_DEVICE_TOKEN}/{IMEI}/{@value TELTONIKA_DEVICE_RECEIVE_TOPIC}</code>,
+     * optionally followed by the suffix of a {@link TeltonikaPayloadEncoding}, such as <code>/cbor</code>.
      */
     @Override
     public Set<String> getPublishListenerTopics() {
@@ -369,141 +586,527 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
             TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" +
                 TELTONIKA_DEVICE_TOKEN + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TELTONIKA_DEVICE_RECEIVE_TOPIC,
             TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" +
-                TELTONIKA_DEVICE_TOKEN + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TELTONIKA_DEVICE_SEND_TOPIC
+                TELTONIKA_DEVICE_TOKEN + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TELTONIKA_DEVICE_SEND_TOPIC,
+            TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" +
+                TELTONIKA_DEVICE_TOKEN + "/" + TOKEN_SINGLE_LEVEL_WILDCARD + "/" + TELTONIKA_DEVICE_RECEIVE_TOPIC + "/" + TOKEN_SINGLE_LEVEL_WILDCARD
         );
     }
-//
-//    private long startTimestamp = 0;
-//    private long endTimestamp = 0;
+
     @Override
     public void onPublish(RemotingConnection connection, Topic topic, ByteBuf body) {
-//        startTimestamp = System.currentTimeMillis();
-	    ITeltonikaPayload payload = null;
-        String deviceImei = topic.getTokens()[3];
+        // Payloads that are published to data/<suffix> are in the encoding of the suffix
+        TeltonikaPayloadEncoding encoding = null;
+        if (topic.getTokens().length > 5) {
+            encoding = TeltonikaPayloadEncoding.fromTopicSuffix(topic.getTokens()[5]);
+            if (encoding == null) {
+                getLogger().warning("Dropped payload of device with IMEI " + topic.getTokens()[3] + " in unknown encoding " + topic.getTokens()[5]);
+                return;
+            }
+        }
+
+        // Only the topic is read on the broker thread, the payload itself is processed by the ingest pipeline, so
+        // that a slow database call never stalls the other devices on this connection thread.
+        TeltonikaIngestMessage message = new TeltonikaIngestMessage(
+            topic.getTokens()[0],
+            topic.getTokens()[1],
+            topic.getTokens()[3],
+            body.retainedDuplicate(),
+            timerService.getCurrentTimeMillis()
+        );
+        message.setEncoding(encoding);
+        try {
+            // Only the tokens of a single JSON record are scanned up to its priority; all other payloads are scheduled
+            // as high priority, which is never shed, and get their exact priority in the decode stage
+            int priority = TeltonikaPayloadFactory.getPriority(body, encoding);
+            if (priority >= 0) {
+                message.setPriority(TeltonikaIngestMessage.Priority.of(priority));
+            }
+        } catch (IOException e) {
+            // Reported by the decode stage, which fails on the same payload
+        }
+        if (journal != null) {
+            try {
+                journal.append(message);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Failed to append payload of device with IMEI " + message.getImei() + " to the journal", e);
+            }
+        }
+        // Queued behind the payloads of the device that wait in the journal, so that its payloads are processed in order;
+        // panic records overtake them, after which the older deferred payloads are only stored as history. Never waits
+        // for a full stripe, as that would stall all other devices on this broker thread
+        boolean deferred = message.getJournalEntry() != null
+                && message.getPriority() != TeltonikaIngestMessage.Priority.PANIC
+                && journal.isDeferred(message.getImei());
+        if (deferred || !ingestPipeline.submit(message, 0)) {
+            if (message.getJournalEntry() != null) {
+                journal.defer(message);
+                getLogger().fine("Deferred payload of device with IMEI " + message.getImei() + (deferred
+                        ? ", the device has deferred payloads"
+                        : ", the ingest pipeline is full or stopped"));
+            } else {
+                getLogger().warning("Dropped payload of device with IMEI " + message.getImei() + ", the ingest pipeline is full or stopped");
+            }
+            message.release();
+        }
+    }
 
-        String deviceUuid = UniqueIdentifierGenerator.generateId(deviceImei);
+    private boolean onTcpConnect(String imei, SocketAddress remoteAddress) {
+        TeltonikaConfiguration config = getConfig();
+        return config != null && config.getEnabled() && TeltonikaDeviceRegistry.parseImei(imei) >= 0;
+    }
+
+    /**
+     * Submits the records of a packet received over TCP or UDP to the {@link TeltonikaIngestPipeline}, in order.
+     * This runs on the Netty event loop, which serves many devices, so a full stripe is never waited for: the records
+     * that were not accepted are not acknowledged, and the device sends them again.
+     * <p>
+     * These records are not journaled, so they are only acknowledged once the writers stored them, see
+     * {@link #commitWhenStored}. A record whose write is lost with a failed batch is never settled, so the packet is
+     * acknowledged with the records that were stored after the acknowledgement timeout.
+     *
+     * @return Completes with the amount of records that were stored, starting from the first one.
+     */
+    private CompletionStage<Integer> onTcpRecords(String imei, TeltonikaAvlPacket packet) {
+        long receivedAt = timerService.getCurrentTimeMillis();
+        List<TeltonikaAvlRecord> records = packet.getRecords();
+        TeltonikaRecordAcknowledgement acknowledgement = new TeltonikaRecordAcknowledgement(records.size());
+        int accepted = 0;
+        for (TeltonikaAvlRecord record : records) {
+            int index = accepted;
+            TeltonikaIngestMessage message = new TeltonikaIngestMessage(tcpRealm, null, imei, record, receivedAt);
+            message.setStoredListener(stored -> acknowledgement.settle(index, stored));
+            if (!ingestPipeline.submit(message, 0)) {
+                // The device sends the remaining records again, as they were not acknowledged
+                getLogger().warning("Accepted " + accepted + " of " + records.size() + " records of device with IMEI " + imei + ", the ingest pipeline is full or stopped");
+                break;
+            }
+            accepted++;
+        }
+        for (int i = accepted; i < records.size(); i++) {
+            acknowledgement.settle(i, false);
+        }
+        if (!acknowledgement.isDone()) {
+            scheduledExecutor.schedule(acknowledgement::complete, tcpAckTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return acknowledgement.getAcknowledged();
+    }
 
-        Asset<VehicleAsset> asset = assetStorageService.find(deviceUuid, VehicleAsset.class);
-        String deviceModelNumber = asset != null
-                ? asset.getAttribute(VehicleAsset.MODEL_NUMBER).orElseThrow().getValue().orElse(getConfig().getDefaultModelNumber())
-                : getConfig().getDefaultModelNumber();
+    /**
+     * The decode stage of the {@link TeltonikaIngestPipeline}: resolves the device's asset and model number, and decodes
+     * the payload. Devices in the {@link TeltonikaDeviceRegistry} are resolved without loading their asset.
+     */
+    protected boolean decodeMessage(TeltonikaIngestMessage message) {
+        long imei = TeltonikaDeviceRegistry.parseImei(message.getImei());
+        TeltonikaDevice device = imei >= 0 ? deviceRegistry.get(imei) : null;
+
+        String deviceModelNumber = null;
+        if (device != null && device.getAssetId() != null) {
+            message.setAssetId(device.getAssetId());
+            deviceModelNumber = device.getModelNumber();
+        } else {
+            // First contact with this device since startup, its asset might not exist yet
+            Asset<VehicleAsset> asset = assetStorageService.find(UniqueIdentifierGenerator.generateId(message.getImei()), VehicleAsset.class);
+            if (asset != null) {
+                registerDevice(asset);
+                message.setAsset(asset);
+                message.setAssetId(asset.getId());
+                deviceModelNumber = asset.getAttributes().getValue(VehicleAsset.MODEL_NUMBER).orElse(null);
+            }
+        }
         if (deviceModelNumber == null){
             getLogger().fine("Device Model Number is null, setting to default");
             deviceModelNumber = getConfig().getDefaultModelNumber();
         }
+
+        message.setModelNumber(deviceModelNumber);
+        if (message.getRecord() != null) {
+            message.setPayload(TeltonikaPayloadFactory.getPayload(message.getRecord(), deviceModelNumber, getConfig()));
+            return true;
+        }
+        List<ITeltonikaPayload> payloads;
         try {
-            payload = TeltonikaPayloadFactory.getPayload(body.toString(StandardCharsets.UTF_8), deviceModelNumber);
-        } catch (JsonProcessingException e) {
+            payloads = TeltonikaPayloadFactory.getPayloads(message.getBody(), message.getEncoding(), deviceModelNumber, getConfig());
+        } catch (IOException e) {
             getLogger().severe(e.toString());
-            return;
+            return false;
         }
-        String realm = topic.getTokens()[0];
-        String clientId = topic.getTokens()[1];
 
-        try {
-            getLogger().log(Level.FINEST, ValueUtil.JSON.readTree(body.toString(StandardCharsets.UTF_8)).toPrettyString());
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+        if (getLogger().isLoggable(Level.FINEST)) {
+            getLogger().finest(message.getBody().toString(StandardCharsets.UTF_8));
         }
 
-        try {
-            AttributeMap attributes;
-            try{
-                Map<TeltonikaParameterData, Object> data = payload.getAttributesFromPayload(getConfig(), timerService);
-                attributes = payload.getAttributes(data, getConfig(), getLogger(), TELTONIKA_DEVICE_ASSET_INFO.getAttributeDescriptors());
-            }catch (JsonProcessingException e) {
-                getLogger().severe("Failed to getAttributesFromPayload");
-                getLogger().severe(e.toString());
-                throw e;
+        if (payloads.size() == 1) {
+            message.setPayload(payloads.get(0));
+            setPriority(message);
+        } else if (!payloads.isEmpty()) {
+            List<TeltonikaIngestMessage> batch = new ArrayList<>(payloads.size());
+            TeltonikaIngestMessage.Priority priority = TeltonikaIngestMessage.Priority.LOW;
+            for (ITeltonikaPayload payload : payloads) {
+                TeltonikaIngestMessage record = message.newRecordMessage(payload);
+                setPriority(record);
+                if (record.getPriority().compareTo(priority) > 0) {
+                    priority = record.getPriority();
+                }
+                batch.add(record);
             }
+            message.setBatch(batch);
+            message.setPriority(priority);
+        }
+        return !payloads.isEmpty();
+    }
 
-            //Create MQTTClientId Attribute
+    /**
+     * Sets the priority of a message from its decoded payload, which is exact where the priority that the message was
+     * scheduled with might not be, such as for payloads that were replayed from the journal.
+     */
+    private static void setPriority(TeltonikaIngestMessage message) {
+        if (message.getPayload() instanceof TeltonikaDataPayload dataPayload && dataPayload.getPriority() >= 0) {
+            message.setPriority(TeltonikaIngestMessage.Priority.of(dataPayload.getPriority()));
+        }
+    }
+
+    /**
+     * The map stage of the {@link TeltonikaIngestPipeline}: converts the decoded payload to the attributes of the
+     * device's asset, marks records that are older than the asset as historical, and checks whether a trip has ended.
+     * Finally, the {@link TeltonikaChangeFilter} removes the attributes whose value has not changed.
+     * <p>
+     * The records of a batch are mapped in order, as the trip check and the change filter depend on the previous record.
+     * As the batch is only persisted once all of its records are mapped, the change filter compares each record with
+     * the values that the records before it kept.
+     */
+    protected boolean mapMessage(TeltonikaIngestMessage message) throws Exception {
+        if (message.getBatch() == null) {
+            return mapRecord(message, null);
+        }
+        TeltonikaChangeFilter.Batch filterBatch = new TeltonikaChangeFilter.Batch();
+        for (TeltonikaIngestMessage record : message.getBatch()) {
+            try {
+                mapRecord(record, filterBatch);
+            } catch (Exception e) {
+                // Only this record is skipped, the other records of the batch are still stored
+                getLogger().log(Level.WARNING, "Skipping record of device with IMEI " + record.getImei() + " that could not be mapped", e);
+                record.setAttributes(null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param filterBatch The values kept by the records of the batch before this record, or {@code null} for a single
+     *                    record.
+     */
+    private boolean mapRecord(TeltonikaIngestMessage message, TeltonikaChangeFilter.Batch filterBatch) throws Exception {
+        ITeltonikaPayload payload = message.getPayload();
+
+        AttributeMap attributes;
+        try{
+            Map<TeltonikaParameterData, Object> data = payload.getAttributesFromPayload(getConfig(), timerService);
+            attributes = payload.getAttributes(data, getConfig(), getLogger());
+        }catch (JsonProcessingException e) {
+            getLogger().severe("Failed to getAttributesFromPayload");
+            getLogger().severe(e.toString());
+            throw e;
+        }
+
+        //Create MQTTClientId Attribute, for devices that are connected over MQTT
+        if (message.getClientId() != null) {
             try{
-                Attribute<String> clientIdAttribute = new Attribute<>("ClientId", ValueType.TEXT, clientId);
+                Attribute<String> clientIdAttribute = new Attribute<>("ClientId", ValueType.TEXT, message.getClientId());
                 clientIdAttribute.setTimestamp(timerService.getCurrentTimeMillis());
 
                 attributes.add(clientIdAttribute);
             }catch (Exception e){
                 getLogger().severe("Failed to create Client ID Attribute");
             }
+        }
 
 
-            //TODO: If specified in configuration, store payloads (if it WAS a data payload)
-            try{
-                if(getConfig().getStorePayloads().getValue().orElseThrow() && payload instanceof TeltonikaDataPayload){
-                    Attribute<?> payloadAttribute = new Attribute<>("payload", CustomValueTypes.TELTONIKA_PAYLOAD, new TeltonikaDataPayloadModel(((TeltonikaDataPayload) payload).getState()));
-                    payloadAttribute.addMeta(new MetaItem<>(STORE_DATA_POINTS, true));
-                    payloadAttribute.setTimestamp(attributes.get(VehicleAsset.LAST_CONTACT).orElseThrow().getValue().orElseThrow().getTime());
-                    attributes.add(payloadAttribute);
-                }
-            }catch (Exception ignored){}
+        //TODO: If specified in configuration, store payloads (if it WAS a data payload)
+        try{
+            if(getConfig().getStorePayloads() && payload instanceof TeltonikaDataPayload){
+                Attribute<?> payloadAttribute = new Attribute<>("payload", CustomValueTypes.TELTONIKA_PAYLOAD, new TeltonikaDataPayloadModel(((TeltonikaDataPayload) payload).getState()));
+                payloadAttribute.addMeta(new MetaItem<>(STORE_DATA_POINTS, true));
+                payloadAttribute.setTimestamp(attributes.get(VehicleAsset.LAST_CONTACT).orElseThrow().getValue().orElseThrow().getTime());
+                attributes.add(payloadAttribute);
+            }
+        }catch (Exception ignored){}
+
+        message.setAttributes(attributes);
+
+        if (isHistorical(message)) {
+            // Buffered records that a device sends after it was offline must not overwrite the newer state of the asset
+            message.setHistorical(true);
+            return true;
+        }
+
+        //Check state of Teltonika AVL ID 250 for FMC003, "Trip".
+        try{
+            Optional<Attribute<?>> sessionAttr = tripTracker.update(message.getAssetId(), () -> loadAsset(message), attributes);
+
+            if (sessionAttr.isPresent()) {
+                getLogger().fine("New AssetStateDuration");
+                // Maybe set this to session.endTime?
+                attributes.get(VehicleAsset.LAST_CONTACT).flatMap(Attribute::getValue)
+                        .ifPresent(val -> sessionAttr.get().setTimestamp(val.getTime()));
+            }
+        }catch (Exception e){
+            getLogger().severe("Could not parse Asset State Duration data");
+            getLogger().severe(e.toString());
+        }
+
+        // Only after the trip check, which needs the trip state of every record
+        int unchanged = changeFilter.filter(message.getAssetId(), attributes, getConfig().getParameterIndex(message.getModelNumber()), filterBatch);
+        if (unchanged > 0 && getLogger().isLoggable(Level.FINEST)) {
+            getLogger().finest("Skipped " + unchanged + " unchanged attributes of device with IMEI " + message.getImei());
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the message holds a record that is not newer than the latest record that was applied to the
+     * device's asset, which includes records that the device sends again because their acknowledgement was lost.
+     */
+    private boolean isHistorical(TeltonikaIngestMessage message) {
+        // A payload that is replayed from the journal can be older than what its asset holds even without history
+        // ingestion, as newer payloads of the device may have been processed before it
+        if ((!historyIngestion && !message.isReplayed()) || message.getAssetId() == null) {
+            return false;
+        }
+        long recordedAt = getRecordedAt(message.getAttributes());
+        if (recordedAt <= 0) {
+            return false;
+        }
+        TeltonikaDevice device = deviceRegistry.getByAssetId(message.getAssetId());
+        return device != null && device.getLastContact() > 0 && recordedAt <= device.getLastContact();
+    }
 
+    /**
+     * @return The device time of the record, or {@code 0} if the payload has none.
+     */
+    private static long getRecordedAt(AttributeMap attributes) {
+        return attributes.get(VehicleAsset.LAST_CONTACT).flatMap(Attribute::getValue).map(Date::getTime).orElse(0L);
+    }
 
+    /**
+     * Returns the device's asset, loading it if the decode stage resolved the device through the registry. If the asset
+     * has payloads that the {@link TeltonikaAssetWriter} has not merged yet, its pending instance is returned instead,
+     * and otherwise the version of the writer's last merge, so that with batched attribute updates a known device is
+     * only loaded once. Without them, the {@link TeltonikaAttributeSchemaCache} lets most records skip this; the trip
+     * check only calls it once per device, to recover its trip state.
+     *
+     * @return The asset, or {@code null} if the device has no asset.
+     */
+    @SuppressWarnings("unchecked")
+    private Asset<VehicleAsset> loadAsset(TeltonikaIngestMessage message) {
+        if (message.getAsset() == null && message.getAssetId() != null) {
+            Asset<?> current = assetWriter.getCurrent(message.getAssetId());
+            message.setAsset(current != null
+                    ? (Asset<VehicleAsset>) current
+                    : assetStorageService.find(message.getAssetId(), VehicleAsset.class));
+        }
+        return message.getAsset();
+    }
 
-            if (asset == null) {
-                try{
-                    createNewAsset(deviceUuid, deviceImei, realm, attributes);
-                } catch (Exception e){
-                    getLogger().severe("Failed to CreateNewAsset(deviceUuid, deviceImei, realm, attributes);");
-                    getLogger().severe(e.toString());
-                    throw e;
+    /**
+     * The persist stage of the {@link TeltonikaIngestPipeline}: creates or updates the device's asset.
+     * <p>
+     * The records of a batch are persisted in order. They are all applied to the same pending asset of the
+     * {@link TeltonikaAssetWriter}, so that the batch is stored with a single merge and their datapoints are written
+     * together. A batch that only updates values is merged at its end; one that creates the asset or adds attributes
+     * is merged with the next flush.
+     * <p>
+     * Panic records, or batches that hold one, are not batched with the payloads that follow: the pending asset is
+     * merged right away, so that the rules see the panic without waiting for the flush interval.
+     * <p>
+     * The journal entry of the message is only committed, and a record received over TCP or UDP only acknowledged,
+     * once its asset and datapoints are stored, see {@link #commitWhenStored}.
+     */
+    protected boolean persistMessage(TeltonikaIngestMessage message) {
+        long failedMerges = assetWriter.getFailedCount();
+        long failedBatches = datapointWriter.getFailedBatchCount();
+        if (message.getBatch() == null) {
+            persistRecord(message, false);
+            flushPanic(message, message.getAssetId());
+            commitWhenStored(message, message.getAssetId(), failedMerges, failedBatches);
+            return true;
+        }
+        String assetId = message.getAssetId();
+        for (TeltonikaIngestMessage record : message.getBatch()) {
+            if (record.getAttributes() == null) {
+                continue;
+            }
+            if (record.getAssetId() == null && assetId != null) {
+                // The asset was created by an earlier record of the batch
+                record.setAssetId(assetId);
+            }
+            persistRecord(record, true);
+            if (assetId == null && !record.isHistorical()) {
+                assetId = UniqueIdentifierGenerator.generateId(record.getImei());
+            }
+        }
+        flushPanic(message, assetId);
+        if (assetId != null && batchAttributeUpdates) {
+            assetWriter.flushValues(assetId);
+        }
+        commitWhenStored(message, assetId, failedMerges, failedBatches);
+        return true;
+    }
+
+    /**
+     * Commits the journal entry of a persisted message, and notifies its stored listener, once the writers stored it:
+     * after the merge of the pending asset that its records were applied to, or otherwise once the datapoints that it
+     * buffered are written. If a merge or a batch of datapoints failed while the message was persisted, which might
+     * have held its changes, the entry is not committed, so that it is replayed on the next start, and the listener is
+     * told that it was not stored.
+     *
+     * @param failedMerges  The failed merge count of the {@link TeltonikaAssetWriter} before the message was persisted.
+     * @param failedBatches The failed batch count of the {@link TeltonikaDatapointWriter} before the message was persisted.
+     */
+    private void commitWhenStored(TeltonikaIngestMessage message, String assetId, long failedMerges, long failedBatches) {
+        TeltonikaIngestJournal.Entry entry = message.getJournalEntry();
+        Consumer<Boolean> storedListener = message.getStoredListener();
+        if (entry == null && storedListener == null) {
+            return;
+        }
+        message.setJournalEntry(null);
+        message.setStoredListener(null);
+        Runnable stored = () -> {
+            if (entry != null) {
+                journal.commit(entry);
+            }
+            if (storedListener != null) {
+                storedListener.accept(true);
+            }
+        };
+        if (assetId != null && assetWriter.afterStored(assetId, stored)) {
+            return;
+        }
+        if (assetWriter.getFailedCount() == failedMerges) {
+            datapointWriter.afterWritten(failedBatches, stored);
+        } else if (storedListener != null) {
+            storedListener.accept(false);
+        }
+    }
+
+    /**
+     * Settles the journal entry and stored listener of a message that the {@link TeltonikaIngestPipeline} is done
+     * with. A message that failed is left in the journal, so that it is replayed on the next start until it failed too
+     * often, and was not stored. Those of a persisted message were handed to the writers by {@link #commitWhenStored},
+     * and those of any other message are settled right away, including those of a shed message, as shedding drops it
+     * on purpose.
+     */
+    private void onProcessed(TeltonikaIngestMessage message) {
+        switch (message.getOutcome()) {
+            case PROCESSED -> {
+                // Settled by the writers
+            }
+            case FAILED -> {
+                if (journal != null) {
+                    journal.fail(message);
                 }
+                notifyStored(message, false);
             }
-            else {
-                //Check state of Teltonika AVL ID 250 for FMC003, "Trip".
-//            Optional<Attribute<?>> sessionAttr = assetChangedTripState(new AttributeRef(asset.getId(), "250"));
-                // We want the state where the attribute 250 (Trip) is set to true.
-
-                //Any Class that implements `ValuePredicate` can be used here.
-                AttributePredicate pred = new AttributePredicate("250", new NumberPredicate((double) 1, AssetQuery.Operator.EQUALS));
-
-                try{
-                    if (asset.getAttributes().get("250").isEmpty()) {
-                        getLogger().warning("The new value is empty!");
-                        throw new Exception();
-                    } else if (attributes.get("250").isEmpty()) {
-                        getLogger().warning("The old value is empty!");
-                        throw new Exception();
-                    }
-                    Attribute<?> prevValue = asset.getAttributes().get("250").get();
-                    Attribute<?> newValue = attributes.get("250").get();
-                    AttributeRef ref = new AttributeRef(asset.getId(), "250");
-
-                    Optional<Attribute<?>> sessionAttr = assetChangedTripState(prevValue, newValue, pred.value, ref);
-
-                    if (sessionAttr.isPresent()) {
-                        getLogger().warning("New AssetStateDuration");
-                        Attribute<?> session = sessionAttr.get();
-                        session.addOrReplaceMeta(
-                            new MetaItem<>(STORE_DATA_POINTS, true),
-                            new MetaItem<>(RULE_STATE, true),
-                            new MetaItem<>(READ_ONLY, true)
-                        );
-                        // Maybe set this to session.endTime?
-                        attributes.get(VehicleAsset.LAST_CONTACT).flatMap(Attribute::getValue)
-                                .ifPresent(val -> session.setTimestamp(val.getTime()));
-                        attributes.add(session);
-
-                    }
-                }catch (Exception e){
-                    getLogger().severe("Could not parse Asset State Duration data");
-                    getLogger().severe(e.toString());
+            default -> {
+                if (journal != null) {
+                    journal.commit(message);
                 }
-                try{
-                    updateAsset(asset, attributes);
-                }catch (Exception e){
-                    getLogger().severe("Failed to UpdateAsset(asset, attributes, topic, connection)");
-                    getLogger().severe(e.toString());
-                    throw e;
+                notifyStored(message, true);
+            }
+        }
+    }
+
+    private static void notifyStored(TeltonikaIngestMessage message, boolean stored) {
+        Consumer<Boolean> storedListener = message.getStoredListener();
+        if (storedListener != null) {
+            message.setStoredListener(null);
+            storedListener.accept(stored);
+        }
+    }
+
+    private void flushPanic(TeltonikaIngestMessage message, String assetId) {
+        if (message.getPriority() == TeltonikaIngestMessage.Priority.PANIC && batchAttributeUpdates) {
+            assetWriter.flush(assetId != null ? assetId : UniqueIdentifierGenerator.generateId(message.getImei()));
+        }
+    }
+
+    /**
+     * Unless {@value #OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES} is enabled, the attribute events of a record are sent without
+     * loading the asset if the {@link TeltonikaAttributeSchemaCache} knows that it already has all of its attributes.
+     *
+     * @param deferred Whether the record is part of a batch, whose value updates are merged together at its end.
+     */
+    private boolean persistRecord(TeltonikaIngestMessage message, boolean deferred) {
+        if (message.isHistorical()) {
+            persistHistory(message);
+            return true;
+        }
+
+        TeltonikaParameterIndex parameterIndex = getConfig().getParameterIndex(message.getModelNumber());
+        if (!batchAttributeUpdates && message.getAsset() == null && message.getAssetId() != null
+                && attributeSchemas.hasAll(message.getAssetId(), message.getAttributes().values(), parameterIndex)) {
+            sendAttributeEvents(message.getAssetId(), message.getAttributes().values());
+        }
+        else if (loadAsset(message) == null) {
+            try{
+                String deviceUuid = UniqueIdentifierGenerator.generateId(message.getImei());
+                createNewAsset(deviceUuid, message.getImei(), message.getRealm(), message.getAttributes(), parameterIndex);
+
+                long imei = TeltonikaDeviceRegistry.parseImei(message.getImei());
+                if (imei >= 0) {
+                    // New assets are always created with the command attribute
+                    deviceRegistry.register(imei, deviceUuid, getConfig().getDefaultModelNumber(), message.getRealm(), true);
                 }
+            } catch (Exception e){
+                getLogger().severe("Failed to CreateNewAsset(deviceUuid, deviceImei, realm, attributes);");
+                getLogger().severe(e.toString());
+                throw e;
+            }
+        }
+        else {
+            try{
+                updateAsset(message.getAsset(), false, message.getAttributes(), parameterIndex, deferred);
+            }catch (Exception e){
+                getLogger().severe("Failed to UpdateAsset(asset, attributes, topic, connection)");
+                getLogger().severe(e.toString());
+                throw e;
             }
+        }
 
-        } catch (Exception e){
-            getLogger().warning("Could not parse Teltonika device Payload.");
-            getLogger().warning(e.toString());
-//            getLogger().warning(e.fi);
+        // Only now that the payload was persisted, its values are the last applied values of the change filter
+        changeFilter.commit(message.getAssetId() != null ? message.getAssetId() : UniqueIdentifierGenerator.generateId(message.getImei()),
+                message.getAttributes(), parameterIndex);
+
+        long imei = TeltonikaDeviceRegistry.parseImei(message.getImei());
+        long recordedAt = getRecordedAt(message.getAttributes());
+        if (imei >= 0 && recordedAt > 0) {
+            deviceRegistry.updateLastContact(imei, recordedAt);
         }
-        // Check if asset was found
+        return true;
+    }
+
+    /**
+     * Stores a historical record as datapoints only, without loading or updating the asset, and without sending
+     * attribute events, so that neither the current state of the asset nor the rules are affected by it.
+     * <p>
+     * Of the {@link TeltonikaParameterPolicy}, only {@link TeltonikaParameterPolicy.Storage#NEVER} applies: all other
+     * attributes of the record are stored. {@link TeltonikaParameterPolicy.Storage#ON_CHANGE} compares with the current
+     * value of the asset and {@link TeltonikaParameterPolicy.Storage#INTERVAL} with the last live datapoint, neither of
+     * which is the value that preceded a historical record. The {@link TeltonikaDatapointCompressor} is skipped as
+     * well, as its segments only move forward in time, and an older sample would corrupt the segment of the live series.
+     */
+    private void persistHistory(TeltonikaIngestMessage message) {
+        List<TeltonikaDatapointWriter.Datapoint> datapoints = new ArrayList<>(message.getAttributes().size());
+        for (Attribute<?> attribute : message.getAttributes().values()) {
+            if (attribute.getMetaValue(STORE_DATA_POINTS).orElse(false)) {
+                TeltonikaDatapointWriter.Datapoint.of(message.getAssetId(), attribute).ifPresent(datapoints::add);
+            }
+        }
+        if (getLogger().isLoggable(Level.FINE)) {
+            getLogger().fine("Storing " + datapoints.size() + " datapoints of historical record of device with IMEI " + message.getImei()
+                    + " at Timestamp " + message.getAttributes().get(VehicleAsset.LAST_CONTACT));
+        }
+        // The asset of a device that was only just created might still be pending
+        assetWriter.writeDatapoints(message.getAssetId(), datapoints);
     }
 
     /**
@@ -516,8 +1119,9 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
      *                      it should always return {@code newDeviceId}.
      * @param realm The realm to create the Asset in.
      * @param attributes The attributes to insert in the Asset.
+     * @param parameterIndex The parameters of the device's model, which hold the storage policies of the attributes.
      */
-    private void createNewAsset(String newDeviceId, String newDeviceImei, String realm, AttributeMap attributes) {
+    private void createNewAsset(String newDeviceId, String newDeviceImei, String realm, AttributeMap attributes, TeltonikaParameterIndex parameterIndex) {
 
         Asset<? extends VehicleAsset> newAsset = null;
         try {
@@ -550,7 +1154,7 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
         newAsset.getAttributes().add(new Attribute<>(VehicleAsset.IMEI, newDeviceImei));
 
         // Create Command and Response Attributes
-        Attribute<String> command = new Attribute<>(new AttributeDescriptor<>(getConfig().getCommandAttribute().getValue().orElse("sendToDevice"), ValueType.TEXT), "");
+        Attribute<String> command = new Attribute<>(new AttributeDescriptor<>(getCommandAttributeName(), ValueType.TEXT), "");
         newAsset.getAttributes().add(command);
 //        Attribute<String> response = new Attribute<>(new AttributeDescriptor<>(getConfig().getResponseAttribute().getValue().orElse("sendToDevice"), ValueType.TEXT), "");
 //        newAsset.getAttributes().add(response);
@@ -566,151 +1170,129 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
             attributes.forEach(attribute -> attribute.setTimestamp(dateVal.getTime()));
         });
 
-        updateAsset(finalNewAsset, attributes);
+        updateAsset(finalNewAsset, true, attributes, parameterIndex, false);
     }
 
 
 
+    private String getParameterFileString() {
+        try {
+            return Files.readString(DeviceParameterPath);
+        } catch (IOException e) {
+            getLogger().warning("Couldn't find FMC003.json, couldn't parse parameters");
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
-     * Returns an {@code Optional<Attribute<AssetStateDuration>>}, that {@code ifPresent()}, represents
-     * the Duration for which the predicate returned true.
+     * Updates the {@link Asset} passed, with the {@link AttributeMap} passed.
+     * <p>
+     * By default, one {@link AttributeEvent} is sent per attribute, and datapoints are stored by the attribute event
+     * processing chain according to the meta items of the attributes, so only the
+     * {@link TeltonikaParameterPolicy.Storage#NEVER} policy applies. The journal entry of the payload is committed once
+     * its events are handed to the processing chain, which processes them asynchronously.
+     * <p>
+     * If {@value #OR_TELTONIKA_BATCH_ATTRIBUTE_UPDATES} is enabled, all attributes of the payload are applied to the
+     * asset by the {@link TeltonikaAssetWriter} instead, which merges payloads that only update values right away, and
+     * stores all payloads of a device that create its asset or add attributes to it within its flush interval with a
+     * single merge. Their datapoints are then handed to the {@link TeltonikaDatapointWriter}, which inserts the
+     * datapoints of many payloads in batches. Which datapoints are stored is decided by the
+     * {@link TeltonikaParameterPolicy} of each parameter, see {@link #selectDatapoints}. This bypasses the attribute
+     * event processing chain: its interceptors, agent links and access checks do not see these updates, and the
+     * {@code AssetDatapointService} does not store their datapoints. The rules and clients are still notified through
+     * the events of the asset merges.
      *
-     * @param previousValue The old attribute state (Or the latest datapoint that exists)
-     * @param newValue The new attribute value
-     * @param pred A Predicate that describes the state change
-     * @param ref An AttributeRef that describes which asset and attribute this pertains to.
-     * @return An Optional Attribute of type AssetStateDuration that represents the Duration for which the predicate returned true.
+     * @param asset The asset to be updated.
+     * @param created Whether the asset does not exist yet.
+     * @param attributes The attributes to be upserted to the Attribute.
+     * @param parameterIndex The parameters of the device's model.
+     * @param deferred Whether a payload that only updates values is merged together with the payloads that follow.
      */
-    private Optional<Attribute<?>> assetChangedTripState(Attribute<?> previousValue, Attribute<?> newValue, ValuePredicate pred, AttributeRef ref) {
-        //We will first check if the predicate fails for the new value, and then check if the predicate is true for the previous value.
-        //In that way, we know that the state change happened between the new and previous values.
-
-        if (newValue.getValue().isEmpty()) {
-            getLogger().warning("The new value is empty!");
-            return Optional.empty();
-        } else if (previousValue.getValue().isEmpty()) {
-            getLogger().warning("The old value is empty!");
-            return Optional.empty();
+    private void updateAsset(Asset<? extends  Asset<VehicleAsset>> asset, boolean created, AttributeMap attributes, TeltonikaParameterIndex parameterIndex, boolean deferred) {
+        if (getLogger().isLoggable(Level.FINE)) {
+            String imei = asset.getAttribute(VehicleAsset.IMEI)
+                    .orElse(new Attribute<>("IMEI", ValueType.TEXT, "Not Found"))
+                    .getValue()
+                    .orElse("Couldn't Find IMEI");
+
+            getLogger().fine("Updating "+ attributes.size() +" attributes of "+TELTONIKA_DEVICE_ASSET_CLASS.getSimpleName()+" with IMEI " + imei + " at Timestamp " + attributes.get(VehicleAsset.LAST_CONTACT));
         }
 
-        boolean newValueTest =      pred.asPredicate(timerService::getCurrentTimeMillis).test(newValue        .getValue().get());
-        boolean previousValueTest = pred.asPredicate(timerService::getCurrentTimeMillis).test(previousValue   .getValue().get());
-        //If the predicate fails, then no changes need to happen.
-
-        // newValue is not 1, previousValue == 1
-        if(!(!newValueTest && previousValueTest)) {
-            return Optional.empty();
-        }
-
-        // Grab all data-points (To be replaced by AssetDatapointValueQuery)
-        // For optimization: Maybe pull the data-points from the endTime of the previous AssetStateDuration.
-
-        ArrayList<ValueDatapoint> list = new ArrayList<>(AssetDatapointService.getDatapoints(ref));
-
-
-        // If there are no historical data found, add some first
-        if(list.isEmpty()) {
-            list.add(
-                    new ValueDatapoint<>(
-                                    timerService.getCurrentTimeMillis(),
-                                    new AssetStateDuration(
-                                            new Timestamp(previousValue.getTimestamp().get()),
-                                            new Timestamp(newValue.getTimestamp().get())
-                                    )
-                    )
-            );
+        if (!batchAttributeUpdates) {
+            sendAttributeEvents(asset, attributes, parameterIndex);
+            return;
         }
 
-        //What we do now is, we will try to figure out the latest datapoint where the predicate fails, before the newValue.
-        //This means that, the state change took place between the datapoint we just found and its next one.
-
-        //Find the first datapoint that passes the negated predicate
-
-        ValueDatapoint<?> StateChangeAssetDatapoint = null;
-
-        try {
-            for (int i = 0; i < list.size()-1; i++) {
-                // Not using Object.equals, but Datapoint.equals
-
-                ValueDatapoint<?> currentDp = list.get(i);
-                ValueDatapoint<?> theVeryPreviousDp = list.get(i+1);
-
-                //            So, if the currentDp passes the predicate,
-                boolean currentDpTest = pred.asPredicate(timerService::getCurrentTimeMillis).test(currentDp.getValue());
-                //            and if the very previous one (NEXT one in the array and PREVIOUS in the time dimension)
-                //            FAILS the predicate,
-                boolean previousDpTest = pred.asPredicate(timerService::getCurrentTimeMillis).test(theVeryPreviousDp.getValue());
-                //            A state change happened where the state we are looking for was turned on.
-                //            We want the currentDp.
-
+        // Decided before the payload is applied, as storing on change compares with the current values of the asset
+        List<TeltonikaDatapointWriter.Datapoint> datapoints = selectDatapoints(asset, attributes, parameterIndex);
+        assetWriter.update(asset, created, attributes, datapoints, deferred);
+    }
 
-                if(currentDpTest && !previousDpTest){
-                    StateChangeAssetDatapoint = currentDp;
-                    break;
-                }
+    /**
+     * Returns the attributes of the payload that are stored as datapoints. Attributes of a Teltonika parameter are
+     * filtered by the {@link TeltonikaDatapointFilter} according to the parameter's {@link TeltonikaParameterPolicy};
+     * other attributes, such as the trip duration, are stored if they have {@link MetaItemType#STORE_DATA_POINTS}.
+     * Numeric values of parameters with a compression deviation are passed to the {@link TeltonikaDatapointCompressor}
+     * instead, and only the datapoints that it keeps are returned.
+     */
+    private List<TeltonikaDatapointWriter.Datapoint> selectDatapoints(Asset<?> asset, AttributeMap attributes, TeltonikaParameterIndex parameterIndex) {
+        List<TeltonikaDatapointWriter.Datapoint> datapoints = new ArrayList<>(attributes.size());
+        for (Attribute<?> attribute : attributes.values()) {
+            Attribute<?> previous = asset.getAttributes().get(attribute.getName()).orElse(null);
+            TeltonikaParameterCodec codec = parameterIndex.getCodecByAttributeName(attribute.getName());
+            boolean store = codec != null
+                    ? datapointFilter.accept(asset.getId(), attribute, previous, codec.getPolicy())
+                    : (previous != null ? previous : attribute).getMetaValue(STORE_DATA_POINTS).orElse(false);
+            if (!store) {
+                continue;
             }
-
-            if (StateChangeAssetDatapoint != null){
-                if (!pred.asPredicate(timerService::getCurrentTimeMillis).test(StateChangeAssetDatapoint.getValue())){
-                    throw new Exception("Found state change datapoint failed predicate");
-                }
-            }else{
-                throw new Exception("Couldn't find asset state change value");
+            if (codec != null && codec.getPolicy().isCompressed() && attribute.getValue().orElse(null) instanceof Number number) {
+                datapointCompressor.offer(asset.getId(), attribute.getName(), attribute.getTimestamp().orElse(0L), number,
+                        codec.getPolicy().compressionDeviation, datapoints::add);
+                continue;
             }
-
-        }catch (Exception e){
-            getLogger().warning(e.getMessage());
-            return Optional.empty();
+            TeltonikaDatapointWriter.Datapoint.of(asset.getId(), attribute).ifPresent(datapoints::add);
         }
-
-        if(previousValue.getTimestamp().isEmpty()){
-            getLogger().warning("previousValue's timestamp is empty!");
-            return Optional.empty();
-        }
-
-        //Because of the way that Teltonika sends the Attribute data, it sometimes sends a 1, then a 0, then a trip for the duration of the real trip.
-        //Just check if the duration is greater than 10 seconds, any trip less than that should not be recorded.
-
-        if(previousValue.getTimestamp().get() - StateChangeAssetDatapoint.getTimestamp() < 10000) return Optional.empty();
-
-        Attribute<?> tripAttr = new Attribute<>("LastTripStartedAndEndedAt", CustomValueTypes.ASSET_STATE_DURATION, new AssetStateDuration(
-            new Timestamp(StateChangeAssetDatapoint.getTimestamp()),
-            new Timestamp(previousValue.getTimestamp().get())
-        ));
-
-        tripAttr.addMeta(
-                new MetaItem<>(STORE_DATA_POINTS, true),
-                new MetaItem<>(RULE_STATE, true),
-                new MetaItem<>(READ_ONLY, true)
-        );
-
-
-        return Optional.of(tripAttr);
+        return datapoints;
     }
 
-    private String getParameterFileString() {
-        try {
-            return Files.readString(DeviceParameterPath);
-        } catch (IOException e) {
-            getLogger().warning("Couldn't find FMC003.json, couldn't parse parameters");
-            throw new RuntimeException(e);
+    /**
+     * Sets the value and timestamp of the attributes that the asset already has, so that their meta items are kept, and
+     * adds the others. The {@link MetaItemType#STORE_DATA_POINTS} and {@link MetaItemType#RULE_STATE} meta items are
+     * the exception, as they follow the {@link TeltonikaParameterPolicy} of the parameter, which can change.
+     */
+    @SuppressWarnings("unchecked")
+    private static void applyAttributes(Asset<?> asset, AttributeMap attributes) {
+        for (Attribute<?> attribute : attributes.values()) {
+            Attribute<?> existing = asset.getAttributes().get(attribute.getName()).orElse(null);
+            if (existing == null) {
+                asset.getAttributes().add(attribute);
+            } else {
+                ((Attribute<Object>) existing).setValue(attribute.getValue().orElse(null));
+                existing.setTimestamp(attribute.getTimestamp().orElse(null));
+                replaceMeta(existing, attribute, STORE_DATA_POINTS);
+                replaceMeta(existing, attribute, RULE_STATE);
+            }
         }
     }
 
     /**
-     * Updates the {@link Asset} passed, with the {@link AttributeMap} passed.
-     *
-     * @param asset The asset to be updated.
-     * @param attributes The attributes to be upserted to the Attribute.
+     * Copies a boolean meta item of the payload's attribute to the asset's attribute, if it is set and differs.
      */
-    private void updateAsset(Asset<? extends  Asset<VehicleAsset>> asset, AttributeMap attributes) {
-        String imei = asset.getAttribute(VehicleAsset.IMEI)
-                .orElse(new Attribute<>("IMEI", ValueType.TEXT, "Not Found"))
-                .getValue()
-                .orElse("Couldn't Find IMEI");
-
-        getLogger().info("Updating "+ attributes.stream().count() +" attributes of "+TELTONIKA_DEVICE_ASSET_CLASS.getSimpleName()+" with IMEI " + imei + " at Timestamp " + attributes.get(VehicleAsset.LAST_CONTACT));
+    private static void replaceMeta(Attribute<?> existing, Attribute<?> attribute, MetaItemDescriptor<Boolean> descriptor) {
+        attribute.getMetaValue(descriptor).ifPresent(value -> {
+            if (!value.equals(existing.getMetaValue(descriptor).orElse(null))) {
+                existing.addOrReplaceMeta(new MetaItem<>(descriptor, value));
+            }
+        });
+    }
 
+    /**
+     * Merges the attributes the asset does not have yet, and sends one {@link AttributeEvent} for each attribute it
+     * already has. The attributes of the asset are then recorded in the {@link TeltonikaAttributeSchemaCache}, so that
+     * the next payloads of the device can be sent without loading the asset.
+     */
+    private void sendAttributeEvents(Asset<? extends  Asset<VehicleAsset>> asset, AttributeMap attributes, TeltonikaParameterIndex parameterIndex) {
         AttributeMap nonExistingAttributes = new AttributeMap();
         AttributeMap existingAttributes = new AttributeMap();
 
@@ -727,20 +1309,24 @@ public class TeltonikaMQTTHandler extends MQTTHandler {
         if(!nonExistingAttributes.isEmpty()){
             assetStorageService.merge(asset);
         }
+        attributeSchemas.record(asset.getId(), asset.getAttributes().values(), parameterIndex);
+
+        sendAttributeEvents(asset.getId(), existingAttributes.values());
+    }
 
-        existingAttributes.forEach(attribute -> {
+    /**
+     * Sends one {@link AttributeEvent} for each attribute, which the asset must already have.
+     */
+    private void sendAttributeEvents(String assetId, Collection<Attribute<?>> attributes) {
+        attributes.forEach(attribute -> {
             AttributeEvent attributeEvent = new AttributeEvent(
-                    asset.getId(),
+                    assetId,
                     attribute.getName(),
                     attribute.getValue().orElseThrow(),
                     attribute.getTimestamp().orElse(0L)
             );
-//            LOG.info("Publishing to client inbound queue: " + attribute.getName());
             assetProcessingService.sendAttributeEvent(attributeEvent);
         });
-//        endTimestamp = System.currentTimeMillis();
-
-//        getLogger().info("Updated "+TELTONIKA_DEVICE_ASSET_CLASS.getSimpleName()+" in " + (endTimestamp - startTimestamp) + "ms");
     }
 
 }
@@ -0,0 +1,489 @@
+package telematics.teltonika;
+
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.MetaItem;
+import org.openremote.model.attribute.MetaMap;
+import org.openremote.model.custom.VehicleAsset;
+import org.openremote.model.geo.GeoJSONPoint;
+import org.openremote.model.teltonika.TeltonikaParameter;
+import org.openremote.model.teltonika.TeltonikaParameterPolicy;
+import org.openremote.model.util.ValueUtil;
+import org.openremote.model.value.AttributeDescriptor;
+import org.openremote.model.value.MetaItemType;
+import org.openremote.model.value.ValueConstraint;
+import org.openremote.model.value.ValueDescriptor;
+import org.openremote.model.value.ValueType;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.openremote.model.value.MetaItemType.*;
+
+/**
+ * The compiled form of a single {@link TeltonikaParameter}, which turns a reported value into an {@link Attribute}.
+ * <p>
+ * Everything that only depends on the parameter definition is worked out once, when the
+ * {@link TeltonikaParameterIndex} is built: the attribute type, the multiplier, the min/max bounds, the
+ * {@link MetaMap}s of the resulting attributes and whether the asset type already defines an
+ * {@link AttributeDescriptor} for the parameter. The {@link TeltonikaParameterPolicy} of the parameter decides the
+ * {@link MetaItemType#STORE_DATA_POINTS} and {@link MetaItemType#RULE_STATE} meta items of the attributes. Converting a value is then limited to decoding, scaling and
+ * attaching the precompiled descriptor.
+ * <p>
+ * Integer values are decoded as primitives according to the byte width and signedness of the parameter, so that e.g. the
+ * raw value {@code 65479} of a signed 2 byte parameter becomes {@code -57}, see {@link #decodeLong} and
+ * {@link #decodeDouble}. Values are never converted through Jackson, and coordinates are parsed without a regular
+ * expression.
+ */
+public final class TeltonikaParameterCodec {
+
+    /**
+     * How the reported value of a parameter is turned into an attribute.
+     */
+    public enum Kind {
+        /** {@code latlng}, stored in {@link Asset#LOCATION}. */
+        LOCATION,
+        /** {@code ts}, stored in {@link VehicleAsset#LAST_CONTACT}. */
+        TIMESTAMP,
+        /** {@code ang}, stored in {@link VehicleAsset#DIRECTION}. */
+        DIRECTION,
+        /** A parameter that the asset type defines an {@link AttributeDescriptor} for. */
+        ASSET_ATTRIBUTE,
+        /** Any other parameter, stored in an attribute named after its parameter ID. */
+        PARAMETER
+    }
+
+    // Don't allow user parameter modification, for every attribute parsed
+    private static final MetaItem<Boolean> READ_ONLY_META = new MetaItem<>(READ_ONLY, true);
+
+    /**
+     * Powers of ten that are exactly representable as a double.
+     */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private final String parameterId;
+    private final TeltonikaParameter parameter;
+    private final TeltonikaParameterPolicy policy;
+    private final MetaItem<Boolean> storeDataPointsMeta;
+    private final MetaItem<Boolean> ruleStateMeta;
+    private final Kind kind;
+    private final boolean numeric;
+    /**
+     * The width of the parameter's values in bytes, or {@code 0} if it is variable or unknown.
+     */
+    private final int width;
+    private final boolean signed;
+    private final double multiplier;
+    private final double min;
+    private final double max;
+
+    /**
+     * The descriptor used for {@link Kind#LOCATION}, {@link Kind#TIMESTAMP}, {@link Kind#DIRECTION} and
+     * {@link Kind#ASSET_ATTRIBUTE}, and for {@link Kind#PARAMETER} values without bounds.
+     */
+    private final AttributeDescriptor<?> descriptor;
+    private final AttributeDescriptor<?> minMaxDescriptor;
+    private final AttributeDescriptor<?> minDescriptor;
+    private final AttributeDescriptor<?> maxDescriptor;
+    private final AttributeDescriptor<?> outOfBoundsDescriptor;
+    /**
+     * Used when the value of a numeric parameter turns out not to be a number.
+     */
+    private final AttributeDescriptor<String> textDescriptor;
+
+    private TeltonikaParameterCodec(String parameterId, TeltonikaParameter parameter, Map<String, AttributeDescriptor<?>> assetDescriptors, TeltonikaParameterPolicy policy) {
+        this.parameterId = parameterId;
+        this.parameter = parameter;
+        this.policy = policy;
+        this.storeDataPointsMeta = new MetaItem<>(STORE_DATA_POINTS, policy.isStoreDataPoints());
+        this.ruleStateMeta = new MetaItem<>(RULE_STATE, policy.isRuleState());
+
+        AttributeDescriptor<?> assetDescriptor = assetDescriptors.get(parameterId);
+        this.kind = switch (parameterId) {
+            case "latlng" -> Kind.LOCATION;
+            case "ts" -> Kind.TIMESTAMP;
+            case "ang" -> Kind.DIRECTION;
+            default -> assetDescriptor != null ? Kind.ASSET_ATTRIBUTE : Kind.PARAMETER;
+        };
+
+        double parsedMin = parseDecimal(parameter.min);
+        double parsedMax = parseDecimal(parameter.max);
+        this.numeric = kind == Kind.PARAMETER && isNumeric(parameter, parsedMin, parsedMax);
+        this.width = parseWidth(parameter.bytes);
+        this.signed = parameter.type != null && parameter.type.equalsIgnoreCase("Signed");
+
+        double parsedMultiplier = Objects.equals(parameter.multiplier, "-") ? Double.NaN : parseDecimal(parameter.multiplier);
+        this.multiplier = numeric && !Double.isNaN(parsedMultiplier) ? parsedMultiplier : 1d;
+        this.min = numeric ? parsedMin : Double.NaN;
+        this.max = numeric ? parsedMax : Double.NaN;
+
+        MetaMap labelMeta = new MetaMap();
+        labelMeta.addAll(new MetaItem<>(LABEL, parameter.propertyName), storeDataPointsMeta, ruleStateMeta, READ_ONLY_META);
+        this.textDescriptor = new AttributeDescriptor<>(parameterId, ValueType.TEXT, labelMeta);
+
+        switch (kind) {
+            case LOCATION -> this.descriptor = withPayloadMeta(Asset.LOCATION);
+            case TIMESTAMP -> this.descriptor = withPayloadMeta(VehicleAsset.LAST_CONTACT);
+            case DIRECTION -> this.descriptor = withPayloadMeta(VehicleAsset.DIRECTION);
+            case ASSET_ATTRIBUTE -> this.descriptor = withPayloadMeta(assetDescriptor);
+            default -> this.descriptor = numeric ? numberDescriptor(false, false, false) : textDescriptor;
+        }
+
+        boolean bounded = !Double.isNaN(min) || !Double.isNaN(max);
+        this.minMaxDescriptor = bounded ? numberDescriptor(true, true, true) : null;
+        this.minDescriptor = bounded ? numberDescriptor(true, true, false) : null;
+        this.maxDescriptor = bounded ? numberDescriptor(true, false, true) : null;
+        this.outOfBoundsDescriptor = bounded ? numberDescriptor(true, false, false) : null;
+    }
+
+    /**
+     * Compiles the codec of a single parameter.
+     *
+     * @param assetDescriptors The {@link AttributeDescriptor}s of the asset type that the payloads are stored in.
+     */
+    public static TeltonikaParameterCodec compile(String parameterId, TeltonikaParameter parameter, Map<String, AttributeDescriptor<?>> assetDescriptors) {
+        return compile(parameterId, parameter, assetDescriptors, TeltonikaParameterPolicy.DEFAULT);
+    }
+
+    /**
+     * Compiles the codec of a single parameter, with the given storage and rule-exposure policy.
+     */
+    public static TeltonikaParameterCodec compile(String parameterId, TeltonikaParameter parameter, Map<String, AttributeDescriptor<?>> assetDescriptors, TeltonikaParameterPolicy policy) {
+        return new TeltonikaParameterCodec(parameterId, parameter, assetDescriptors, policy);
+    }
+
+    public String getParameterId() {
+        return parameterId;
+    }
+
+    public TeltonikaParameter getParameter() {
+        return parameter;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public TeltonikaParameterPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The name of the attributes that this codec creates.
+     */
+    public String getAttributeName() {
+        return descriptor.getName();
+    }
+
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Converts the reported value of this parameter to an {@link Attribute}.
+     *
+     * @return The attribute, or {@code null} if the value should not be stored (e.g. empty coordinates).
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Attribute<?> toAttribute(Object value) {
+        switch (kind) {
+            case LOCATION -> {
+                GeoJSONPoint point = parseLatLng(value.toString());
+                return point != null ? new Attribute(descriptor, point) : null;
+            }
+            case TIMESTAMP -> {
+                long unixTimestampMillis = value instanceof Number number ? number.longValue() : Long.parseLong(value.toString());
+                Timestamp deviceTimestamp = new Timestamp(unixTimestampMillis);
+                return new Attribute(descriptor, deviceTimestamp, unixTimestampMillis);
+            }
+            case DIRECTION -> {
+                double angle = value instanceof Number number ? number.doubleValue() : parseDecimal(value.toString());
+                if (Double.isNaN(angle)) {
+                    throw new IllegalArgumentException("Invalid direction: " + value);
+                }
+                return new Attribute(descriptor, (int) angle);
+            }
+            case ASSET_ATTRIBUTE -> {
+                return new Attribute(descriptor, toAssetValue(value));
+            }
+            default -> {
+                if (!numeric) {
+                    return new Attribute<>(textDescriptor, String.valueOf(value));
+                }
+
+                double number;
+                if (isInteger(value)) {
+                    number = decodeDouble(((Number) value).longValue());
+                } else if (value instanceof Number n) {
+                    number = n.doubleValue() * multiplier;
+                } else {
+                    number = value instanceof String string ? parseDecimal(string) * multiplier : Double.NaN;
+                    if (Double.isNaN(number)) {
+                        return new Attribute<>(textDescriptor, String.valueOf(value));
+                    }
+                }
+                return new Attribute(constrainedDescriptor(number), number);
+            }
+        }
+    }
+
+    /**
+     * Decodes a raw integer value of this parameter: values of signed parameters that fit in the width of the
+     * parameter are sign extended from it, while values that are already negative, or wider than the parameter, are
+     * returned as they are.
+     */
+    public long decodeLong(long raw) {
+        if (!signed || width <= 0 || width >= 8 || raw < 0 || raw >>> (width * 8) != 0) {
+            return raw;
+        }
+        int shift = 64 - width * 8;
+        return (raw << shift) >> shift;
+    }
+
+    /**
+     * Decodes a raw integer value of this parameter like {@link #decodeLong}, and applies the multiplier of the
+     * parameter. Negative values of unsigned 8 byte parameters are read as the unsigned value they represent.
+     */
+    public double decodeDouble(long raw) {
+        double value;
+        if (raw < 0 && !signed && width == 8) {
+            value = (double) (raw >>> 1) * 2d + (raw & 1);
+        } else {
+            value = decodeLong(raw);
+        }
+        return value * multiplier;
+    }
+
+    /**
+     * Converts a value to the type of the asset's {@link AttributeDescriptor}. Integer values are decoded and converted
+     * directly for the number and boolean types; other values are coerced by {@link ValueUtil}.
+     */
+    private Object toAssetValue(Object value) {
+        Class<?> type = descriptor.getType().getType();
+        if (isInteger(value)) {
+            long decoded = decodeLong(((Number) value).longValue());
+            if (type == Integer.class && decoded == (int) decoded) {
+                return (int) decoded;
+            } else if (type == Long.class) {
+                return decoded;
+            } else if (type == Double.class) {
+                return (double) decoded;
+            } else if (type == Boolean.class) {
+                return decoded != 0;
+            }
+        } else if (value instanceof Number number && type == Double.class) {
+            return number.doubleValue();
+        } else if (type.isInstance(value)) {
+            return value;
+        }
+        return ValueUtil.getValueCoerced(value, type).orElseThrow(() -> new IllegalArgumentException("Invalid value for " + descriptor.getName() + ": " + value));
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Picks the descriptor whose constraints are satisfied by the (scaled) value; constraints that the value falls
+     * outside of are left out, as the bounds in the parameter catalogue are not always accurate.
+     */
+    private AttributeDescriptor<?> constrainedDescriptor(double value) {
+        if (minMaxDescriptor == null) {
+            return descriptor;
+        }
+        boolean withMin = !Double.isNaN(min) && !(value < min);
+        boolean withMax = !Double.isNaN(max) && !(value > max);
+        if (withMin) {
+            return withMax ? minMaxDescriptor : minDescriptor;
+        }
+        return withMax ? maxDescriptor : outOfBoundsDescriptor;
+    }
+
+    private AttributeDescriptor<Double> numberDescriptor(boolean constrained, boolean withMin, boolean withMax) {
+        MetaMap metaMap = new MetaMap();
+        if (constrained) {
+            List<ValueConstraint> constraintValues = new ArrayList<>(2);
+            if (withMin) {
+                constraintValues.add(new ValueConstraint.Min(min * multiplier));
+            }
+            if (withMax) {
+                constraintValues.add(new ValueConstraint.Max(max * multiplier));
+            }
+            metaMap.add(new MetaItem<>(CONSTRAINTS, constraintValues.toArray(new ValueConstraint[0])));
+        }
+        metaMap.addAll(new MetaItem<>(LABEL, parameter.propertyName), storeDataPointsMeta, ruleStateMeta, READ_ONLY_META);
+        return new AttributeDescriptor<>(parameterId, ValueType.NUMBER, metaMap);
+    }
+
+    private <T> AttributeDescriptor<T> withPayloadMeta(AttributeDescriptor<T> assetDescriptor) {
+        MetaMap metaMap = new MetaMap();
+        if (assetDescriptor.getMeta() != null) {
+            metaMap.addAll(assetDescriptor.getMeta().values());
+        }
+        metaMap.addOrReplace(storeDataPointsMeta, ruleStateMeta, READ_ONLY_META);
+        return new AttributeDescriptor<>(assetDescriptor.getName(), assetDescriptor.getType(), metaMap);
+    }
+
+    private static boolean isNumeric(TeltonikaParameter parameter, double min, double max) {
+        if (!Double.isNaN(min) && !Double.isNaN(max)) {
+            return true;
+        }
+        return parameter.type != null && switch (parameter.type) {
+            case "Unsigned", "Signed", "unsigned", "UNSIGNED LONG INT" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Parses the byte width of a parameter from the catalogue.
+     *
+     * @return The width, or {@code 0} if it is variable or unknown.
+     */
+    static int parseWidth(String bytes) {
+        if (bytes == null) {
+            return 0;
+        }
+        return switch (bytes.trim()) {
+            case "1" -> 1;
+            case "2" -> 2;
+            case "4" -> 4;
+            case "8" -> 8;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Parses a plain decimal number (optionally signed, with a fraction and/or exponent) from the parameter catalogue.
+     *
+     * @return The number, or {@link Double#NaN} if the text is not a plain decimal number.
+     */
+    static double parseDecimal(String text) {
+        if (text == null) {
+            return Double.NaN;
+        }
+        String value = text.trim();
+        int length = value.length();
+        int i = 0;
+        if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+            i++;
+        }
+        int digits = 0;
+        while (i < length && Character.isDigit(value.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < length && value.charAt(i) == '.') {
+            i++;
+            while (i < length && Character.isDigit(value.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            while (i < length && Character.isDigit(value.charAt(i))) {
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return Double.NaN;
+            }
+        }
+        return i == length ? Double.parseDouble(value) : Double.NaN;
+    }
+
+    /**
+     * Parses coordinates in the {@code latitude,longitude} form of the Teltonika JSON format, e.g.
+     * {@code 51.4416420,5.4697225}.
+     *
+     * @return The point, or {@code null} if the coordinates are invalid, out of range, or both {@code 0} (no fix).
+     */
+    static GeoJSONPoint parseLatLng(String latlng) {
+        int comma = latlng.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        double latitude = parseCoordinate(latlng, 0, comma);
+        double longitude = parseCoordinate(latlng, comma + 1, latlng.length());
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180) || (latitude == 0 && longitude == 0)) {
+            return null;
+        }
+        // GeoJSON requires the points in long-lat form, not lat-long
+        return new GeoJSONPoint(longitude, latitude);
+    }
+
+    /**
+     * Parses a coordinate of at most 3 integer digits and an optional fraction from the given range of the text.
+     *
+     * @return The coordinate, or {@link Double#NaN} if the range is not a valid coordinate.
+     */
+    static double parseCoordinate(String text, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int integerDigits = 0;
+        while (i < end && isDigit(text.charAt(i))) {
+            mantissa = mantissa * 10 + (text.charAt(i++) - '0');
+            integerDigits++;
+        }
+        if (integerDigits == 0 || integerDigits > 3) {
+            return Double.NaN;
+        }
+        int fractionDigits = 0;
+        if (i < end && text.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(text.charAt(i))) {
+                if (integerDigits + fractionDigits < POWERS_OF_TEN.length) {
+                    mantissa = mantissa * 10 + (text.charAt(i) - '0');
+                    fractionDigits++;
+                }
+                // Digits beyond the 15 significant digits that a double holds exactly are dropped
+                i++;
+            }
+            if (fractionDigits == 0) {
+                return Double.NaN;
+            }
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+        // A mantissa of at most 15 digits and the power of ten are exact, so the division is correctly rounded
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaParameterCodec{" +
+                "parameterId='" + parameterId + '\'' +
+                ", kind=" + kind +
+                ", numeric=" + numeric +
+                ", multiplier=" + multiplier +
+                ", min=" + min +
+                ", max=" + max +
+                ", policy=" + policy +
+                '}';
+    }
+}
@@ -2,15 +2,19 @@ package telematics.teltonika;
 
 import org.openremote.model.teltonika.TeltonikaParameter;
 
-import java.util.Map;
-
 public class TeltonikaParameterData {
-    String key;
-    TeltonikaParameter value;
+    final String key;
+    final TeltonikaParameter value;
+    final TeltonikaParameterCodec codec;
 
     public TeltonikaParameterData(String key, TeltonikaParameter value) {
+        this(key, value, null);
+    }
+
+    public TeltonikaParameterData(String key, TeltonikaParameter value, TeltonikaParameterCodec codec) {
         this.key = key;
         this.value = value;
+        this.codec = codec;
     }
 
     public String getParameterId() {
@@ -21,6 +25,14 @@ public class TeltonikaParameterData {
         return value;
     }
 
+    /**
+     * @return The compiled codec of this parameter, or {@code null} if this parameter is not part of a
+     * {@link TeltonikaParameterIndex}.
+     */
+    public TeltonikaParameterCodec getCodec() {
+        return codec;
+    }
+
     //override equals to compare only keys
     @Override
     public boolean equals(Object obj) {
@@ -32,4 +44,9 @@ public class TeltonikaParameterData {
         }
         return this.key.equals(((TeltonikaParameterData) obj).key);
     }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
 }
@@ -0,0 +1,266 @@
+package telematics.teltonika;
+
+import org.openremote.model.teltonika.TeltonikaParameter;
+import org.openremote.model.teltonika.TeltonikaParameterPolicy;
+import org.openremote.model.value.AttributeDescriptor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable lookup structure for the {@link TeltonikaParameter}s of a single Teltonika device model.
+ * <p>
+ * An index is built once for every {@link TeltonikaConfiguration}, and is therefore tied to the version of that
+ * configuration. When the configuration is refreshed, a new index is built and swapped in together with the new
+ * configuration instance, so that payloads never need to copy or rebuild the parameter map themselves.
+ * <p>
+ * Numeric AVL IDs are resolved through a dense array indexed by the AVL ID itself, while the custom keys that the
+ * Teltonika JSON format adds to every payload ({@code pr}, {@code alt}, {@code ang}, {@code sat}, {@code sp},
+ * {@code evt}, {@code latlng} and {@code ts}) are resolved through a small, fixed table.
+ * <p>
+ * Every parameter in the index carries its compiled {@link TeltonikaParameterCodec}, so the attribute conversion plan
+ * is built together with the index instead of for every message. The codecs are also indexed by the name of the
+ * attribute they create, so that the persist stage can look up the {@link TeltonikaParameterPolicy} of an attribute.
+ * Each of these attribute names also has a dense ordinal, which allows sets of attribute names to be kept as bitsets.
+ * <p>
+ * The placeholder parameters of payload keys that are not part of the index are compiled once per key and cached, up to
+ * {@link #MAX_UNKNOWN_PARAMETERS} keys; that cache is the only part of an index that changes after it was built.
+ */
+public final class TeltonikaParameterIndex {
+
+    /**
+     * AVL IDs are at most 2 bytes wide (Codec 8 Extended), so the dense array never needs to be larger than this.
+     */
+    public static final int MAX_AVL_ID = 0xFFFF;
+
+    /**
+     * Bounds the cache of unknown parameters, as the keys come from the devices; keys beyond it are compiled every time.
+     */
+    public static final int MAX_UNKNOWN_PARAMETERS = 1024;
+
+    public static final List<TeltonikaParameterData> CUSTOM_PARAMETERS = List.of(
+            new TeltonikaParameterData("pr", new TeltonikaParameter(-1, "Priority", String.valueOf(1), "Unsigned", String.valueOf(0), String.valueOf(4), String.valueOf(1), "-", "0: Low - 1: High - 2: Panic", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("alt", new TeltonikaParameter(-1, "Altitude", "2", "Signed", "-1000", "+3000", "1", "m", "meters above sea level", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("ang", new TeltonikaParameter(-1, "Direction", "2", "Signed", "-360", "+460", "1", "deg", "degrees from north pole", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("sat", new TeltonikaParameter(-1, "Satellites", "1", "Unsigned", "0", "1000", "1", "-", "number of visible satellites", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("sp", new TeltonikaParameter(-1, "Speed", "2", "Signed", "0", "1000", "1", "km/h", "speed calculated from satellites", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("evt", new TeltonikaParameter(-1, "Event Triggered", "2", "Signed", "0", "10000", "1", "-", "Parameter ID which generated this payload", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("latlng", new TeltonikaParameter(-1, "Coordinates", "8", "ASCII", "-", "-", "-", "-", "The device's coordinates at the given time", "all", "Permanent I/O Elements")),
+            new TeltonikaParameterData("ts", new TeltonikaParameter(-1, "Timestamp", "8", "Signed", "-", "-", "1", "-", "The device time when the payload was sent", "all", "Permanent I/O Elements"))
+    );
+
+    private final String modelNumber;
+    private final long version;
+    private final Map<String, AttributeDescriptor<?>> assetDescriptors;
+    private final Map<String, TeltonikaParameterPolicy> parameterPolicies;
+    private final Map<String, TeltonikaParameterPolicy> groupPolicies;
+    private final Map<String, TeltonikaParameterCodec> codecsByAttributeName;
+    private final Map<String, Integer> ordinalsByAttributeName;
+    private final String[] attributeNamesByOrdinal;
+    private final TeltonikaParameterData[] parametersByAvlId;
+    private final Map<String, TeltonikaParameterData> customParameters;
+    private final Map<String, TeltonikaParameterData> unknownParameters = new ConcurrentHashMap<>();
+    private final int size;
+
+    /**
+     * @param assetDescriptors The {@link AttributeDescriptor}s of the asset type that payloads are stored in; parameters
+     *                         that have a descriptor there are stored as described by that descriptor.
+     */
+    public TeltonikaParameterIndex(String modelNumber, Map<Integer, TeltonikaParameter> parameters, long version, Map<String, AttributeDescriptor<?>> assetDescriptors) {
+        this(modelNumber, parameters, version, assetDescriptors, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * @param parameterPolicies The policies of single parameters, keyed by parameter ID.
+     * @param groupPolicies     The policies of parameter groups, keyed by group name; used for parameters without a
+     *                          policy of their own.
+     */
+    public TeltonikaParameterIndex(String modelNumber, Map<Integer, TeltonikaParameter> parameters, long version, Map<String, AttributeDescriptor<?>> assetDescriptors,
+                                   Map<String, TeltonikaParameterPolicy> parameterPolicies, Map<String, TeltonikaParameterPolicy> groupPolicies) {
+        this.modelNumber = modelNumber;
+        this.version = version;
+        this.assetDescriptors = assetDescriptors;
+        this.parameterPolicies = parameterPolicies;
+        this.groupPolicies = groupPolicies;
+
+        int maxAvlId = -1;
+        for (Integer avlId : parameters.keySet()) {
+            if (avlId != null && avlId >= 0 && avlId <= MAX_AVL_ID) {
+                maxAvlId = Math.max(maxAvlId, avlId);
+            }
+        }
+
+        TeltonikaParameterData[] byAvlId = new TeltonikaParameterData[maxAvlId + 1];
+        int count = 0;
+        for (Map.Entry<Integer, TeltonikaParameter> entry : parameters.entrySet()) {
+            Integer avlId = entry.getKey();
+            if (avlId == null || avlId < 0 || avlId > MAX_AVL_ID || entry.getValue() == null) {
+                continue;
+            }
+            byAvlId[avlId] = compile(avlId.toString(), entry.getValue());
+            count++;
+        }
+        this.parametersByAvlId = byAvlId;
+        this.size = count;
+
+        this.customParameters = CUSTOM_PARAMETERS.stream().collect(Collectors.toUnmodifiableMap(
+                TeltonikaParameterData::getParameterId,
+                data -> compile(data.getParameterId(), data.getParameter())
+        ));
+
+        Map<String, TeltonikaParameterCodec> byAttributeName = new HashMap<>();
+        for (TeltonikaParameterData data : byAvlId) {
+            if (data != null) {
+                byAttributeName.put(data.getCodec().getAttributeName(), data.getCodec());
+            }
+        }
+        customParameters.values().forEach(data -> byAttributeName.put(data.getCodec().getAttributeName(), data.getCodec()));
+        this.codecsByAttributeName = Map.copyOf(byAttributeName);
+
+        this.attributeNamesByOrdinal = byAttributeName.keySet().stream().sorted().toArray(String[]::new);
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < attributeNamesByOrdinal.length; i++) {
+            ordinals.put(attributeNamesByOrdinal[i], i);
+        }
+        this.ordinalsByAttributeName = Map.copyOf(ordinals);
+    }
+
+    public String getModelNumber() {
+        return modelNumber;
+    }
+
+    /**
+     * @return The version of the {@link TeltonikaConfiguration} this index was built for.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The amount of AVL parameters in this index, excluding the custom parameters.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the parameter with the given AVL ID, or {@code null} if the model does not define it.
+     */
+    public TeltonikaParameterData get(int avlId) {
+        return avlId >= 0 && avlId < parametersByAvlId.length ? parametersByAvlId[avlId] : null;
+    }
+
+    /**
+     * Returns the parameter with the given payload key, which is either a numeric AVL ID or one of the custom keys,
+     * or {@code null} if the key is unknown.
+     */
+    public TeltonikaParameterData get(String parameterId) {
+        int avlId = parseAvlId(parameterId);
+        return avlId >= 0 ? get(avlId) : customParameters.get(parameterId);
+    }
+
+    /**
+     * Returns the codec that creates the attribute with the given name, or {@code null} if the attribute does not
+     * originate from a parameter of this index.
+     */
+    public TeltonikaParameterCodec getCodecByAttributeName(String attributeName) {
+        return codecsByAttributeName.get(attributeName);
+    }
+
+    /**
+     * Returns the ordinal of the attribute with the given name, between {@code 0} and {@link #getOrdinalCount()}, or
+     * {@code -1} if the attribute does not originate from a parameter of this index. Ordinals are only valid for this
+     * index, as a refreshed configuration can add or remove parameters.
+     */
+    public int getOrdinal(String attributeName) {
+        Integer ordinal = ordinalsByAttributeName.get(attributeName);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Returns the name of the attribute with the given ordinal, see {@link #getOrdinal}.
+     */
+    public String getAttributeName(int ordinal) {
+        return attributeNamesByOrdinal[ordinal];
+    }
+
+    /**
+     * @return The amount of attribute names that have an ordinal.
+     */
+    public int getOrdinalCount() {
+        return attributeNamesByOrdinal.length;
+    }
+
+    /**
+     * Returns the policy of the parameter: its own policy if it has one, otherwise the policy of its parameter group,
+     * otherwise {@link TeltonikaParameterPolicy#DEFAULT}.
+     */
+    public TeltonikaParameterPolicy getPolicy(String parameterId, TeltonikaParameter parameter) {
+        TeltonikaParameterPolicy policy = parameterPolicies.get(parameterId);
+        if (policy == null && parameter.parameterGroup != null) {
+            policy = groupPolicies.get(parameter.parameterGroup);
+        }
+        return policy != null ? policy : TeltonikaParameterPolicy.DEFAULT;
+    }
+
+    /**
+     * Returns the placeholder parameter that is used for payload keys that are not part of the index, which is only
+     * compiled on the first payload with the key.
+     */
+    public TeltonikaParameterData unknownParameter(String parameterId) {
+        TeltonikaParameterData parameter = unknownParameters.get(parameterId);
+        if (parameter != null) {
+            return parameter;
+        }
+        if (unknownParameters.size() >= MAX_UNKNOWN_PARAMETERS) {
+            return compileUnknown(parameterId);
+        }
+        return unknownParameters.computeIfAbsent(parameterId, this::compileUnknown);
+    }
+
+    public int getUnknownParameterCount() {
+        return unknownParameters.size();
+    }
+
+    private TeltonikaParameterData compileUnknown(String parameterId) {
+        return compile(parameterId, new TeltonikaParameter(-2, parameterId, "-", "UNKNOWN", "-", "-", "-", "-", "Unknown Parameter", "0", "Unknown"));
+    }
+
+    private TeltonikaParameterData compile(String parameterId, TeltonikaParameter parameter) {
+        return new TeltonikaParameterData(parameterId, parameter, TeltonikaParameterCodec.compile(parameterId, parameter, assetDescriptors, getPolicy(parameterId, parameter)));
+    }
+
+    /**
+     * Parses a payload key as an AVL ID, without throwing for non-numeric keys.
+     *
+     * @return The AVL ID, or {@code -1} if the key is not a canonical decimal number between 0 and {@link #MAX_AVL_ID}.
+     */
+    public static int parseAvlId(String parameterId) {
+        int length = parameterId.length();
+        if (length == 0 || length > 5 || (length > 1 && parameterId.charAt(0) == '0')) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = parameterId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= MAX_AVL_ID ? value : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaParameterIndex{" +
+                "modelNumber='" + modelNumber + '\'' +
+                ", version=" + version +
+                ", size=" + size +
+                '}';
+    }
+}
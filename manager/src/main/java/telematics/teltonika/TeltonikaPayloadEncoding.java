@@ -0,0 +1,80 @@
+package telematics.teltonika;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The encodings that payloads can be published in on the data topic, besides plain JSON.
+ * <p>
+ * The encoding is taken from the topic suffix if the payload is published to {@code .../data/<suffix>}, and detected
+ * from the first bytes of the payload otherwise: the CBOR self-describe tag or a CBOR map, a MessagePack map or array,
+ * or a zlib header. CBOR arrays start with the same bytes as MessagePack maps, so a CBOR array of records must either
+ * start with the self-describe tag or be published with the {@code cbor} suffix; the same goes for deflate data without
+ * a zlib header, which needs the {@code deflate} suffix.
+ */
+public enum TeltonikaPayloadEncoding {
+
+    JSON("json"),
+    CBOR("cbor"),
+    MESSAGE_PACK("msgpack"),
+    /**
+     * Deflate compressed data, with or without a zlib header, that holds a payload in one of the other encodings.
+     */
+    DEFLATE("deflate");
+
+    private final String topicSuffix;
+
+    TeltonikaPayloadEncoding(String topicSuffix) {
+        this.topicSuffix = topicSuffix;
+    }
+
+    public String getTopicSuffix() {
+        return topicSuffix;
+    }
+
+    /**
+     * @return The encoding of the topic suffix, or {@code null} if it is unknown.
+     */
+    public static TeltonikaPayloadEncoding fromTopicSuffix(String topicSuffix) {
+        for (TeltonikaPayloadEncoding encoding : values()) {
+            if (encoding.topicSuffix.equalsIgnoreCase(topicSuffix)) {
+                return encoding;
+            }
+        }
+        return "zlib".equalsIgnoreCase(topicSuffix) ? DEFLATE : null;
+    }
+
+    /**
+     * Detects the encoding from the first bytes of the payload, which is {@link #JSON} if there is no marker of another
+     * encoding. The reader index of {@code payload} is not modified.
+     */
+    public static TeltonikaPayloadEncoding detect(ByteBuf payload) {
+        int index = payload.readerIndex();
+        int length = payload.readableBytes();
+        if (length == 0) {
+            return JSON;
+        }
+        int first = payload.getUnsignedByte(index);
+        int second = length > 1 ? payload.getUnsignedByte(index + 1) : -1;
+        if (length > 2 && first == 0xD9 && second == 0xD9 && payload.getUnsignedByte(index + 2) == 0xF7) {
+            return CBOR;
+        }
+        if (second >= 0 && isZlibHeader(first, second)) {
+            return DEFLATE;
+        }
+        if (first >= 0xA0 && first <= 0xBF) {
+            return CBOR;
+        }
+        if ((first >= 0x80 && first <= 0x9F) || (first >= 0xDC && first <= 0xDF)) {
+            return MESSAGE_PACK;
+        }
+        return JSON;
+    }
+
+    /**
+     * A zlib header uses the deflate method with a window of at most 32K, and is a multiple of 31; no JSON, CBOR or
+     * MessagePack payload starts with such a header.
+     */
+    static boolean isZlibHeader(int first, int second) {
+        return (first & 0x0F) == 8 && (first >> 4) <= 7 && ((first << 8) | second) % 31 == 0;
+    }
+}
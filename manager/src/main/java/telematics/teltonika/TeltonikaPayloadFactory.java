@@ -1,25 +1,349 @@
 package telematics.teltonika;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
 import jakarta.validation.UnexpectedTypeException;
-import org.openremote.model.teltonika.TeltonikaDataPayloadModel;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.openremote.model.util.ValueUtil;
+import telematics.teltonika.codec.TeltonikaAvlRecord;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the payloads published by Teltonika devices.
+ * <p>
+ * Payloads are decoded in a single pass with a streaming {@link JsonParser} that reads straight from the
+ * {@link ByteBuf} the payload was received in. The type of the payload is detected from its first field
+ * ({@code state} for data payloads, {@code RSP} for command responses), and every reported value is resolved against
+ * the {@link TeltonikaParameterIndex} of the device's model while it is being read, so that no intermediate
+ * {@link String}, JSON tree or {@link org.openremote.model.teltonika.State} is created.
+ * <p>
+ * Devices and gateways that buffer records can publish several of them at once, either as an array of payloads or as
+ * a {@code records} envelope around such an array; see {@link #getPayloads}.
+ * <p>
+ * Besides JSON, payloads can be encoded in CBOR or MessagePack, or be deflate compressed; see
+ * {@link TeltonikaPayloadEncoding}. The binary encodings are read by a parser of the same streaming API, so they are
+ * decoded by the same code, without converting them to JSON first. Byte strings, which JSON does not have, are
+ * converted to hex like the variable length IO elements of the native protocol.
+ * <p>
+ * Records that are received over the native protocol ({@link TeltonikaAvlRecord}) are resolved against the same index,
+ * so that both end up in the same parameter pipeline.
+ */
 public class TeltonikaPayloadFactory {
-	public static ITeltonikaPayload getPayload(String payload, String modelNumber) throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		JsonNode rootNode = new ObjectMapper().readTree(payload);
-		if (rootNode.has("state")) {
+
+	private static final Logger LOG = Logger.getLogger(TeltonikaPayloadFactory.class.getName());
+
+	private static final JsonFactory JSON_FACTORY = ValueUtil.JSON.getFactory();
+	private static final JsonFactory CBOR_FACTORY = new CBORMapper().getFactory();
+	private static final JsonFactory MESSAGE_PACK_FACTORY = new ObjectMapper(new MessagePackFactory()).getFactory();
+
+	/**
+	 * The maximum size of a deflate compressed payload once it is inflated.
+	 */
+	public static final int MAX_INFLATED_LENGTH = 4 * 1024 * 1024;
+
+	/**
+	 * Decodes the payload. The reader index of {@code payload} is not modified.
+	 */
+	public static ITeltonikaPayload getPayload(ByteBuf payload, String modelNumber, TeltonikaConfiguration config) throws IOException {
+		try (JsonParser parser = createParser(payload)) {
+			return readPayload(parser, parser.nextToken(), modelNumber, config);
+		}
+	}
+
+	/**
+	 * Decodes a payload that holds one or more records, which is either a single payload, an array of payloads, or an
+	 * object with the array in its {@code records} field. Data payloads are sorted by their {@code ts}, so that they
+	 * are applied in the order in which the device recorded them. The reader index of {@code payload} is not modified.
+	 */
+	public static List<ITeltonikaPayload> getPayloads(ByteBuf payload, String modelNumber, TeltonikaConfiguration config) throws IOException {
+		return getPayloads(payload, null, modelNumber, config);
+	}
+
+	/**
+	 * @param encoding The encoding of the payload, or {@code null} to {@link TeltonikaPayloadEncoding#detect detect} it.
+	 * @see #getPayloads(ByteBuf, String, TeltonikaConfiguration)
+	 */
+	public static List<ITeltonikaPayload> getPayloads(ByteBuf payload, TeltonikaPayloadEncoding encoding, String modelNumber, TeltonikaConfiguration config) throws IOException {
+		try (JsonParser parser = createParser(payload, encoding)) {
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT) {
+				if (parser.nextToken() != JsonToken.FIELD_NAME) {
+					throw new UnexpectedTypeException("Unknown type for data payload");
+				}
+				if (!"records".equals(parser.currentName())) {
+					return List.of(readPayloadFields(parser, modelNumber, config));
+				}
+				token = parser.nextToken();
+			}
+			if (token != JsonToken.START_ARRAY) {
+				throw new UnexpectedTypeException("Unknown type for data payload");
+			}
+
+			List<ITeltonikaPayload> payloads = new ArrayList<>();
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				payloads.add(readPayload(parser, token, modelNumber, config));
+			}
+			// Stable, so that records without a timestamp and responses keep their place relative to each other
+			payloads.sort(Comparator.comparingLong(TeltonikaPayloadFactory::getTimestamp));
+			return payloads;
+		}
+	}
+
+	/**
+	 * Returns the priority ({@code pr}) of a payload that holds a single JSON record, so that it can be scheduled before
+	 * it is decoded. As this runs on the broker thread, only the tokens of the record are read, up to the {@code pr} of
+	 * its {@code state.reported} object, and no values are created. Payloads that would have to be decoded further are not read at all: binary
+	 * and deflate compressed payloads, and payloads of several records, whose priority is the highest of all their
+	 * records. The decode stage sets their exact priority. The reader index of {@code payload} is not modified.
+	 *
+	 * @param encoding The encoding of the payload, or {@code null} to {@link TeltonikaPayloadEncoding#detect detect} it.
+	 * @return The priority, or {@code -1} if the payload has none or was not read.
+	 */
+	public static int getPriority(ByteBuf payload, TeltonikaPayloadEncoding encoding) throws IOException {
+		if (encoding == null) {
+			encoding = TeltonikaPayloadEncoding.detect(payload);
+		}
+		if (encoding != TeltonikaPayloadEncoding.JSON) {
+			return -1;
+		}
+		try (JsonParser parser = createParser(JSON_FACTORY, payload)) {
+			// Like readPayloadFields, only a payload whose first field is its state is a record
+			if (parser.nextToken() != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME
+					|| !"state".equals(parser.currentName()) || parser.nextToken() != JsonToken.START_OBJECT) {
+				return -1;
+			}
+			// Like readState, only the parameters of state.reported are read, so a pr that is nested anywhere else is not
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				boolean reported = "reported".equals(parser.currentName());
+				if (parser.nextToken() != JsonToken.START_OBJECT || !reported) {
+					parser.skipChildren();
+					continue;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					if ("pr".equals(parser.currentName())) {
+						return parser.nextToken() == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : -1;
+					}
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static long getTimestamp(ITeltonikaPayload payload) {
+		return payload instanceof TeltonikaDataPayload dataPayload ? dataPayload.getTimestamp() : 0L;
+	}
+
+	/**
+	 * Reads a single payload object, with the parser positioned on its start.
+	 */
+	private static ITeltonikaPayload readPayload(JsonParser parser, JsonToken token, String modelNumber, TeltonikaConfiguration config) throws IOException {
+		if (token != JsonToken.START_OBJECT || parser.nextToken() != JsonToken.FIELD_NAME) {
+			throw new UnexpectedTypeException("Unknown type for data payload");
+		}
+		return readPayloadFields(parser, modelNumber, config);
+	}
+
+	/**
+	 * Reads a single payload object, with the parser positioned on its first field name, and leaves the parser on its
+	 * end.
+	 */
+	private static ITeltonikaPayload readPayloadFields(JsonParser parser, String modelNumber, TeltonikaConfiguration config) throws IOException {
+		String type = parser.currentName();
+		ITeltonikaPayload payload;
+		if ("state".equals(type)) {
 			// This looks like a DataPayload.
-			TeltonikaDataPayloadModel model = mapper.readValue(payload, TeltonikaDataPayloadModel.class);
-			return new TeltonikaDataPayload(model.state, modelNumber);
-		} else if (rootNode.has("RSP")) {
+			payload = new TeltonikaDataPayload(readState(parser, config.getParameterIndex(modelNumber)), modelNumber);
+		} else if ("RSP".equals(type)) {
 			// This looks like an SMSPayload.
-			return  mapper.readValue(payload, TeltonikaResponsePayload.class);
+			TeltonikaResponsePayload response = new TeltonikaResponsePayload();
+			parser.nextToken();
+			response.rsp = parser.getValueAsString();
+			response.setModelNumber(modelNumber);
+			payload = response;
 		} else {
 			throw new UnexpectedTypeException("Unknown type for data payload");
 		}
+		// Skips whatever follows the type, up to the end of the object
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			parser.nextToken();
+			parser.skipChildren();
+		}
+		return payload;
+	}
+
+	/**
+	 * Converts a record received over the native protocol to a data payload, with the same parameters as the JSON
+	 * payload of the same record would have.
+	 */
+	public static ITeltonikaPayload getPayload(TeltonikaAvlRecord record, String modelNumber, TeltonikaConfiguration config) {
+		TeltonikaParameterIndex index = config.getParameterIndex(modelNumber);
+		Map<TeltonikaParameterData, Object> parameters = new LinkedHashMap<>();
+
+		parameters.put(index.get("ts"), record.getTimestamp());
+		parameters.put(index.get("pr"), record.getPriority());
+		if (record.hasCoordinates()) {
+			parameters.put(index.get("latlng"), record.formatLatLng());
+		}
+		parameters.put(index.get("alt"), record.getAltitude());
+		parameters.put(index.get("ang"), record.getAngle());
+		parameters.put(index.get("sat"), record.getSatellites());
+		parameters.put(index.get("sp"), record.getSpeed());
+		parameters.put(index.get("evt"), record.getEventIoId());
+
+		for (int i = 0; i < record.getIoCount(); i++) {
+			parameters.put(getParameter(index, record.getIoId(i)), record.getIoValue(i));
+		}
+		for (int i = 0; i < record.getVariableIoCount(); i++) {
+			parameters.put(getParameter(index, record.getVariableIoId(i)), HexFormat.of().formatHex(record.getVariableIoValue(i)));
+		}
+		return new TeltonikaDataPayload(parameters, modelNumber);
+	}
+
+	private static TeltonikaParameterData getParameter(TeltonikaParameterIndex index, int avlId) {
+		TeltonikaParameterData parameter = index.get(avlId);
+		if (parameter == null) {
+			LOG.warning("Could not find Teltonika Parameter with ID " + avlId + ". Adding as unknown parameter.");
+			parameter = index.unknownParameter(String.valueOf(avlId));
+		}
+		return parameter;
+	}
+
+	private static JsonParser createParser(ByteBuf payload) throws IOException {
+		return createParser(payload, null);
+	}
+
+	private static JsonParser createParser(ByteBuf payload, TeltonikaPayloadEncoding encoding) throws IOException {
+		if (encoding == null) {
+			encoding = TeltonikaPayloadEncoding.detect(payload);
+		}
+		return switch (encoding) {
+			case JSON -> createParser(JSON_FACTORY, payload);
+			case CBOR -> createParser(CBOR_FACTORY, payload);
+			case MESSAGE_PACK -> createParser(MESSAGE_PACK_FACTORY, payload);
+			case DEFLATE -> {
+				ByteBuf inflated = Unpooled.wrappedBuffer(inflate(payload));
+				TeltonikaPayloadEncoding inflatedEncoding = TeltonikaPayloadEncoding.detect(inflated);
+				if (inflatedEncoding == TeltonikaPayloadEncoding.DEFLATE) {
+					throw new UnexpectedTypeException("Deflate compressed payload holds deflate compressed data");
+				}
+				yield createParser(inflated, inflatedEncoding);
+			}
+		};
+	}
+
+	private static JsonParser createParser(JsonFactory factory, ByteBuf payload) throws IOException {
+		if (payload.hasArray()) {
+			return factory.createParser(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+		}
+		return factory.createParser((InputStream) new ByteBufInputStream(payload.duplicate()));
+	}
+
+	/**
+	 * Inflates deflate compressed data, which may or may not have a zlib header.
+	 *
+	 * @throws IOException If the data is invalid or truncated, or inflates to more than {@link #MAX_INFLATED_LENGTH}.
+	 */
+	private static byte[] inflate(ByteBuf payload) throws IOException {
+		int index = payload.readerIndex();
+		boolean zlib = payload.readableBytes() > 1
+				&& TeltonikaPayloadEncoding.isZlibHeader(payload.getUnsignedByte(index), payload.getUnsignedByte(index + 1));
+		Inflater inflater = new Inflater(!zlib);
+		try {
+			inflater.setInput(payload.nioBuffer());
+			byte[] inflated = new byte[Math.min(MAX_INFLATED_LENGTH, Math.max(256, payload.readableBytes() * 4))];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == inflated.length) {
+					if (length == MAX_INFLATED_LENGTH) {
+						throw new IOException("Inflated payload exceeds " + MAX_INFLATED_LENGTH + " bytes");
+					}
+					inflated = Arrays.copyOf(inflated, Math.min(MAX_INFLATED_LENGTH, length * 2));
+				}
+				int n = inflater.inflate(inflated, length, inflated.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Deflate compressed payload is truncated");
+				}
+				length += n;
+			}
+			return Arrays.copyOf(inflated, length);
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid deflate compressed payload", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reads the {@code state} object, with the parser positioned on its field name, and returns the
+	 * {@code reported} values keyed by their resolved parameter.
+	 */
+	private static Map<TeltonikaParameterData, Object> readState(JsonParser parser, TeltonikaParameterIndex index) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "Expected the state of the data payload to be an object");
+		}
+
+		Map<TeltonikaParameterData, Object> parameters = new LinkedHashMap<>();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken token = parser.nextToken();
+			if (!"reported".equals(field) || token != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String parameterId = parser.currentName();
+				parser.nextToken();
+				Object value = readValue(parser);
+				if (value == null) {
+					continue;
+				}
+
+				TeltonikaParameterData parameter = index.get(parameterId);
+				if (parameter == null) {
+					LOG.warning("Could not find Teltonika Parameter with ID " + parameterId + ". Adding as unknown parameter.");
+					parameter = index.unknownParameter(parameterId);
+				}
+				if (parameters.putIfAbsent(parameter, value) != null) {
+					LOG.severe("Parameter " + parameterId + " already exists in the map");
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static Object readValue(JsonParser parser) throws IOException {
+		return switch (parser.currentToken()) {
+			case VALUE_NUMBER_INT -> parser.getNumberValue();
+			case VALUE_NUMBER_FLOAT -> parser.getDoubleValue();
+			case VALUE_STRING -> parser.getText();
+			case VALUE_TRUE -> Boolean.TRUE;
+			case VALUE_FALSE -> Boolean.FALSE;
+			case START_OBJECT, START_ARRAY -> parser.readValueAs(Object.class);
+			case VALUE_EMBEDDED_OBJECT -> parser.getEmbeddedObject() instanceof byte[] bytes ? HexFormat.of().formatHex(bytes) : null;
+			default -> null;
+		};
 	}
 }
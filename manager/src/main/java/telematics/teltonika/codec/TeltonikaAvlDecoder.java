@@ -0,0 +1,140 @@
+package telematics.teltonika.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes the AVL data of Codec 8 and Codec 8 Extended packets, and calculates the CRC that protects them.
+ * <p>
+ * The AVL data is the same for every transport: it starts with the codec ID and the amount of records, followed by
+ * the records and the amount of records again. The framing around it (TCP or UDP) is handled by the caller.
+ */
+public final class TeltonikaAvlDecoder {
+
+    public static final int CODEC_8 = 0x08;
+    public static final int CODEC_8_EXTENDED = 0x8E;
+
+    private TeltonikaAvlDecoder() {
+    }
+
+    public static boolean isAvlCodec(int codecId) {
+        return codecId == CODEC_8 || codecId == CODEC_8_EXTENDED;
+    }
+
+    /**
+     * Decodes the AVL data in the readable bytes of the buffer, starting at the codec ID; the reader index is moved
+     * past the second amount of records.
+     *
+     * @throws CorruptedFrameException If the data is not valid Codec 8 or Codec 8 Extended data.
+     */
+    public static TeltonikaAvlPacket decode(ByteBuf buffer) {
+        try {
+            int codecId = buffer.readUnsignedByte();
+            if (!isAvlCodec(codecId)) {
+                throw new CorruptedFrameException("Unsupported codec 0x" + Integer.toHexString(codecId));
+            }
+            boolean extended = codecId == CODEC_8_EXTENDED;
+
+            int count = buffer.readUnsignedByte();
+            List<TeltonikaAvlRecord> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                records.add(decodeRecord(buffer, extended));
+            }
+
+            int trailingCount = buffer.readUnsignedByte();
+            if (trailingCount != count) {
+                throw new CorruptedFrameException("Amount of records does not match: " + count + " and " + trailingCount);
+            }
+            return new TeltonikaAvlPacket(codecId, records);
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptedFrameException("AVL data is truncated", e);
+        }
+    }
+
+    private static TeltonikaAvlRecord decodeRecord(ByteBuf buffer, boolean extended) {
+        long timestamp = buffer.readLong();
+        int priority = buffer.readUnsignedByte();
+        int longitude = buffer.readInt();
+        int latitude = buffer.readInt();
+        int altitude = buffer.readShort();
+        int angle = buffer.readUnsignedShort();
+        int satellites = buffer.readUnsignedByte();
+        int speed = buffer.readUnsignedShort();
+
+        int eventIoId = readCount(buffer, extended);
+        int total = readCount(buffer, extended);
+
+        // The total is only a hint, the amounts per width are what the records actually contain
+        int[] ioIds = new int[total];
+        int[] ioWidths = new int[total];
+        long[] ioValues = new long[total];
+        int index = 0;
+        for (int width = 1; width <= 8; width <<= 1) {
+            int n = readCount(buffer, extended);
+            if (index + n > ioIds.length) {
+                int length = Math.max(index + n, ioIds.length * 2);
+                ioIds = Arrays.copyOf(ioIds, length);
+                ioWidths = Arrays.copyOf(ioWidths, length);
+                ioValues = Arrays.copyOf(ioValues, length);
+            }
+            for (int i = 0; i < n; i++, index++) {
+                ioIds[index] = readCount(buffer, extended);
+                ioWidths[index] = width;
+                ioValues[index] = switch (width) {
+                    case 1 -> buffer.readUnsignedByte();
+                    case 2 -> buffer.readUnsignedShort();
+                    case 4 -> buffer.readUnsignedInt();
+                    default -> buffer.readLong();
+                };
+            }
+        }
+        if (index != ioIds.length) {
+            ioIds = Arrays.copyOf(ioIds, index);
+            ioWidths = Arrays.copyOf(ioWidths, index);
+            ioValues = Arrays.copyOf(ioValues, index);
+        }
+
+        int[] variableIoIds = new int[0];
+        byte[][] variableIoValues = new byte[0][];
+        if (extended) {
+            int n = buffer.readUnsignedShort();
+            variableIoIds = new int[n];
+            variableIoValues = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                variableIoIds[i] = buffer.readUnsignedShort();
+                byte[] value = new byte[buffer.readUnsignedShort()];
+                buffer.readBytes(value);
+                variableIoValues[i] = value;
+            }
+        }
+
+        return new TeltonikaAvlRecord(timestamp, priority, longitude, latitude, altitude, angle, satellites, speed,
+                eventIoId, ioIds, ioWidths, ioValues, variableIoIds, variableIoValues);
+    }
+
+    /**
+     * IO IDs and amounts are 1 byte wide in Codec 8, and 2 bytes wide in Codec 8 Extended.
+     */
+    private static int readCount(ByteBuf buffer, boolean extended) {
+        return extended ? buffer.readUnsignedShort() : buffer.readUnsignedByte();
+    }
+
+    /**
+     * Calculates the CRC-16/IBM (polynomial {@code 0xA001}, reflected, initial value {@code 0}) of the bytes, which is
+     * the CRC that Teltonika devices use.
+     */
+    public static int crc16(ByteBuf buffer, int index, int length) {
+        int crc = 0;
+        for (int i = index, end = index + length; i < end; i++) {
+            crc ^= buffer.getUnsignedByte(i);
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,39 @@
+package telematics.teltonika.codec;
+
+import java.util.List;
+
+/**
+ * The AVL data records of a single Codec 8 or Codec 8 Extended packet.
+ */
+public class TeltonikaAvlPacket {
+
+    protected final int codecId;
+    protected final List<TeltonikaAvlRecord> records;
+
+    public TeltonikaAvlPacket(int codecId, List<TeltonikaAvlRecord> records) {
+        this.codecId = codecId;
+        this.records = records;
+    }
+
+    /**
+     * @return {@link TeltonikaAvlDecoder#CODEC_8} or {@link TeltonikaAvlDecoder#CODEC_8_EXTENDED}.
+     */
+    public int getCodecId() {
+        return codecId;
+    }
+
+    /**
+     * @return The records in packet order, which is the order in which the device recorded them.
+     */
+    public List<TeltonikaAvlRecord> getRecords() {
+        return records;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaAvlPacket{" +
+                "codecId=" + codecId +
+                ", records=" + records.size() +
+                '}';
+    }
+}
@@ -0,0 +1,177 @@
+package telematics.teltonika.codec;
+
+/**
+ * A single AVL data record, as decoded from a Codec 8 or Codec 8 Extended packet.
+ * <p>
+ * The IO elements are kept in parallel arrays in packet order, with their raw values as they were read from the packet;
+ * converting them to the parameters of the device's model happens in the parameter pipeline, see
+ * {@link telematics.teltonika.TeltonikaPayloadFactory}. Coordinates are kept in the integer form of the protocol,
+ * degrees multiplied by {@link #COORDINATE_PRECISION}.
+ */
+public class TeltonikaAvlRecord {
+
+    public static final int COORDINATE_PRECISION = 10_000_000;
+
+    protected final long timestamp;
+    protected final int priority;
+    protected final int longitude;
+    protected final int latitude;
+    protected final int altitude;
+    protected final int angle;
+    protected final int satellites;
+    protected final int speed;
+    protected final int eventIoId;
+    protected final int[] ioIds;
+    protected final int[] ioWidths;
+    protected final long[] ioValues;
+    protected final int[] variableIoIds;
+    protected final byte[][] variableIoValues;
+
+    /**
+     * @param ioWidths The width in bytes (1, 2, 4 or 8) of every fixed-width IO value.
+     */
+    public TeltonikaAvlRecord(long timestamp, int priority, int longitude, int latitude, int altitude, int angle, int satellites, int speed,
+                              int eventIoId, int[] ioIds, int[] ioWidths, long[] ioValues, int[] variableIoIds, byte[][] variableIoValues) {
+        this.timestamp = timestamp;
+        this.priority = priority;
+        this.longitude = longitude;
+        this.latitude = latitude;
+        this.altitude = altitude;
+        this.angle = angle;
+        this.satellites = satellites;
+        this.speed = speed;
+        this.eventIoId = eventIoId;
+        this.ioIds = ioIds;
+        this.ioWidths = ioWidths;
+        this.ioValues = ioValues;
+        this.variableIoIds = variableIoIds;
+        this.variableIoValues = variableIoValues;
+    }
+
+    /**
+     * @return The device time of the record, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getLongitude() {
+        return longitude;
+    }
+
+    public int getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * @return Whether the record has a GPS fix; devices report {@code 0,0} when they have none.
+     */
+    public boolean hasCoordinates() {
+        return longitude != 0 || latitude != 0;
+    }
+
+    public int getAltitude() {
+        return altitude;
+    }
+
+    public int getAngle() {
+        return angle;
+    }
+
+    public int getSatellites() {
+        return satellites;
+    }
+
+    public int getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return The ID of the IO element that caused the record, or {@code 0} if the record was not caused by an event.
+     */
+    public int getEventIoId() {
+        return eventIoId;
+    }
+
+    /**
+     * @return The amount of fixed-width IO elements.
+     */
+    public int getIoCount() {
+        return ioIds.length;
+    }
+
+    public int getIoId(int index) {
+        return ioIds[index];
+    }
+
+    public int getIoWidth(int index) {
+        return ioWidths[index];
+    }
+
+    /**
+     * @return The raw value of the IO element; values of 1, 2 and 4 bytes are unsigned, and
+     * are sign extended by the {@code TeltonikaParameterCodec} of signed parameters.
+     */
+    public long getIoValue(int index) {
+        return ioValues[index];
+    }
+
+    /**
+     * @return The amount of variable-length IO elements, which only Codec 8 Extended has.
+     */
+    public int getVariableIoCount() {
+        return variableIoIds.length;
+    }
+
+    public int getVariableIoId(int index) {
+        return variableIoIds[index];
+    }
+
+    public byte[] getVariableIoValue(int index) {
+        return variableIoValues[index];
+    }
+
+    /**
+     * Formats the coordinates the way the Teltonika JSON format reports them, {@code latitude,longitude} in degrees.
+     */
+    public String formatLatLng() {
+        StringBuilder builder = new StringBuilder(24);
+        appendCoordinate(builder, latitude);
+        builder.append(',');
+        appendCoordinate(builder, longitude);
+        return builder.toString();
+    }
+
+    protected static void appendCoordinate(StringBuilder builder, int value) {
+        long abs = Math.abs((long) value);
+        if (value < 0) {
+            builder.append('-');
+        }
+        builder.append(abs / COORDINATE_PRECISION).append('.');
+        String fraction = Long.toString(abs % COORDINATE_PRECISION);
+        for (int i = fraction.length(); i < 7; i++) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaAvlRecord{" +
+                "timestamp=" + timestamp +
+                ", priority=" + priority +
+                ", latlng=" + formatLatLng() +
+                ", altitude=" + altitude +
+                ", angle=" + angle +
+                ", satellites=" + satellites +
+                ", speed=" + speed +
+                ", eventIoId=" + eventIoId +
+                ", io=" + ioIds.length +
+                ", variableIo=" + variableIoIds.length +
+                '}';
+    }
+}
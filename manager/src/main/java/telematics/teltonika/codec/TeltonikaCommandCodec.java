@@ -0,0 +1,80 @@
+package telematics.teltonika.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the commands and decodes the responses of Codec 12, which is how GPRS commands are sent to a device over
+ * the TCP connection it sends its AVL data on.
+ * <p>
+ * A Codec 12 packet is framed like an AVL packet, and its data consists of the codec ID, the amount of messages (always
+ * {@code 1}), the message type ({@code 0x05} for a command, {@code 0x06} for a response), the length of the message as
+ * 4 bytes, the message in ASCII and the amount of messages again.
+ */
+public final class TeltonikaCommandCodec {
+
+    public static final int CODEC_12 = 0x0C;
+    public static final int TYPE_COMMAND = 0x05;
+    public static final int TYPE_RESPONSE = 0x06;
+
+    private TeltonikaCommandCodec() {
+    }
+
+    public static boolean isCommandCodec(int codecId) {
+        return codecId == CODEC_12;
+    }
+
+    /**
+     * @return The complete TCP packet of the command, including the preamble, length and CRC.
+     */
+    public static ByteBuf encodeCommand(ByteBufAllocator allocator, String command) {
+        byte[] message = command.getBytes(StandardCharsets.US_ASCII);
+        int dataLength = 1 + 1 + 1 + 4 + message.length + 1;
+        ByteBuf buffer = allocator.buffer(8 + dataLength + 4);
+        buffer.writeInt(0);
+        buffer.writeInt(dataLength);
+        int dataIndex = buffer.writerIndex();
+        buffer.writeByte(CODEC_12);
+        buffer.writeByte(1);
+        buffer.writeByte(TYPE_COMMAND);
+        buffer.writeInt(message.length);
+        buffer.writeBytes(message);
+        buffer.writeByte(1);
+        buffer.writeInt(TeltonikaAvlDecoder.crc16(buffer, dataIndex, dataLength));
+        return buffer;
+    }
+
+    /**
+     * Decodes the response in the readable bytes of the buffer, starting at the codec ID.
+     *
+     * @throws CorruptedFrameException If the data is not a valid Codec 12 response.
+     */
+    public static String decodeResponse(ByteBuf buffer) {
+        try {
+            int codecId = buffer.readUnsignedByte();
+            if (!isCommandCodec(codecId)) {
+                throw new CorruptedFrameException("Unsupported codec 0x" + Integer.toHexString(codecId));
+            }
+            int count = buffer.readUnsignedByte();
+            int type = buffer.readUnsignedByte();
+            if (count != 1 || type != TYPE_RESPONSE) {
+                throw new CorruptedFrameException("Not a Codec 12 response: " + count + " messages of type 0x" + Integer.toHexString(type));
+            }
+            long length = buffer.readUnsignedInt();
+            if (length > buffer.readableBytes() - 1) {
+                throw new CorruptedFrameException("Response is truncated");
+            }
+            String response = buffer.readCharSequence((int) length, StandardCharsets.US_ASCII).toString();
+            int trailingCount = buffer.readUnsignedByte();
+            if (trailingCount != count) {
+                throw new CorruptedFrameException("Amount of messages does not match: " + count + " and " + trailingCount);
+            }
+            return response;
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptedFrameException("Response is truncated", e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package telematics.teltonika.codec;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Collects whether each record of an AVL packet was stored, and completes with the amount of records to acknowledge to
+ * the device: those that were stored, starting from the first one. The records after the first one that was not stored
+ * are sent again by the device, so they are not acknowledged even if they were stored.
+ * <p>
+ * It completes once every record is settled, or when {@link #complete} is called, such as after a timeout for a record
+ * whose write was lost.
+ */
+public class TeltonikaRecordAcknowledgement {
+
+    protected static final int PENDING = 0;
+    protected static final int STORED = 1;
+    protected static final int NOT_STORED = 2;
+
+    protected final AtomicIntegerArray states;
+    protected final AtomicInteger remaining;
+    protected final CompletableFuture<Integer> acknowledged = new CompletableFuture<>();
+
+    public TeltonikaRecordAcknowledgement(int recordCount) {
+        this.states = new AtomicIntegerArray(recordCount);
+        this.remaining = new AtomicInteger(recordCount);
+        if (recordCount == 0) {
+            acknowledged.complete(0);
+        }
+    }
+
+    /**
+     * Settles a record; a record that was already settled keeps its first state.
+     *
+     * @param index  The index of the record in its packet.
+     * @param stored Whether the record was stored, or is done with otherwise, such as a record that is dropped on purpose.
+     */
+    public void settle(int index, boolean stored) {
+        if (states.compareAndSet(index, PENDING, stored ? STORED : NOT_STORED) && remaining.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Completes with the records that were stored so far, starting from the first one.
+     */
+    public void complete() {
+        int count = 0;
+        while (count < states.length() && states.get(count) == STORED) {
+            count++;
+        }
+        acknowledged.complete(count);
+    }
+
+    public boolean isDone() {
+        return acknowledged.isDone();
+    }
+
+    /**
+     * @return The amount of records to acknowledge, once it completes.
+     */
+    public CompletionStage<Integer> getAcknowledged() {
+        return acknowledged;
+    }
+}
@@ -0,0 +1,83 @@
+package telematics.teltonika.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+
+/**
+ * Splits the byte stream of a Teltonika TCP connection into the IMEI handshake and the packets that follow it.
+ * <p>
+ * The first message of a connection is the IMEI, preceded by its length as 2 bytes, which is passed on as a
+ * {@link String}. Every following packet consists of 4 zero bytes, the length of the data as 4 bytes, the data itself
+ * and the CRC-16 of the data as 4 bytes; the CRC is validated here, and the data of valid packets is passed on as a
+ * {@link ByteBuf} that starts at the codec ID. When the CRC does not match, the packet is acknowledged with
+ * {@code 0} records so that the device sends it again.
+ */
+public class TeltonikaTcpFrameDecoder extends ByteToMessageDecoder {
+
+    public static final int MAX_IMEI_LENGTH = 32;
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaTcpFrameDecoder.class);
+
+    protected final int maxFrameLength;
+    protected boolean identified;
+
+    public TeltonikaTcpFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (!identified) {
+            if (in.readableBytes() < 2) {
+                return;
+            }
+            int length = in.getUnsignedShort(in.readerIndex());
+            if (length == 0 || length > MAX_IMEI_LENGTH) {
+                throw new CorruptedFrameException("Invalid IMEI length " + length);
+            }
+            if (in.readableBytes() < 2 + length) {
+                return;
+            }
+            in.skipBytes(2);
+            out.add(in.readCharSequence(length, StandardCharsets.US_ASCII).toString());
+            identified = true;
+            return;
+        }
+
+        if (in.readableBytes() < 8) {
+            return;
+        }
+        int start = in.readerIndex();
+        if (in.getInt(start) != 0) {
+            throw new CorruptedFrameException("Invalid preamble");
+        }
+        long length = in.getUnsignedInt(start + 4);
+        if (length < 3 || length > maxFrameLength) {
+            throw new CorruptedFrameException("Invalid data length " + length);
+        }
+        if (in.readableBytes() < 8 + length + 4) {
+            return;
+        }
+
+        int dataIndex = start + 8;
+        int dataLength = (int) length;
+        long crc = in.getUnsignedInt(dataIndex + dataLength);
+        in.skipBytes(8 + dataLength + 4);
+
+        if (crc != TeltonikaAvlDecoder.crc16(in, dataIndex, dataLength)) {
+            LOG.fine("Discarding packet with invalid CRC from " + ctx.channel().remoteAddress());
+            ctx.writeAndFlush(ctx.alloc().buffer(4).writeInt(0));
+            return;
+        }
+        out.add(in.retainedSlice(dataIndex, dataLength));
+    }
+}
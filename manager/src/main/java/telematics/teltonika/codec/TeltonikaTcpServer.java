@@ -0,0 +1,202 @@
+package telematics.teltonika.codec;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+import static org.openremote.model.util.MapAccess.getString;
+
+/**
+ * A TCP server that receives AVL data from Teltonika devices in their native binary protocol, Codec 8 and Codec 8
+ * Extended, so that devices do not need to convert their data to JSON and publish it over MQTT.
+ * <p>
+ * Every connection starts with the IMEI handshake, after which the device sends AVL packets that are acknowledged with
+ * the amount of records that were stored; see {@link TeltonikaTcpFrameDecoder} and
+ * {@link TeltonikaTcpSessionHandler}. Commands are sent to connected devices over the same connection with Codec 12,
+ * see {@link #sendCommand}. The server is disabled unless {@link #OR_TELTONIKA_TCP_PORT} is set.
+ */
+public class TeltonikaTcpServer {
+
+    public static final String OR_TELTONIKA_TCP_PORT = "OR_TELTONIKA_TCP_PORT";
+    public static final int OR_TELTONIKA_TCP_PORT_DEFAULT = 0;
+    public static final String OR_TELTONIKA_TCP_BIND_ADDRESS = "OR_TELTONIKA_TCP_BIND_ADDRESS";
+    public static final String OR_TELTONIKA_TCP_BIND_ADDRESS_DEFAULT = "0.0.0.0";
+    public static final String OR_TELTONIKA_TCP_IDLE_TIMEOUT_MILLIS = "OR_TELTONIKA_TCP_IDLE_TIMEOUT_MILLIS";
+    public static final long OR_TELTONIKA_TCP_IDLE_TIMEOUT_MILLIS_DEFAULT = 10 * 60 * 1000; // 10 minutes
+    public static final String OR_TELTONIKA_TCP_MAX_FRAME_LENGTH = "OR_TELTONIKA_TCP_MAX_FRAME_LENGTH";
+    public static final int OR_TELTONIKA_TCP_MAX_FRAME_LENGTH_DEFAULT = 64 * 1024;
+    public static final String OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS = "OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS";
+    public static final int OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS_DEFAULT = 16;
+    public static final String OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS = "OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS";
+    public static final long OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS_DEFAULT = 60 * 1000; // 1 minute
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaTcpServer.class);
+
+    /**
+     * Receives the devices and records of the server.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a device has sent its IMEI.
+         *
+         * @return Whether the device is accepted; rejected devices are disconnected.
+         */
+        boolean onConnect(String imei, SocketAddress remoteAddress);
+
+        /**
+         * Called with the records of every AVL packet of a device, on the connection's I/O thread.
+         *
+         * @return Completes with the amount of records that were stored, starting from the first one, which are then
+         * acknowledged; the device sends the packet again if this does not match the amount of records in it.
+         */
+        CompletionStage<Integer> onRecords(String imei, TeltonikaAvlPacket packet);
+
+        default void onDisconnect(String imei) {
+        }
+    }
+
+    protected final String bindAddress;
+    protected final int port;
+    protected final long idleTimeoutMillis;
+    protected final int maxFrameLength;
+    protected final int maxPendingCommands;
+    protected final long commandTimeoutMillis;
+    protected final Listener listener;
+    /**
+     * Maps the IMEI of every connected device to its session.
+     */
+    protected final Map<String, TeltonikaTcpSessionHandler> sessions = new ConcurrentHashMap<>();
+    protected EventLoopGroup bossGroup;
+    protected EventLoopGroup workerGroup;
+    protected Channel channel;
+
+    public TeltonikaTcpServer(Map<String, String> config, Listener listener) {
+        this(
+                getString(config, OR_TELTONIKA_TCP_BIND_ADDRESS, OR_TELTONIKA_TCP_BIND_ADDRESS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_TCP_PORT, OR_TELTONIKA_TCP_PORT_DEFAULT),
+                getLong(config, OR_TELTONIKA_TCP_IDLE_TIMEOUT_MILLIS, OR_TELTONIKA_TCP_IDLE_TIMEOUT_MILLIS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_TCP_MAX_FRAME_LENGTH, OR_TELTONIKA_TCP_MAX_FRAME_LENGTH_DEFAULT),
+                getInteger(config, OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS, OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS_DEFAULT),
+                getLong(config, OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS, OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS_DEFAULT),
+                listener
+        );
+    }
+
+    public TeltonikaTcpServer(String bindAddress, int port, long idleTimeoutMillis, int maxFrameLength, int maxPendingCommands, long commandTimeoutMillis, Listener listener) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxFrameLength = maxFrameLength;
+        this.maxPendingCommands = maxPendingCommands;
+        this.commandTimeoutMillis = commandTimeoutMillis;
+        this.listener = listener;
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public synchronized void start() throws InterruptedException {
+        if (!isEnabled() || channel != null) {
+            return;
+        }
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup();
+        channel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(
+                                new IdleStateHandler(idleTimeoutMillis, 0, 0, TimeUnit.MILLISECONDS),
+                                new TeltonikaTcpFrameDecoder(maxFrameLength),
+                                new TeltonikaTcpSessionHandler(listener, sessions, maxPendingCommands, commandTimeoutMillis)
+                        );
+                    }
+                })
+                .bind(new InetSocketAddress(bindAddress, port))
+                .sync()
+                .channel();
+        LOG.info("Started Teltonika TCP server on " + channel.localAddress());
+    }
+
+    public synchronized void stop() {
+        if (channel == null) {
+            return;
+        }
+        channel.close().syncUninterruptibly();
+        channel = null;
+        workerGroup.shutdownGracefully().syncUninterruptibly();
+        bossGroup.shutdownGracefully().syncUninterruptibly();
+        LOG.info("Stopped Teltonika TCP server");
+    }
+
+    /**
+     * @return Whether the device is connected, and can receive commands over its connection.
+     */
+    public boolean isConnected(String imei) {
+        return sessions.containsKey(imei);
+    }
+
+    /**
+     * Sends a command to a connected device with Codec 12.
+     *
+     * @return The response of the device, which fails if the device is not connected; see
+     * {@link TeltonikaTcpSessionHandler#sendCommand}.
+     */
+    public CompletableFuture<String> sendCommand(String imei, String command) {
+        TeltonikaTcpSessionHandler session = sessions.get(imei);
+        if (session == null) {
+            return CompletableFuture.failedFuture(new ClosedChannelException());
+        }
+        return session.sendCommand(command);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The address the server is bound to, or {@code null} if it is not running.
+     */
+    public synchronized SocketAddress getLocalAddress() {
+        return channel != null ? channel.localAddress() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaTcpServer{" +
+                "bindAddress='" + bindAddress + '\'' +
+                ", port=" + port +
+                ", idleTimeoutMillis=" + idleTimeoutMillis +
+                ", maxFrameLength=" + maxFrameLength +
+                ", maxPendingCommands=" + maxPendingCommands +
+                ", commandTimeoutMillis=" + commandTimeoutMillis +
+                ", sessions=" + sessions.size() +
+                '}';
+    }
+}
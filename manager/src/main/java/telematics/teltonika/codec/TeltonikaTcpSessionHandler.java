@@ -0,0 +1,227 @@
+package telematics.teltonika.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+
+/**
+ * Handles the session of a single device connected over TCP: accepts or rejects its IMEI, decodes its AVL packets,
+ * hands their records to the {@link TeltonikaTcpServer.Listener} and acknowledges the amount of records once they were
+ * stored. A device waits for the acknowledgement of a packet before it sends the next one, so a packet is only
+ * acknowledged after the previous one.
+ * <p>
+ * Commands are sent to the device as Codec 12 packets on the same connection; see {@link #sendCommand}. They are
+ * pipelined, so a command is written without waiting for the response to the previous one. As Codec 12 responses do
+ * not refer to their command, and a device answers its commands in order, every response is matched to the oldest
+ * command that has not been answered yet. A command that times out keeps its place in that queue, so that its late
+ * response is discarded instead of being matched to the next command.
+ */
+public class TeltonikaTcpSessionHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaTcpSessionHandler.class);
+
+    /**
+     * A command that was written to the device, and is waiting for its response.
+     */
+    protected static final class PendingCommand {
+        protected final String command;
+        protected final CompletableFuture<String> response;
+
+        protected PendingCommand(String command, CompletableFuture<String> response) {
+            this.command = command;
+            this.response = response;
+        }
+    }
+
+    protected final TeltonikaTcpServer.Listener listener;
+    protected final Map<String, TeltonikaTcpSessionHandler> sessions;
+    protected final int maxPendingCommands;
+    protected final long commandTimeoutMillis;
+    /**
+     * Only accessed on the event loop of the connection.
+     */
+    protected final Queue<PendingCommand> pendingCommands = new ArrayDeque<>();
+    protected ChannelHandlerContext context;
+    protected String imei;
+
+    public TeltonikaTcpSessionHandler(TeltonikaTcpServer.Listener listener) {
+        this(listener, new ConcurrentHashMap<>(), TeltonikaTcpServer.OR_TELTONIKA_TCP_MAX_PENDING_COMMANDS_DEFAULT, TeltonikaTcpServer.OR_TELTONIKA_TCP_COMMAND_TIMEOUT_MILLIS_DEFAULT);
+    }
+
+    /**
+     * @param sessions Maps the IMEI of every connected device to its session, which this session is added to once the
+     *                 device is accepted.
+     */
+    public TeltonikaTcpSessionHandler(TeltonikaTcpServer.Listener listener, Map<String, TeltonikaTcpSessionHandler> sessions, int maxPendingCommands, long commandTimeoutMillis) {
+        this.listener = listener;
+        this.sessions = sessions;
+        this.maxPendingCommands = Math.max(1, maxPendingCommands);
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    public String getImei() {
+        return imei;
+    }
+
+    /**
+     * Sends a command to the device, without waiting for the responses to earlier commands.
+     *
+     * @return The response of the device, which fails if the device disconnects, the command times out or too many
+     * commands are waiting for their response.
+     */
+    public CompletableFuture<String> sendCommand(String command) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        ChannelHandlerContext ctx = context;
+        if (ctx == null || !ctx.channel().isActive()) {
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive()) {
+                response.completeExceptionally(new ClosedChannelException());
+                return;
+            }
+            if (pendingCommands.size() >= maxPendingCommands) {
+                response.completeExceptionally(new RejectedExecutionException(pendingCommands.size() + " commands of device with IMEI " + imei + " are waiting for their response"));
+                return;
+            }
+            pendingCommands.add(new PendingCommand(command, response));
+            ctx.writeAndFlush(TeltonikaCommandCodec.encodeCommand(ctx.alloc(), command));
+        });
+        return commandTimeoutMillis > 0 ? response.orTimeout(commandTimeoutMillis, TimeUnit.MILLISECONDS) : response;
+    }
+
+    public int getPendingCommandCount() {
+        return pendingCommands.size();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        context = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof String identifier) {
+            onIdentify(ctx, identifier);
+            return;
+        }
+        if (!(msg instanceof ByteBuf frame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            onFrame(ctx, frame);
+        } finally {
+            ReferenceCountUtil.release(frame);
+        }
+    }
+
+    protected void onIdentify(ChannelHandlerContext ctx, String identifier) {
+        boolean accepted = listener.onConnect(identifier, ctx.channel().remoteAddress());
+        ctx.writeAndFlush(ctx.alloc().buffer(1).writeByte(accepted ? 1 : 0));
+        if (accepted) {
+            imei = identifier;
+            TeltonikaTcpSessionHandler previous = sessions.put(imei, this);
+            if (previous != null && previous != this) {
+                // The device reconnected before its previous connection timed out
+                previous.context.close();
+            }
+            LOG.fine("Device with IMEI " + imei + " connected from " + ctx.channel().remoteAddress());
+        } else {
+            LOG.fine("Rejected device with IMEI " + identifier + " from " + ctx.channel().remoteAddress());
+            ctx.close();
+        }
+    }
+
+    protected void onFrame(ChannelHandlerContext ctx, ByteBuf frame) {
+        int codecId = frame.getUnsignedByte(frame.readerIndex());
+        if (TeltonikaCommandCodec.isCommandCodec(codecId)) {
+            onResponse(TeltonikaCommandCodec.decodeResponse(frame));
+            return;
+        }
+        if (!TeltonikaAvlDecoder.isAvlCodec(codecId)) {
+            LOG.fine("Ignoring packet with unsupported codec 0x" + Integer.toHexString(codecId) + " from device with IMEI " + imei);
+            return;
+        }
+        TeltonikaAvlPacket packet = TeltonikaAvlDecoder.decode(frame);
+        listener.onRecords(imei, packet).whenComplete((stored, error) -> {
+            if (error != null) {
+                LOG.log(Level.WARNING, "Failed to store the records of device with IMEI " + imei, error);
+            }
+            int acknowledged = error != null ? 0 : stored;
+            if (ctx.executor().inEventLoop()) {
+                acknowledge(ctx, acknowledged);
+            } else {
+                ctx.executor().execute(() -> acknowledge(ctx, acknowledged));
+            }
+        });
+    }
+
+    protected void acknowledge(ChannelHandlerContext ctx, int stored) {
+        if (ctx.channel().isActive()) {
+            ctx.writeAndFlush(ctx.alloc().buffer(4).writeInt(stored));
+        }
+    }
+
+    protected void onResponse(String response) {
+        PendingCommand pendingCommand = pendingCommands.poll();
+        if (pendingCommand == null) {
+            LOG.fine("Ignoring response of device with IMEI " + imei + " without a command: " + response);
+            return;
+        }
+        if (!pendingCommand.response.complete(response)) {
+            LOG.fine("Discarding late response of device with IMEI " + imei + " to command '" + pendingCommand.command + "': " + response);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            LOG.fine("Closing idle connection of device with IMEI " + imei);
+            ctx.close();
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PendingCommand pendingCommand;
+        while ((pendingCommand = pendingCommands.poll()) != null) {
+            pendingCommand.response.completeExceptionally(new ClosedChannelException());
+        }
+        if (imei != null) {
+            sessions.remove(imei, this);
+            listener.onDisconnect(imei);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof DecoderException) {
+            LOG.log(Level.INFO, "Closing connection of device with IMEI " + imei + " after invalid data: " + cause.getMessage());
+        } else {
+            LOG.log(Level.WARNING, "Closing connection of device with IMEI " + imei, cause);
+        }
+        ctx.close();
+    }
+}
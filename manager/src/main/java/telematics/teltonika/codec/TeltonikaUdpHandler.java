@@ -0,0 +1,198 @@
+package telematics.teltonika.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+
+/**
+ * Handles the datagrams of all devices that send their AVL data over UDP.
+ * <p>
+ * Every datagram is a complete packet: its length as 2 bytes, the packet ID as 2 bytes, an unused byte, the AVL packet
+ * ID as 1 byte, the IMEI preceded by its length as 2 bytes, and the AVL data, which has no CRC. Each packet is
+ * acknowledged with the packet ID, the AVL packet ID and the amount of records that were stored, once they are; a
+ * device sends the packet again when it does not receive the acknowledgement.
+ * <p>
+ * There are no connections, so devices are tracked by IMEI: a device is {@link TeltonikaTcpServer.Listener#onConnect
+ * accepted} when its first packet arrives, and disconnected once it has not sent a packet for the session timeout. The
+ * session only remembers the device's last AVL packet ID and how many of its records were stored. A packet that is
+ * sent again, because its acknowledgement was lost or not all of its records were stored, only has the records
+ * submitted that were not stored yet, so that no record is submitted twice. A packet that is sent again while its
+ * records are still being stored is ignored, as it is acknowledged once they are. All of a session is only accessed on
+ * the event loop of the channel.
+ */
+@ChannelHandler.Sharable
+public class TeltonikaUdpHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaUdpHandler.class);
+
+    /**
+     * What is known about a device that sent a packet within the session timeout.
+     */
+    protected static final class Session {
+        protected InetSocketAddress remoteAddress;
+        protected long lastSeen;
+        protected int lastAvlPacketId = -1;
+        protected int lastAccepted;
+        protected int lastRecordCount;
+        /**
+         * Whether the records of the last packet are still being stored.
+         */
+        protected boolean storing;
+    }
+
+    protected final TeltonikaTcpServer.Listener listener;
+    protected final long sessionTimeoutMillis;
+    /**
+     * Maps the IMEI of every device to its session.
+     */
+    protected final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public TeltonikaUdpHandler(TeltonikaTcpServer.Listener listener, long sessionTimeoutMillis) {
+        this.listener = listener;
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket datagram) {
+        ByteBuf buffer = datagram.content();
+        InetSocketAddress sender = datagram.sender();
+        int packetId;
+        int avlPacketId;
+        String imei;
+        try {
+            int length = buffer.readUnsignedShort();
+            if (length != buffer.readableBytes()) {
+                throw new CorruptedFrameException("Invalid packet length " + length + ", received " + buffer.readableBytes() + " bytes");
+            }
+            packetId = buffer.readUnsignedShort();
+            buffer.skipBytes(1);
+            avlPacketId = buffer.readUnsignedByte();
+            int imeiLength = buffer.readUnsignedShort();
+            if (imeiLength == 0 || imeiLength > TeltonikaTcpFrameDecoder.MAX_IMEI_LENGTH) {
+                throw new CorruptedFrameException("Invalid IMEI length " + imeiLength);
+            }
+            imei = buffer.readCharSequence(imeiLength, StandardCharsets.US_ASCII).toString();
+        } catch (CorruptedFrameException | IndexOutOfBoundsException e) {
+            LOG.fine("Discarding invalid UDP packet from " + sender + ": " + e.getMessage());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Session session = sessions.get(imei);
+        if (session == null) {
+            if (!listener.onConnect(imei, sender)) {
+                LOG.fine("Rejected device with IMEI " + imei + " from " + sender);
+                return;
+            }
+            session = new Session();
+            sessions.put(imei, session);
+            LOG.fine("Device with IMEI " + imei + " started sending from " + sender);
+        }
+        session.remoteAddress = sender;
+        session.lastSeen = now;
+
+        boolean resent = avlPacketId == session.lastAvlPacketId;
+        if (resent && session.storing) {
+            LOG.fine("Ignoring UDP packet of device with IMEI " + imei + " that is sent again while its records are being stored");
+            return;
+        }
+        if (resent && session.lastAccepted == session.lastRecordCount) {
+            // The acknowledgement of this packet was lost, all of its records were already accepted
+            acknowledge(ctx, sender, packetId, avlPacketId, session.lastAccepted);
+            return;
+        }
+
+        TeltonikaAvlPacket packet;
+        try {
+            packet = TeltonikaAvlDecoder.decode(buffer);
+        } catch (CorruptedFrameException e) {
+            LOG.log(Level.INFO, "Discarding invalid UDP packet of device with IMEI " + imei + ": " + e.getMessage());
+            return;
+        }
+        List<TeltonikaAvlRecord> records = packet.getRecords();
+        int skipped = resent ? Math.min(session.lastAccepted, records.size()) : 0;
+        session.lastAvlPacketId = avlPacketId;
+        session.lastRecordCount = records.size();
+        session.lastAccepted = skipped;
+        if (skipped == records.size()) {
+            acknowledge(ctx, sender, packetId, avlPacketId, skipped);
+            return;
+        }
+        session.storing = true;
+        // Only the records that were not accepted before
+        TeltonikaAvlPacket remaining = skipped > 0
+                ? new TeltonikaAvlPacket(packet.getCodecId(), records.subList(skipped, records.size()))
+                : packet;
+        Session stored = session;
+        listener.onRecords(imei, remaining).whenComplete((count, error) -> {
+            if (error != null) {
+                LOG.log(Level.WARNING, "Failed to store the records of device with IMEI " + imei, error);
+            }
+            int accepted = skipped + (error != null ? 0 : count);
+            Runnable acknowledge = () -> {
+                // Unless the device gave up on this packet and sent the next one in the meantime
+                if (stored.storing && stored.lastAvlPacketId == avlPacketId) {
+                    stored.storing = false;
+                    stored.lastAccepted = accepted;
+                }
+                acknowledge(ctx, sender, packetId, avlPacketId, accepted);
+            };
+            if (ctx.executor().inEventLoop()) {
+                acknowledge.run();
+            } else {
+                ctx.executor().execute(acknowledge);
+            }
+        });
+    }
+
+    protected void acknowledge(ChannelHandlerContext ctx, InetSocketAddress recipient, int packetId, int avlPacketId, int accepted) {
+        ByteBuf ack = ctx.alloc().buffer(7)
+                .writeShort(5)
+                .writeShort(packetId)
+                .writeByte(1)
+                .writeByte(avlPacketId)
+                .writeByte(accepted);
+        ctx.writeAndFlush(new DatagramPacket(ack, recipient));
+    }
+
+    /**
+     * Disconnects the devices that have not sent a packet within the session timeout.
+     */
+    public void expireSessions() {
+        long expiredBefore = System.currentTimeMillis() - sessionTimeoutMillis;
+        Iterator<Map.Entry<String, Session>> iterator = sessions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Session> entry = iterator.next();
+            if (entry.getValue().lastSeen < expiredBefore) {
+                iterator.remove();
+                LOG.fine("Device with IMEI " + entry.getKey() + " stopped sending from " + entry.getValue().remoteAddress);
+                listener.onDisconnect(entry.getKey());
+            }
+        }
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // The channel is shared by all devices, so it is never closed
+        LOG.log(Level.WARNING, "Failed to handle UDP packet", cause);
+    }
+}
@@ -0,0 +1,112 @@
+package telematics.teltonika.codec;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+import static org.openremote.model.util.MapAccess.getString;
+
+/**
+ * A UDP server that receives AVL data from Teltonika devices in Codec 8 and Codec 8 Extended, for devices that are
+ * configured to use UDP instead of keeping a TCP connection open.
+ * <p>
+ * Devices are tracked by IMEI instead of by connection, and their records are handed to the same
+ * {@link TeltonikaTcpServer.Listener} as those of devices that use TCP; see {@link TeltonikaUdpHandler}. The server
+ * is disabled unless {@link #OR_TELTONIKA_UDP_PORT} is set.
+ */
+public class TeltonikaUdpServer {
+
+    public static final String OR_TELTONIKA_UDP_PORT = "OR_TELTONIKA_UDP_PORT";
+    public static final int OR_TELTONIKA_UDP_PORT_DEFAULT = 0;
+    public static final String OR_TELTONIKA_UDP_BIND_ADDRESS = "OR_TELTONIKA_UDP_BIND_ADDRESS";
+    public static final String OR_TELTONIKA_UDP_BIND_ADDRESS_DEFAULT = "0.0.0.0";
+    public static final String OR_TELTONIKA_UDP_SESSION_TIMEOUT_MILLIS = "OR_TELTONIKA_UDP_SESSION_TIMEOUT_MILLIS";
+    public static final long OR_TELTONIKA_UDP_SESSION_TIMEOUT_MILLIS_DEFAULT = 10 * 60 * 1000; // 10 minutes
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaUdpServer.class);
+
+    protected final String bindAddress;
+    protected final int port;
+    protected final long sessionTimeoutMillis;
+    protected final TeltonikaUdpHandler handler;
+    protected EventLoopGroup group;
+    protected Channel channel;
+
+    public TeltonikaUdpServer(Map<String, String> config, TeltonikaTcpServer.Listener listener) {
+        this(
+                getString(config, OR_TELTONIKA_UDP_BIND_ADDRESS, OR_TELTONIKA_UDP_BIND_ADDRESS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_UDP_PORT, OR_TELTONIKA_UDP_PORT_DEFAULT),
+                getLong(config, OR_TELTONIKA_UDP_SESSION_TIMEOUT_MILLIS, OR_TELTONIKA_UDP_SESSION_TIMEOUT_MILLIS_DEFAULT),
+                listener
+        );
+    }
+
+    public TeltonikaUdpServer(String bindAddress, int port, long sessionTimeoutMillis, TeltonikaTcpServer.Listener listener) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+        this.handler = new TeltonikaUdpHandler(listener, sessionTimeoutMillis);
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public synchronized void start() throws InterruptedException {
+        if (!isEnabled() || channel != null) {
+            return;
+        }
+        // A single datagram channel is served by a single thread
+        group = new NioEventLoopGroup(1);
+        channel = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(handler)
+                .bind(new InetSocketAddress(bindAddress, port))
+                .sync()
+                .channel();
+        // Expired on the channel's own thread, so that the sessions are never modified concurrently
+        long expiryInterval = Math.max(1000, sessionTimeoutMillis / 2);
+        channel.eventLoop().scheduleWithFixedDelay(handler::expireSessions, expiryInterval, expiryInterval, TimeUnit.MILLISECONDS);
+        LOG.info("Started Teltonika UDP server on " + channel.localAddress());
+    }
+
+    public synchronized void stop() {
+        if (channel == null) {
+            return;
+        }
+        channel.close().syncUninterruptibly();
+        channel = null;
+        group.shutdownGracefully().syncUninterruptibly();
+        LOG.info("Stopped Teltonika UDP server: " + this);
+    }
+
+    /**
+     * @return The address the server is bound to, or {@code null} if it is not running.
+     */
+    public synchronized SocketAddress getLocalAddress() {
+        return channel != null ? channel.localAddress() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaUdpServer{" +
+                "bindAddress='" + bindAddress + '\'' +
+                ", port=" + port +
+                ", sessionTimeoutMillis=" + sessionTimeoutMillis +
+                ", sessions=" + handler.getSessionCount() +
+                '}';
+    }
+}
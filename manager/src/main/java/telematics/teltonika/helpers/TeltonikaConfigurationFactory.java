@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.model.asset.AssetTypeInfo;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.filter.ParentPredicate;
 import org.openremote.model.query.filter.RealmPredicate;
@@ -11,10 +12,16 @@ import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.teltonika.TeltonikaConfigurationAsset;
 import org.openremote.model.teltonika.TeltonikaModelConfigurationAsset;
 import org.openremote.model.teltonika.TeltonikaParameter;
+import org.openremote.model.util.ValueUtil;
+import org.openremote.model.value.AttributeDescriptor;
 import telematics.teltonika.TeltonikaConfiguration;
+import telematics.teltonika.TeltonikaMQTTHandler;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import static org.openremote.model.syslog.SyslogCategory.API;
@@ -24,23 +31,31 @@ public class TeltonikaConfigurationFactory {
 	private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaConfigurationFactory.class);
 
 	public static TeltonikaConfiguration createConfiguration(AssetStorageService assetStorageService, TimerService timerService, String fileLocation) {
+		return createConfiguration(assetStorageService, timerService, () -> fileLocation);
+	}
+
+	/**
+	 * Creates the configuration from the configuration assets. The parameter file is only read if the default
+	 * configuration assets have to be created.
+	 */
+	public static TeltonikaConfiguration createConfiguration(AssetStorageService assetStorageService, TimerService timerService, Supplier<String> parameterFile) {
 		try{
-			return getConfig(assetStorageService, timerService, fileLocation);
+			return getConfig(assetStorageService, timerService);
 		} catch (Exception e) {
 			if(e instanceof IndexOutOfBoundsException) {
 				LOG.severe("More than 1 Master Teltonika configurations found! Shutting down.");
 				throw e;
 			} else if (e instanceof IllegalStateException) {
 				LOG.severe("No Master Teltonika configuration found! Creating default configuration.");
-				initializeConfigurationAssets(fileLocation, assetStorageService);
-				return getConfig(assetStorageService, timerService, fileLocation);
+				initializeConfigurationAssets(parameterFile.get(), assetStorageService);
+				return getConfig(assetStorageService, timerService);
 			}
 			throw e;
 		}
 
 	}
 
-	private static TeltonikaConfiguration getConfig(AssetStorageService assetStorageService, TimerService timerService, String fileLocation) {
+	private static TeltonikaConfiguration getConfig(AssetStorageService assetStorageService, TimerService timerService) {
 		List<TeltonikaConfigurationAsset> masterAssets = assetStorageService.findAll(
 						new AssetQuery()
 								.types(TeltonikaConfigurationAsset.class)
@@ -70,7 +85,11 @@ public class TeltonikaConfigurationFactory {
 				.map(asset -> (TeltonikaModelConfigurationAsset) asset)
 				.toList();
 
-		return new TeltonikaConfiguration(masterAssets.get(0), modelAssets, new Date(timerService.getCurrentTimeMillis()));
+		Map<String, AttributeDescriptor<?>> assetDescriptors = ValueUtil.getAssetInfo(TeltonikaMQTTHandler.TELTONIKA_DEVICE_ASSET_CLASS)
+				.map(AssetTypeInfo::getAttributeDescriptors)
+				.orElse(Collections.emptyMap());
+
+		return new TeltonikaConfiguration(masterAssets.get(0), modelAssets, new Date(timerService.getCurrentTimeMillis()), assetDescriptors);
 
 	}
 
@@ -107,8 +126,4 @@ public class TeltonikaConfigurationFactory {
 
 	}
 
-	public static void refreshInstance(AssetStorageService assetStorageService, TimerService timerService, String fileLocation) {
-		createConfiguration(assetStorageService, timerService, fileLocation);
-	}
-
 }
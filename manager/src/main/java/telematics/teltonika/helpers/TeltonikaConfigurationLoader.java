@@ -0,0 +1,117 @@
+package telematics.teltonika.helpers;
+
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.model.syslog.SyslogCategory;
+import telematics.teltonika.TeltonikaConfiguration;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+
+/**
+ * Keeps the current {@link TeltonikaConfiguration} snapshot up to date.
+ * <p>
+ * Refreshes are requested with {@link #requestRefresh()}, which never blocks: the new snapshot is built on the
+ * executor, and requests that arrive while a refresh is running are coalesced into a single follow-up refresh, so that
+ * at most one refresh runs at a time. If building a snapshot fails, the previous snapshot stays in use.
+ * Optionally, a refresh is also requested at a fixed interval, as a safety net for changes that were missed.
+ */
+public class TeltonikaConfigurationLoader {
+
+	public static final String OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS = "OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS";
+	public static final long OR_TELTONIKA_CONFIGURATION_REFRESH_INTERVAL_MILLIS_DEFAULT = 10 * 60 * 1000; // 10 minutes
+
+	private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaConfigurationLoader.class);
+
+	private final AssetStorageService assetStorageService;
+	private final TimerService timerService;
+	private final Supplier<String> parameterFile;
+	private final Executor executor;
+	private final Consumer<TeltonikaConfiguration> listener;
+	private final AtomicBoolean refreshRunning = new AtomicBoolean();
+	private final AtomicBoolean refreshRequested = new AtomicBoolean();
+	private ScheduledFuture<?> periodicRefresh;
+
+	/**
+	 * @param parameterFile Supplies the contents of the default parameter file, which is only read when the default
+	 *                      configuration assets have to be created.
+	 * @param listener      Called with every new snapshot, after it has become the current one.
+	 */
+	public TeltonikaConfigurationLoader(AssetStorageService assetStorageService, TimerService timerService, Supplier<String> parameterFile, Executor executor, Consumer<TeltonikaConfiguration> listener) {
+		this.assetStorageService = assetStorageService;
+		this.timerService = timerService;
+		this.parameterFile = parameterFile;
+		this.executor = executor;
+		this.listener = listener;
+	}
+
+	/**
+	 * Builds a new snapshot on the calling thread and makes it the current one; used for the initial load.
+	 */
+	public TeltonikaConfiguration load() {
+		TeltonikaConfiguration configuration = TeltonikaConfigurationFactory.createConfiguration(assetStorageService, timerService, parameterFile);
+		TeltonikaConfiguration.setInstance(configuration);
+		LOG.fine("Loaded Teltonika configuration version " + configuration.getVersion());
+		listener.accept(configuration);
+		return configuration;
+	}
+
+	/**
+	 * Requests a new snapshot to be built in the background.
+	 */
+	public void requestRefresh() {
+		refreshRequested.set(true);
+		if (refreshRunning.compareAndSet(false, true)) {
+			executor.execute(this::refresh);
+		}
+	}
+
+	/**
+	 * Requests a refresh every {@code intervalMillis}; an interval of {@code 0} or less disables the periodic refresh.
+	 */
+	public synchronized void schedulePeriodicRefresh(ScheduledExecutorService scheduledExecutor, long intervalMillis) {
+		cancelPeriodicRefresh();
+		if (intervalMillis > 0) {
+			periodicRefresh = scheduledExecutor.scheduleWithFixedDelay(this::requestRefresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void cancelPeriodicRefresh() {
+		if (periodicRefresh != null) {
+			periodicRefresh.cancel(false);
+			periodicRefresh = null;
+		}
+	}
+
+	private void refresh() {
+		try {
+			while (refreshRequested.getAndSet(false)) {
+				try {
+					load();
+				} catch (Exception e) {
+					LOG.log(Level.WARNING, "Failed to refresh the Teltonika configuration, keeping version " + currentVersion(), e);
+				}
+			}
+		} finally {
+			refreshRunning.set(false);
+			// A request could have arrived after the loop ended but before the flag was cleared
+			if (refreshRequested.get() && refreshRunning.compareAndSet(false, true)) {
+				executor.execute(this::refresh);
+			}
+		}
+	}
+
+	private static long currentVersion() {
+		TeltonikaConfiguration configuration = TeltonikaConfiguration.getInstance();
+		return configuration != null ? configuration.getVersion() : 0;
+	}
+}
@@ -0,0 +1,457 @@
+package telematics.teltonika.ingest;
+
+import jakarta.persistence.OptimisticLockException;
+import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeMap;
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+
+/**
+ * Merges the structural changes to the assets of Teltonika devices in the background, so that all payloads of a device
+ * that create its asset or add attributes to it within the flush interval are stored with a single merge of its asset.
+ * <p>
+ * Payloads that only update the values of attributes the asset already has are merged right away on the caller's
+ * thread, so that their values reach the rules and clients without waiting for the flush interval. Only a payload that
+ * creates the asset or adds an attribute makes the asset pending, and the payloads that follow are applied to the
+ * pending instance, whether they add attributes or not, so that they are stored in order. {@link #getPending} returns
+ * that instance to the ingest pipeline instead of loading the asset again. When the flush interval expires, every
+ * pending asset is merged once, however many payloads or new attributes it holds. If the asset was modified in the
+ * meantime, the attributes of all its pending payloads are applied to the latest version instead.
+ * <p>
+ * The version of an asset that a merge returned is kept, and {@link #getCurrent} returns it when the asset is not
+ * pending, so that the ingest pipeline does not load the asset of a known device from the database for every payload.
+ * A kept version that is outdated because the asset was modified elsewhere is caught by the version check of the merge,
+ * like a pending asset, and the latest version is loaded then. A kept version is dropped when its merge fails or its
+ * asset is removed.
+ * <p>
+ * The datapoints of a pending asset are only handed to the {@link TeltonikaDatapointWriter} after it was merged, as a
+ * new asset must exist before its datapoints can be stored. Callbacks that are added {@link #afterStored after} the
+ * payloads of a pending asset are run once it was merged and those datapoints are written, and not at all if the merge
+ * fails. When the maximum amount of pending assets is reached, the caller flushes them itself, which slows down
+ * ingestion instead of growing without bounds. With a flush interval of {@code 0}, every payload is merged immediately.
+ * <p>
+ * The writer is only used when batched attribute updates are enabled, as merging the asset bypasses the attribute event
+ * processing chain: its interceptors, agent links and access checks do not see these updates.
+ */
+public class TeltonikaAssetWriter {
+
+    public static final String OR_TELTONIKA_ASSET_FLUSH_INTERVAL_MILLIS = "OR_TELTONIKA_ASSET_FLUSH_INTERVAL_MILLIS";
+    public static final long OR_TELTONIKA_ASSET_FLUSH_INTERVAL_MILLIS_DEFAULT = 1000;
+    public static final String OR_TELTONIKA_ASSET_MAX_PENDING = "OR_TELTONIKA_ASSET_MAX_PENDING";
+    public static final int OR_TELTONIKA_ASSET_MAX_PENDING_DEFAULT = 10000;
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaAssetWriter.class);
+
+    /**
+     * The changes to the asset of a single device that are waiting to be merged, guarded by its lock. The lock is held
+     * while the asset is merged, so it is a {@link ReentrantLock} rather than a monitor, which would pin the virtual
+     * thread that holds it to its carrier thread for the duration of the database call.
+     */
+    protected static final class PendingAsset {
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected final Asset<?> asset;
+        protected final boolean created;
+        protected final AttributeMap attributes = new AttributeMap();
+        protected final List<TeltonikaDatapointWriter.Datapoint> datapoints = new ArrayList<>();
+        protected final List<Runnable> callbacks = new ArrayList<>();
+        /**
+         * Whether a payload creates the asset or adds attributes to it.
+         */
+        protected boolean structural;
+        protected boolean flushed;
+
+        protected PendingAsset(Asset<?> asset, boolean created) {
+            this.asset = asset;
+            this.created = created;
+        }
+    }
+
+    protected final AssetStorageService assetStorageService;
+    protected final TeltonikaDatapointWriter datapointWriter;
+    protected final BiConsumer<Asset<?>, AttributeMap> applyAttributes;
+    protected final ScheduledExecutorService executorService;
+    protected final long flushIntervalMillis;
+    protected final int maxPending;
+    /**
+     * Maps asset ID to the pending changes of its asset.
+     */
+    protected final Map<String, PendingAsset> pending = new ConcurrentHashMap<>();
+    /**
+     * Maps asset ID to the version of its asset that the last merge returned.
+     */
+    protected final Map<String, Asset<?>> stored = new ConcurrentHashMap<>();
+    protected final ReentrantLock flushLock = new ReentrantLock();
+    protected final LongAdder updates = new LongAdder();
+    protected final LongAdder immediate = new LongAdder();
+    protected final LongAdder merged = new LongAdder();
+    protected final LongAdder conflicts = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected ScheduledFuture<?> flushFuture;
+
+    /**
+     * @param applyAttributes Applies the attributes of a payload to an asset.
+     */
+    public TeltonikaAssetWriter(AssetStorageService assetStorageService, TeltonikaDatapointWriter datapointWriter, BiConsumer<Asset<?>, AttributeMap> applyAttributes, ScheduledExecutorService executorService, Map<String, String> config) {
+        this(
+                assetStorageService,
+                datapointWriter,
+                applyAttributes,
+                executorService,
+                getLong(config, OR_TELTONIKA_ASSET_FLUSH_INTERVAL_MILLIS, OR_TELTONIKA_ASSET_FLUSH_INTERVAL_MILLIS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_ASSET_MAX_PENDING, OR_TELTONIKA_ASSET_MAX_PENDING_DEFAULT)
+        );
+    }
+
+    public TeltonikaAssetWriter(AssetStorageService assetStorageService, TeltonikaDatapointWriter datapointWriter, BiConsumer<Asset<?>, AttributeMap> applyAttributes, ScheduledExecutorService executorService, long flushIntervalMillis, int maxPending) {
+        this.assetStorageService = assetStorageService;
+        this.datapointWriter = datapointWriter;
+        this.applyAttributes = applyAttributes;
+        this.executorService = executorService;
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    public synchronized void start() {
+        if (flushFuture == null && flushIntervalMillis > 0) {
+            flushFuture = executorService.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic flush and merges everything that is still pending.
+     */
+    public synchronized void stop() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        flushAll();
+        LOG.info("Stopped Teltonika asset writer: " + this);
+    }
+
+    /**
+     * @return The pending instance of the asset, which holds the payloads that have not been merged yet, or
+     * {@code null} if the asset has no pending changes.
+     */
+    public Asset<?> getPending(String assetId) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        return pendingAsset != null ? pendingAsset.asset : null;
+    }
+
+    /**
+     * @return The {@link #getPending pending} instance of the asset, or else the version that its last merge returned,
+     * or {@code null} if the asset has to be loaded.
+     */
+    public Asset<?> getCurrent(String assetId) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        return pendingAsset != null ? pendingAsset.asset : stored.get(assetId);
+    }
+
+    /**
+     * Applies the attributes of a payload to the asset, after which the datapoints are written. The asset is merged with
+     * the next flush if the payload creates it or adds attributes to it, or if it is pending already; otherwise it is
+     * merged right away.
+     *
+     * @param asset   The asset of the device, which should be the {@link #getPending pending} instance if there is one.
+     * @param created Whether the asset does not exist yet, and is created by the merge.
+     */
+    public void update(Asset<?> asset, boolean created, AttributeMap attributes, Collection<TeltonikaDatapointWriter.Datapoint> datapoints) {
+        update(asset, created, attributes, datapoints, false);
+    }
+
+    /**
+     * Applies the attributes of a payload to the asset like {@link #update(Asset, boolean, AttributeMap, Collection)},
+     * but with {@code deferred}, a payload that only updates values makes the asset pending as well, so that it is
+     * merged together with the payloads that follow; see {@link #flushValues}.
+     */
+    public void update(Asset<?> asset, boolean created, AttributeMap attributes, Collection<TeltonikaDatapointWriter.Datapoint> datapoints, boolean deferred) {
+        updates.increment();
+        boolean structural = created || addsAttributes(asset, attributes);
+        // Only the pipeline worker of the device adds its pending asset, so it cannot become pending in the meantime
+        if (!structural && !deferred && !pending.containsKey(asset.getId())) {
+            immediate.increment();
+            // Never shared with other threads, so it needs no lock
+            PendingAsset values = new PendingAsset(asset, false);
+            applyAttributes.accept(asset, attributes);
+            values.attributes.addOrReplace(attributes.values().toArray(new Attribute<?>[0]));
+            values.datapoints.addAll(datapoints);
+            flush(values);
+            return;
+        }
+        while (true) {
+            PendingAsset pendingAsset = pending.computeIfAbsent(asset.getId(), id -> new PendingAsset(asset, created));
+            pendingAsset.lock.lock();
+            try {
+                if (pendingAsset.flushed) {
+                    // Merged while waiting for the lock, so start over with a new pending asset
+                    continue;
+                }
+                applyAttributes.accept(pendingAsset.asset, attributes);
+                pendingAsset.attributes.addOrReplace(attributes.values().toArray(new Attribute<?>[0]));
+                pendingAsset.datapoints.addAll(datapoints);
+                pendingAsset.structural |= structural;
+                if (flushIntervalMillis == 0) {
+                    flush(pendingAsset);
+                }
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+            break;
+        }
+        if (pending.size() >= maxPending) {
+            // Too many assets are pending, so merge them on this thread to make room
+            flushAll();
+        }
+    }
+
+    /**
+     * @return Whether the payload has an attribute that the asset does not have yet.
+     */
+    protected static boolean addsAttributes(Asset<?> asset, AttributeMap attributes) {
+        for (Attribute<?> attribute : attributes.values()) {
+            if (!asset.hasAttribute(attribute.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes datapoints of an asset that is not updated, such as those of historical records. If the asset has
+     * pending changes, they are written after it was merged, as the asset might not exist yet.
+     */
+    public void writeDatapoints(String assetId, Collection<TeltonikaDatapointWriter.Datapoint> datapoints) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        if (pendingAsset != null) {
+            pendingAsset.lock.lock();
+            try {
+                if (!pendingAsset.flushed) {
+                    pendingAsset.datapoints.addAll(datapoints);
+                    return;
+                }
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+        }
+        datapoints.forEach(datapointWriter::write);
+    }
+
+    /**
+     * Runs the callback once the pending changes of the asset, including the payloads that were applied to it so far,
+     * are merged and their datapoints are written. It is not run if the merge fails.
+     *
+     * @return Whether the asset has pending changes; if not, its payloads were merged already, or failed to be.
+     */
+    public boolean afterStored(String assetId, Runnable callback) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        if (pendingAsset != null) {
+            pendingAsset.lock.lock();
+            try {
+                if (!pendingAsset.flushed) {
+                    pendingAsset.callbacks.add(callback);
+                    return true;
+                }
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the pending changes of a deleted asset, so that it is not created again. Its callbacks are run, as there
+     * is nothing left to store.
+     */
+    public void remove(String assetId) {
+        PendingAsset pendingAsset = pending.remove(assetId);
+        if (pendingAsset != null) {
+            pendingAsset.lock.lock();
+            try {
+                pendingAsset.flushed = true;
+                pendingAsset.callbacks.forEach(Runnable::run);
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+        }
+        // After the lock, so that a merge that was running does not keep the version of the deleted asset
+        stored.remove(assetId);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The amount of payloads that were applied to an asset.
+     */
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    /**
+     * @return The amount of payloads that only updated values, and were merged right away.
+     */
+    public long getImmediateCount() {
+        return immediate.sum();
+    }
+
+    /**
+     * @return The amount of merges of an asset, which is one per payload that only updates values, and at most one per
+     * pending asset and flush.
+     */
+    public long getMergedCount() {
+        return merged.sum();
+    }
+
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Merges the pending asset now instead of with the next flush, for payloads that should not wait for it, such as
+     * panic records; the payloads that were already pending are merged with it.
+     */
+    public void flush(String assetId) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        if (pendingAsset != null) {
+            pendingAsset.lock.lock();
+            try {
+                if (!pendingAsset.flushed) {
+                    flush(pendingAsset);
+                }
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Merges the pending asset now if none of its payloads create it or add attributes to it, for payloads that were
+     * {@code deferred} only to be merged together; structural changes are left for the next flush.
+     */
+    public void flushValues(String assetId) {
+        PendingAsset pendingAsset = pending.get(assetId);
+        if (pendingAsset != null) {
+            pendingAsset.lock.lock();
+            try {
+                if (!pendingAsset.flushed && !pendingAsset.structural) {
+                    flush(pendingAsset);
+                }
+            } finally {
+                pendingAsset.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Merges all pending assets.
+     */
+    public void flushAll() {
+        flushLock.lock();
+        try {
+            for (PendingAsset pendingAsset : pending.values()) {
+                pendingAsset.lock.lock();
+                try {
+                    if (!pendingAsset.flushed) {
+                        flush(pendingAsset);
+                    }
+                } finally {
+                    pendingAsset.lock.unlock();
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Merges a pending asset and writes its datapoints, behind which its callbacks are run once the merge succeeded;
+     * must hold the {@link PendingAsset#lock lock} of a pending asset that is shared through the pending map. The
+     * pending asset is only removed after the merge, so that the pipeline does not load the asset from the database
+     * before it is stored.
+     */
+    protected void flush(PendingAsset pendingAsset) {
+        boolean stored = false;
+        try {
+            Asset<?> mergedAsset = merge(pendingAsset);
+            if (mergedAsset != null) {
+                this.stored.put(mergedAsset.getId(), mergedAsset);
+            } else {
+                this.stored.remove(pendingAsset.asset.getId());
+            }
+            merged.increment();
+            stored = true;
+        } catch (Exception e) {
+            this.stored.remove(pendingAsset.asset.getId());
+            failed.increment();
+            LOG.log(Level.WARNING, "Failed to merge Teltonika asset " + pendingAsset.asset.getId(), e);
+        } finally {
+            pendingAsset.flushed = true;
+            pending.remove(pendingAsset.asset.getId(), pendingAsset);
+        }
+        // The datapoints of an asset that failed to be created cannot be stored
+        if (stored || !pendingAsset.created) {
+            long failedBatches = datapointWriter.getFailedBatchCount();
+            pendingAsset.datapoints.forEach(datapointWriter::write);
+            if (stored) {
+                pendingAsset.callbacks.forEach(callback -> datapointWriter.afterWritten(failedBatches, callback));
+            }
+        }
+    }
+
+    /**
+     * @return The merged version of the asset.
+     */
+    protected Asset<?> merge(PendingAsset pendingAsset) {
+        try {
+            return assetStorageService.merge(pendingAsset.asset);
+        } catch (OptimisticLockException e) {
+            // The asset was modified since it was loaded, so apply the pending payloads to the latest version
+            conflicts.increment();
+            LOG.fine("Asset " + pendingAsset.asset.getId() + " was modified concurrently, merging pending payloads into the latest version");
+            Asset<?> latest = assetStorageService.find(pendingAsset.asset.getId());
+            if (latest == null) {
+                throw e;
+            }
+            applyAttributes.accept(latest, pendingAsset.attributes);
+            return assetStorageService.merge(latest);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaAssetWriter{" +
+                "flushIntervalMillis=" + flushIntervalMillis +
+                ", pending=" + pending.size() +
+                ", stored=" + stored.size() +
+                ", updates=" + updates.sum() +
+                ", immediate=" + immediate.sum() +
+                ", merged=" + merged.sum() +
+                ", conflicts=" + conflicts.sum() +
+                ", failed=" + failed.sum() +
+                '}';
+    }
+}
@@ -0,0 +1,244 @@
+package telematics.teltonika.ingest;
+
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeMap;
+import org.openremote.model.teltonika.TeltonikaParameterPolicy;
+import telematics.teltonika.TeltonikaParameterCodec;
+import telematics.teltonika.TeltonikaParameterIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.openremote.model.util.MapAccess.getBoolean;
+import static org.openremote.model.util.MapAccess.getLong;
+
+/**
+ * Removes the attributes of a payload whose value has not changed since it was last applied to the device's asset, so
+ * that devices resending unchanged values (e.g. the GSM signal or the ignition state on every periodic record) do not
+ * cause an {@code AttributeEvent} and a datapoint for each of them.
+ * <p>
+ * Only parameters that opt in through their {@link TeltonikaParameterPolicy} are filtered: those that are stored
+ * {@link TeltonikaParameterPolicy.Storage#ON_CHANGE}, and those with an absolute or relative deadband. Numeric values of
+ * the latter are compared with the last applied value, so slow drifts are still applied once they exceed the deadband.
+ * Parameters with the default policy, or whose policy explicitly stores them
+ * {@link TeltonikaParameterPolicy.Storage#ALWAYS}, are never filtered. A value is always applied once the heartbeat has
+ * passed since the last applied value, so that attributes never go stale.
+ * <p>
+ * The last applied value and device time of every filtered parameter are kept in a cache per device, which is only
+ * updated through {@link #commit} once the payload was persisted; after a restart, the first value of every parameter
+ * is applied. The records of a batch are persisted after all of them were filtered, so each record of a batch is
+ * compared with the values that the records before it kept, through a {@link Batch}. Parameters whose datapoints are compressed by the {@link TeltonikaDatapointCompressor} are not filtered,
+ * as the compression needs every sample to find where the series changes direction.
+ */
+public class TeltonikaChangeFilter {
+
+    public static final String OR_TELTONIKA_CHANGE_FILTER = "OR_TELTONIKA_CHANGE_FILTER";
+    public static final boolean OR_TELTONIKA_CHANGE_FILTER_DEFAULT = true;
+    public static final String OR_TELTONIKA_CHANGE_FILTER_HEARTBEAT_MILLIS = "OR_TELTONIKA_CHANGE_FILTER_HEARTBEAT_MILLIS";
+    public static final long OR_TELTONIKA_CHANGE_FILTER_HEARTBEAT_MILLIS_DEFAULT = 60 * 60 * 1000; // 1 hour
+
+    /**
+     * The last applied value of a parameter.
+     */
+    protected static final class LastValue {
+        protected final Object value;
+        protected final long timestamp;
+
+        protected LastValue(Object value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * The values that the records of a batch kept, which are not committed until the batch is persisted.
+     */
+    public static final class Batch {
+        protected final Map<String, LastValue> lastValues = new HashMap<>();
+    }
+
+    protected final boolean enabled;
+    protected final long heartbeatMillis;
+    /**
+     * Maps asset ID to the last applied value of each of its attributes. The messages of a device are processed by a
+     * single worker of the pipeline, so the lock on the map of a device is uncontended.
+     */
+    protected final Map<String, Map<String, LastValue>> lastValues = new ConcurrentHashMap<>();
+    protected final LongAdder applied = new LongAdder();
+    protected final LongAdder suppressed = new LongAdder();
+    protected final LongAdder heartbeats = new LongAdder();
+
+    public TeltonikaChangeFilter(Map<String, String> config) {
+        this(
+                getBoolean(config, OR_TELTONIKA_CHANGE_FILTER, OR_TELTONIKA_CHANGE_FILTER_DEFAULT),
+                getLong(config, OR_TELTONIKA_CHANGE_FILTER_HEARTBEAT_MILLIS, OR_TELTONIKA_CHANGE_FILTER_HEARTBEAT_MILLIS_DEFAULT)
+        );
+    }
+
+    public TeltonikaChangeFilter(boolean enabled, long heartbeatMillis) {
+        this.enabled = enabled;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Removes the attributes that should not be applied to the asset from the given attributes. The values that are
+     * kept are not recorded as applied until they are passed to {@link #commit}.
+     *
+     * @return The amount of attributes that were removed.
+     */
+    public int filter(String assetId, AttributeMap attributes, TeltonikaParameterIndex parameterIndex) {
+        return filter(assetId, attributes, parameterIndex, null);
+    }
+
+    /**
+     * Removes the attributes that should not be applied to the asset from the given attributes of a record of a batch,
+     * comparing them with the values kept by the records of the batch before it, if any.
+     *
+     * @param batch The values kept by the records before it, which the values that this record keeps are added to;
+     *              {@code null} for a single record.
+     * @return The amount of attributes that were removed.
+     */
+    public int filter(String assetId, AttributeMap attributes, TeltonikaParameterIndex parameterIndex, Batch batch) {
+        if (!enabled || assetId == null) {
+            return 0;
+        }
+        Map<String, LastValue> device = lastValues.get(assetId);
+        if (device == null && batch == null) {
+            return 0;
+        }
+        if (device == null) {
+            // Nothing was committed for the device yet, only the records of the batch before this one are compared
+            device = new HashMap<>();
+        }
+        List<String> unchanged = null;
+        synchronized (device) {
+            for (Attribute<?> attribute : attributes.values()) {
+                TeltonikaParameterPolicy policy = getFilteredPolicy(attribute, parameterIndex);
+                if (policy == null) {
+                    continue;
+                }
+                Object value = attribute.getValue().orElse(null);
+                long timestamp = attribute.getTimestamp().orElse(0L);
+                LastValue last = batch != null ? batch.lastValues.get(attribute.getName()) : null;
+                if (last == null) {
+                    last = device.get(attribute.getName());
+                }
+
+                boolean unchangedValue = last != null && isUnchanged(last.value, value, policy);
+                if (unchangedValue && timestamp - last.timestamp < policy.getHeartbeatMillis(heartbeatMillis)) {
+                    if (unchanged == null) {
+                        unchanged = new ArrayList<>();
+                    }
+                    unchanged.add(attribute.getName());
+                    continue;
+                }
+                if (unchangedValue) {
+                    heartbeats.increment();
+                }
+                if (batch != null) {
+                    batch.lastValues.put(attribute.getName(), new LastValue(value, timestamp));
+                }
+                applied.increment();
+            }
+        }
+        if (unchanged == null) {
+            return 0;
+        }
+        unchanged.forEach(attributes::remove);
+        suppressed.add(unchanged.size());
+        return unchanged.size();
+    }
+
+    /**
+     * Records the values of the filtered parameters of a payload as applied, once it was persisted to the asset. A
+     * payload that fails to persist is not committed, so that its values are applied again by the next payload.
+     */
+    public void commit(String assetId, AttributeMap attributes, TeltonikaParameterIndex parameterIndex) {
+        if (!enabled || assetId == null) {
+            return;
+        }
+        Map<String, LastValue> device = lastValues.computeIfAbsent(assetId, id -> new HashMap<>());
+        synchronized (device) {
+            for (Attribute<?> attribute : attributes.values()) {
+                if (getFilteredPolicy(attribute, parameterIndex) != null) {
+                    device.put(attribute.getName(), new LastValue(attribute.getValue().orElse(null), attribute.getTimestamp().orElse(0L)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The policy of the attribute's parameter if its values are filtered, otherwise {@code null}.
+     */
+    protected static TeltonikaParameterPolicy getFilteredPolicy(Attribute<?> attribute, TeltonikaParameterIndex parameterIndex) {
+        TeltonikaParameterCodec codec = parameterIndex.getCodecByAttributeName(attribute.getName());
+        return codec != null && isFiltered(codec.getPolicy()) ? codec.getPolicy() : null;
+    }
+
+    /**
+     * @return Whether the values of parameters with the given policy are filtered.
+     */
+    protected static boolean isFiltered(TeltonikaParameterPolicy policy) {
+        if (policy.storage == TeltonikaParameterPolicy.Storage.ALWAYS || policy.isCompressed()) {
+            return false;
+        }
+        return policy.getStorage() == TeltonikaParameterPolicy.Storage.ON_CHANGE || policy.deadband != null || policy.deadbandPercent != null;
+    }
+
+    protected static boolean isUnchanged(Object lastValue, Object value, TeltonikaParameterPolicy policy) {
+        if (Objects.equals(lastValue, value)) {
+            return true;
+        }
+        return lastValue instanceof Number last && value instanceof Number number
+                && policy.isWithinDeadband(last.doubleValue(), number.doubleValue());
+    }
+
+    /**
+     * Forgets the last values of a deleted asset.
+     */
+    public void remove(String assetId) {
+        lastValues.remove(assetId);
+    }
+
+    /**
+     * @return The amount of values of filtered parameters that were applied, including those applied because of the
+     * heartbeat.
+     */
+    public long getAppliedCount() {
+        return applied.sum();
+    }
+
+    /**
+     * @return The amount of attribute values that were not applied, as they had not changed.
+     */
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return The amount of unchanged attribute values that were applied because of the heartbeat.
+     */
+    public long getHeartbeatCount() {
+        return heartbeats.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaChangeFilter{" +
+                "enabled=" + enabled +
+                ", heartbeatMillis=" + heartbeatMillis +
+                ", applied=" + applied.sum() +
+                ", suppressed=" + suppressed.sum() +
+                ", heartbeats=" + heartbeats.sum() +
+                '}';
+    }
+}
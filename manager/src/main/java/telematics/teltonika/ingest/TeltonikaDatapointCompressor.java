@@ -0,0 +1,191 @@
+package telematics.teltonika.ingest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static org.openremote.model.util.MapAccess.getLong;
+
+/**
+ * Compresses the datapoints of numeric parameters with the swinging door trending algorithm, so that only the
+ * datapoints needed to rebuild the series by linear interpolation within a maximum deviation are stored.
+ * <p>
+ * For every attribute, the compressor holds the last stored (archived) datapoint, the latest sample, and the slopes of
+ * the two "doors" that pivot around the archived datapoint at the maximum deviation above and below it. Every sample
+ * narrows the doors. As long as the line from the archived datapoint to a new sample passes between the doors, it is
+ * within the deviation of all samples since, and the new sample replaces the held one. Otherwise, the held sample is
+ * archived and becomes the new pivot. The state per attribute is constant in size, so the state per device is bounded
+ * by the amount of compressed parameters.
+ * <p>
+ * The latest sample of an attribute is only stored once the next sample shows it is needed, or when a segment spans
+ * more than the maximum segment duration, or when the compressor is {@link #flush flushed}.
+ * <p>
+ * The held samples and doors only exist in memory. The journal entry of a record is committed, and the record
+ * acknowledged to the device, once its asset and the datapoints that were passed on are stored, which does not include
+ * a sample that is still held. If the manager stops without flushing the compressor, such as after a crash, the held
+ * sample of every compressed attribute is lost, and its record is not replayed: the series then ends at its last
+ * archived datapoint, up to the maximum segment duration before the crash, although the value of the asset attribute
+ * itself was stored. The doors start over with the next sample after a restart.
+ */
+public class TeltonikaDatapointCompressor {
+
+    public static final String OR_TELTONIKA_COMPRESSION_MAX_SEGMENT_MILLIS = "OR_TELTONIKA_COMPRESSION_MAX_SEGMENT_MILLIS";
+    public static final long OR_TELTONIKA_COMPRESSION_MAX_SEGMENT_MILLIS_DEFAULT = 60 * 60 * 1000; // 1 hour
+
+    /**
+     * The compression state of a single attribute.
+     */
+    protected static final class Door {
+        protected long archivedTimestamp;
+        protected double archivedValue;
+        protected boolean holding;
+        protected long heldTimestamp;
+        protected double heldNumber;
+        protected Object heldValue;
+        protected double upperSlope;
+        protected double lowerSlope;
+
+        protected void archive(long timestamp, double number) {
+            archivedTimestamp = timestamp;
+            archivedValue = number;
+            holding = false;
+            heldValue = null;
+        }
+
+        protected void hold(long timestamp, double number, Object value) {
+            holding = true;
+            heldTimestamp = timestamp;
+            heldNumber = number;
+            heldValue = value;
+        }
+    }
+
+    protected final long maxSegmentMillis;
+    /**
+     * Maps asset ID to the doors of its compressed attributes.
+     */
+    protected final Map<String, Map<String, Door>> doors = new ConcurrentHashMap<>();
+    protected final LongAdder received = new LongAdder();
+    protected final LongAdder archived = new LongAdder();
+
+    public TeltonikaDatapointCompressor(Map<String, String> config) {
+        this(getLong(config, OR_TELTONIKA_COMPRESSION_MAX_SEGMENT_MILLIS, OR_TELTONIKA_COMPRESSION_MAX_SEGMENT_MILLIS_DEFAULT));
+    }
+
+    public TeltonikaDatapointCompressor(long maxSegmentMillis) {
+        this.maxSegmentMillis = maxSegmentMillis;
+    }
+
+    /**
+     * Offers a sample of an attribute, and passes the datapoints that need to be stored to the given consumer.
+     *
+     * @param value     The value of the sample as it is stored.
+     * @param deviation The maximum deviation of the rebuilt series from the samples.
+     */
+    public void offer(String assetId, String attributeName, long timestamp, Number value, double deviation, Consumer<TeltonikaDatapointWriter.Datapoint> store) {
+        received.increment();
+        double number = value.doubleValue();
+        Map<String, Door> assetDoors = doors.computeIfAbsent(assetId, id -> new HashMap<>());
+        synchronized (assetDoors) {
+            Door door = assetDoors.get(attributeName);
+            if (door == null) {
+                door = new Door();
+                assetDoors.put(attributeName, door);
+                archive(assetId, attributeName, door, timestamp, number, value, store);
+                return;
+            }
+
+            if (timestamp <= door.archivedTimestamp) {
+                // The device clock went backwards, so the series starts over
+                flush(assetId, attributeName, door, store);
+                archive(assetId, attributeName, door, timestamp, number, value, store);
+                return;
+            }
+
+            long elapsed = timestamp - door.archivedTimestamp;
+            double upperSlope = (number + deviation - door.archivedValue) / elapsed;
+            double lowerSlope = (number - deviation - door.archivedValue) / elapsed;
+
+            if (!door.holding) {
+                door.upperSlope = upperSlope;
+                door.lowerSlope = lowerSlope;
+                door.hold(timestamp, number, value);
+                return;
+            }
+
+            double slope = (number - door.archivedValue) / elapsed;
+            if (slope >= door.lowerSlope && slope <= door.upperSlope && elapsed <= maxSegmentMillis) {
+                door.upperSlope = Math.min(door.upperSlope, upperSlope);
+                door.lowerSlope = Math.max(door.lowerSlope, lowerSlope);
+                door.hold(timestamp, number, value);
+                return;
+            }
+
+            // The sample is outside the doors, so the held sample is needed to rebuild the series and becomes the new pivot
+            flush(assetId, attributeName, door, store);
+            elapsed = timestamp - door.archivedTimestamp;
+            if (elapsed <= 0) {
+                archive(assetId, attributeName, door, timestamp, number, value, store);
+                return;
+            }
+            door.upperSlope = (number + deviation - door.archivedValue) / elapsed;
+            door.lowerSlope = (number - deviation - door.archivedValue) / elapsed;
+            door.hold(timestamp, number, value);
+        }
+    }
+
+    /**
+     * Stores the held sample of every attribute, e.g. when the handler stops.
+     */
+    public void flush(Consumer<TeltonikaDatapointWriter.Datapoint> store) {
+        doors.forEach((assetId, assetDoors) -> {
+            synchronized (assetDoors) {
+                assetDoors.forEach((attributeName, door) -> flush(assetId, attributeName, door, store));
+            }
+        });
+    }
+
+    /**
+     * Forgets the state of a deleted asset, without storing its held samples.
+     */
+    public void remove(String assetId) {
+        doors.remove(assetId);
+    }
+
+    protected void flush(String assetId, String attributeName, Door door, Consumer<TeltonikaDatapointWriter.Datapoint> store) {
+        if (door.holding) {
+            archive(assetId, attributeName, door, door.heldTimestamp, door.heldNumber, door.heldValue, store);
+        }
+    }
+
+    protected void archive(String assetId, String attributeName, Door door, long timestamp, double number, Object value, Consumer<TeltonikaDatapointWriter.Datapoint> store) {
+        door.archive(timestamp, number);
+        archived.increment();
+        store.accept(new TeltonikaDatapointWriter.Datapoint(assetId, attributeName, value, timestamp));
+    }
+
+    /**
+     * @return The amount of samples that were offered.
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * @return The amount of datapoints that were stored.
+     */
+    public long getArchivedCount() {
+        return archived.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaDatapointCompressor{" +
+                "maxSegmentMillis=" + maxSegmentMillis +
+                ", received=" + received.sum() +
+                ", archived=" + archived.sum() +
+                '}';
+    }
+}
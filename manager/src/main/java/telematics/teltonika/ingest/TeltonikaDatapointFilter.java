@@ -0,0 +1,57 @@
+package telematics.teltonika.ingest;
+
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.teltonika.TeltonikaParameterPolicy;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which attributes of a payload are stored as datapoints, according to the {@link TeltonikaParameterPolicy}
+ * of their parameter.
+ * <p>
+ * {@link TeltonikaParameterPolicy.Storage#ON_CHANGE} compares the value with the current value of the asset's
+ * attribute, while {@link TeltonikaParameterPolicy.Storage#INTERVAL} keeps the device time of the last stored
+ * datapoint of every attribute in memory; after a restart, the first value of every attribute is stored again.
+ */
+public class TeltonikaDatapointFilter {
+
+    /**
+     * Maps asset ID to the device time of the last stored datapoint of each of its attributes.
+     */
+    protected final Map<String, Map<String, Long>> lastStored = new ConcurrentHashMap<>();
+
+    /**
+     * @param previous The attribute of the asset before the payload is applied, or {@code null} if the asset does not
+     *                 have it yet.
+     * @return Whether a datapoint of the attribute should be stored.
+     */
+    public boolean accept(String assetId, Attribute<?> attribute, Attribute<?> previous, TeltonikaParameterPolicy policy) {
+        return switch (policy.getStorage()) {
+            case ALWAYS -> true;
+            case NEVER -> false;
+            case ON_CHANGE -> previous == null || !Objects.equals(previous.getValue().orElse(null), attribute.getValue().orElse(null));
+            case INTERVAL -> acceptInterval(assetId, attribute, policy.getIntervalMillis());
+        };
+    }
+
+    protected boolean acceptInterval(String assetId, Attribute<?> attribute, long intervalMillis) {
+        long timestamp = attribute.getTimestamp().orElse(0L);
+        Map<String, Long> attributes = lastStored.computeIfAbsent(assetId, id -> new ConcurrentHashMap<>());
+        Long last = attributes.get(attribute.getName());
+        // A timestamp before the last stored one means that the device clock was reset, so start over
+        if (last != null && timestamp >= last && timestamp - last < intervalMillis) {
+            return false;
+        }
+        attributes.put(attribute.getName(), timestamp);
+        return true;
+    }
+
+    /**
+     * Forgets the state of a deleted asset.
+     */
+    public void remove(String assetId) {
+        lastStored.remove(assetId);
+    }
+}
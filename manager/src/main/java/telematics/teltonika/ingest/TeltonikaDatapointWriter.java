@@ -0,0 +1,305 @@
+package telematics.teltonika.ingest;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.syslog.SyslogCategory;
+import org.openremote.model.util.ValueUtil;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.DATA;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+
+/**
+ * Writes the datapoints of Teltonika attributes to the {@code asset_datapoint} table with batched JDBC inserts.
+ * <p>
+ * Datapoints of all devices are collected in a bounded buffer, and written in batches of at most the maximum batch
+ * size, whenever the flush interval expires or a full batch is available. Writing the datapoints of many payloads and
+ * devices in a single statement batch replaces the one insert per attribute that the attribute event processing chain
+ * would otherwise do. When the buffer is full, the caller flushes it itself, which slows down ingestion instead of
+ * dropping datapoints. As this bypasses the {@code AssetDatapointService}, the datapoints of the attribute event
+ * processing chain are only replaced when batched attribute updates are enabled.
+ * <p>
+ * A callback can be buffered {@link #afterWritten behind} the datapoints of a payload, which runs once they are
+ * written, so that the payload is only committed to the {@link TeltonikaIngestJournal} when it is stored.
+ */
+public class TeltonikaDatapointWriter {
+
+    public static final String OR_TELTONIKA_DATAPOINT_FLUSH_INTERVAL_MILLIS = "OR_TELTONIKA_DATAPOINT_FLUSH_INTERVAL_MILLIS";
+    public static final long OR_TELTONIKA_DATAPOINT_FLUSH_INTERVAL_MILLIS_DEFAULT = 1000;
+    public static final String OR_TELTONIKA_DATAPOINT_MAX_BATCH_SIZE = "OR_TELTONIKA_DATAPOINT_MAX_BATCH_SIZE";
+    public static final int OR_TELTONIKA_DATAPOINT_MAX_BATCH_SIZE_DEFAULT = 1000;
+    public static final String OR_TELTONIKA_DATAPOINT_BUFFER_CAPACITY = "OR_TELTONIKA_DATAPOINT_BUFFER_CAPACITY";
+    public static final int OR_TELTONIKA_DATAPOINT_BUFFER_CAPACITY_DEFAULT = 100000;
+
+    protected static final String UPSERT_DATAPOINT = "INSERT INTO asset_datapoint (entity_id, attribute_name, value, timestamp) VALUES (?, ?, ?::jsonb, ?) " +
+            "ON CONFLICT (entity_id, attribute_name, timestamp) DO UPDATE SET value = excluded.value";
+
+    private static final Logger LOG = SyslogCategory.getLogger(DATA, TeltonikaDatapointWriter.class);
+
+    /**
+     * A single datapoint that is waiting to be written.
+     */
+    public static class Datapoint {
+        protected final String assetId;
+        protected final String attributeName;
+        protected final Object value;
+        protected final long timestamp;
+
+        public Datapoint(String assetId, String attributeName, Object value, long timestamp) {
+            this.assetId = assetId;
+            this.attributeName = attributeName;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return The datapoint of the attribute, if it has a value and a timestamp.
+         */
+        public static Optional<Datapoint> of(String assetId, Attribute<?> attribute) {
+            Object value = attribute.getValue().orElse(null);
+            Long timestamp = attribute.getTimestamp().orElse(null);
+            if (value == null || timestamp == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new Datapoint(assetId, attribute.getName(), value, timestamp));
+        }
+
+        public String getAssetId() {
+            return assetId;
+        }
+
+        public String getAttributeName() {
+            return attributeName;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "Datapoint{" +
+                    "assetId='" + assetId + '\'' +
+                    ", attributeName='" + attributeName + '\'' +
+                    ", value=" + value +
+                    ", timestamp=" + timestamp +
+                    '}';
+        }
+    }
+
+    protected final PersistenceService persistenceService;
+    protected final ScheduledExecutorService executorService;
+    protected final long flushIntervalMillis;
+    protected final int maxBatchSize;
+    /**
+     * A callback that is buffered like a datapoint, and run once the datapoints that were buffered before it are
+     * written.
+     */
+    protected static final class Callback extends Datapoint {
+        protected final long failedBatchCount;
+        protected final Runnable runnable;
+
+        protected Callback(long failedBatchCount, Runnable runnable) {
+            super(null, null, null, 0);
+            this.failedBatchCount = failedBatchCount;
+            this.runnable = runnable;
+        }
+    }
+
+    protected final BlockingQueue<Datapoint> buffer;
+    protected final ReentrantLock flushLock = new ReentrantLock();
+    protected final AtomicBoolean flushScheduled = new AtomicBoolean();
+    protected final LongAdder written = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected final AtomicLong failedBatches = new AtomicLong();
+    protected ScheduledFuture<?> flushFuture;
+
+    public TeltonikaDatapointWriter(PersistenceService persistenceService, ScheduledExecutorService executorService, Map<String, String> config) {
+        this(
+                persistenceService,
+                executorService,
+                getLong(config, OR_TELTONIKA_DATAPOINT_FLUSH_INTERVAL_MILLIS, OR_TELTONIKA_DATAPOINT_FLUSH_INTERVAL_MILLIS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_DATAPOINT_MAX_BATCH_SIZE, OR_TELTONIKA_DATAPOINT_MAX_BATCH_SIZE_DEFAULT),
+                getInteger(config, OR_TELTONIKA_DATAPOINT_BUFFER_CAPACITY, OR_TELTONIKA_DATAPOINT_BUFFER_CAPACITY_DEFAULT)
+        );
+    }
+
+    public TeltonikaDatapointWriter(PersistenceService persistenceService, ScheduledExecutorService executorService, long flushIntervalMillis, int maxBatchSize, int bufferCapacity) {
+        this.persistenceService = persistenceService;
+        this.executorService = executorService;
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.buffer = new ArrayBlockingQueue<>(Math.max(this.maxBatchSize, bufferCapacity));
+    }
+
+    public synchronized void start() {
+        if (flushFuture == null) {
+            flushFuture = executorService.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything that is still buffered.
+     */
+    public synchronized void stop() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        flushAll();
+        LOG.info("Stopped Teltonika datapoint writer: " + this);
+    }
+
+    /**
+     * Buffers a datapoint for every attribute that has a value and a timestamp.
+     */
+    public void write(String assetId, Iterable<Attribute<?>> attributes) {
+        for (Attribute<?> attribute : attributes) {
+            Datapoint.of(assetId, attribute).ifPresent(this::write);
+        }
+    }
+
+    public void write(Datapoint datapoint) {
+        while (!buffer.offer(datapoint)) {
+            // The buffer is full, so write a batch on this thread to make room
+            flush();
+        }
+        if (buffer.size() >= maxBatchSize && flushScheduled.compareAndSet(false, true)) {
+            executorService.execute(() -> {
+                flushScheduled.set(false);
+                flushAll();
+            });
+        }
+    }
+
+    /**
+     * Buffers a callback that is run on the flushing thread once the datapoints that were buffered before it are
+     * written. It is not run if any batch failed to be written after the {@link #getFailedBatchCount() failed batch
+     * count} was the given count, which the caller reads before it buffers its datapoints, as that batch may have held
+     * some of them.
+     */
+    public void afterWritten(long failedBatchCount, Runnable callback) {
+        write(new Callback(failedBatchCount, callback));
+    }
+
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The amount of batches that failed to be written.
+     */
+    public long getFailedBatchCount() {
+        return failedBatches.get();
+    }
+
+    /**
+     * Writes batches until the buffer is empty.
+     */
+    public void flushAll() {
+        while (!buffer.isEmpty()) {
+            if (flush() == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a single batch of at most the maximum batch size.
+     *
+     * @return The amount of datapoints and callbacks that were taken from the buffer.
+     */
+    protected int flush() {
+        flushLock.lock();
+        try {
+            List<Datapoint> batch = new ArrayList<>(Math.min(maxBatchSize, buffer.size()));
+            buffer.drainTo(batch, maxBatchSize);
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            List<Datapoint> datapoints = batch.stream().filter(datapoint -> !(datapoint instanceof Callback)).toList();
+            if (!datapoints.isEmpty()) {
+                writeBatch(datapoints);
+            }
+            for (Datapoint datapoint : batch) {
+                if (datapoint instanceof Callback callback && callback.failedBatchCount == failedBatches.get()) {
+                    try {
+                        callback.runnable.run();
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, "Failed to run callback of written Teltonika datapoints", e);
+                    }
+                }
+            }
+            return batch.size();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a batch of datapoints in a single transaction; must hold the flush lock.
+     */
+    protected void writeBatch(List<Datapoint> batch) {
+        try {
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(UPSERT_DATAPOINT)) {
+                    for (Datapoint datapoint : batch) {
+                        statement.setString(1, datapoint.assetId);
+                        statement.setString(2, datapoint.attributeName);
+                        statement.setString(3, ValueUtil.asJSON(datapoint.value).orElse("null"));
+                        statement.setTimestamp(4, new Timestamp(datapoint.timestamp));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }));
+            written.add(batch.size());
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            failed.add(batch.size());
+            LOG.log(Level.WARNING, "Failed to write batch of " + batch.size() + " Teltonika datapoints", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaDatapointWriter{" +
+                "flushIntervalMillis=" + flushIntervalMillis +
+                ", maxBatchSize=" + maxBatchSize +
+                ", buffered=" + buffer.size() +
+                ", written=" + written.sum() +
+                ", failed=" + failed.sum() +
+                '}';
+    }
+}
@@ -0,0 +1,793 @@
+package telematics.teltonika.ingest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openremote.model.syslog.SyslogCategory;
+import telematics.teltonika.TeltonikaPayloadEncoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+import static org.openremote.model.util.MapAccess.getString;
+
+/**
+ * An append-only journal of the payloads received from Teltonika devices, so that payloads that are accepted but not
+ * yet processed survive a restart or crash of the manager.
+ * <p>
+ * Payloads are appended to memory-mapped segment files before they are submitted to the
+ * {@link TeltonikaIngestPipeline}, and every entry gets a sequence number, which orders the entries of every device.
+ * An entry is committed by flipping its state byte in place once the asset and datapoints of its message are stored,
+ * which is after the pipeline processed it when the writes are buffered; the entries of messages that failed are not
+ * committed. On start, the entries that were not committed are replayed in the order they were appended. Entries that
+ * the pipeline rejects because it is full stay in the journal and are submitted again in the background, so a full
+ * pipeline slows down ingestion instead of losing payloads; the entries of messages that it sheds are committed, as
+ * they are dropped on purpose. Deferred entries are kept per device, so a full stripe only holds back the devices of
+ * that stripe. While a device has deferred entries, its new payloads are deferred behind them, except for panic
+ * records, which overtake them like they overtake the queued messages of the pipeline. Messages that are read back
+ * from the journal are {@link TeltonikaIngestMessage#isReplayed() marked}, so that a record that is older than what its
+ * asset holds is only stored as a datapoint.
+ * <p>
+ * A segment is rolled over when it is full, and deleted as soon as all of its entries are committed, so the journal
+ * only holds the payloads that are still in flight. A sealed segment of which only a few entries are left, such as
+ * those of messages that failed, is compacted by copying those entries to the active segment, so that they do not keep
+ * it on the disk. Writes to the mapped segments survive a crash of the JVM; they are forced to the disk every sync
+ * interval, which bounds what an outage of the machine can lose.
+ * <p>
+ * Every entry counts its attempts: a message that failed and a restart that finds the entry not committed are both an
+ * attempt. An entry that reaches the maximum amount of attempts is dead-lettered: it is logged and committed, so that a
+ * payload that can never be processed is not replayed forever.
+ * <p>
+ * The layout of an entry is {@code length (4) | state (1) | attempts (1) | crc32 (4) | sequence (8) | receivedAt (8) |
+ * realm | clientId | imei | encoding | body}, where the strings are prefixed by their length in 2 bytes ({@code -1} for
+ * {@code null}) and the body by its length in 4 bytes. The length is written last, so a torn write is found by its
+ * length or CRC, which covers everything after the header. Entries that were copied by a compaction keep their
+ * sequence, so a copy that is found twice after a crash is only replayed once.
+ */
+public class TeltonikaIngestJournal {
+
+    public static final String OR_TELTONIKA_JOURNAL = "OR_TELTONIKA_JOURNAL";
+    public static final boolean OR_TELTONIKA_JOURNAL_DEFAULT = false;
+    public static final String OR_TELTONIKA_JOURNAL_DIR = "OR_TELTONIKA_JOURNAL_DIR";
+    public static final String OR_TELTONIKA_JOURNAL_SEGMENT_BYTES = "OR_TELTONIKA_JOURNAL_SEGMENT_BYTES";
+    public static final int OR_TELTONIKA_JOURNAL_SEGMENT_BYTES_DEFAULT = 64 * 1024 * 1024;
+    public static final String OR_TELTONIKA_JOURNAL_SYNC_INTERVAL_MILLIS = "OR_TELTONIKA_JOURNAL_SYNC_INTERVAL_MILLIS";
+    public static final long OR_TELTONIKA_JOURNAL_SYNC_INTERVAL_MILLIS_DEFAULT = 1000;
+    public static final String OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS = "OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS";
+    public static final int OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS_DEFAULT = 5;
+    public static final String OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT = "OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT";
+    public static final int OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT_DEFAULT = 25;
+
+    protected static final String OR_STORAGE_DIR = "OR_STORAGE_DIR";
+    protected static final String OR_STORAGE_DIR_DEFAULT = "tmp";
+    protected static final String SEGMENT_PREFIX = "journal-";
+    protected static final String SEGMENT_SUFFIX = ".seg";
+    protected static final int HEADER_BYTES = 10;
+    protected static final int STATE_OFFSET = 4;
+    protected static final int ATTEMPTS_OFFSET = 5;
+    protected static final int CRC_OFFSET = 6;
+    protected static final byte STATE_APPENDED = 1;
+    protected static final byte STATE_COMMITTED = 2;
+    /**
+     * The amount of sync intervals that a segment must be sealed for before it is compacted, so that the entries that
+     * are still in flight when it is sealed are committed first.
+     */
+    protected static final int COMPACT_AFTER_SYNCS = 10;
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaIngestJournal.class);
+
+    /**
+     * A single memory-mapped segment file.
+     */
+    protected static final class Segment {
+        protected final Path path;
+        protected final FileChannel channel;
+        protected final MappedByteBuffer buffer;
+        /**
+         * The entries of this segment that are not committed yet, and the amount of bytes that they take.
+         */
+        protected final Set<Entry> live = ConcurrentHashMap.newKeySet();
+        protected final AtomicInteger liveBytes = new AtomicInteger();
+        protected int writePosition;
+        protected volatile boolean sealed;
+        protected volatile long sealedAt;
+        protected volatile boolean dirty;
+
+        protected Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+
+        protected void seal() {
+            sealedAt = System.currentTimeMillis();
+            sealed = true;
+        }
+
+        protected void add(Entry entry) {
+            live.add(entry);
+            liveBytes.addAndGet(entry.bytes);
+        }
+
+        protected void remove(Entry entry) {
+            if (live.remove(entry)) {
+                liveBytes.addAndGet(-entry.bytes);
+            }
+        }
+    }
+
+    /**
+     * The location of an entry in the journal. An entry is moved when its segment is compacted, so its location is
+     * only accessed while holding its lock.
+     */
+    public static final class Entry {
+        protected final long sequence;
+        protected final String imei;
+        /**
+         * The amount of bytes of the entry, including its header.
+         */
+        protected final int bytes;
+        protected Segment segment;
+        protected int position;
+        protected boolean committed;
+
+        protected Entry(Segment segment, int position, int bytes, long sequence, String imei) {
+            this.segment = segment;
+            this.position = position;
+            this.bytes = bytes;
+            this.sequence = sequence;
+            this.imei = imei;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "segment=" + segment.path.getFileName() +
+                    ", position=" + position +
+                    ", sequence=" + sequence +
+                    '}';
+        }
+    }
+
+    protected final Path directory;
+    protected final int segmentBytes;
+    protected final long syncIntervalMillis;
+    protected final ScheduledExecutorService executorService;
+    protected final List<Segment> segments = new CopyOnWriteArrayList<>();
+    protected final List<Entry> recovered = new ArrayList<>();
+    /**
+     * Maps the IMEI of a device to its deferred entries, in order, so that a device whose stripe is full does not hold
+     * back the entries of other devices. A queue is only added and removed within a compute of the map.
+     */
+    protected final Map<String, Queue<Entry>> deferred = new ConcurrentHashMap<>();
+    protected final LongAdder appended = new LongAdder();
+    protected final LongAdder committed = new LongAdder();
+    protected final LongAdder replayed = new LongAdder();
+    protected final LongAdder redelivered = new LongAdder();
+    protected final LongAdder deadLettered = new LongAdder();
+    protected final LongAdder compacted = new LongAdder();
+    protected final int maxAttempts;
+    protected final int compactLivePercent;
+    protected Segment active;
+    protected long nextSequence;
+    protected long lastSegmentId = -1;
+    protected Predicate<TeltonikaIngestMessage> submitter;
+    protected ScheduledFuture<?> syncFuture;
+
+    public TeltonikaIngestJournal(ScheduledExecutorService executorService, Map<String, String> config) {
+        this(
+                Paths.get(getString(config, OR_TELTONIKA_JOURNAL_DIR, Paths.get(getString(config, OR_STORAGE_DIR, OR_STORAGE_DIR_DEFAULT), "teltonika", "journal").toString())),
+                getInteger(config, OR_TELTONIKA_JOURNAL_SEGMENT_BYTES, OR_TELTONIKA_JOURNAL_SEGMENT_BYTES_DEFAULT),
+                getLong(config, OR_TELTONIKA_JOURNAL_SYNC_INTERVAL_MILLIS, OR_TELTONIKA_JOURNAL_SYNC_INTERVAL_MILLIS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS, OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS_DEFAULT),
+                getInteger(config, OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT, OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT_DEFAULT),
+                executorService
+        );
+    }
+
+    public TeltonikaIngestJournal(Path directory, int segmentBytes, long syncIntervalMillis, ScheduledExecutorService executorService) {
+        this(directory, segmentBytes, syncIntervalMillis, OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS_DEFAULT, OR_TELTONIKA_JOURNAL_COMPACT_LIVE_PERCENT_DEFAULT, executorService);
+    }
+
+    public TeltonikaIngestJournal(Path directory, int segmentBytes, long syncIntervalMillis, int maxAttempts, int compactLivePercent, ScheduledExecutorService executorService) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.syncIntervalMillis = Math.max(1, syncIntervalMillis);
+        // Stored in a single byte of the header
+        this.maxAttempts = Math.max(1, Math.min(Byte.MAX_VALUE, maxAttempts));
+        this.compactLivePercent = Math.max(0, Math.min(100, compactLivePercent));
+        this.executorService = executorService;
+    }
+
+    /**
+     * Opens the segments of the journal and finds the entries that were not committed, which are replayed by
+     * {@link #start} in the order they were appended. Segments without such entries are deleted.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+        List<Segment> opened = new ArrayList<>();
+        for (Path path : paths) {
+            Segment segment = new Segment(path, 0);
+            recover(segment);
+            segment.seal();
+            opened.add(segment);
+            lastSegmentId = Math.max(lastSegmentId, segmentId(path));
+        }
+        // Entries that were moved by a compaction are not in the order of their segments. The sort is stable, so of an
+        // entry that was found twice because a compaction was interrupted, the copy that was moved comes last
+        recovered.sort(Comparator.comparingLong(entry -> entry.sequence));
+        for (int i = recovered.size() - 1; i > 0; i--) {
+            if (recovered.get(i - 1).sequence == recovered.get(i).sequence) {
+                Entry duplicate = recovered.remove(i - 1);
+                duplicate.segment.buffer.put(duplicate.position + STATE_OFFSET, STATE_COMMITTED);
+                duplicate.segment.remove(duplicate);
+            }
+        }
+        for (Segment segment : opened) {
+            if (segment.live.isEmpty()) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            LOG.info("Found " + recovered.size() + " unprocessed Teltonika payloads in the journal at " + directory);
+        }
+    }
+
+    /**
+     * Replays the entries that were not committed in the background, and starts the periodic sync and redelivery.
+     *
+     * @param submitter Submits a message to the ingest pipeline, and returns whether it was accepted.
+     */
+    public synchronized void start(Predicate<TeltonikaIngestMessage> submitter) {
+        this.submitter = submitter;
+        List<Entry> replay = new ArrayList<>(recovered);
+        recovered.clear();
+        if (!replay.isEmpty()) {
+            executorService.execute(() -> replay(replay));
+        }
+        if (syncFuture == null) {
+            syncFuture = executorService.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic sync and redelivery, and forces the segments to the disk. Entries that were not committed are
+     * replayed when the journal is opened again.
+     */
+    public synchronized void stop() {
+        if (syncFuture != null) {
+            syncFuture.cancel(false);
+            syncFuture = null;
+        }
+        force();
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close Teltonika journal segment " + segment.path, e);
+            }
+        }
+        segments.clear();
+        active = null;
+        LOG.info("Stopped Teltonika ingest journal: " + this);
+    }
+
+    /**
+     * Appends the body of a message that was received over MQTT to the journal, and sets the entry of the message,
+     * which is {@link #commit committed} once it was processed.
+     */
+    public void append(TeltonikaIngestMessage message) throws IOException {
+        ByteBuf body = message.getBody();
+        byte[] realm = toBytes(message.getRealm());
+        byte[] clientId = toBytes(message.getClientId());
+        byte[] imei = toBytes(message.getImei());
+        byte[] encoding = toBytes(message.getEncoding() != null ? message.getEncoding().name() : null);
+        int bodyLength = body.readableBytes();
+        int length = 8 + 8 + stringBytes(realm) + stringBytes(clientId) + stringBytes(imei) + stringBytes(encoding) + 4 + bodyLength;
+
+        Entry entry;
+        synchronized (this) {
+            Segment segment = active;
+            if (segment == null || segment.writePosition + HEADER_BYTES + length > segment.buffer.capacity()) {
+                segment = roll(HEADER_BYTES + length);
+            }
+            int position = segment.writePosition;
+            long sequence = nextSequence++;
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + HEADER_BYTES);
+            buffer.putLong(sequence);
+            buffer.putLong(message.getReceivedAt());
+            writeString(buffer, realm);
+            writeString(buffer, clientId);
+            writeString(buffer, imei);
+            writeString(buffer, encoding);
+            buffer.putInt(bodyLength);
+            body.getBytes(body.readerIndex(), buffer.limit(buffer.position() + bodyLength));
+
+            segment.buffer.put(position + STATE_OFFSET, STATE_APPENDED);
+            segment.buffer.putInt(position + CRC_OFFSET, crc(segment.buffer, position + HEADER_BYTES, length));
+            // Written last, as a non-zero length marks a complete entry
+            segment.buffer.putInt(position, length);
+            segment.writePosition = position + HEADER_BYTES + length;
+            segment.dirty = true;
+            entry = new Entry(segment, position, HEADER_BYTES + length, sequence, message.getImei());
+            segment.add(entry);
+        }
+        message.setJournalEntry(entry);
+        appended.increment();
+    }
+
+    /**
+     * Marks the entry of a processed message as committed, and deletes its segment once all of its entries are.
+     */
+    public void commit(TeltonikaIngestMessage message) {
+        Entry entry = message.getJournalEntry();
+        if (entry != null) {
+            message.setJournalEntry(null);
+            commit(entry);
+        }
+    }
+
+    /**
+     * Marks an entry as committed, for a message that was already released, such as once the writers stored it.
+     */
+    public void commit(Entry entry) {
+        Segment segment;
+        synchronized (entry) {
+            if (entry.committed) {
+                return;
+            }
+            segment = markCommitted(entry);
+        }
+        committed.increment();
+        deleteIfCommitted(segment);
+    }
+
+    /**
+     * Counts a failed attempt to process the message of an entry, which is replayed on the next start, or
+     * dead-lettered if it reached the maximum amount of attempts.
+     */
+    public void fail(TeltonikaIngestMessage message) {
+        Entry entry = message.getJournalEntry();
+        if (entry == null) {
+            return;
+        }
+        message.setJournalEntry(null);
+        Segment segment;
+        synchronized (entry) {
+            if (entry.committed || !attempt(entry)) {
+                return;
+            }
+            segment = markCommitted(entry);
+        }
+        deleteIfCommitted(segment);
+    }
+
+    /**
+     * Keeps the entry of a message that the pipeline rejected, so that it is submitted again later.
+     */
+    public void defer(TeltonikaIngestMessage message) {
+        Entry entry = message.getJournalEntry();
+        if (entry != null) {
+            message.setJournalEntry(null);
+            addDeferred(entry);
+        }
+    }
+
+    /**
+     * @return Whether the device has deferred entries, which its new messages must be deferred behind to stay in order.
+     */
+    public boolean isDeferred(String imei) {
+        return deferred.containsKey(deviceKey(imei));
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getCommittedCount() {
+        return committed.sum();
+    }
+
+    public long getDeadLetteredCount() {
+        return deadLettered.sum();
+    }
+
+    public long getCompactedCount() {
+        return compacted.sum();
+    }
+
+    public int getDeferredCount() {
+        return deferred.values().stream().mapToInt(Queue::size).sum();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    protected void replay(List<Entry> entries) {
+        long start = System.currentTimeMillis();
+        int submitted = 0;
+        for (Entry entry : entries) {
+            // Once an entry of a device is deferred, its entries after it are deferred as well, so that they stay in order
+            if (!isDeferred(entry.imei) && submit(entry)) {
+                submitted++;
+            } else {
+                addDeferred(entry);
+            }
+        }
+        replayed.add(submitted);
+        LOG.info("Replayed " + submitted + " Teltonika payloads from the journal in " + (System.currentTimeMillis() - start) + "ms, "
+                + (entries.size() - submitted) + " were deferred");
+    }
+
+    /**
+     * Submits the deferred entries of every device again.
+     */
+    protected void redeliver() {
+        for (String device : deferred.keySet()) {
+            redeliver(device);
+        }
+    }
+
+    /**
+     * Submits the deferred entries of a device again, in order, until the pipeline rejects one.
+     */
+    protected void redeliver(String device) {
+        Queue<Entry> entries = deferred.get(device);
+        if (entries == null) {
+            return;
+        }
+        Entry entry;
+        while ((entry = entries.peek()) != null) {
+            if (!submit(entry)) {
+                return;
+            }
+            entries.poll();
+            redelivered.increment();
+        }
+        // Only removed if it is still empty, as the device can have deferred another entry in the meantime
+        deferred.computeIfPresent(device, (key, queue) -> queue.isEmpty() ? null : queue);
+    }
+
+    protected void addDeferred(Entry entry) {
+        deferred.compute(deviceKey(entry.imei), (key, queue) -> {
+            Queue<Entry> entries = queue != null ? queue : new ConcurrentLinkedQueue<>();
+            entries.add(entry);
+            return entries;
+        });
+    }
+
+    protected static String deviceKey(String imei) {
+        return imei != null ? imei : "";
+    }
+
+    protected boolean submit(Entry entry) {
+        TeltonikaIngestMessage message = read(entry);
+        if (submitter != null && submitter.test(message)) {
+            return true;
+        }
+        message.setJournalEntry(null);
+        message.release();
+        return false;
+    }
+
+    /**
+     * Reads the message of an entry, with a copy of its body, which is marked as replayed.
+     */
+    protected TeltonikaIngestMessage read(Entry entry) {
+        long receivedAt;
+        String realm;
+        String clientId;
+        String imei;
+        String encoding;
+        byte[] body;
+        synchronized (entry) {
+            ByteBuffer buffer = entry.segment.buffer.duplicate();
+            buffer.position(entry.position + HEADER_BYTES + 8);
+            receivedAt = buffer.getLong();
+            realm = readString(buffer);
+            clientId = readString(buffer);
+            imei = readString(buffer);
+            encoding = readString(buffer);
+            body = new byte[buffer.getInt()];
+            buffer.get(body);
+        }
+        TeltonikaIngestMessage message = new TeltonikaIngestMessage(realm, clientId, imei, Unpooled.wrappedBuffer(body), receivedAt);
+        message.setEncoding(encoding != null ? TeltonikaPayloadEncoding.valueOf(encoding) : null);
+        message.setJournalEntry(entry);
+        message.setReplayed(true);
+        return message;
+    }
+
+    /**
+     * Scans a segment for its complete entries, and collects those that were not committed, which counts an attempt
+     * for each of them.
+     */
+    protected void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 16 || position + HEADER_BYTES + length > buffer.capacity()
+                    || buffer.getInt(position + CRC_OFFSET) != crc(buffer, position + HEADER_BYTES, length)) {
+                break;
+            }
+            long sequence = buffer.getLong(position + HEADER_BYTES);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (buffer.get(position + STATE_OFFSET) != STATE_COMMITTED) {
+                ByteBuffer fields = buffer.duplicate().position(position + HEADER_BYTES + 16);
+                // Skips the realm and client ID
+                readString(fields);
+                readString(fields);
+                Entry entry = new Entry(segment, position, HEADER_BYTES + length, sequence, readString(fields));
+                if (attempt(entry)) {
+                    buffer.put(position + STATE_OFFSET, STATE_COMMITTED);
+                } else {
+                    segment.add(entry);
+                    recovered.add(entry);
+                }
+            }
+            position += HEADER_BYTES + length;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Counts an attempt of an entry, and dead-letters it if it reached the maximum amount of attempts; must hold the
+     * lock of the entry.
+     *
+     * @return Whether the entry was dead-lettered, which must then be committed.
+     */
+    protected boolean attempt(Entry entry) {
+        MappedByteBuffer buffer = entry.segment.buffer;
+        int attempts = buffer.get(entry.position + ATTEMPTS_OFFSET) + 1;
+        buffer.put(entry.position + ATTEMPTS_OFFSET, (byte) Math.min(attempts, Byte.MAX_VALUE));
+        entry.segment.dirty = true;
+        if (attempts < maxAttempts) {
+            return false;
+        }
+        deadLettered.increment();
+        LOG.warning("Dead-lettered Teltonika payload of device " + entry.imei + " after " + attempts + " attempts: " + entry);
+        return true;
+    }
+
+    /**
+     * Flips the state of an entry to committed; must hold the lock of the entry.
+     *
+     * @return The segment of the entry.
+     */
+    protected Segment markCommitted(Entry entry) {
+        Segment segment = entry.segment;
+        entry.committed = true;
+        segment.buffer.put(entry.position + STATE_OFFSET, STATE_COMMITTED);
+        segment.dirty = true;
+        segment.remove(entry);
+        return segment;
+    }
+
+    protected void deleteIfCommitted(Segment segment) {
+        if (segment.sealed && segment.live.isEmpty()) {
+            synchronized (this) {
+                if (segments.remove(segment)) {
+                    delete(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the sealed segments that were sealed for a while and of which only a few entries are left.
+     */
+    protected void compact() {
+        long sealedBefore = System.currentTimeMillis() - COMPACT_AFTER_SYNCS * syncIntervalMillis;
+        for (Segment segment : segments) {
+            if (segment.sealed && segment.sealedAt <= sealedBefore && !segment.live.isEmpty()
+                    && segment.liveBytes.get() * 100L <= (long) segment.buffer.capacity() * compactLivePercent) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * Copies the entries of a segment that are not committed yet to the active segment, and deletes it. The copies are
+     * forced to the disk before the segment is deleted.
+     */
+    protected synchronized void compact(Segment segment) {
+        if (!segments.contains(segment)) {
+            return;
+        }
+        int moved = 0;
+        try {
+            for (Entry entry : segment.live) {
+                synchronized (entry) {
+                    if (!entry.committed) {
+                        move(entry);
+                        moved++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to compact Teltonika journal segment " + segment.path, e);
+            return;
+        }
+        for (Segment target : segments) {
+            if (target != segment && target.dirty) {
+                target.dirty = false;
+                target.buffer.force();
+            }
+        }
+        if (segments.remove(segment)) {
+            delete(segment);
+        }
+        compacted.add(moved);
+        LOG.fine("Compacted Teltonika journal segment " + segment.path + " by moving " + moved + " entries");
+    }
+
+    /**
+     * Copies an entry to the active segment and moves it there; must hold the lock of the journal and of the entry.
+     */
+    protected void move(Entry entry) throws IOException {
+        Segment segment = active;
+        if (segment == null || segment.writePosition + entry.bytes > segment.buffer.capacity()) {
+            segment = roll(entry.bytes);
+        }
+        int position = segment.writePosition;
+        ByteBuffer source = entry.segment.buffer.duplicate();
+        source.position(entry.position + STATE_OFFSET).limit(entry.position + entry.bytes);
+        segment.buffer.duplicate().position(position + STATE_OFFSET).put(source);
+        // Written last, as a non-zero length marks a complete entry
+        segment.buffer.putInt(position, entry.bytes - HEADER_BYTES);
+        segment.writePosition = position + entry.bytes;
+        segment.dirty = true;
+        entry.segment.remove(entry);
+        entry.segment = segment;
+        entry.position = position;
+        segment.add(entry);
+    }
+
+    /**
+     * Seals the active segment and creates a new one that fits at least the given amount of bytes; must hold the lock
+     * of the journal.
+     */
+    protected Segment roll(int minBytes) throws IOException {
+        if (active != null) {
+            active.seal();
+            if (active.live.isEmpty() && segments.remove(active)) {
+                delete(active);
+            }
+        }
+        // Named after the next sequence, unless a compaction rolled over without any entries appended in between
+        lastSegmentId = Math.max(lastSegmentId + 1, nextSequence);
+        Path path = directory.resolve(SEGMENT_PREFIX + String.format("%020d", lastSegmentId) + SEGMENT_SUFFIX);
+        active = new Segment(path, Math.max(segmentBytes, minBytes));
+        segments.add(active);
+        return active;
+    }
+
+    protected static long segmentId(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    protected void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete Teltonika journal segment " + segment.path, e);
+        }
+    }
+
+    protected void sync() {
+        try {
+            force();
+            redeliver();
+            compact();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to sync the Teltonika ingest journal", e);
+        }
+    }
+
+    protected void force() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+        }
+    }
+
+    protected static int crc(ByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(position).limit(position + length));
+        return (int) crc.getValue();
+    }
+
+    protected static byte[] toBytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    protected static int stringBytes(byte[] value) {
+        return 2 + (value != null ? value.length : 0);
+    }
+
+    protected static void writeString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    protected static String readString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaIngestJournal{" +
+                "directory=" + directory +
+                ", segments=" + segments.size() +
+                ", appended=" + appended.sum() +
+                ", committed=" + committed.sum() +
+                ", replayed=" + replayed.sum() +
+                ", redelivered=" + redelivered.sum() +
+                ", deadLettered=" + deadLettered.sum() +
+                ", compacted=" + compacted.sum() +
+                ", deferred=" + getDeferredCount() +
+                '}';
+    }
+}
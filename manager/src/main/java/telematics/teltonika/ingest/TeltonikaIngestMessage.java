@@ -0,0 +1,328 @@
+package telematics.teltonika.ingest;
+
+import io.netty.buffer.ByteBuf;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.AttributeMap;
+import org.openremote.model.custom.VehicleAsset;
+import telematics.teltonika.ITeltonikaPayload;
+import telematics.teltonika.TeltonikaPayloadEncoding;
+import telematics.teltonika.codec.TeltonikaAvlRecord;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A single message received from a Teltonika device, as it moves through the {@link TeltonikaIngestPipeline}.
+ * <p>
+ * The message carries what was known when it was received, and every stage of the pipeline stores its result in it
+ * for the next stage. A message either has a body, the JSON payload received over MQTT, or a record that was received
+ * over the native protocol and is already decoded. The body is a retained buffer that is owned by the message until
+ * {@link #release()} is called by the pipeline.
+ * <p>
+ * A body that holds several records is decoded into a {@link #getBatch() batch}, with a message per record that the
+ * later stages map and persist in order, as a single unit of work.
+ * <p>
+ * Every message has the {@link Priority} of its record, which decides how the pipeline schedules it when it is
+ * loaded; the priority of a batch is the highest priority of its records.
+ */
+public class TeltonikaIngestMessage {
+
+    /**
+     * The priority of a record, as given by its {@code pr} parameter.
+     */
+    public enum Priority {
+        /**
+         * Periodic records, which are sampled or shed when the pipeline is loaded.
+         */
+        LOW,
+        /**
+         * Records of events, and messages that have no priority, such as command responses; never shed.
+         */
+        HIGH,
+        /**
+         * Records of panic events, which are processed ahead of all other messages of their stripe.
+         */
+        PANIC;
+
+        /**
+         * @return The priority of the value of the {@code pr} parameter, which is {@link #HIGH} for unknown values.
+         */
+        public static Priority of(int value) {
+            return switch (value) {
+                case 0 -> LOW;
+                case 2 -> PANIC;
+                default -> HIGH;
+            };
+        }
+    }
+
+    /**
+     * How the {@link TeltonikaIngestPipeline} finished with a message, which is set before it is passed to the
+     * processed listener.
+     */
+    public enum Outcome {
+        /**
+         * The message went through all stages.
+         */
+        PROCESSED,
+        /**
+         * A stage ended the processing of the message, such as for a payload that cannot be decoded.
+         */
+        STOPPED,
+        /**
+         * A stage failed with an exception.
+         */
+        FAILED,
+        /**
+         * The message was shed without being processed.
+         */
+        SHED
+    }
+
+    private final String realm;
+    private final String clientId;
+    private final String imei;
+    private final long receivedAt;
+    private ByteBuf body;
+    private final TeltonikaAvlRecord record;
+    private TeltonikaPayloadEncoding encoding;
+    private Priority priority = Priority.HIGH;
+
+    private String assetId;
+    private Asset<VehicleAsset> asset;
+    private String modelNumber;
+    private ITeltonikaPayload payload;
+    private AttributeMap attributes;
+    private boolean historical;
+    private List<TeltonikaIngestMessage> batch;
+    private TeltonikaIngestJournal.Entry journalEntry;
+    private boolean replayed;
+    private Outcome outcome;
+    private Consumer<Boolean> storedListener;
+
+    /**
+     * @param body The payload; ownership of one reference count is transferred to this message.
+     */
+    public TeltonikaIngestMessage(String realm, String clientId, String imei, ByteBuf body, long receivedAt) {
+        this.realm = realm;
+        this.clientId = clientId;
+        this.imei = imei;
+        this.body = body;
+        this.record = null;
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * @param clientId The MQTT client ID of the device, or {@code null} if the record was not received over MQTT.
+     */
+    public TeltonikaIngestMessage(String realm, String clientId, String imei, TeltonikaAvlRecord record, long receivedAt) {
+        this.realm = realm;
+        this.clientId = clientId;
+        this.imei = imei;
+        this.body = null;
+        this.record = record;
+        this.receivedAt = receivedAt;
+        this.priority = Priority.of(record.getPriority());
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getImei() {
+        return imei;
+    }
+
+    /**
+     * @return The JSON payload, or {@code null} if the message has a {@link #getRecord() record} instead.
+     */
+    public ByteBuf getBody() {
+        return body;
+    }
+
+    /**
+     * @return The record received over the native protocol, or {@code null} if the message has a
+     * {@link #getBody() body} instead.
+     */
+    public TeltonikaAvlRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return The encoding of the body as given by the topic, or {@code null} if it is detected from the body itself.
+     */
+    public TeltonikaPayloadEncoding getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(TeltonikaPayloadEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * @return The ID of the device's asset, or {@code null} if the device has no asset yet.
+     */
+    public String getAssetId() {
+        return assetId;
+    }
+
+    public void setAssetId(String assetId) {
+        this.assetId = assetId;
+    }
+
+    /**
+     * @return The device's asset, or {@code null} if it has not been loaded or the device has no asset yet.
+     */
+    public Asset<VehicleAsset> getAsset() {
+        return asset;
+    }
+
+    public void setAsset(Asset<VehicleAsset> asset) {
+        this.asset = asset;
+    }
+
+    public String getModelNumber() {
+        return modelNumber;
+    }
+
+    public void setModelNumber(String modelNumber) {
+        this.modelNumber = modelNumber;
+    }
+
+    public ITeltonikaPayload getPayload() {
+        return payload;
+    }
+
+    public void setPayload(ITeltonikaPayload payload) {
+        this.payload = payload;
+    }
+
+    public AttributeMap getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(AttributeMap attributes) {
+        this.attributes = attributes;
+    }
+
+    /**
+     * @return Whether the message is a record that is older than what the device's asset already holds, which is only
+     * stored as datapoints.
+     */
+    public boolean isHistorical() {
+        return historical;
+    }
+
+    public void setHistorical(boolean historical) {
+        this.historical = historical;
+    }
+
+    /**
+     * @return The messages of the records in the body, in the order in which they are processed, or {@code null} if
+     * the message holds a single record.
+     */
+    public List<TeltonikaIngestMessage> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(List<TeltonikaIngestMessage> batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * @return A message for a single record of the body of this message, which has the device and asset of this message.
+     */
+    public TeltonikaIngestMessage newRecordMessage(ITeltonikaPayload payload) {
+        TeltonikaIngestMessage message = new TeltonikaIngestMessage(realm, clientId, imei, (ByteBuf) null, receivedAt);
+        message.assetId = assetId;
+        message.asset = asset;
+        message.modelNumber = modelNumber;
+        message.payload = payload;
+        message.replayed = replayed;
+        return message;
+    }
+
+    /**
+     * Releases the body of the message. Calling this more than once has no effect.
+     */
+    public void release() {
+        ByteBuf body = this.body;
+        this.body = null;
+        if (body != null && body.refCnt() > 0) {
+            body.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaIngestMessage{" +
+                "realm='" + realm + '\'' +
+                ", clientId='" + clientId + '\'' +
+                ", imei='" + imei + '\'' +
+                ", receivedAt=" + receivedAt +
+                '}';
+    }
+
+    /**
+     * @return The entry of the message in the {@link TeltonikaIngestJournal}, or {@code null} if it is not journaled
+     * or its entry was already committed.
+     */
+    public TeltonikaIngestJournal.Entry getJournalEntry() {
+        return journalEntry;
+    }
+
+    public void setJournalEntry(TeltonikaIngestJournal.Entry journalEntry) {
+        this.journalEntry = journalEntry;
+    }
+
+    /**
+     * @return Whether the message was read back from the {@link TeltonikaIngestJournal}, after newer messages of the
+     * device may already have been processed.
+     */
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    public void setReplayed(boolean replayed) {
+        this.replayed = replayed;
+    }
+
+    /**
+     * @return How the pipeline finished with the message, or {@code null} if it did not finish with it yet.
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * @return Called with whether the message was stored once the writers stored it, or once the pipeline is done with
+     * it otherwise; {@code null} if nothing waits for it, or it was already called.
+     */
+    public Consumer<Boolean> getStoredListener() {
+        return storedListener;
+    }
+
+    public void setStoredListener(Consumer<Boolean> storedListener) {
+        this.storedListener = storedListener;
+    }
+}
@@ -0,0 +1,528 @@
+package telematics.teltonika.ingest;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getBoolean;
+import static org.openremote.model.util.MapAccess.getInteger;
+import static org.openremote.model.util.MapAccess.getLong;
+
+/**
+ * Processes the messages received from Teltonika devices outside the threads of the MQTT broker.
+ * <p>
+ * Messages are processed by a fixed list of stages (for the MQTT handler: decode, map and persist), which are run one
+ * after the other for every message. To keep the messages of a device in order while still processing many devices in
+ * parallel, messages are striped over a number of bounded queues by their IMEI, and every queue is consumed by exactly
+ * one worker.
+ * <p>
+ * When the queue of a stripe is full, {@link #submit(TeltonikaIngestMessage)} blocks the caller for at most the
+ * configured offer timeout before rejecting the message, which slows down a caller that can wait instead of exhausting
+ * the heap. Callers on the thread of a connection that serves many devices, such as the MQTT broker or a Netty event
+ * loop, must not wait, and use {@link #submit(TeltonikaIngestMessage, long)} with a timeout of {@code 0} instead. A
+ * warning is logged whenever a stripe crosses its high watermark, and {@link #isSaturated()} can be used to check for
+ * it.
+ * <p>
+ * Messages are scheduled by their {@link TeltonikaIngestMessage.Priority}:
+ * <ul>
+ * <li>Panic messages are queued in the express lane of their stripe, which its worker always takes from first, so that
+ * they do not wait behind the periodic records that are queued before them. As they can overtake older records of the
+ * same device, those are then treated as historical records by the stages. When the express lane is full, they are
+ * queued like high priority messages.</li>
+ * <li>High priority messages are never shed; as low priority messages are shed from the high watermark on, the
+ * capacity above it is kept for them.</li>
+ * <li>Low priority messages are sampled once their stripe reaches the sample watermark, keeping only one of every
+ * sample interval messages, and shed altogether from the high watermark on. Shed messages are counted per realm,
+ * see {@link #getShedCounts()}.</li>
+ * </ul>
+ * <p>
+ * When the pipeline is {@link #stop stopped}, it stops accepting messages and the workers drain their queues until the
+ * drain timeout expires.
+ */
+public class TeltonikaIngestPipeline {
+
+    /**
+     * A single stage of the pipeline.
+     */
+    @FunctionalInterface
+    public interface Stage {
+        /**
+         * @return {@code false} if the message should not be passed on to the next stage.
+         */
+        boolean process(TeltonikaIngestMessage message) throws Exception;
+    }
+
+    public static class Options {
+        public static final String OR_TELTONIKA_INGEST_STRIPES = "OR_TELTONIKA_INGEST_STRIPES";
+        public static final int OR_TELTONIKA_INGEST_STRIPES_DEFAULT = 16;
+        public static final String OR_TELTONIKA_INGEST_QUEUE_CAPACITY = "OR_TELTONIKA_INGEST_QUEUE_CAPACITY";
+        public static final int OR_TELTONIKA_INGEST_QUEUE_CAPACITY_DEFAULT = 1000;
+        public static final String OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS = "OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS";
+        public static final long OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS_DEFAULT = 100;
+        public static final String OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS = "OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS";
+        public static final long OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS_DEFAULT = 10000;
+        public static final String OR_TELTONIKA_INGEST_VIRTUAL_THREADS = "OR_TELTONIKA_INGEST_VIRTUAL_THREADS";
+        public static final boolean OR_TELTONIKA_INGEST_VIRTUAL_THREADS_DEFAULT = true;
+        public static final String OR_TELTONIKA_INGEST_EXPRESS_CAPACITY = "OR_TELTONIKA_INGEST_EXPRESS_CAPACITY";
+        public static final int OR_TELTONIKA_INGEST_EXPRESS_CAPACITY_DEFAULT = 100;
+        public static final String OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT = "OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT";
+        public static final int OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT_DEFAULT = 50;
+        public static final String OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT = "OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT";
+        public static final int OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT_DEFAULT = 80;
+        public static final String OR_TELTONIKA_INGEST_SAMPLE_INTERVAL = "OR_TELTONIKA_INGEST_SAMPLE_INTERVAL";
+        public static final int OR_TELTONIKA_INGEST_SAMPLE_INTERVAL_DEFAULT = 4;
+
+        protected int stripes = OR_TELTONIKA_INGEST_STRIPES_DEFAULT;
+        protected int queueCapacity = OR_TELTONIKA_INGEST_QUEUE_CAPACITY_DEFAULT;
+        protected long offerTimeoutMillis = OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS_DEFAULT;
+        protected long drainTimeoutMillis = OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS_DEFAULT;
+        protected boolean virtualThreads = OR_TELTONIKA_INGEST_VIRTUAL_THREADS_DEFAULT;
+        protected int expressCapacity = OR_TELTONIKA_INGEST_EXPRESS_CAPACITY_DEFAULT;
+        protected int sampleWatermarkPercent = OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT_DEFAULT;
+        protected int highWatermarkPercent = OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT_DEFAULT;
+        protected int sampleInterval = OR_TELTONIKA_INGEST_SAMPLE_INTERVAL_DEFAULT;
+
+        public static Options fromConfig(Map<String, String> config) {
+            return new Options()
+                    .setStripes(getInteger(config, OR_TELTONIKA_INGEST_STRIPES, OR_TELTONIKA_INGEST_STRIPES_DEFAULT))
+                    .setQueueCapacity(getInteger(config, OR_TELTONIKA_INGEST_QUEUE_CAPACITY, OR_TELTONIKA_INGEST_QUEUE_CAPACITY_DEFAULT))
+                    .setOfferTimeoutMillis(getLong(config, OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS, OR_TELTONIKA_INGEST_OFFER_TIMEOUT_MILLIS_DEFAULT))
+                    .setDrainTimeoutMillis(getLong(config, OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS, OR_TELTONIKA_INGEST_DRAIN_TIMEOUT_MILLIS_DEFAULT))
+                    .setVirtualThreads(getBoolean(config, OR_TELTONIKA_INGEST_VIRTUAL_THREADS, OR_TELTONIKA_INGEST_VIRTUAL_THREADS_DEFAULT))
+                    .setExpressCapacity(getInteger(config, OR_TELTONIKA_INGEST_EXPRESS_CAPACITY, OR_TELTONIKA_INGEST_EXPRESS_CAPACITY_DEFAULT))
+                    .setSampleWatermarkPercent(getInteger(config, OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT, OR_TELTONIKA_INGEST_SAMPLE_WATERMARK_PERCENT_DEFAULT))
+                    .setHighWatermarkPercent(getInteger(config, OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT, OR_TELTONIKA_INGEST_HIGH_WATERMARK_PERCENT_DEFAULT))
+                    .setSampleInterval(getInteger(config, OR_TELTONIKA_INGEST_SAMPLE_INTERVAL, OR_TELTONIKA_INGEST_SAMPLE_INTERVAL_DEFAULT));
+        }
+
+        public Options setStripes(int stripes) {
+            this.stripes = Math.max(1, stripes);
+            return this;
+        }
+
+        public Options setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = Math.max(1, queueCapacity);
+            return this;
+        }
+
+        public Options setOfferTimeoutMillis(long offerTimeoutMillis) {
+            this.offerTimeoutMillis = Math.max(0, offerTimeoutMillis);
+            return this;
+        }
+
+        public Options setDrainTimeoutMillis(long drainTimeoutMillis) {
+            this.drainTimeoutMillis = Math.max(0, drainTimeoutMillis);
+            return this;
+        }
+
+        public Options setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Options setExpressCapacity(int expressCapacity) {
+            this.expressCapacity = Math.max(1, expressCapacity);
+            return this;
+        }
+
+        /**
+         * The percentage of the queue capacity from which low priority messages are sampled.
+         */
+        public Options setSampleWatermarkPercent(int sampleWatermarkPercent) {
+            this.sampleWatermarkPercent = Math.clamp(sampleWatermarkPercent, 0, 100);
+            return this;
+        }
+
+        /**
+         * The percentage of the queue capacity from which low priority messages are shed, and the stripe is saturated.
+         */
+        public Options setHighWatermarkPercent(int highWatermarkPercent) {
+            this.highWatermarkPercent = Math.clamp(highWatermarkPercent, 1, 100);
+            return this;
+        }
+
+        /**
+         * Keeps one of every {@code sampleInterval} low priority messages above the sample watermark; {@code 1} keeps
+         * all of them.
+         */
+        public Options setSampleInterval(int sampleInterval) {
+            this.sampleInterval = Math.max(1, sampleInterval);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "stripes=" + stripes +
+                    ", queueCapacity=" + queueCapacity +
+                    ", offerTimeoutMillis=" + offerTimeoutMillis +
+                    ", drainTimeoutMillis=" + drainTimeoutMillis +
+                    ", virtualThreads=" + virtualThreads +
+                    ", expressCapacity=" + expressCapacity +
+                    ", sampleWatermarkPercent=" + sampleWatermarkPercent +
+                    ", highWatermarkPercent=" + highWatermarkPercent +
+                    ", sampleInterval=" + sampleInterval +
+                    '}';
+        }
+    }
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaIngestPipeline.class);
+    private static final long POLL_MILLIS = 100;
+
+    protected final Options options;
+    protected final List<String> stageNames = new ArrayList<>();
+    protected final List<Stage> stages = new ArrayList<>();
+    protected final List<LongAdder> stageNanos = new ArrayList<>();
+    protected final BlockingQueue<TeltonikaIngestMessage>[] queues;
+    protected final BlockingQueue<TeltonikaIngestMessage>[] expressQueues;
+    /**
+     * The amount of messages in both queues of every stripe, which its worker waits on.
+     */
+    protected final Semaphore[] available;
+    protected final Thread[] workers;
+    protected final int sampleWatermark;
+    protected final int highWatermark;
+    protected final int lowWatermark;
+    protected final AtomicIntegerArray saturated;
+    protected final AtomicLongArray sampled;
+    protected Consumer<TeltonikaIngestMessage> processedListener;
+
+    protected final LongAdder submitted = new LongAdder();
+    protected final LongAdder rejected = new LongAdder();
+    protected final LongAdder processed = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected final LongAdder expressed = new LongAdder();
+    /**
+     * Maps realm to the amount of low priority messages that were shed.
+     */
+    protected final Map<String, LongAdder> shed = new ConcurrentHashMap<>();
+
+    protected volatile boolean accepting;
+
+    @SuppressWarnings("unchecked")
+    public TeltonikaIngestPipeline(Options options) {
+        this.options = options;
+        this.queues = new BlockingQueue[options.stripes];
+        this.expressQueues = new BlockingQueue[options.stripes];
+        this.available = new Semaphore[options.stripes];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayBlockingQueue<>(options.queueCapacity);
+            expressQueues[i] = new ArrayBlockingQueue<>(options.expressCapacity);
+            available[i] = new Semaphore(0);
+        }
+        this.workers = new Thread[options.stripes];
+        this.sampleWatermark = options.queueCapacity * options.sampleWatermarkPercent / 100;
+        this.highWatermark = Math.max(1, options.queueCapacity * options.highWatermarkPercent / 100);
+        this.lowWatermark = Math.min(options.queueCapacity / 2, highWatermark - 1);
+        this.saturated = new AtomicIntegerArray(options.stripes);
+        this.sampled = new AtomicLongArray(options.stripes);
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline; stages can only be added before the pipeline is started.
+     */
+    public TeltonikaIngestPipeline addStage(String name, Stage stage) {
+        if (accepting) {
+            throw new IllegalStateException("Cannot add stages to a running pipeline");
+        }
+        stageNames.add(name);
+        stages.add(stage);
+        stageNanos.add(new LongAdder());
+        return this;
+    }
+
+    /**
+     * Sets the listener that is called for every message that went through the stages, whether it succeeded or not,
+     * and for every message that was shed, before it is released; the {@link TeltonikaIngestMessage#getOutcome()
+     * outcome} of the message tells these apart. Messages that are discarded when the pipeline stops are not passed to
+     * it. It can only be set before the pipeline is started.
+     */
+    public TeltonikaIngestPipeline onProcessed(Consumer<TeltonikaIngestMessage> processedListener) {
+        if (accepting) {
+            throw new IllegalStateException("Cannot set the listener of a running pipeline");
+        }
+        this.processedListener = processedListener;
+        return this;
+    }
+
+    public synchronized void start() {
+        if (accepting) {
+            return;
+        }
+        // Workers exit once they find their queue empty while the pipeline is not accepting.
+        accepting = true;
+        for (int i = 0; i < workers.length; i++) {
+            int stripe = i;
+            String name = "teltonika-ingest-" + i;
+            workers[i] = options.virtualThreads
+                    ? Thread.ofVirtual().name(name).start(() -> work(stripe))
+                    : Thread.ofPlatform().name(name).daemon().start(() -> work(stripe));
+        }
+        LOG.info("Started Teltonika ingest pipeline " + stageNames + " with " + options);
+    }
+
+    /**
+     * Stops accepting messages, and waits for the workers to drain their queues for at most the drain timeout.
+     * Messages that could not be processed in time are discarded.
+     */
+    public synchronized void stop() {
+        if (!accepting) {
+            return;
+        }
+        accepting = false;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.drainTimeoutMillis);
+        for (Thread worker : workers) {
+            try {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int discarded = 0;
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i].isAlive()) {
+                workers[i].interrupt();
+            }
+            TeltonikaIngestMessage message;
+            while ((message = expressQueues[i].poll()) != null || (message = queues[i].poll()) != null) {
+                message.release();
+                discarded++;
+            }
+        }
+        if (discarded > 0) {
+            LOG.warning("Discarded " + discarded + " Teltonika messages that could not be processed within " + options.drainTimeoutMillis + "ms");
+        }
+        LOG.info("Stopped Teltonika ingest pipeline: " + this);
+    }
+
+    /**
+     * Queues the message on the stripe of its IMEI according to its priority, blocking for at most the configured offer
+     * timeout when that stripe is full. A low priority message can be shed instead, which releases it.
+     *
+     * @return {@code false} if the message was rejected; the caller is then still responsible for releasing it.
+     */
+    public boolean submit(TeltonikaIngestMessage message) {
+        return submit(message, options.offerTimeoutMillis);
+    }
+
+    /**
+     * Queues the message like {@link #submit(TeltonikaIngestMessage)}, blocking for at most {@code offerTimeoutMillis}
+     * when the stripe is full; with a timeout of {@code 0}, a message for a full stripe is rejected right away.
+     */
+    public boolean submit(TeltonikaIngestMessage message, long offerTimeoutMillis) {
+        if (!accepting) {
+            rejected.increment();
+            return false;
+        }
+        int stripe = stripeOf(message.getImei());
+        if (message.getPriority() == TeltonikaIngestMessage.Priority.PANIC && expressQueues[stripe].offer(message)) {
+            expressed.increment();
+            submitted.increment();
+            available[stripe].release();
+            return true;
+        }
+        BlockingQueue<TeltonikaIngestMessage> queue = queues[stripe];
+        if (message.getPriority() == TeltonikaIngestMessage.Priority.LOW && isShed(stripe, queue.size())) {
+            shed.computeIfAbsent(message.getRealm(), realm -> new LongAdder()).increment();
+            message.setOutcome(TeltonikaIngestMessage.Outcome.SHED);
+            complete(message);
+            return true;
+        }
+        boolean accepted;
+        try {
+            accepted = offerTimeoutMillis > 0
+                    ? queue.offer(message, offerTimeoutMillis, TimeUnit.MILLISECONDS)
+                    : queue.offer(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        available[stripe].release();
+        if (queue.size() >= highWatermark && saturated.compareAndSet(stripe, 0, 1)) {
+            LOG.warning("Teltonika ingest stripe " + stripe + " is above " + highWatermark + " queued messages, low priority messages are shed");
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether a low priority message is shed from a stripe with {@code depth} queued messages.
+     */
+    protected boolean isShed(int stripe, int depth) {
+        if (depth >= highWatermark) {
+            return true;
+        }
+        return depth >= sampleWatermark && sampled.getAndIncrement(stripe) % options.sampleInterval != 0;
+    }
+
+    /**
+     * @return {@code true} if any of the stripes is above its high watermark.
+     */
+    public boolean isSaturated() {
+        for (int i = 0; i < saturated.length(); i++) {
+            if (saturated.get(i) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isRunning() {
+        return accepting;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (int i = 0; i < queues.length; i++) {
+            depth += queues[i].size() + expressQueues[i].size();
+        }
+        return depth;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The amount of panic messages that were queued in the express lane.
+     */
+    public long getExpressCount() {
+        return expressed.sum();
+    }
+
+    public long getShedCount() {
+        long count = 0;
+        for (LongAdder adder : shed.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The amount of low priority messages that were shed, by realm.
+     */
+    public Map<String, Long> getShedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        shed.forEach((realm, adder) -> counts.put(realm, adder.sum()));
+        return counts;
+    }
+
+    protected int stripeOf(String imei) {
+        int hash = imei != null ? imei.hashCode() : 0;
+        return Math.floorMod(hash ^ (hash >>> 16), queues.length);
+    }
+
+    protected void work(int stripe) {
+        BlockingQueue<TeltonikaIngestMessage> queue = queues[stripe];
+        BlockingQueue<TeltonikaIngestMessage> expressQueue = expressQueues[stripe];
+        while (true) {
+            try {
+                if (!available[stripe].tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (!accepting) {
+                        return;
+                    }
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Every permit is a message in one of the queues, and this is their only consumer
+            TeltonikaIngestMessage message = expressQueue.poll();
+            if (message == null) {
+                message = queue.poll();
+            }
+            process(message);
+            if (saturated.get(stripe) != 0 && queue.size() <= lowWatermark && saturated.compareAndSet(stripe, 1, 0)) {
+                LOG.info("Teltonika ingest stripe " + stripe + " is back below " + lowWatermark + " queued messages");
+            }
+        }
+    }
+
+    protected void process(TeltonikaIngestMessage message) {
+        TeltonikaIngestMessage.Outcome outcome = TeltonikaIngestMessage.Outcome.PROCESSED;
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                long start = System.nanoTime();
+                boolean proceed = stages.get(i).process(message);
+                stageNanos.get(i).add(System.nanoTime() - start);
+                if (!proceed) {
+                    outcome = TeltonikaIngestMessage.Outcome.STOPPED;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            outcome = TeltonikaIngestMessage.Outcome.FAILED;
+            failed.increment();
+            LOG.log(Level.WARNING, "Failed to process Teltonika message " + message, e);
+        } finally {
+            message.setOutcome(outcome);
+            complete(message);
+            processed.increment();
+        }
+    }
+
+    protected void complete(TeltonikaIngestMessage message) {
+        if (processedListener != null) {
+            try {
+                processedListener.accept(message);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Failed to notify the processing of Teltonika message " + message, e);
+            }
+        }
+        message.release();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TeltonikaIngestPipeline{");
+        sb.append("submitted=").append(submitted.sum());
+        sb.append(", rejected=").append(rejected.sum());
+        sb.append(", processed=").append(processed.sum());
+        sb.append(", failed=").append(failed.sum());
+        sb.append(", express=").append(expressed.sum());
+        sb.append(", shed=").append(getShedCounts());
+        sb.append(", queueDepth=").append(getQueueDepth());
+        long count = Math.max(1, processed.sum());
+        for (int i = 0; i < stages.size(); i++) {
+            sb.append(", ").append(stageNames.get(i)).append("AvgMicros=").append(stageNanos.get(i).sum() / count / 1000);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,139 @@
+package telematics.teltonika.registry;
+
+import org.openremote.model.attribute.Attribute;
+import telematics.teltonika.TeltonikaParameterIndex;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Caches which attributes the asset of every Teltonika device has, so that the attributes of a payload can be split into
+ * new and existing ones without loading the asset.
+ * <p>
+ * The schema of an asset is a bitset over the attribute ordinals of the {@link TeltonikaParameterIndex} of the device's
+ * model, plus a small set for the names of attributes that are not part of the index, such as the IMEI. Those sets are
+ * the same for most assets, so they are shared. Schemas are recorded from loaded and merged assets and from asset
+ * events; an asset without a schema is unknown, and has to be loaded. When the configuration is refreshed, a schema is
+ * converted to the ordinals of the new index the first time it is used.
+ */
+public class TeltonikaAttributeSchemaCache {
+
+    /**
+     * The attribute names of a single asset, which is not modified once it is built.
+     */
+    protected static final class Schema {
+        protected final TeltonikaParameterIndex index;
+        protected final BitSet ordinals;
+        protected final Set<String> overflow;
+
+        protected Schema(TeltonikaParameterIndex index, BitSet ordinals, Set<String> overflow) {
+            this.index = index;
+            this.ordinals = ordinals;
+            this.overflow = overflow;
+        }
+
+        protected boolean has(String attributeName) {
+            int ordinal = index.getOrdinal(attributeName);
+            return ordinal >= 0 ? ordinals.get(ordinal) : overflow.contains(attributeName);
+        }
+
+        protected void forEach(Consumer<String> action) {
+            for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1)) {
+                action.accept(index.getAttributeName(ordinal));
+            }
+            overflow.forEach(action);
+        }
+    }
+
+    /**
+     * Builds a {@link Schema} over the ordinals of an index.
+     */
+    protected final class SchemaBuilder {
+        protected final TeltonikaParameterIndex index;
+        protected final BitSet ordinals;
+        protected final Set<String> overflow = new HashSet<>();
+
+        protected SchemaBuilder(TeltonikaParameterIndex index) {
+            this.index = index;
+            this.ordinals = new BitSet(index.getOrdinalCount());
+        }
+
+        protected SchemaBuilder add(String attributeName) {
+            int ordinal = index.getOrdinal(attributeName);
+            if (ordinal >= 0) {
+                ordinals.set(ordinal);
+            } else {
+                overflow.add(attributeName);
+            }
+            return this;
+        }
+
+        protected Schema build() {
+            Set<String> shared = overflowSets.computeIfAbsent(Set.copyOf(overflow), names -> names);
+            return new Schema(index, ordinals, shared);
+        }
+    }
+
+    /**
+     * Maps asset ID to the schema of the asset. Schemas are replaced as a whole, so that they can be read without a lock.
+     */
+    protected final Map<String, Schema> schemas = new ConcurrentHashMap<>();
+    /**
+     * The distinct sets of attribute names that are not part of an index, which are shared by the schemas.
+     */
+    protected final Map<Set<String>, Set<String>> overflowSets = new ConcurrentHashMap<>();
+
+    /**
+     * Records all attributes that the asset has, replacing what was known about it.
+     */
+    public void record(String assetId, Iterable<? extends Attribute<?>> attributes, TeltonikaParameterIndex index) {
+        SchemaBuilder builder = new SchemaBuilder(index);
+        attributes.forEach(attribute -> builder.add(attribute.getName()));
+        schemas.put(assetId, builder.build());
+    }
+
+    /**
+     * @return Whether the schema of the asset is known and has all the given attributes; {@code false} means that the
+     * asset has to be loaded to find out.
+     */
+    public boolean hasAll(String assetId, Iterable<? extends Attribute<?>> attributes, TeltonikaParameterIndex index) {
+        Schema schema = schemas.get(assetId);
+        if (schema == null) {
+            return false;
+        }
+        if (schema.index != index) {
+            SchemaBuilder builder = new SchemaBuilder(index);
+            schema.forEach(builder::add);
+            schema = builder.build();
+            schemas.put(assetId, schema);
+        }
+        for (Attribute<?> attribute : attributes) {
+            if (!schema.has(attribute.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the schema of a deleted asset.
+     */
+    public void remove(String assetId) {
+        schemas.remove(assetId);
+    }
+
+    public int size() {
+        return schemas.size();
+    }
+
+    /**
+     * @return The amount of distinct sets of attribute names that are not part of an index.
+     */
+    public int getOverflowSetCount() {
+        return overflowSets.size();
+    }
+}
@@ -0,0 +1,93 @@
+package telematics.teltonika.registry;
+
+/**
+ * A snapshot of the record of a single device in the {@link TeltonikaDeviceRegistry}.
+ */
+public class TeltonikaDevice {
+
+    protected final long imei;
+    protected final String assetId;
+    protected final String modelNumber;
+    protected final String realm;
+    protected final String clientId;
+    protected final String commandTopic;
+    protected final boolean commandCapable;
+    protected final long lastContact;
+
+    public TeltonikaDevice(long imei, String assetId, String modelNumber, String realm, String clientId, String commandTopic, boolean commandCapable, long lastContact) {
+        this.imei = imei;
+        this.assetId = assetId;
+        this.modelNumber = modelNumber;
+        this.realm = realm;
+        this.clientId = clientId;
+        this.commandTopic = commandTopic;
+        this.commandCapable = commandCapable;
+        this.lastContact = lastContact;
+    }
+
+    public long getImei() {
+        return imei;
+    }
+
+    /**
+     * @return The ID of the device's asset, or {@code null} if the device has subscribed but has no asset yet.
+     */
+    public String getAssetId() {
+        return assetId;
+    }
+
+    public String getModelNumber() {
+        return modelNumber;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * @return The MQTT client ID of the device's current session, or {@code null} if the device is not subscribed.
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return The topic that commands for the device are published to, or {@code null} if the device is not subscribed.
+     */
+    public String getCommandTopic() {
+        return commandTopic;
+    }
+
+    /**
+     * @return Whether the device's asset has the attribute that commands for the device are written to.
+     */
+    public boolean isCommandCapable() {
+        return commandCapable;
+    }
+
+    /**
+     * @return The device time of the latest record that was applied to the device's asset, in milliseconds since the
+     * epoch, or {@code 0} if it is unknown.
+     */
+    public long getLastContact() {
+        return lastContact;
+    }
+
+    public boolean isSubscribed() {
+        return commandTopic != null;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaDevice{" +
+                "imei=" + imei +
+                ", assetId='" + assetId + '\'' +
+                ", modelNumber='" + modelNumber + '\'' +
+                ", realm='" + realm + '\'' +
+                ", clientId='" + clientId + '\'' +
+                ", commandTopic='" + commandTopic + '\'' +
+                ", commandCapable=" + commandCapable +
+                ", lastContact=" + lastContact +
+                '}';
+    }
+}
@@ -0,0 +1,556 @@
+package telematics.teltonika.registry;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory registry of the known Teltonika devices, keyed by their IMEI as a {@code long}.
+ * <p>
+ * For every device, the registry holds the ID of its asset, its model number and realm, whether its asset can receive
+ * commands, the time of its latest record that was applied to its asset, and the state of its MQTT session (client ID
+ * and command topic while it is subscribed). It allows the
+ * ingest path to resolve a device without querying the database, and replaces the per-connection map of subscribed
+ * devices. An index from asset ID to IMEI allows attribute and asset events to be matched to a device with a single
+ * hash lookup.
+ * <p>
+ * The registry is an open-addressing hash table with linear probing over parallel arrays, so that a device costs a
+ * slot in a few arrays instead of a map entry, a boxed key and a record object. The asset ID index is a second
+ * open-addressing table of the same capacity in the same {@link Table}, which holds the IMEIs as {@code long}s. Both
+ * remove slots by shifting the following slots of their probe sequence back, so that no tombstones are needed. Model
+ * numbers and realms are shared between devices. Lookups are lock-free optimistic reads that only fall back to a read
+ * lock when they race with a write; writes, which happen on first contact, subscription changes and asset events, take
+ * the write lock. The last contact, which is updated for every record, is the exception: it is advanced with a
+ * compare-and-set of its slot under an optimistic read, see {@link #updateLastContact}.
+ */
+public class TeltonikaDeviceRegistry {
+
+    protected static final long EMPTY = 0L;
+    protected static final int MIN_CAPACITY = 16;
+    protected static final float LOAD_FACTOR = 0.7f;
+
+    /**
+     * The slots of the table; replaced as a whole when the table is resized, so that an optimistic read always sees
+     * arrays of the same size.
+     */
+    protected static final class Table {
+        final int mask;
+        final long[] keys;
+        final String[] assetIds;
+        final String[] modelNumbers;
+        final String[] realms;
+        final String[] clientIds;
+        final String[] commandTopics;
+        final boolean[] commandCapable;
+        final AtomicLongArray lastContacts;
+        /**
+         * The asset ID index, whose slots are independent of those of the devices.
+         */
+        final String[] indexedAssetIds;
+        final long[] indexedImeis;
+
+        Table(int capacity) {
+            mask = capacity - 1;
+            keys = new long[capacity];
+            assetIds = new String[capacity];
+            modelNumbers = new String[capacity];
+            realms = new String[capacity];
+            clientIds = new String[capacity];
+            commandTopics = new String[capacity];
+            commandCapable = new boolean[capacity];
+            lastContacts = new AtomicLongArray(capacity);
+            indexedAssetIds = new String[capacity];
+            indexedImeis = new long[capacity];
+        }
+    }
+
+    protected final StampedLock lock = new StampedLock();
+    protected final Map<String, String> symbols = new ConcurrentHashMap<>();
+    protected volatile Table table = new Table(MIN_CAPACITY);
+    protected int size;
+    protected int subscribedCount;
+
+    /**
+     * Parses an IMEI without throwing for invalid values.
+     *
+     * @return The IMEI, or {@code -1} if the value is not a positive decimal number of at most 18 digits.
+     */
+    public static long parseImei(String imei) {
+        if (imei == null || imei.isEmpty() || imei.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < imei.length(); i++) {
+            char c = imei.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value > 0 ? value : -1;
+    }
+
+    /**
+     * @return A snapshot of the device's record, or {@code null} if the device is unknown.
+     */
+    public TeltonikaDevice get(long imei) {
+        long stamp = lock.tryOptimisticRead();
+        TeltonikaDevice device = read(table, imei);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                device = read(table, imei);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return device;
+    }
+
+    /**
+     * @return A snapshot of the record of the device with the given asset, or {@code null} if no device has the asset.
+     */
+    public TeltonikaDevice getByAssetId(String assetId) {
+        long imei = findImei(assetId);
+        if (imei < 0) {
+            return null;
+        }
+        TeltonikaDevice device = get(imei);
+        return device != null && assetId.equals(device.getAssetId()) ? device : null;
+    }
+
+    public boolean isSubscribed(long imei) {
+        TeltonikaDevice device = get(imei);
+        return device != null && device.isSubscribed();
+    }
+
+    /**
+     * Adds the device's asset to the registry, or updates it; the session state of the device is kept.
+     *
+     * @param commandCapable Whether the asset has the attribute that commands for the device are written to.
+     */
+    public void register(long imei, String assetId, String modelNumber, String realm, boolean commandCapable) {
+        Objects.requireNonNull(assetId, "Asset ID must not be null");
+        long stamp = lock.writeLock();
+        try {
+            int index = insert(imei);
+            Table table = this.table;
+            String previousAssetId = table.assetIds[index];
+            if (previousAssetId != null && !previousAssetId.equals(assetId)) {
+                unindexAssetId(table, previousAssetId, imei);
+            }
+            table.assetIds[index] = assetId;
+            table.modelNumbers[index] = symbol(modelNumber);
+            table.realms[index] = symbol(realm);
+            table.commandCapable[index] = commandCapable;
+            indexAssetId(table, assetId, imei);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records that the device has subscribed; the device does not need to have an asset yet.
+     */
+    public void subscribed(long imei, String realm, String clientId, String commandTopic) {
+        long stamp = lock.writeLock();
+        try {
+            int index = insert(imei);
+            Table table = this.table;
+            if (table.commandTopics[index] == null) {
+                subscribedCount++;
+            }
+            if (table.realms[index] == null) {
+                table.realms[index] = symbol(realm);
+            }
+            table.clientIds[index] = clientId;
+            table.commandTopics[index] = commandTopic;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records that the device has unsubscribed, and forgets the device if it has no asset.
+     */
+    public void unsubscribed(long imei) {
+        long stamp = lock.writeLock();
+        try {
+            Table table = this.table;
+            int index = indexOf(table, imei);
+            if (index < 0) {
+                return;
+            }
+            if (table.commandTopics[index] != null) {
+                subscribedCount--;
+            }
+            if (table.assetIds[index] == null) {
+                removeAt(table, index);
+            } else {
+                table.clientIds[index] = null;
+                table.commandTopics[index] = null;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forgets the device's asset, for example because it was deleted; the session state of a subscribed device is kept.
+     *
+     * @return {@code true} if the device was known.
+     */
+    public boolean unregister(long imei) {
+        long stamp = lock.writeLock();
+        try {
+            Table table = this.table;
+            int index = indexOf(table, imei);
+            if (index < 0) {
+                return false;
+            }
+            if (table.commandTopics[index] == null) {
+                removeAt(table, index);
+            } else {
+                if (table.assetIds[index] != null) {
+                    unindexAssetId(table, table.assetIds[index], imei);
+                }
+                table.assetIds[index] = null;
+                table.modelNumbers[index] = null;
+                table.commandCapable[index] = false;
+                table.lastContacts.set(index, 0);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Records the time of a record that was applied to the device's asset; the last contact only ever moves forward.
+     * Devices without an asset are ignored.
+     * <p>
+     * As this happens for every record, it does not take the write lock: the slot of the device is found with an
+     * optimistic read and advanced with a compare-and-set, which concurrent updates of the same device retry. Only if a
+     * write raced with it, which could have moved the device to another slot or another table, it is repeated under the
+     * read lock, which keeps writers out but not other updates. A write could have given the slot to another device
+     * that had the same last contact, so the value of a slot that no longer belongs to the device is restored first.
+     */
+    public void updateLastContact(long imei, long timestamp) {
+        long stamp = lock.tryOptimisticRead();
+        Table table = this.table;
+        int index = indexOf(table, imei);
+        long previous = index >= 0 && table.assetIds[index] != null ? advanceLastContact(table, index, timestamp) : -1;
+        if (lock.validate(stamp)) {
+            return;
+        }
+        stamp = lock.readLock();
+        try {
+            if (previous >= 0 && (table.keys[index] != imei || table.assetIds[index] == null)) {
+                table.lastContacts.compareAndSet(index, timestamp, previous);
+            }
+            Table current = this.table;
+            int currentIndex = indexOf(current, imei);
+            if (currentIndex >= 0 && current.assetIds[currentIndex] != null) {
+                advanceLastContact(current, currentIndex, timestamp);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The IMEI of the device with the given asset, or {@code -1} if no device has the asset.
+     */
+    public long findImei(String assetId) {
+        if (assetId == null) {
+            return -1;
+        }
+        long stamp = lock.tryOptimisticRead();
+        long imei = readImei(table, assetId);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                imei = readImei(table, assetId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return imei;
+    }
+
+    /**
+     * @return The amount of devices in the registry.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getSubscribedCount() {
+        long stamp = lock.readLock();
+        try {
+            return subscribedCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = new Table(MIN_CAPACITY);
+            size = 0;
+            subscribedCount = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    protected String symbol(String value) {
+        return value != null ? symbols.computeIfAbsent(value, v -> v) : null;
+    }
+
+    protected static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    protected static int hash(String assetId) {
+        int h = assetId.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The index of the key, or a negative value if the key is not in the table.
+     */
+    protected static int indexOf(Table table, long key) {
+        int index = hash(key) & table.mask;
+        // Bounded, so that an optimistic read that races with a write always terminates
+        for (int probes = 0; probes <= table.mask; probes++) {
+            long current = table.keys[index];
+            if (current == key) {
+                return index;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+            index = (index + 1) & table.mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the last contact of the slot forward to the timestamp, unless it is newer already.
+     *
+     * @return The last contact it replaced, or {@code -1} if it was not replaced.
+     */
+    protected static long advanceLastContact(Table table, int index, long timestamp) {
+        while (true) {
+            long current = table.lastContacts.get(index);
+            if (timestamp <= current) {
+                return -1;
+            }
+            if (table.lastContacts.compareAndSet(index, current, timestamp)) {
+                return current;
+            }
+        }
+    }
+
+    protected static TeltonikaDevice read(Table table, long key) {
+        int index = indexOf(table, key);
+        if (index < 0) {
+            return null;
+        }
+        return new TeltonikaDevice(
+                key,
+                table.assetIds[index],
+                table.modelNumbers[index],
+                table.realms[index],
+                table.clientIds[index],
+                table.commandTopics[index],
+                table.commandCapable[index],
+                table.lastContacts.get(index)
+        );
+    }
+
+    /**
+     * @return The index of the asset ID in the asset ID index, or a negative value if it is not indexed.
+     */
+    protected static int indexOfAssetId(Table table, String assetId) {
+        int index = hash(assetId) & table.mask;
+        // Bounded, so that an optimistic read that races with a write always terminates
+        for (int probes = 0; probes <= table.mask; probes++) {
+            String current = table.indexedAssetIds[index];
+            if (current == null) {
+                return -1;
+            }
+            if (current.equals(assetId)) {
+                return index;
+            }
+            index = (index + 1) & table.mask;
+        }
+        return -1;
+    }
+
+    protected static long readImei(Table table, String assetId) {
+        int index = indexOfAssetId(table, assetId);
+        return index >= 0 ? table.indexedImeis[index] : -1;
+    }
+
+    /**
+     * Maps the asset ID to the IMEI, replacing the IMEI it was mapped to. The table has a slot for every device, and a
+     * device has at most one asset, so the asset ID index never fills up before the devices do. Must hold the write
+     * lock.
+     */
+    protected static void indexAssetId(Table table, String assetId, long imei) {
+        int index = hash(assetId) & table.mask;
+        while (table.indexedAssetIds[index] != null && !table.indexedAssetIds[index].equals(assetId)) {
+            index = (index + 1) & table.mask;
+        }
+        table.indexedImeis[index] = imei;
+        table.indexedAssetIds[index] = assetId;
+    }
+
+    /**
+     * Removes the asset ID from the asset ID index if it is still mapped to the IMEI, and shifts the following slots of
+     * its probe sequence back. Must hold the write lock.
+     */
+    protected static void unindexAssetId(Table table, String assetId, long imei) {
+        int index = indexOfAssetId(table, assetId);
+        if (index < 0 || table.indexedImeis[index] != imei) {
+            return;
+        }
+        int mask = table.mask;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            String key = table.indexedAssetIds[next];
+            if (key == null) {
+                break;
+            }
+            int ideal = hash(key) & mask;
+            boolean inRange = index < next ? (ideal > index && ideal <= next) : (ideal > index || ideal <= next);
+            if (!inRange) {
+                table.indexedAssetIds[index] = key;
+                table.indexedImeis[index] = table.indexedImeis[next];
+                index = next;
+            }
+        }
+        table.indexedAssetIds[index] = null;
+        table.indexedImeis[index] = 0;
+    }
+
+    /**
+     * Returns the index of the key, adding it if it is not in the table yet. Must hold the write lock.
+     */
+    protected int insert(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("IMEI must not be " + EMPTY);
+        }
+        Table table = this.table;
+        int index = hash(key) & table.mask;
+        while (table.keys[index] != EMPTY) {
+            if (table.keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & table.mask;
+        }
+
+        if (size + 1 > (table.mask + 1) * LOAD_FACTOR) {
+            resize((table.mask + 1) * 2);
+            return insert(key);
+        }
+        table.keys[index] = key;
+        size++;
+        return index;
+    }
+
+    /**
+     * Removes the slot at the index, and shifts the following slots of the probe sequence back so that no tombstones
+     * are needed. Must hold the write lock.
+     */
+    protected void removeAt(Table table, int index) {
+        if (table.assetIds[index] != null) {
+            unindexAssetId(table, table.assetIds[index], table.keys[index]);
+        }
+        int mask = table.mask;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            long key = table.keys[next];
+            if (key == EMPTY) {
+                break;
+            }
+            int ideal = hash(key) & mask;
+            boolean inRange = index < next ? (ideal > index && ideal <= next) : (ideal > index || ideal <= next);
+            if (!inRange) {
+                move(table, next, index);
+                index = next;
+            }
+        }
+        table.keys[index] = EMPTY;
+        table.assetIds[index] = null;
+        table.modelNumbers[index] = null;
+        table.realms[index] = null;
+        table.clientIds[index] = null;
+        table.commandTopics[index] = null;
+        table.commandCapable[index] = false;
+        table.lastContacts.set(index, 0);
+        size--;
+    }
+
+    protected static void move(Table table, int from, int to) {
+        table.keys[to] = table.keys[from];
+        table.assetIds[to] = table.assetIds[from];
+        table.modelNumbers[to] = table.modelNumbers[from];
+        table.realms[to] = table.realms[from];
+        table.clientIds[to] = table.clientIds[from];
+        table.commandTopics[to] = table.commandTopics[from];
+        table.commandCapable[to] = table.commandCapable[from];
+        table.lastContacts.set(to, table.lastContacts.get(from));
+    }
+
+    protected void resize(int capacity) {
+        Table previous = this.table;
+        Table resized = new Table(capacity);
+        for (int i = 0; i <= previous.mask; i++) {
+            long key = previous.keys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            int index = hash(key) & resized.mask;
+            while (resized.keys[index] != EMPTY) {
+                index = (index + 1) & resized.mask;
+            }
+            resized.keys[index] = key;
+            resized.assetIds[index] = previous.assetIds[i];
+            resized.modelNumbers[index] = previous.modelNumbers[i];
+            resized.realms[index] = previous.realms[i];
+            resized.clientIds[index] = previous.clientIds[i];
+            resized.commandTopics[index] = previous.commandTopics[i];
+            resized.commandCapable[index] = previous.commandCapable[i];
+            resized.lastContacts.set(index, previous.lastContacts.get(i));
+        }
+        for (int i = 0; i <= previous.mask; i++) {
+            if (previous.indexedAssetIds[i] != null) {
+                indexAssetId(resized, previous.indexedAssetIds[i], previous.indexedImeis[i]);
+            }
+        }
+        this.table = resized;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaDeviceRegistry{" +
+                "size=" + size() +
+                ", subscribed=" + getSubscribedCount() +
+                ", capacity=" + (table.mask + 1) +
+                '}';
+    }
+}
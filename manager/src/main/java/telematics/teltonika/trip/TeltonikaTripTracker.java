@@ -0,0 +1,230 @@
+package telematics.teltonika.trip;
+
+import org.openremote.manager.datapoint.AssetDatapointService;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeMap;
+import org.openremote.model.attribute.MetaItem;
+import org.openremote.model.custom.AssetStateDuration;
+import org.openremote.model.custom.CustomValueTypes;
+import org.openremote.model.datapoint.ValueDatapoint;
+import org.openremote.model.datapoint.query.AssetDatapointAllQuery;
+import org.openremote.model.syslog.SyslogCategory;
+import org.openremote.model.value.ValueType;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.API;
+import static org.openremote.model.util.MapAccess.getLong;
+import static org.openremote.model.value.MetaItemType.*;
+
+/**
+ * Tracks the trips of Teltonika devices, using the state of AVL ID 250 ("Trip").
+ * <p>
+ * Every device has a small state machine that records when the trip state became active, and produces the
+ * {@link AssetStateDuration} of the trip as soon as the state becomes inactive again, without reading any datapoints.
+ * The start of the trip in progress is stored in the {@link #TRIP_STARTED_AT} attribute of the device's asset, so that
+ * the state can be recovered after a restart. Only when a device is in a trip that started before that attribute
+ * existed, the start of the trip is recovered from the datapoints of the trip attribute, within a bounded time range.
+ * <p>
+ * The state of a device must only be updated by one thread at a time, which the ingest pipeline guarantees by
+ * processing the messages of a device in order on the same worker.
+ */
+public class TeltonikaTripTracker {
+
+    public static final String OR_TELTONIKA_TRIP_MIN_DURATION_MILLIS = "OR_TELTONIKA_TRIP_MIN_DURATION_MILLIS";
+    public static final long OR_TELTONIKA_TRIP_MIN_DURATION_MILLIS_DEFAULT = 10000;
+    public static final String OR_TELTONIKA_TRIP_RECOVERY_WINDOW_MILLIS = "OR_TELTONIKA_TRIP_RECOVERY_WINDOW_MILLIS";
+    public static final long OR_TELTONIKA_TRIP_RECOVERY_WINDOW_MILLIS_DEFAULT = 24 * 60 * 60 * 1000; // 24 hours
+
+    public static final String TRIP_ATTRIBUTE_NAME = "250";
+    public static final String TRIP_STARTED_AT = "TripStartedAt";
+    public static final String LAST_TRIP = "LastTripStartedAndEndedAt";
+
+    private static final Logger LOG = SyslogCategory.getLogger(API, TeltonikaTripTracker.class);
+
+    /**
+     * The trip state of a single device.
+     */
+    protected static final class TripState {
+        boolean active;
+        long startedAt;
+        long lastActiveAt;
+    }
+
+    protected final AssetDatapointService assetDatapointService;
+    protected final long minDurationMillis;
+    protected final long recoveryWindowMillis;
+    protected final Map<String, TripState> states = new ConcurrentHashMap<>();
+
+    public TeltonikaTripTracker(AssetDatapointService assetDatapointService, Map<String, String> config) {
+        this(
+                assetDatapointService,
+                getLong(config, OR_TELTONIKA_TRIP_MIN_DURATION_MILLIS, OR_TELTONIKA_TRIP_MIN_DURATION_MILLIS_DEFAULT),
+                getLong(config, OR_TELTONIKA_TRIP_RECOVERY_WINDOW_MILLIS, OR_TELTONIKA_TRIP_RECOVERY_WINDOW_MILLIS_DEFAULT)
+        );
+    }
+
+    /**
+     * @param minDurationMillis Trips that are shorter than this are not recorded; the devices sometimes report a very
+     *                          short trip just before the real one.
+     */
+    public TeltonikaTripTracker(AssetDatapointService assetDatapointService, long minDurationMillis, long recoveryWindowMillis) {
+        this.assetDatapointService = assetDatapointService;
+        this.minDurationMillis = minDurationMillis;
+        this.recoveryWindowMillis = recoveryWindowMillis;
+    }
+
+    /**
+     * Updates the trip state of the device with the trip attribute of a payload, and adds the resulting attributes to
+     * the payload's attributes: {@link #TRIP_STARTED_AT} when a trip starts, and {@link #LAST_TRIP} when a trip ends.
+     *
+     * @param assetId    The ID of the device's asset, or {@code null} if the device has no asset yet.
+     * @param asset      Supplies the device's asset as it was before the payload; only used to recover the state.
+     * @param attributes The attributes of the payload.
+     * @return The {@link #LAST_TRIP} attribute if a trip has ended.
+     */
+    public Optional<Attribute<?>> update(String assetId, Supplier<Asset<?>> asset, AttributeMap attributes) {
+        Attribute<?> tripAttribute = attributes.get(TRIP_ATTRIBUTE_NAME).orElse(null);
+        if (tripAttribute == null || tripAttribute.getValue().isEmpty() || tripAttribute.getTimestamp().isEmpty()) {
+            return Optional.empty();
+        }
+        boolean active = isActive(tripAttribute.getValue().get());
+        long timestamp = tripAttribute.getTimestamp().get();
+
+        TripState state = assetId != null ? states.computeIfAbsent(assetId, id -> recover(asset.get())) : new TripState();
+
+        if (active) {
+            if (!state.active) {
+                state.active = true;
+                state.startedAt = timestamp;
+                attributes.addOrReplace(createTripStartedAtAttribute(timestamp));
+            }
+            state.lastActiveAt = Math.max(state.lastActiveAt, timestamp);
+            return Optional.empty();
+        }
+
+        if (!state.active) {
+            return Optional.empty();
+        }
+        state.active = false;
+
+        // The trip ended with the last payload in which it was still active
+        long endedAt = state.lastActiveAt;
+        if (endedAt - state.startedAt < minDurationMillis) {
+            return Optional.empty();
+        }
+
+        Attribute<?> tripAttr = new Attribute<>(LAST_TRIP, CustomValueTypes.ASSET_STATE_DURATION, new AssetStateDuration(
+                new Timestamp(state.startedAt),
+                new Timestamp(endedAt)
+        ));
+        tripAttr.addMeta(
+                new MetaItem<>(STORE_DATA_POINTS, true),
+                new MetaItem<>(RULE_STATE, true),
+                new MetaItem<>(READ_ONLY, true)
+        );
+        attributes.addOrReplace(tripAttr);
+        return Optional.of(tripAttr);
+    }
+
+    /**
+     * Forgets the state of the device, for example because its asset was deleted.
+     */
+    public void remove(String assetId) {
+        states.remove(assetId);
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    protected static boolean isActive(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value instanceof Number && ((Number) value).doubleValue() == 1d;
+    }
+
+    protected static Attribute<Long> createTripStartedAtAttribute(long startedAt) {
+        Attribute<Long> attribute = new Attribute<>(TRIP_STARTED_AT, ValueType.TIMESTAMP, startedAt);
+        attribute.setTimestamp(startedAt);
+        attribute.addMeta(new MetaItem<>(READ_ONLY, true));
+        return attribute;
+    }
+
+    /**
+     * Recovers the state of a device from its asset.
+     */
+    protected TripState recover(Asset<?> asset) {
+        TripState state = new TripState();
+        if (asset == null) {
+            return state;
+        }
+        Attribute<?> tripAttribute = asset.getAttributes().get(TRIP_ATTRIBUTE_NAME).orElse(null);
+        if (tripAttribute == null
+                || !tripAttribute.getValue().map(TeltonikaTripTracker::isActive).orElse(false)
+                || tripAttribute.getTimestamp().isEmpty()) {
+            return state;
+        }
+
+        state.active = true;
+        state.lastActiveAt = tripAttribute.getTimestamp().get();
+
+        // The attribute is written on every rising edge, so while a trip is active it holds the start of that trip
+        Long startedAt = asset.getAttributes().get(TRIP_STARTED_AT)
+                .flatMap(Attribute::getValue)
+                .filter(Long.class::isInstance)
+                .map(Long.class::cast)
+                .filter(value -> value <= state.lastActiveAt)
+                .orElse(null);
+        state.startedAt = startedAt != null ? startedAt : findTripStart(asset.getId(), state.lastActiveAt);
+        return state;
+    }
+
+    /**
+     * Finds the start of the trip that was active at {@code lastActiveAt} in the datapoints of the trip attribute,
+     * looking back at most the recovery window.
+     *
+     * @return The timestamp of the earliest active datapoint of the trip, or {@code lastActiveAt} if there is none.
+     */
+    protected long findTripStart(String assetId, long lastActiveAt) {
+        long startedAt = lastActiveAt;
+        try {
+            List<ValueDatapoint<?>> datapoints = new ArrayList<>(assetDatapointService.queryDatapoints(
+                    assetId,
+                    TRIP_ATTRIBUTE_NAME,
+                    new AssetDatapointAllQuery(lastActiveAt - recoveryWindowMillis, lastActiveAt)
+            ));
+            datapoints.sort(Comparator.comparingLong(ValueDatapoint<?>::getTimestamp).reversed());
+            for (ValueDatapoint<?> datapoint : datapoints) {
+                if (!isActive(datapoint.getValue())) {
+                    break;
+                }
+                startedAt = datapoint.getTimestamp();
+            }
+            LOG.fine("Recovered start of trip of asset " + assetId + " from " + datapoints.size() + " datapoints");
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to recover start of trip of asset " + assetId, e);
+        }
+        return startedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaTripTracker{" +
+                "minDurationMillis=" + minDurationMillis +
+                ", recoveryWindowMillis=" + recoveryWindowMillis +
+                ", devices=" + states.size() +
+                '}';
+    }
+}
@@ -2,6 +2,7 @@ package org.openremote.model.custom;
 
 import org.openremote.model.teltonika.TeltonikaDataPayloadModel;
 import org.openremote.model.teltonika.TeltonikaParameter;
+import org.openremote.model.teltonika.TeltonikaParameterPolicy;
 import org.openremote.model.value.ValueDescriptor;
 
 import java.util.HashMap;
@@ -13,5 +14,10 @@ public class CustomValueTypes {
 
     public static final ValueDescriptor<TeltonikaParameterMap> TELTONIKA_PARAMETER_MAP = new ValueDescriptor<>("TeltonikaParameterMap", TeltonikaParameterMap.class);
 
+    public static final ValueDescriptor<TeltonikaParameterPolicy> TELTONIKA_PARAMETER_POLICY = new ValueDescriptor<>("TeltonikaParameterPolicy", TeltonikaParameterPolicy.class);
+    public static class TeltonikaParameterPolicyMap extends HashMap<String, TeltonikaParameterPolicy> {}
+
+    public static final ValueDescriptor<TeltonikaParameterPolicyMap> TELTONIKA_PARAMETER_POLICY_MAP = new ValueDescriptor<>("TeltonikaParameterPolicyMap", TeltonikaParameterPolicyMap.class);
+
     public static final ValueDescriptor<TeltonikaDataPayloadModel> TELTONIKA_PAYLOAD = new ValueDescriptor<>("TeltonikaPayload", TeltonikaDataPayloadModel.class);
 }
@@ -26,6 +26,16 @@ public class TeltonikaModelConfigurationAsset extends Asset<TeltonikaModelConfig
 
     public static final AttributeDescriptor<CustomValueTypes.TeltonikaParameterMap> PARAMETER_MAP = new AttributeDescriptor<>("TeltonikaParameterMap", CustomValueTypes.TELTONIKA_PARAMETER_MAP)
             .withMeta(new MetaMap(Map.of(MetaItemType.READ_ONLY.getName(), new MetaItem<>(MetaItemType.READ_ONLY, true))));
+    /**
+     * The {@link TeltonikaParameterPolicy} of single parameters, keyed by parameter ID (e.g. {@code "239"} or
+     * {@code "latlng"}); these take precedence over {@link #PARAMETER_GROUP_POLICIES}.
+     */
+    public static final AttributeDescriptor<CustomValueTypes.TeltonikaParameterPolicyMap> PARAMETER_POLICIES = new AttributeDescriptor<>("TeltonikaParameterPolicies", CustomValueTypes.TELTONIKA_PARAMETER_POLICY_MAP).withOptional(true);
+    /**
+     * The {@link TeltonikaParameterPolicy} of all parameters of a parameter group, keyed by the group's name
+     * (e.g. {@code "Permanent I/O Elements"}).
+     */
+    public static final AttributeDescriptor<CustomValueTypes.TeltonikaParameterPolicyMap> PARAMETER_GROUP_POLICIES = new AttributeDescriptor<>("TeltonikaParameterGroupPolicies", CustomValueTypes.TELTONIKA_PARAMETER_POLICY_MAP).withOptional(true);
     public static final AssetDescriptor<TeltonikaModelConfigurationAsset> DESCRIPTOR = new AssetDescriptor<>("switch", null, TeltonikaModelConfigurationAsset.class);
 
     protected TeltonikaModelConfigurationAsset(){}
@@ -71,6 +81,24 @@ public class TeltonikaModelConfigurationAsset extends Asset<TeltonikaModelConfig
                 .orElse(new CustomValueTypes.TeltonikaParameterMap()); // or provide a default value other than null, if appropriate
     }
 
+    public TeltonikaModelConfigurationAsset setParameterPolicies(CustomValueTypes.TeltonikaParameterPolicyMap policies) {
+        getAttributes().getOrCreate(PARAMETER_POLICIES).setValue(policies);
+        return this;
+    }
+
+    public TeltonikaModelConfigurationAsset setParameterGroupPolicies(CustomValueTypes.TeltonikaParameterPolicyMap policies) {
+        getAttributes().getOrCreate(PARAMETER_GROUP_POLICIES).setValue(policies);
+        return this;
+    }
+
+    public CustomValueTypes.TeltonikaParameterPolicyMap getParameterPolicies() {
+        return getAttributes().getValue(PARAMETER_POLICIES).orElse(new CustomValueTypes.TeltonikaParameterPolicyMap());
+    }
+
+    public CustomValueTypes.TeltonikaParameterPolicyMap getParameterGroupPolicies() {
+        return getAttributes().getValue(PARAMETER_GROUP_POLICIES).orElse(new CustomValueTypes.TeltonikaParameterPolicyMap());
+    }
+
     public static MetaMap getPayloadAttributeMeta(String label){
         MetaMap map = new MetaMap();
 
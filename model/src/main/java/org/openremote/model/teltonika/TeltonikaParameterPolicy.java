@@ -0,0 +1,175 @@
+package org.openremote.model.teltonika;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Defines how the values of a Teltonika parameter are stored as datapoints, whether they are exposed to the rules
+ * engine, and which changes of the value are too small to update the attribute for (its deadband). Policies are set
+ * per parameter or per parameter group on a {@link TeltonikaModelConfigurationAsset}; a parameter without a policy is
+ * stored on every payload and exposed to the rules, see {@link #DEFAULT}.
+ * <p>
+ * Example value of {@link TeltonikaModelConfigurationAsset#PARAMETER_GROUP_POLICIES}:
+ * {@code {"Diagnostic I/O Elements": {"storage": "NEVER", "ruleState": false}}}, and of
+ * {@link TeltonikaModelConfigurationAsset#PARAMETER_POLICIES}: {@code {"67": {"deadband": 0.1, "heartbeatSeconds": 900}}}
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({
+        "storage",
+        "intervalSeconds",
+        "ruleState",
+        "deadband",
+        "deadbandPercent",
+        "heartbeatSeconds",
+        "compressionDeviation"
+})
+public class TeltonikaParameterPolicy implements Serializable {
+
+    public enum Storage {
+        /** Store a datapoint for every payload. */
+        ALWAYS,
+        /** Only store a datapoint when the value differs from the current value of the attribute. */
+        ON_CHANGE,
+        /** Store at most one datapoint every {@link #intervalSeconds}. */
+        INTERVAL,
+        /** Never store datapoints. */
+        NEVER
+    }
+
+    public static final TeltonikaParameterPolicy DEFAULT = new TeltonikaParameterPolicy(Storage.ALWAYS, null, true);
+
+    @JsonProperty("storage")
+    public Storage storage;
+    @JsonProperty("intervalSeconds")
+    public Integer intervalSeconds;
+    @JsonProperty("ruleState")
+    public Boolean ruleState;
+    /**
+     * Numeric values that differ at most this much from the last applied value are not applied.
+     */
+    @JsonProperty("deadband")
+    public Double deadband;
+    /**
+     * Numeric values that differ at most this percentage of the last applied value from it are not applied.
+     */
+    @JsonProperty("deadbandPercent")
+    public Double deadbandPercent;
+    /**
+     * The time after which a value is applied even if it has not changed; overrides the default of the handler.
+     */
+    @JsonProperty("heartbeatSeconds")
+    public Integer heartbeatSeconds;
+    /**
+     * Enables the compression of the stored datapoints of a numeric parameter: only the datapoints that are needed to
+     * rebuild the series by linear interpolation are stored, within this maximum deviation.
+     */
+    @JsonProperty("compressionDeviation")
+    public Double compressionDeviation;
+
+    public TeltonikaParameterPolicy() {
+    }
+
+    public TeltonikaParameterPolicy(Storage storage, Integer intervalSeconds, Boolean ruleState) {
+        this.storage = storage;
+        this.intervalSeconds = intervalSeconds;
+        this.ruleState = ruleState;
+    }
+
+    public TeltonikaParameterPolicy(Storage storage, Integer intervalSeconds, Boolean ruleState, Double deadband, Double deadbandPercent, Integer heartbeatSeconds) {
+        this(storage, intervalSeconds, ruleState);
+        this.deadband = deadband;
+        this.deadbandPercent = deadbandPercent;
+        this.heartbeatSeconds = heartbeatSeconds;
+    }
+
+    /**
+     * @return The storage of this policy; {@link Storage#ALWAYS} if it is not set, and also for {@link Storage#INTERVAL}
+     * without a positive interval.
+     */
+    @JsonIgnore
+    public Storage getStorage() {
+        if (storage == null || (storage == Storage.INTERVAL && getIntervalMillis() <= 0)) {
+            return Storage.ALWAYS;
+        }
+        return storage;
+    }
+
+    @JsonIgnore
+    public long getIntervalMillis() {
+        return intervalSeconds != null ? intervalSeconds * 1000L : 0L;
+    }
+
+    /**
+     * @return Whether the attributes of the parameter have datapoints at all, which is the value of their
+     * {@code STORE_DATA_POINTS} meta item.
+     */
+    @JsonIgnore
+    public boolean isStoreDataPoints() {
+        return getStorage() != Storage.NEVER;
+    }
+
+    /**
+     * @return Whether the attributes of the parameter are exposed to the rules engine, which is the value of their
+     * {@code RULE_STATE} meta item; defaults to {@code true}.
+     */
+    @JsonIgnore
+    public boolean isRuleState() {
+        return ruleState == null || ruleState;
+    }
+
+    /**
+     * @return Whether a numeric value is within the deadband of the last applied value.
+     */
+    public boolean isWithinDeadband(double lastValue, double value) {
+        double difference = Math.abs(value - lastValue);
+        return (deadband != null && difference <= deadband)
+                || (deadbandPercent != null && difference <= Math.abs(lastValue) * deadbandPercent / 100d);
+    }
+
+    /**
+     * @return The heartbeat of this policy, or the given default if it has none.
+     */
+    public long getHeartbeatMillis(long defaultHeartbeatMillis) {
+        return heartbeatSeconds != null ? heartbeatSeconds * 1000L : defaultHeartbeatMillis;
+    }
+
+    /**
+     * @return Whether the stored datapoints of the parameter are compressed, see {@link #compressionDeviation}.
+     */
+    @JsonIgnore
+    public boolean isCompressed() {
+        return compressionDeviation != null && compressionDeviation > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TeltonikaParameterPolicy that)) return false;
+        return storage == that.storage && Objects.equals(intervalSeconds, that.intervalSeconds) && Objects.equals(ruleState, that.ruleState)
+                && Objects.equals(deadband, that.deadband) && Objects.equals(deadbandPercent, that.deadbandPercent)
+                && Objects.equals(heartbeatSeconds, that.heartbeatSeconds) && Objects.equals(compressionDeviation, that.compressionDeviation);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(storage, intervalSeconds, ruleState, deadband, deadbandPercent, heartbeatSeconds, compressionDeviation);
+    }
+
+    @Override
+    public String toString() {
+        return "TeltonikaParameterPolicy{" +
+                "storage=" + storage +
+                ", intervalSeconds=" + intervalSeconds +
+                ", ruleState=" + ruleState +
+                ", deadband=" + deadband +
+                ", deadbandPercent=" + deadbandPercent +
+                ", heartbeatSeconds=" + heartbeatSeconds +
+                ", compressionDeviation=" + compressionDeviation +
+                '}';
+    }
+}
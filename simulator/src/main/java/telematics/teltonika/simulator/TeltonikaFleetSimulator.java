@@ -0,0 +1,245 @@
+package telematics.teltonika.simulator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt3.Mqtt3AsyncClient;
+import com.hivemq.client.mqtt.mqtt3.message.publish.Mqtt3Publish;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes realistic traffic through the Teltonika handler of a local manager, to size a deployment.
+ * <p>
+ * The simulator connects a number of virtual devices with valid IMEIs, which replay the recorded payloads of the test
+ * corpus on their data topic at a configurable rate and jitter. With the credentials of a service user, it also
+ * subscribes to the {@code lastContact} attribute events of all assets of the realm, to measure the latency from
+ * publishing a payload until the asset of the device has been updated. Run with {@code --help} for the options.
+ */
+public class TeltonikaFleetSimulator {
+
+    public static final Path PAYLOAD_CORPUS = Paths.get("test", "src", "test", "resources", "teltonika", "SortedPayloads.json");
+    public static final String EVENT_CLIENT_ID = "teltonika-sim-events";
+    public static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    protected static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: TeltonikaFleetSimulator [--option=value ...]",
+            "  --host=localhost       MQTT broker of the manager",
+            "  --port=1883",
+            "  --realm=master         Realm of the devices",
+            "  --devices=10           Amount of virtual devices",
+            "  --first-device=0       Index of the first device, to run several simulators side by side",
+            "  --rate=1.0             Payloads per second per device",
+            "  --jitter=0.2           Random deviation of the interval, as a fraction of it",
+            "  --duration=60          Seconds to publish for",
+            "  --drain=10             Seconds to wait for the remaining events afterwards",
+            "  --threads=4            Threads that publish the payloads",
+            "  --payloads=" + PAYLOAD_CORPUS,
+            "  --username=            Service user to receive attribute events with, as realm:username;",
+            "  --password=            without it only the publishing throughput is reported");
+
+    protected final Map<String, String> options;
+    protected final ObjectMapper mapper = new ObjectMapper();
+    protected final TeltonikaLatencyRecorder recorder = new TeltonikaLatencyRecorder();
+    protected final AtomicLong published = new AtomicLong();
+    protected final AtomicLong failed = new AtomicLong();
+    protected final AtomicLong events = new AtomicLong();
+    protected final List<TeltonikaSimulatedDevice> devices = new ArrayList<>();
+    protected Mqtt3AsyncClient eventClient;
+    protected ScheduledExecutorService scheduler;
+    protected volatile boolean running;
+
+    public TeltonikaFleetSimulator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.out.println(USAGE);
+                System.exit(arg.equals("--help") ? 0 : 1);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new TeltonikaFleetSimulator(options).run();
+    }
+
+    public void run() throws Exception {
+        String host = getOption("host", "localhost");
+        int port = Integer.parseInt(getOption("port", "1883"));
+        String realm = getOption("realm", "master");
+        int deviceCount = Integer.parseInt(getOption("devices", "10"));
+        int firstDevice = Integer.parseInt(getOption("first-device", "0"));
+        double rate = Double.parseDouble(getOption("rate", "1.0"));
+        double jitter = Double.parseDouble(getOption("jitter", "0.2"));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(getOption("duration", "60")));
+        long drainMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(getOption("drain", "10")));
+        int threads = Integer.parseInt(getOption("threads", "4"));
+
+        if (deviceCount <= 0 || rate <= 0 || jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("The amount of devices and the rate must be positive, and the jitter must be in [0, 1)");
+        }
+
+        List<ObjectNode> payloads = loadPayloads(Paths.get(getOption("payloads", PAYLOAD_CORPUS.toString())));
+        System.out.printf("Loaded %d payloads, simulating %d devices at %.2f payloads/s each against %s:%d%n",
+                payloads.size(), deviceCount, rate, host, port);
+
+        String username = options.get("username");
+        if (username != null) {
+            connectEventClient(host, port, realm, username, getOption("password", ""));
+        } else {
+            System.out.println("No --username given, latency is not measured");
+        }
+
+        for (int i = 0; i < deviceCount; i++) {
+            String imei = TeltonikaSimulatedDevice.generateImei(firstDevice + i);
+            devices.add(new TeltonikaSimulatedDevice(imei, host, port, realm, payloads, mapper, recorder, published, failed));
+        }
+        CompletableFuture.allOf(devices.stream().map(TeltonikaSimulatedDevice::connect).toArray(CompletableFuture[]::new))
+                .get(60, TimeUnit.SECONDS);
+        System.out.printf("Connected %d devices%n", devices.size());
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        scheduler = Executors.newScheduledThreadPool(threads);
+        running = true;
+        long start = System.nanoTime();
+        for (TeltonikaSimulatedDevice device : devices) {
+            // Spread the first payloads over one interval, so that the devices do not all publish at once
+            scheduler.schedule(() -> publish(device, intervalNanos, jitter),
+                    ThreadLocalRandom.current().nextLong(intervalNanos), TimeUnit.NANOSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(() -> printProgress(start), 10, 10, TimeUnit.SECONDS);
+
+        Thread.sleep(durationMillis);
+        running = false;
+        long publishEnd = System.nanoTime();
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+        long drainUntil = System.currentTimeMillis() + drainMillis;
+        while (eventClient != null && recorder.getPendingCount() > 0 && System.currentTimeMillis() < drainUntil) {
+            Thread.sleep(100);
+        }
+
+        printReport((publishEnd - start) / 1e9);
+
+        CompletableFuture.allOf(devices.stream().map(TeltonikaSimulatedDevice::disconnect).toArray(CompletableFuture[]::new))
+                .get(30, TimeUnit.SECONDS);
+        if (eventClient != null) {
+            eventClient.disconnect().get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    protected void publish(TeltonikaSimulatedDevice device, long intervalNanos, double jitter) {
+        if (!running) {
+            return;
+        }
+        device.publishNext();
+        double deviation = jitter == 0 ? 0 : ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        scheduler.schedule(() -> publish(device, intervalNanos, jitter), (long) (intervalNanos * (1 + deviation)), TimeUnit.NANOSECONDS);
+    }
+
+    protected void connectEventClient(String host, int port, String realm, String username, String password) throws Exception {
+        eventClient = MqttClient.builder()
+                .useMqttVersion3()
+                .identifier(EVENT_CLIENT_ID)
+                .serverHost(host)
+                .serverPort(port)
+                .simpleAuth()
+                .username(username)
+                .password(password.getBytes(StandardCharsets.UTF_8))
+                .applySimpleAuth()
+                .buildAsync();
+        eventClient.connectWith().cleanSession(true).send().get(30, TimeUnit.SECONDS);
+        eventClient.subscribeWith()
+                .topicFilter(realm + "/" + EVENT_CLIENT_ID + "/attribute/lastContact/#")
+                .qos(MqttQos.AT_MOST_ONCE)
+                .callback(this::onAttributeEvent)
+                .send()
+                .get(30, TimeUnit.SECONDS);
+    }
+
+    protected void onAttributeEvent(Mqtt3Publish publish) {
+        events.incrementAndGet();
+        try {
+            JsonNode event = mapper.readTree(publish.getPayloadAsBytes());
+            String assetId = event.path("ref").path("id").asText(null);
+            JsonNode value = event.path("value");
+            if (assetId == null || value.isMissingNode() || value.isNull()) {
+                return;
+            }
+            long timestamp = value.isNumber() ? value.asLong() : Instant.parse(value.asText()).toEpochMilli();
+            recorder.observed(assetId, timestamp);
+        } catch (Exception e) {
+            System.err.println("Failed to parse attribute event: " + e.getMessage());
+        }
+    }
+
+    protected void printProgress(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%6.0fs: published=%d (%.1f/s) failed=%d events=%d%n",
+                seconds, published.get(), published.get() / seconds, failed.get(), events.get());
+    }
+
+    protected void printReport(double seconds) {
+        System.out.println();
+        System.out.printf("Devices:    %d%n", devices.size());
+        System.out.printf("Published:  %d payloads in %.1fs (%.1f/s), %d failed%n",
+                published.get(), seconds, published.get() / seconds, failed.get());
+        if (eventClient == null) {
+            return;
+        }
+        int observed = recorder.getSampleCount();
+        System.out.printf("Observed:   %d events (%.1f/s), %d not observed, %d unmatched%n",
+                observed, observed / seconds, recorder.getPendingCount(), recorder.getUnmatchedCount());
+        double[] latencies = recorder.getPercentilesMillis(PERCENTILES);
+        if (latencies.length == 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("Latency ms:");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            line.append(String.format(" %s=%.1f", PERCENTILES[i] == 100 ? "max" : "p" + formatPercentile(PERCENTILES[i]), latencies[i]));
+        }
+        System.out.println(line);
+    }
+
+    protected List<ObjectNode> loadPayloads(Path path) throws IOException {
+        List<ObjectNode> payloads = new ArrayList<>();
+        for (JsonNode payload : mapper.readTree(path.toFile())) {
+            // Only payloads with a reported state can have their timestamp rewritten
+            if (payload.path("state").path("reported").isObject()) {
+                payloads.add((ObjectNode) payload);
+            }
+        }
+        if (payloads.isEmpty()) {
+            throw new IllegalStateException("No payloads found in " + path);
+        }
+        return payloads;
+    }
+
+    protected String getOption(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    protected static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+}
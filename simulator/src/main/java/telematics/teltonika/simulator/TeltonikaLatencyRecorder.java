@@ -0,0 +1,96 @@
+package telematics.teltonika.simulator;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches the payloads that were published by the simulated devices with the {@code AttributeEvent}s of their
+ * {@code lastContact} attribute, and records the time in between.
+ * <p>
+ * Every payload carries a unique timestamp per device, which the handler stores as the {@code lastContact} of the
+ * device's asset, so the pair of asset ID and timestamp identifies the payload an event was caused by.
+ */
+public class TeltonikaLatencyRecorder {
+
+    protected final Map<String, Long> pending = new ConcurrentHashMap<>();
+    protected final AtomicLong unmatched = new AtomicLong();
+    protected long[] samples = new long[1024];
+    protected int sampleCount;
+
+    /**
+     * Called right before a payload is published.
+     */
+    public void sent(String assetId, long timestamp) {
+        pending.put(key(assetId, timestamp), System.nanoTime());
+    }
+
+    /**
+     * Called when the publish of a payload has failed, so that it is not reported as lost.
+     */
+    public void failed(String assetId, long timestamp) {
+        pending.remove(key(assetId, timestamp));
+    }
+
+    /**
+     * Called for every {@code lastContact} event that was received.
+     */
+    public void observed(String assetId, long timestamp) {
+        long receivedAt = System.nanoTime();
+        Long sentAt = pending.remove(key(assetId, timestamp));
+        if (sentAt == null) {
+            unmatched.incrementAndGet();
+            return;
+        }
+        record(receivedAt - sentAt);
+    }
+
+    protected synchronized void record(long nanos) {
+        if (sampleCount == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[sampleCount++] = nanos;
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return The payloads for which no event has been received (yet).
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The events that did not match a payload of this run, e.g. those of other devices or of an earlier run.
+     */
+    public long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    /**
+     * @param percentiles The percentiles to compute, between 0 and 100.
+     * @return The latency in milliseconds at each of the percentiles, or an empty array if there are no samples.
+     */
+    public synchronized double[] getPercentilesMillis(double... percentiles) {
+        if (sampleCount == 0) {
+            return new double[0];
+        }
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        double[] result = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100d * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, index))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+        return result;
+    }
+
+    protected static String key(String assetId, long timestamp) {
+        return assetId + ':' + timestamp;
+    }
+}
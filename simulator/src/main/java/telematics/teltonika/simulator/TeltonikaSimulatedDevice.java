@@ -0,0 +1,135 @@
+package telematics.teltonika.simulator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
+import com.hivemq.client.mqtt.mqtt3.Mqtt3AsyncClient;
+import org.openremote.model.teltonika.IMEIValidator;
+import org.openremote.model.util.UniqueIdentifierGenerator;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A virtual Teltonika device, which connects to the broker like a real device and replays the recorded payloads on
+ * its data topic, with the timestamp of every payload rewritten to the time it is sent.
+ */
+public class TeltonikaSimulatedDevice {
+
+    /**
+     * The Type Allocation Code of the generated IMEIs, taken from the IMEI of the Teltonika protocol documentation.
+     */
+    public static final String TYPE_ALLOCATION_CODE = "35630704";
+
+    protected final String imei;
+    protected final String assetId;
+    protected final String dataTopic;
+    protected final List<ObjectNode> payloads;
+    protected final ObjectMapper mapper;
+    protected final TeltonikaLatencyRecorder recorder;
+    protected final Mqtt3AsyncClient client;
+    protected final AtomicLong published;
+    protected final AtomicLong failed;
+    protected int next;
+    protected long lastTimestamp;
+
+    public TeltonikaSimulatedDevice(String imei, String host, int port, String realm, List<ObjectNode> payloads, ObjectMapper mapper,
+                                    TeltonikaLatencyRecorder recorder, AtomicLong published, AtomicLong failed) {
+        this.imei = imei;
+        this.assetId = UniqueIdentifierGenerator.generateId(imei);
+        this.payloads = payloads;
+        this.mapper = mapper;
+        this.recorder = recorder;
+        this.published = published;
+        this.failed = failed;
+        String clientId = "teltonika-sim-" + imei;
+        this.dataTopic = realm + "/" + clientId + "/teltonika/" + imei + "/data";
+        // Start every device at another payload of the corpus, so that they do not all send the same values
+        this.next = Math.floorMod(imei.hashCode(), payloads.size());
+        this.client = MqttClient.builder()
+                .useMqttVersion3()
+                .identifier(clientId)
+                .serverHost(host)
+                .serverPort(port)
+                .buildAsync();
+    }
+
+    /**
+     * Generates the IMEI of the device with the given index, by appending the serial number and a check digit to
+     * {@link #TYPE_ALLOCATION_CODE}.
+     */
+    public static String generateImei(int index) {
+        long body = Long.parseLong(TYPE_ALLOCATION_CODE + String.format("%06d", index % 1_000_000)) * 10;
+        for (int checkDigit = 0; checkDigit < 10; checkDigit++) {
+            if (IMEIValidator.isValidIMEI(body + checkDigit)) {
+                return Long.toString(body + checkDigit);
+            }
+        }
+        throw new IllegalStateException("No valid IMEI for index " + index);
+    }
+
+    /**
+     * Connects the device and subscribes to its data topic, which makes the handler register it as connected.
+     */
+    public CompletableFuture<?> connect() {
+        return client.connectWith()
+                .cleanSession(true)
+                .send()
+                .thenCompose(connAck -> client.subscribeWith()
+                        .topicFilter(dataTopic)
+                        .qos(MqttQos.AT_MOST_ONCE)
+                        .callback(publish -> {
+                        })
+                        .send());
+    }
+
+    /**
+     * Publishes the next payload of the corpus. Must not be called concurrently for the same device.
+     */
+    public void publishNext() {
+        ObjectNode payload = payloads.get(next).deepCopy();
+        next = next + 1 == payloads.size() ? 0 : next + 1;
+
+        // Timestamps must increase, or the handler treats the payload as history and does not update the asset
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        lastTimestamp = timestamp;
+        ((ObjectNode) payload.path("state").path("reported")).put("ts", timestamp);
+
+        byte[] bytes;
+        try {
+            bytes = mapper.writeValueAsBytes(payload);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            return;
+        }
+
+        recorder.sent(assetId, timestamp);
+        client.publishWith()
+                .topic(dataTopic)
+                .qos(MqttQos.AT_LEAST_ONCE)
+                .payload(bytes)
+                .send()
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        recorder.failed(assetId, timestamp);
+                        failed.incrementAndGet();
+                    } else {
+                        published.incrementAndGet();
+                    }
+                });
+    }
+
+    public CompletableFuture<Void> disconnect() {
+        return client.disconnect();
+    }
+
+    public String getImei() {
+        return imei;
+    }
+
+    public String getAssetId() {
+        return assetId;
+    }
+}
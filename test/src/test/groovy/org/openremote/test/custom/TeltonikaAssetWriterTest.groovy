@@ -0,0 +1,251 @@
+package org.openremote.test.custom
+
+import jakarta.persistence.OptimisticLockException
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.model.asset.Asset
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeMap
+import org.openremote.model.custom.VehicleAsset
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+import telematics.teltonika.ingest.TeltonikaAssetWriter
+import telematics.teltonika.ingest.TeltonikaDatapointWriter
+
+import java.util.function.BiConsumer
+
+class TeltonikaAssetWriterTest extends Specification {
+
+    AssetStorageService assetStorageService = Mock()
+    TeltonikaDatapointWriter datapointWriter = Mock()
+    // Not started, so pending assets are only merged when the test flushes them
+    TeltonikaAssetWriter writer = new TeltonikaAssetWriter(assetStorageService, datapointWriter, { Asset<?> asset, AttributeMap attributes ->
+        asset.getAttributes().addOrReplace(attributes.values() as Attribute[])
+    } as BiConsumer<Asset<?>, AttributeMap>, null, 1000, 100)
+
+    static VehicleAsset asset(String... attributeNames) {
+        def asset = new VehicleAsset("Teltonika Asset")
+        asset.setId("asset")
+        attributeNames.each { asset.getAttributes().addOrReplace(new Attribute<>(it, ValueType.NUMBER, 0d, 0L)) }
+        return asset
+    }
+
+    static AttributeMap payload(long timestamp, Map<String, Double> values) {
+        def attributes = new AttributeMap()
+        values.each { name, value -> attributes.add(new Attribute<>(name, ValueType.NUMBER, value, timestamp)) }
+        return attributes
+    }
+
+    static List<TeltonikaDatapointWriter.Datapoint> datapoints(AttributeMap attributes) {
+        return attributes.values().collect { new TeltonikaDatapointWriter.Datapoint("asset", it.getName(), it.getValue().orElse(null), it.getTimestamp().orElse(0L)) }
+    }
+
+    void update(Asset<?> asset, boolean created, AttributeMap attributes, boolean deferred = false) {
+        writer.update(asset, created, attributes, datapoints(attributes), deferred)
+    }
+
+    static Object value(Asset<?> asset, String attributeName) {
+        return asset.getAttribute(attributeName).flatMap { it.getValue() }.orElse(null)
+    }
+
+    def "A payload that only updates values is merged right away"() {
+        when:
+        update(asset("66", "67"), false, payload(1000, ["66": 1d, "67": 12d]))
+
+        then: "the asset is merged on the caller's thread"
+        1 * assetStorageService.merge({ value(it, "66") == 1d && value(it, "67") == 12d })
+
+        then: "its datapoints are written after it"
+        2 * datapointWriter.write(_)
+
+        and:
+        writer.getPendingCount() == 0
+        writer.getImmediateCount() == 1
+    }
+
+    def "The payloads of an asset that gets new attributes are coalesced until the flush"() {
+        when: "a payload adds an attribute, and the following payloads are applied to the pending asset"
+        update(asset("66"), false, payload(1000, ["66": 1d, "67": 12d]))
+        update(writer.getPending("asset"), false, payload(2000, ["66": 2d, "68": 3d]))
+        update(writer.getPending("asset"), false, payload(3000, ["66": 3d]))
+
+        then: "nothing is merged, not even the payload that only updates values"
+        0 * assetStorageService.merge(_)
+        0 * datapointWriter.write(_)
+        writer.getPendingCount() == 1
+        writer.getImmediateCount() == 0
+
+        when:
+        writer.flushAll()
+
+        then: "the asset is merged once, with the latest values of all payloads"
+        1 * assetStorageService.merge({ value(it, "66") == 3d && value(it, "67") == 12d && value(it, "68") == 3d })
+
+        then: "the datapoints of all payloads are written after it"
+        5 * datapointWriter.write(_)
+
+        and:
+        writer.getPendingCount() == 0
+        writer.getMergedCount() == 1
+    }
+
+    def "The datapoints of a new asset are only written once it was created"() {
+        when: "a new asset and the datapoints of a historical record of it are pending"
+        update(asset(), true, payload(2000, ["66": 1d]))
+        writer.writeDatapoints("asset", [new TeltonikaDatapointWriter.Datapoint("asset", "66", 0.5d, 1000L)])
+
+        then:
+        0 * datapointWriter.write(_)
+
+        when: "the asset fails to be created"
+        writer.flushAll()
+
+        then: "its datapoints are not written"
+        1 * assetStorageService.merge(_) >> { throw new IllegalStateException("Database is down") }
+        0 * datapointWriter.write(_)
+        writer.getFailedCount() == 1
+
+        when: "the next payload creates it"
+        update(asset(), true, payload(3000, ["66": 2d]))
+        writer.flushAll()
+
+        then:
+        1 * assetStorageService.merge(_)
+
+        then:
+        1 * datapointWriter.write({ it.getTimestamp() == 3000L })
+    }
+
+    def "The pending payloads are applied to the latest version of an asset that was modified concurrently"() {
+        given: "an asset that was modified since it became pending"
+        update(asset("66"), false, payload(1000, ["66": 2d, "67": 12d]))
+        def latest = asset("66", "69")
+
+        when:
+        writer.flushAll()
+
+        then: "the pending payloads are applied to the latest version, which keeps its own changes"
+        1 * assetStorageService.merge({ !it.is(latest) }) >> { throw new OptimisticLockException("Stale version") }
+        1 * assetStorageService.find("asset") >> latest
+        1 * assetStorageService.merge({ it.is(latest) && value(it, "66") == 2d && value(it, "67") == 12d && it.hasAttribute("69") })
+
+        then:
+        2 * datapointWriter.write(_)
+
+        and:
+        writer.getConflictCount() == 1
+        writer.getMergedCount() == 1
+    }
+
+    def "The version of the last merge is returned instead of loading the asset again"() {
+        given:
+        def merged = asset("66")
+
+        when:
+        update(asset("66"), false, payload(1000, ["66": 1d]))
+
+        then:
+        1 * assetStorageService.merge(_) >> merged
+        writer.getCurrent("asset").is(merged)
+
+        when: "the kept version is outdated, as the asset was modified elsewhere"
+        update(writer.getCurrent("asset"), false, payload(2000, ["66": 2d]))
+
+        then: "the payload is applied to the latest version, which is kept instead"
+        1 * assetStorageService.merge({ it.is(merged) }) >> { throw new OptimisticLockException("Stale version") }
+        1 * assetStorageService.find("asset") >> asset("66", "69")
+        1 * assetStorageService.merge({ it.hasAttribute("69") }) >> { args -> args[0] }
+        writer.getCurrent("asset").hasAttribute("69")
+
+        when: "a merge fails"
+        update(writer.getCurrent("asset"), false, payload(3000, ["66": 3d]))
+
+        then: "the asset has to be loaded again"
+        1 * assetStorageService.merge(_) >> { throw new IllegalStateException("Database is down") }
+        writer.getCurrent("asset") == null
+    }
+
+    def "A removed asset is not merged"() {
+        given:
+        update(asset(), true, payload(1000, ["66": 1d]))
+
+        when:
+        writer.remove("asset")
+        writer.flushAll()
+
+        then:
+        0 * assetStorageService.merge(_)
+        0 * datapointWriter.write(_)
+        writer.getPending("asset") == null
+    }
+
+    def "A deferred batch is merged at its end, unless it adds attributes"() {
+        when: "a batch of payloads that only update values is deferred"
+        update(asset("66"), false, payload(1000, ["66": 1d]), true)
+        update(writer.getPending("asset"), false, payload(2000, ["66": 2d]), true)
+
+        then:
+        0 * assetStorageService.merge(_)
+
+        when: "the batch ends"
+        writer.flushValues("asset")
+
+        then: "it is merged once"
+        1 * assetStorageService.merge({ value(it, "66") == 2d })
+        writer.getPendingCount() == 0
+
+        when: "a batch that adds an attribute ends"
+        update(asset("66"), false, payload(3000, ["66": 3d, "67": 12d]), true)
+        writer.flushValues("asset")
+
+        then: "it is left for the next flush"
+        0 * assetStorageService.merge(_)
+        writer.getPendingCount() == 1
+    }
+
+    def "The callbacks of a pending asset are run behind its datapoints once it was merged"() {
+        given:
+        def stored = []
+
+        when: "a new asset with a callback fails to be created"
+        update(asset(), true, payload(1000, ["66": 1d]))
+        writer.afterStored("asset", { stored << 1 })
+        writer.flushAll()
+
+        then: "its callback is dropped"
+        1 * assetStorageService.merge(_) >> { throw new IllegalStateException("Database is down") }
+        0 * datapointWriter.afterWritten(*_)
+        stored.isEmpty()
+
+        when: "the next payload creates it"
+        update(asset(), true, payload(2000, ["66": 2d]))
+        writer.afterStored("asset", { stored << 2 })
+        writer.flushAll()
+
+        then:
+        1 * assetStorageService.merge(_)
+
+        then: "its callback is buffered behind its datapoints"
+        1 * datapointWriter.write(_)
+
+        then:
+        1 * datapointWriter.afterWritten(_, _) >> { long failedBatchCount, Runnable callback -> callback.run() }
+        stored == [2]
+
+        and: "an asset without pending changes takes no callbacks"
+        !writer.afterStored("asset", { stored << 3 })
+    }
+
+    def "The callbacks of a removed asset are run, as it is not stored"() {
+        given:
+        def stored = []
+        update(asset(), true, payload(1000, ["66": 1d]))
+        writer.afterStored("asset", { stored << 1 })
+
+        when:
+        writer.remove("asset")
+
+        then:
+        stored == [1]
+        0 * assetStorageService.merge(_)
+    }
+}
@@ -0,0 +1,66 @@
+package org.openremote.test.custom
+
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.teltonika.TeltonikaParameter
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+import telematics.teltonika.TeltonikaParameterIndex
+import telematics.teltonika.registry.TeltonikaAttributeSchemaCache
+
+class TeltonikaAttributeSchemaCacheTest extends Specification {
+
+    TeltonikaAttributeSchemaCache cache = new TeltonikaAttributeSchemaCache()
+
+    static TeltonikaParameterIndex index(List<Integer> ids) {
+        return new TeltonikaParameterIndex("FMC003", ids.collectEntries { [(it): parameter(it)] }, 1, [:], [:], [:])
+    }
+
+    static TeltonikaParameter parameter(int id) {
+        return new TeltonikaParameter(id, "Parameter " + id, "2", "Unsigned", "0", "65535", "1", "-", "-", "all", "Permanent I/O Elements")
+    }
+
+    static List<Attribute<?>> attributes(String... names) {
+        return names.collect { new Attribute<>(it, ValueType.NUMBER, 1d) }
+    }
+
+    def "A payload only needs its asset loaded if the asset lacks one of its attributes or is unknown"() {
+        given:
+        def index = index([21, 66, 67])
+        cache.record("asset", attributes("21", "66", "IMEI"), index)
+
+        expect:
+        cache.hasAll("asset", attributes("21", "IMEI"), index)
+        !cache.hasAll("asset", attributes("21", "67"), index)
+        !cache.hasAll("asset", attributes("ClientId"), index)
+        !cache.hasAll("other", attributes("21"), index)
+
+        when:
+        cache.remove("asset")
+
+        then:
+        !cache.hasAll("asset", attributes("21"), index)
+    }
+
+    def "A schema is converted to the ordinals of a refreshed index"() {
+        given: "a schema over an index, which is refreshed with a new parameter that sorts before the others"
+        cache.record("asset", attributes("21", "66"), index([21, 66]))
+        def refreshed = index([16, 21, 66])
+
+        expect:
+        cache.hasAll("asset", attributes("21", "66"), refreshed)
+        !cache.hasAll("asset", attributes("16"), refreshed)
+    }
+
+    def "Assets with the same attributes outside of the index share them"() {
+        given:
+        def index = index([21])
+
+        when:
+        (0..<100).each { cache.record("asset" + it, attributes("21", "IMEI", "ClientId"), index) }
+        cache.record("other", attributes("IMEI"), index)
+
+        then:
+        cache.size() == 101
+        cache.getOverflowSetCount() == 2
+    }
+}
@@ -0,0 +1,146 @@
+package org.openremote.test.custom
+
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeMap
+import org.openremote.model.teltonika.TeltonikaParameter
+import org.openremote.model.teltonika.TeltonikaParameterPolicy
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+import telematics.teltonika.TeltonikaParameterIndex
+import telematics.teltonika.ingest.TeltonikaChangeFilter
+
+import static org.openremote.model.teltonika.TeltonikaParameterPolicy.Storage.*
+
+class TeltonikaChangeFilterTest extends Specification {
+
+    static final long HEARTBEAT = 60000
+
+    TeltonikaChangeFilter filter = new TeltonikaChangeFilter(true, HEARTBEAT)
+
+    // 21 (GSM signal) is stored on change, 67 (battery voltage) has a deadband of 0.1, 66 has the default policy,
+    // 68 is explicitly stored on every payload despite its deadband, and 16 (odometer) is compressed
+    TeltonikaParameterIndex index = new TeltonikaParameterIndex("FMC003", [
+            16: parameter(16),
+            21: parameter(21),
+            66: parameter(66),
+            67: parameter(67),
+            68: parameter(68)
+    ], 1, [:], [
+            "16": new TeltonikaParameterPolicy(storage: ON_CHANGE, compressionDeviation: 1d),
+            "21": new TeltonikaParameterPolicy(ON_CHANGE, null, true),
+            "67": new TeltonikaParameterPolicy(null, null, true, 0.1d, null, null),
+            "68": new TeltonikaParameterPolicy(ALWAYS, null, true, 0.1d, null, null)
+    ], [:])
+
+    static TeltonikaParameter parameter(int id) {
+        return new TeltonikaParameter(id, "Parameter " + id, "2", "Unsigned", "0", "65535", "1", "-", "-", "all", "Permanent I/O Elements")
+    }
+
+    static AttributeMap payload(long timestamp, Map<String, Double> values) {
+        def attributes = new AttributeMap()
+        values.each { name, value -> attributes.add(new Attribute<>(name, ValueType.NUMBER, value, timestamp)) }
+        return attributes
+    }
+
+    /**
+     * Filters a payload and commits what is left of it, as if it was persisted.
+     *
+     * @return The names of the attributes that are applied.
+     */
+    Set<String> apply(long timestamp, Map<String, Double> values) {
+        def attributes = payload(timestamp, values)
+        filter.filter("asset", attributes, index)
+        filter.commit("asset", attributes, index)
+        return attributes.keySet()
+    }
+
+    def "Only parameters that opt in through their policy are filtered"() {
+        given:
+        def values = ["16": 1000d, "21": 4d, "66": 1d, "67": 12.5d, "68": 3d]
+
+        expect: "the first payload is applied completely"
+        apply(1000, values) == values.keySet()
+
+        and: "of the same payload, only the parameters that are stored on change or have a deadband are removed"
+        apply(2000, values) == ["16", "66", "68"] as Set
+        filter.getSuppressedCount() == 2
+    }
+
+    def "Values within the deadband of the last applied value are filtered"() {
+        given:
+        apply(1000, ["67": 12.5d])
+
+        expect: "changes within the deadband are filtered, and a slow drift is applied once it exceeds it"
+        apply(2000, ["67": 12.55d]).isEmpty()
+        apply(3000, ["67": 12.6d]).isEmpty()
+        apply(4000, ["67": 12.65d]) == ["67"] as Set
+        apply(5000, ["67": 12.7d]).isEmpty()
+        apply(6000, ["67": 12.5d]) == ["67"] as Set
+    }
+
+    def "An unchanged value is applied once the heartbeat has passed"() {
+        given:
+        apply(1000, ["21": 4d])
+
+        expect:
+        apply(1000 + HEARTBEAT - 1, ["21": 4d]).isEmpty()
+        apply(1000 + HEARTBEAT, ["21": 4d]) == ["21"] as Set
+        apply(1000 + HEARTBEAT + 1, ["21": 4d]).isEmpty()
+        filter.getHeartbeatCount() == 1
+    }
+
+    def "Values are only recorded as applied once they are committed"() {
+        given:
+        apply(1000, ["21": 4d])
+
+        when: "a payload with a new value is filtered, but fails to persist"
+        def failed = payload(2000, ["21": 5d])
+        filter.filter("asset", failed, index)
+
+        then: "the new value is kept"
+        failed.keySet() == ["21"] as Set
+
+        and: "the value that was last persisted is still filtered, and the new value is applied again"
+        apply(3000, ["21": 4d]).isEmpty()
+        apply(4000, ["21": 5d]) == ["21"] as Set
+    }
+
+    def "Nothing is filtered when the filter is disabled, or for a removed asset"() {
+        given:
+        apply(1000, ["21": 4d])
+
+        when:
+        filter.remove("asset")
+
+        then:
+        apply(2000, ["21": 4d]) == ["21"] as Set
+
+        when:
+        filter = new TeltonikaChangeFilter(false, HEARTBEAT)
+        apply(3000, ["21": 4d])
+
+        then:
+        apply(4000, ["21": 4d]) == ["21"] as Set
+    }
+
+    def "The records of a batch are compared with the records before them, as the batch is committed at once"() {
+        given:
+        apply(1000, ["21": 5d])
+
+        when: "a batch is filtered before any of its records is committed"
+        def batch = new TeltonikaChangeFilter.Batch()
+        def records = [payload(2000, ["21": 6d]), payload(3000, ["21": 5d]), payload(4000, ["21": 5d])]
+        records.each { filter.filter("asset", it, index, batch) }
+
+        then: "a record that changes the value back to the committed value is still applied"
+        records.collect { it.keySet() } == [["21"] as Set, ["21"] as Set, [] as Set]
+
+        when: "a batch of a device without committed values is filtered"
+        batch = new TeltonikaChangeFilter.Batch()
+        records = [payload(1000, ["21": 4d]), payload(2000, ["21": 4d])]
+        records.each { filter.filter("other", it, index, batch) }
+
+        then:
+        records.collect { it.keySet() } == [["21"] as Set, [] as Set]
+    }
+}
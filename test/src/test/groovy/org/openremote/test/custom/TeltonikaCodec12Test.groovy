@@ -0,0 +1,115 @@
+package org.openremote.test.custom
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import telematics.teltonika.codec.TeltonikaAvlPacket
+import telematics.teltonika.codec.TeltonikaTcpFrameDecoder
+import telematics.teltonika.codec.TeltonikaTcpServer
+import telematics.teltonika.codec.TeltonikaTcpSessionHandler
+import spock.lang.Specification
+
+import java.nio.channels.ClosedChannelException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.RejectedExecutionException
+
+class TeltonikaCodec12Test extends Specification {
+
+    // Sample packets from the Teltonika Codec 12 protocol documentation
+    static final String IMEI_HANDSHAKE = "000F333536333037303432343431303133"
+    static final String GETINFO_COMMAND = "000000000000000F0C010500000007676574696E666F0100004312"
+    static final String GETINFO_RESPONSE = "00000000000000900C010600000088494E493A323031392F372F323220373A3232205254433A323031392F372F323220373A3533205253543A32204552523A312053523A302042523A302043463A302046473A3020464C3A302054553A302F302055543A3020534D533A30204E4F4750533A303A3330204750533A31205341543A302052533A332052463A36352053463A31204D443A30010000C78F"
+    static final String GETINFO_RESPONSE_TEXT = "INI:2019/7/22 7:22 RTC:2019/7/22 7:53 RST:2 ERR:1 SR:0 BR:0 CF:0 FG:0 FL:0 TU:0/0 UT:0 SMS:0 NOGPS:0:30 GPS:1 SAT:0 RS:3 RF:65 SF:1 MD:0"
+
+    Map<String, TeltonikaTcpSessionHandler> sessions = new ConcurrentHashMap<>()
+
+    TeltonikaTcpSessionHandler session = new TeltonikaTcpSessionHandler(new TeltonikaTcpServer.Listener() {
+        @Override
+        boolean onConnect(String imei, SocketAddress remoteAddress) {
+            return true
+        }
+
+        @Override
+        CompletionStage<Integer> onRecords(String imei, TeltonikaAvlPacket packet) {
+            return CompletableFuture.completedFuture(packet.getRecords().size())
+        }
+    }, sessions, 2, 0)
+
+    EmbeddedChannel channel = new EmbeddedChannel(new TeltonikaTcpFrameDecoder(65536), session)
+
+    static ByteBuf hex(String value) {
+        return Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(value))
+    }
+
+    String readOutbound() {
+        ByteBuf outbound = channel.readOutbound()
+        try {
+            return ByteBufUtil.hexDump(outbound).toUpperCase()
+        } finally {
+            outbound.release()
+        }
+    }
+
+    def setup() {
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+        readOutbound()
+    }
+
+    def "A command is sent and its response is returned"() {
+        when: "a command is sent to the connected device"
+        def response = sessions["356307042441013"].sendCommand("getinfo")
+        channel.runPendingTasks()
+
+        then: "the command is written as a Codec 12 packet"
+        readOutbound() == GETINFO_COMMAND
+        !response.isDone()
+
+        when: "the device responds"
+        channel.writeInbound(hex(GETINFO_RESPONSE))
+
+        then: "the response is returned"
+        response.getNow(null) == GETINFO_RESPONSE_TEXT
+        session.getPendingCommandCount() == 0
+    }
+
+    def "Commands are pipelined and their responses are matched in order"() {
+        when: "commands are sent without waiting for their responses"
+        def first = session.sendCommand("getinfo")
+        def second = session.sendCommand("getver")
+        def third = session.sendCommand("getstatus")
+        channel.runPendingTasks()
+
+        then: "the commands are written until too many are waiting for their response"
+        readOutbound() == GETINFO_COMMAND
+        readOutbound() != null
+        channel.readOutbound() == null
+        third.isCompletedExceptionally()
+
+        when: "the device responds to the first command"
+        channel.writeInbound(hex(GETINFO_RESPONSE))
+
+        then: "the response is matched to the first command"
+        first.getNow(null) == GETINFO_RESPONSE_TEXT
+        !second.isDone()
+
+        when: "the device disconnects"
+        channel.close()
+        second.get()
+
+        then: "the remaining command fails and the session is removed"
+        def e = thrown(ExecutionException)
+        e.getCause() instanceof ClosedChannelException
+        sessions.isEmpty()
+
+        when: "the response of the rejected command is requested"
+        third.get()
+
+        then: "it was rejected"
+        e = thrown(ExecutionException)
+        e.getCause() instanceof RejectedExecutionException
+    }
+}
@@ -0,0 +1,170 @@
+package org.openremote.test.custom
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import telematics.teltonika.codec.TeltonikaAvlPacket
+import telematics.teltonika.codec.TeltonikaTcpFrameDecoder
+import telematics.teltonika.codec.TeltonikaTcpServer
+import telematics.teltonika.codec.TeltonikaTcpSessionHandler
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+
+class TeltonikaCodec8Test extends Specification {
+
+    // Sample packets from the Teltonika Codec 8 and Codec 8 Extended protocol documentation
+    static final String IMEI_HANDSHAKE = "000F333536333037303432343431303133"
+    static final String CODEC_8_PACKET = "000000000000003608010000016B40D8EA30010000000000000000000000000000000105021503010101425E0F01F10000601A014E0000000000000000010000C7CF"
+    static final String CODEC_8_EXTENDED_PACKET = "000000000000004A8E010000016B412CEE000100000000000000000000000000000000010005000100010100010011001D00010010015E2C880002000B000000003544C87A000E000000001DD7E06A00000100002994"
+
+    List<TeltonikaAvlPacket> packets = []
+    List<String> imeis = []
+    boolean acceptDevices = true
+    // Completes with the amount of records of the packet unless set, as if they were stored right away
+    CompletableFuture<Integer> stored
+
+    EmbeddedChannel channel = new EmbeddedChannel(
+            new TeltonikaTcpFrameDecoder(65536),
+            new TeltonikaTcpSessionHandler(new TeltonikaTcpServer.Listener() {
+                @Override
+                boolean onConnect(String imei, SocketAddress remoteAddress) {
+                    imeis.add(imei)
+                    return acceptDevices
+                }
+
+                @Override
+                CompletionStage<Integer> onRecords(String imei, TeltonikaAvlPacket packet) {
+                    packets.add(packet)
+                    return stored != null ? stored : CompletableFuture.completedFuture(packet.getRecords().size())
+                }
+            })
+    )
+
+    static ByteBuf hex(String value) {
+        return Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(value))
+    }
+
+    String readResponse() {
+        ByteBuf response = channel.readOutbound()
+        try {
+            return ByteBufUtil.hexDump(response)
+        } finally {
+            response.release()
+        }
+    }
+
+    def "A device is accepted after the IMEI handshake"() {
+        when: "the device sends its IMEI"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+
+        then: "the IMEI is accepted"
+        imeis == ["356307042441013"]
+        readResponse() == "01"
+    }
+
+    def "A rejected device is disconnected"() {
+        given: "devices are rejected"
+        acceptDevices = false
+
+        when: "the device sends its IMEI"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+
+        then: "the IMEI is rejected and the connection is closed"
+        readResponse() == "00"
+        !channel.isOpen()
+    }
+
+    def "A Codec 8 packet is decoded and acknowledged"() {
+        given: "a connected device"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+        readResponse()
+
+        when: "the device sends a packet in two parts"
+        ByteBuf packet = hex(CODEC_8_PACKET)
+        channel.writeInbound(packet.readRetainedSlice(20))
+        channel.writeInbound(packet)
+
+        then: "the record is decoded"
+        packets.size() == 1
+        packets[0].getCodecId() == 0x08
+        def record = packets[0].getRecords()[0]
+        record.getTimestamp() == 1560161086000L
+        record.getPriority() == 1
+        record.getEventIoId() == 1
+        !record.hasCoordinates()
+        (0..<record.getIoCount()).collect { [record.getIoId(it), record.getIoWidth(it), record.getIoValue(it)] } == [
+                [21, 1, 3L],
+                [1, 1, 1L],
+                [66, 2, 24079L],
+                [241, 4, 24602L],
+                [78, 8, 0L]
+        ]
+
+        and: "the amount of records is acknowledged"
+        readResponse() == "00000001"
+    }
+
+    def "A packet is only acknowledged once its records are stored"() {
+        given: "a connected device whose records are not stored yet"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+        readResponse()
+        stored = new CompletableFuture<>()
+
+        when: "the device sends a packet"
+        channel.writeInbound(hex(CODEC_8_PACKET))
+
+        then: "it is not acknowledged yet"
+        packets.size() == 1
+        channel.readOutbound() == null
+
+        when: "the record is stored"
+        stored.complete(1)
+        channel.runPendingTasks()
+
+        then:
+        readResponse() == "00000001"
+    }
+
+    def "A Codec 8 Extended packet is decoded and acknowledged"() {
+        given: "a connected device"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+        readResponse()
+
+        when: "the device sends a packet"
+        channel.writeInbound(hex(CODEC_8_EXTENDED_PACKET))
+
+        then: "the record is decoded"
+        packets.size() == 1
+        packets[0].getCodecId() == 0x8E
+        def record = packets[0].getRecords()[0]
+        record.getTimestamp() == 1560166592000L
+        (0..<record.getIoCount()).collect { [record.getIoId(it), record.getIoWidth(it), record.getIoValue(it)] } == [
+                [1, 1, 1L],
+                [17, 2, 29L],
+                [16, 4, 22949000L],
+                [11, 8, 893700218L],
+                [14, 8, 500686954L]
+        ]
+        record.getVariableIoCount() == 0
+
+        and: "the amount of records is acknowledged"
+        readResponse() == "00000001"
+    }
+
+    def "A packet with an invalid CRC is not acknowledged"() {
+        given: "a connected device"
+        channel.writeInbound(hex(IMEI_HANDSHAKE))
+        readResponse()
+
+        when: "the device sends a packet with an invalid CRC"
+        channel.writeInbound(hex(CODEC_8_PACKET.substring(0, CODEC_8_PACKET.length() - 4) + "0000"))
+
+        then: "no records are decoded and the device is asked to send the packet again"
+        packets.isEmpty()
+        readResponse() == "00000000"
+        channel.isOpen()
+    }
+}
@@ -0,0 +1,71 @@
+package org.openremote.test.custom
+
+import spock.lang.Specification
+import telematics.teltonika.ingest.TeltonikaDatapointCompressor
+import telematics.teltonika.ingest.TeltonikaDatapointWriter
+
+class TeltonikaDatapointCompressorTest extends Specification {
+
+    TeltonikaDatapointCompressor compressor = new TeltonikaDatapointCompressor(60 * 60 * 1000)
+    List<TeltonikaDatapointWriter.Datapoint> stored = []
+
+    void offer(String attributeName, long timestamp, Number value, double deviation) {
+        compressor.offer("asset", attributeName, timestamp, value, deviation, { stored.add(it) })
+    }
+
+    static double interpolate(List<TeltonikaDatapointWriter.Datapoint> datapoints, long timestamp) {
+        def next = datapoints.findIndexOf { it.getTimestamp() >= timestamp }
+        def b = datapoints[next]
+        if (b.getTimestamp() == timestamp) {
+            return b.getValue() as double
+        }
+        def a = datapoints[next - 1]
+        return (a.getValue() as double) + ((b.getValue() as double) - (a.getValue() as double)) * (timestamp - a.getTimestamp()) / (b.getTimestamp() - a.getTimestamp())
+    }
+
+    def "A linear series is stored as its first and last datapoint"() {
+        when: "an odometer increases at a constant speed"
+        (0..<100).each { offer("16", it * 1000L, 1000 + it * 2, 0.5) }
+        compressor.flush({ stored.add(it) })
+
+        then: "only the end points are stored, with their original values"
+        stored.collect { [it.getTimestamp(), it.getValue()] } == [[0L, 1000], [99000L, 1198]]
+    }
+
+    def "The corners of a step are stored"() {
+        when: "a voltage jumps once"
+        (0..<20).each { offer("67", it * 1000L, it < 10 ? 12.0d : 14.0d, 0.1) }
+        compressor.flush({ stored.add(it) })
+
+        then: "the datapoints before and after the step are stored"
+        stored.collect { it.getTimestamp() } == [0L, 9000L, 10000L, 19000L]
+    }
+
+    def "A noisy series is rebuilt within the deviation"() {
+        given: "a noisy fuel level"
+        def random = new Random(1)
+        def values = (0..<500).collect { Math.sin(it / 30d) * 10 + random.nextGaussian() * 0.1 }
+
+        when: "the samples are compressed"
+        values.eachWithIndex { value, i -> offer("89", i * 1000L, value, 0.5) }
+        compressor.flush({ stored.add(it) })
+
+        then: "far fewer datapoints are stored"
+        stored.size() < values.size() / 10
+
+        and: "every sample is within the deviation of the rebuilt series"
+        values.indexed().every { i, value -> Math.abs(interpolate(stored, i * 1000L) - value) <= 0.5 }
+    }
+
+    def "A segment is closed after the maximum segment duration"() {
+        given: "a compressor with a short maximum segment duration"
+        compressor = new TeltonikaDatapointCompressor(10000)
+
+        when: "a value does not change for a minute"
+        (0..60).each { offer("16", it * 1000L, 5, 0.5) }
+
+        then: "a datapoint is stored at least every 10 seconds"
+        stored.size() >= 6
+        stored.collect { it.getTimestamp() }.collate(2, 1, false).every { it[1] - it[0] <= 10000 }
+    }
+}
@@ -0,0 +1,134 @@
+package org.openremote.test.custom
+
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.teltonika.TeltonikaParameter
+import org.openremote.model.teltonika.TeltonikaParameterPolicy
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+import telematics.teltonika.TeltonikaParameterIndex
+import telematics.teltonika.ingest.TeltonikaDatapointFilter
+
+import static org.openremote.model.teltonika.TeltonikaParameterPolicy.Storage.*
+import static org.openremote.model.value.MetaItemType.RULE_STATE
+import static org.openremote.model.value.MetaItemType.STORE_DATA_POINTS
+
+class TeltonikaDatapointFilterTest extends Specification {
+
+    TeltonikaDatapointFilter filter = new TeltonikaDatapointFilter()
+
+    static Attribute<?> attribute(String name, Object value, long timestamp) {
+        return new Attribute<>(name, ValueType.NUMBER, value as Double, timestamp)
+    }
+
+    static TeltonikaParameter parameter(int id, String group) {
+        return new TeltonikaParameter(id, "Parameter " + id, "2", "Unsigned", "0", "65535", "1", "-", "-", "all", group)
+    }
+
+    boolean accept(Object value, long timestamp, Object previous, TeltonikaParameterPolicy policy) {
+        return filter.accept("asset", attribute("67", value, timestamp), previous != null ? attribute("67", previous, timestamp - 1) : null, policy)
+    }
+
+    def "A datapoint is stored according to the storage of the policy"() {
+        expect:
+        accept(value, 1000, previous, new TeltonikaParameterPolicy(storage, null, true)) == stored
+
+        where:
+        storage   | previous | value | stored
+        ALWAYS    | 12.0     | 12.0  | true
+        NEVER     | null     | 12.0  | false
+        NEVER     | 11.0     | 12.0  | false
+        ON_CHANGE | null     | 12.0  | true
+        ON_CHANGE | 12.0     | 12.0  | false
+        ON_CHANGE | 11.0     | 12.0  | true
+        null      | 12.0     | 12.0  | true
+    }
+
+    def "A datapoint is stored at most once per interval of device time"() {
+        given:
+        def policy = new TeltonikaParameterPolicy(INTERVAL, 60, true)
+
+        expect: "the first value is stored, and the next one only when the interval has passed since the last stored one"
+        accept(12.0, 0, null, policy)
+        !accept(12.5, 30000, null, policy)
+        !accept(13.0, 59999, null, policy)
+        accept(13.5, 60000, null, policy)
+        !accept(14.0, 90000, null, policy)
+
+        and: "a timestamp before the last stored one is taken as a reset of the device clock"
+        accept(14.5, 10000, null, policy)
+        !accept(15.0, 20000, null, policy)
+
+        and: "other attributes and assets have their own interval"
+        filter.accept("asset", attribute("66", 12.0, 20000), null, policy)
+        filter.accept("other", attribute("67", 12.0, 20000), null, policy)
+    }
+
+    def "The interval of a removed asset starts over"() {
+        given:
+        def policy = new TeltonikaParameterPolicy(INTERVAL, 60, true)
+        accept(12.0, 0, null, policy)
+
+        when:
+        filter.remove("asset")
+
+        then:
+        accept(12.5, 30000, null, policy)
+    }
+
+    def "An interval policy without an interval stores every datapoint"() {
+        expect:
+        new TeltonikaParameterPolicy(INTERVAL, intervalSeconds, true).getStorage() == ALWAYS
+        accept(12.0, 0, null, new TeltonikaParameterPolicy(INTERVAL, intervalSeconds, true))
+        accept(12.0, 1000, null, new TeltonikaParameterPolicy(INTERVAL, intervalSeconds, true))
+
+        where:
+        intervalSeconds << [null, 0, -60]
+    }
+
+    def "The policy of a parameter overrides the policy of its group, which overrides the default"() {
+        given: "a parameter policy for 66, and a group policy for the group of 66 and 67"
+        def parameterPolicy = new TeltonikaParameterPolicy(NEVER, null, true)
+        def groupPolicy = new TeltonikaParameterPolicy(ON_CHANGE, null, false)
+        def index = new TeltonikaParameterIndex("FMC003", [
+                66 : parameter(66, "Permanent I/O Elements"),
+                67 : parameter(67, "Permanent I/O Elements"),
+                239: parameter(239, "Eventual I/O Elements"),
+                240: parameter(240, null)
+        ], 1, [:], ["66": parameterPolicy], ["Permanent I/O Elements": groupPolicy])
+
+        expect: "each parameter resolves to its policy"
+        index.get(66).getCodec().getPolicy() == parameterPolicy
+        index.get(67).getCodec().getPolicy() == groupPolicy
+        index.get(239).getCodec().getPolicy() == TeltonikaParameterPolicy.DEFAULT
+        index.get(240).getCodec().getPolicy() == TeltonikaParameterPolicy.DEFAULT
+
+        and: "parameters that are not part of the index resolve to the default policy"
+        index.unknownParameter("9999").getCodec().getPolicy() == TeltonikaParameterPolicy.DEFAULT
+    }
+
+    def "The storage and rule exposure of the policy are set on the meta of the attributes"() {
+        given:
+        def index = new TeltonikaParameterIndex("FMC003", [
+                66 : parameter(66, "Permanent I/O Elements"),
+                67 : parameter(67, "Permanent I/O Elements"),
+                239: parameter(239, "Eventual I/O Elements")
+        ], 1, [:], ["66": new TeltonikaParameterPolicy(NEVER, null, true)], ["Permanent I/O Elements": new TeltonikaParameterPolicy(ON_CHANGE, null, false)])
+
+        when:
+        def never = index.get(66).getCodec().toAttribute(12000)
+        def notInRules = index.get(67).getCodec().toAttribute(12000)
+        def defaults = index.get(239).getCodec().toAttribute(1)
+
+        then: "a parameter that is never stored has no datapoints, but is exposed to the rules"
+        never.getMetaValue(STORE_DATA_POINTS).orElse(null) == false
+        never.getMetaValue(RULE_STATE).orElse(null) == true
+
+        and: "a parameter that is stored on change has datapoints, but is not exposed to the rules"
+        notInRules.getMetaValue(STORE_DATA_POINTS).orElse(null) == true
+        notInRules.getMetaValue(RULE_STATE).orElse(null) == false
+
+        and: "a parameter without a policy has datapoints and is exposed to the rules"
+        defaults.getMetaValue(STORE_DATA_POINTS).orElse(null) == true
+        defaults.getMetaValue(RULE_STATE).orElse(null) == true
+    }
+}
@@ -0,0 +1,71 @@
+package org.openremote.test.custom
+
+import org.openremote.container.persistence.PersistenceService
+import spock.lang.Specification
+import telematics.teltonika.ingest.TeltonikaDatapointWriter
+
+import java.util.concurrent.ScheduledExecutorService
+
+class TeltonikaDatapointWriterTest extends Specification {
+
+    PersistenceService persistenceService = Mock()
+    // Not started, so datapoints are only written when the test flushes them
+    TeltonikaDatapointWriter writer = new TeltonikaDatapointWriter(persistenceService, Mock(ScheduledExecutorService), 1000, 2, 100)
+    List<Integer> stored = []
+
+    void write(long timestamp) {
+        writer.write(new TeltonikaDatapointWriter.Datapoint("asset", "66", 1d, timestamp))
+    }
+
+    def "A callback is run once the datapoints that were buffered before it are written"() {
+        when: "a callback is buffered behind two batches of datapoints, followed by another datapoint"
+        def failedBatches = writer.getFailedBatchCount()
+        (1..4).each { write(it) }
+        writer.afterWritten(failedBatches, { stored << 1 })
+        write(5)
+
+        and:
+        writer.flushAll()
+
+        then: "it is run once the batches before it are written"
+        3 * persistenceService.doTransaction(_)
+        stored == [1]
+        writer.getWrittenCount() == 5
+        writer.getBufferedCount() == 0
+    }
+
+    def "A callback is not run when a batch failed after its failed batch count was read"() {
+        given:
+        def failedBatches = writer.getFailedBatchCount()
+
+        when: "the batch of the datapoints before a callback fails"
+        write(1)
+        writer.afterWritten(failedBatches, { stored << 1 })
+        writer.flushAll()
+
+        then:
+        1 * persistenceService.doTransaction(_) >> { throw new IllegalStateException("Database is down") }
+        stored.isEmpty()
+        writer.getFailedBatchCount() == failedBatches + 1
+
+        when: "a callback read the failed batch count before that failure"
+        write(2)
+        writer.afterWritten(failedBatches, { stored << 2 })
+        writer.afterWritten(writer.getFailedBatchCount(), { stored << 3 })
+        writer.flushAll()
+
+        then: "only the callback that read it after the failure is run"
+        1 * persistenceService.doTransaction(_)
+        stored == [3]
+    }
+
+    def "Callbacks without datapoints before them are run without a transaction"() {
+        when:
+        writer.afterWritten(writer.getFailedBatchCount(), { stored << 1 })
+        writer.flushAll()
+
+        then:
+        0 * persistenceService.doTransaction(_)
+        stored == [1]
+    }
+}
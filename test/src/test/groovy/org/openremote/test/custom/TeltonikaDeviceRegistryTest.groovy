@@ -0,0 +1,168 @@
+package org.openremote.test.custom
+
+import spock.lang.Specification
+import telematics.teltonika.registry.TeltonikaDeviceRegistry
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicBoolean
+
+class TeltonikaDeviceRegistryTest extends Specification {
+
+    TeltonikaDeviceRegistry registry = new TeltonikaDeviceRegistry()
+
+    static void register(TeltonikaDeviceRegistry registry, long imei) {
+        registry.register(imei, "asset" + imei, "FMC003", "master", true)
+    }
+
+    /**
+     * @return IMEIs from {@code start} on whose slot in a table of the minimum capacity is the last one.
+     */
+    static List<Long> lastSlotImeis(long start, int count) {
+        def mask = TeltonikaDeviceRegistry.MIN_CAPACITY - 1
+        return (start..<(start + 10000)).findAll { (TeltonikaDeviceRegistry.hash((long) it) & mask) == mask }.take(count)
+    }
+
+    /**
+     * @return Asset IDs whose slot in a table of the minimum capacity is the last one.
+     */
+    static List<String> lastSlotAssetIds(int count) {
+        def mask = TeltonikaDeviceRegistry.MIN_CAPACITY - 1
+        return (0..<10000).collect { "asset" + it }.findAll { (TeltonikaDeviceRegistry.hash((String) it) & mask) == mask }.take(count)
+    }
+
+    def "Devices are found by IMEI and by asset ID"() {
+        when:
+        register(registry, 352093081452251L)
+        registry.subscribed(352093081452252L, "master", "client", "master/client/352093081452252/commands")
+
+        then:
+        registry.size() == 2
+        registry.get(352093081452251L).getAssetId() == "asset352093081452251"
+        registry.getByAssetId("asset352093081452251").getImei() == 352093081452251L
+        registry.findImei("asset352093081452251") == 352093081452251L
+        registry.get(352093081452252L).getAssetId() == null
+        registry.get(352093081452252L).isSubscribed()
+        registry.get(352093081452253L) == null
+        registry.findImei("unknown") == -1
+
+        when: "the device gets another asset"
+        registry.register(352093081452251L, "other", "FMC003", "master", true)
+
+        then: "its previous asset is no longer indexed"
+        registry.findImei("asset352093081452251") == -1
+        registry.findImei("other") == 352093081452251L
+    }
+
+    def "All devices are kept when the table is resized"() {
+        when:
+        (1L..1000L).each { register(registry, it) }
+
+        then:
+        registry.size() == 1000
+        registry.table.mask + 1 >= 1024
+        (1L..1000L).every { registry.get(it)?.getAssetId() == "asset" + it && registry.findImei("asset" + it) == it }
+    }
+
+    def "Devices whose probe sequence wraps around the end of the table are found after one before them is removed"() {
+        given: "three devices that all want the last slot, so that two of them wrap around to the start of the table"
+        def imeis = lastSlotImeis(1, 3)
+        imeis.each { register(registry, it) }
+
+        expect:
+        registry.table.keys[TeltonikaDeviceRegistry.MIN_CAPACITY - 1] == imeis[0]
+        registry.table.keys[0] == imeis[1]
+        registry.table.keys[1] == imeis[2]
+
+        when:
+        registry.unregister(imeis[0])
+
+        then: "the others are shifted back, across the end of the table"
+        registry.size() == 2
+        registry.table.keys[TeltonikaDeviceRegistry.MIN_CAPACITY - 1] == imeis[1]
+        registry.table.keys[0] == imeis[2]
+        registry.table.keys[1] == 0L
+        registry.get(imeis[0]) == null
+        registry.get(imeis[1]).getAssetId() == "asset" + imeis[1]
+        registry.get(imeis[2]).getAssetId() == "asset" + imeis[2]
+        registry.findImei("asset" + imeis[0]) == -1
+        registry.findImei("asset" + imeis[2]) == imeis[2]
+    }
+
+    def "Asset IDs whose probe sequence wraps around the end of the index are found after one before them is removed"() {
+        given:
+        def assetIds = lastSlotAssetIds(3)
+        assetIds.eachWithIndex { assetId, i -> registry.register(i + 1, assetId, "FMC003", "master", true) }
+
+        when:
+        registry.unregister(1L)
+
+        then:
+        registry.findImei(assetIds[0]) == -1
+        registry.findImei(assetIds[1]) == 2L
+        registry.findImei(assetIds[2]) == 3L
+        registry.table.indexedAssetIds[TeltonikaDeviceRegistry.MIN_CAPACITY - 1] == assetIds[1]
+        registry.table.indexedAssetIds[0] == assetIds[2]
+        registry.table.indexedAssetIds[1] == null
+    }
+
+    def "Optimistic reads that race with writes see a consistent device"() {
+        given: "devices that are never changed"
+        (1L..100L).each { register(registry, it) }
+        def running = new AtomicBoolean(true)
+
+        when: "other devices are added and removed, which resizes the table and shifts slots, while they are read"
+        def writer = CompletableFuture.runAsync {
+            for (int round = 0; round < 50; round++) {
+                (1000L..3000L).each { register(registry, it) }
+                (1000L..3000L).each { registry.unregister(it) }
+            }
+            running.set(false)
+        }
+        def mismatches = 0
+        while (running.get()) {
+            for (long imei = 1; imei <= 100; imei++) {
+                def device = registry.get(imei)
+                if (device?.getAssetId() != "asset" + imei || registry.findImei("asset" + imei) != imei) {
+                    mismatches++
+                }
+            }
+        }
+        writer.join()
+
+        then:
+        mismatches == 0
+        registry.size() == 100
+    }
+
+    def "The last contact only moves forward, also when it is updated while devices are added and removed"() {
+        given:
+        (1L..100L).each { register(registry, it) }
+        registry.subscribed(101L, "master", "client", "master/client/101/commands")
+
+        when: "the last contacts are updated from several threads while other devices resize the table and shift slots"
+        def writer = CompletableFuture.runAsync {
+            for (int round = 0; round < 20; round++) {
+                (1000L..3000L).each { register(registry, it) }
+                (1000L..3000L).each { registry.unregister(it) }
+            }
+        }
+        def updaters = (0..<4).collect { thread ->
+            CompletableFuture.runAsync {
+                for (long timestamp = 1; timestamp <= 2000; timestamp++) {
+                    (1L..101L).each { registry.updateLastContact(it, timestamp * 4 + thread) }
+                }
+            }
+        }
+        CompletableFuture.allOf(*updaters, writer).join()
+
+        then: "every device holds the newest timestamp, and a device without an asset none"
+        (1L..100L).every { registry.get(it).getLastContact() == 2000L * 4 + 3 }
+        registry.get(101L).getLastContact() == 0L
+
+        when:
+        registry.updateLastContact(1L, 1000L)
+
+        then:
+        registry.get(1L).getLastContact() == 2000L * 4 + 3
+    }
+}
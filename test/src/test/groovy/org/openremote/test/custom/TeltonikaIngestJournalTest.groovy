@@ -0,0 +1,222 @@
+package org.openremote.test.custom
+
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import telematics.teltonika.ingest.TeltonikaIngestJournal
+import telematics.teltonika.ingest.TeltonikaIngestMessage
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+
+class TeltonikaIngestJournalTest extends Specification {
+
+    Path directory = Files.createTempDirectory("teltonika-journal")
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor()
+    PollingConditions conditions = new PollingConditions(timeout: 5)
+
+    def cleanup() {
+        executor.shutdownNow()
+        directory.toFile().deleteDir()
+    }
+
+    TeltonikaIngestJournal open(int maxAttempts = TeltonikaIngestJournal.OR_TELTONIKA_JOURNAL_MAX_ATTEMPTS_DEFAULT) {
+        def journal = new TeltonikaIngestJournal(directory, 4096, 100, maxAttempts, 25, executor)
+        journal.open()
+        return journal
+    }
+
+    static TeltonikaIngestMessage message(int i) {
+        return new TeltonikaIngestMessage("master", "client" + i, "35630704244101" + (i % 10), Unpooled.wrappedBuffer("{\"state\":{\"reported\":{\"ts\":$i}}}".getBytes(StandardCharsets.UTF_8)), i)
+    }
+
+    def "Payloads that were not processed are replayed in order after a restart"() {
+        given: "a journal with payloads of which only the first ones were processed"
+        def journal = open()
+        journal.start({ true })
+        def messages = (0..<100).collect { message(it) }
+        messages.each { journal.append(it) }
+        messages.take(90).each { journal.commit(it) }
+
+        when: "the journal is opened again"
+        journal.stop()
+        journal = open()
+        def replayed = Collections.synchronizedList([])
+        journal.start({ replayed.add(it) })
+
+        then: "the payloads that were not processed are replayed"
+        conditions.eventually {
+            assert replayed.size() == 10
+        }
+        replayed.collect { it.getReceivedAt() } == (90L..<100L).toList()
+        replayed.collect { it.getBody().toString(StandardCharsets.UTF_8) } == messages.drop(90).collect { it.getBody().toString(StandardCharsets.UTF_8) }
+        replayed.every { it.getRealm() == "master" && it.getImei().length() == 15 }
+
+        when: "the replayed payloads are processed"
+        replayed.each { journal.commit(it) }
+
+        then: "the journal removes its segments"
+        journal.getSegmentCount() == 0
+        Files.list(directory).count() == 0
+
+        cleanup:
+        journal.stop()
+    }
+
+    def "Rejected payloads are submitted again"() {
+        given: "a journal whose pipeline rejects the first payloads"
+        def journal = open()
+        def rejections = 3
+        def submitted = Collections.synchronizedList([])
+        journal.start({ rejections-- > 0 ? false : submitted.add(it) })
+
+        when: "payloads of a device are appended and rejected"
+        def messages = [0, 10, 20].collect { message(it) }
+        messages.each {
+            journal.append(it)
+            journal.defer(it)
+        }
+
+        then: "they are submitted again in order once the pipeline accepts them"
+        conditions.eventually {
+            assert submitted.collect { it.getReceivedAt() } == [0L, 10L, 20L]
+        }
+
+        cleanup:
+        journal.stop()
+    }
+
+    def "A device whose payloads are still rejected does not hold back the deferred payloads of other devices"() {
+        given: "a journal whose pipeline rejects the payloads of a single device"
+        def journal = open()
+        def blocked = message(0).getImei()
+        def submitted = Collections.synchronizedList([])
+        journal.start({ it.getImei() == blocked ? false : submitted.add(it) })
+
+        when: "payloads of that device and of another device are deferred"
+        [0, 1, 10, 11].collect { message(it) }.each {
+            journal.append(it)
+            journal.defer(it)
+        }
+
+        then: "the payloads of the other device are submitted again"
+        conditions.eventually {
+            assert submitted.collect { it.getReceivedAt() } == [1L, 11L]
+        }
+        journal.isDeferred(blocked)
+        journal.getDeferredCount() == 2
+
+        cleanup:
+        journal.stop()
+    }
+
+    def "The payloads of a device stay behind its deferred payloads, and are committed once they are stored"() {
+        given: "a journal whose pipeline rejects payloads until it has room"
+        def journal = open()
+        def accepting = false
+        def submitted = Collections.synchronizedList([])
+        journal.start({ accepting ? submitted.add(it) : false })
+
+        when: "a payload of a device is deferred"
+        def deferred = message(0)
+        journal.append(deferred)
+        journal.defer(deferred)
+
+        then: "the device has deferred payloads, which new payloads of it must be deferred behind"
+        journal.isDeferred(deferred.getImei())
+        !journal.isDeferred(message(1).getImei())
+
+        when: "the pipeline has room again"
+        accepting = true
+
+        then: "the payload is submitted again, marked as replayed, and the device has no deferred payloads left"
+        conditions.eventually {
+            assert submitted.size() == 1
+        }
+        submitted[0].isReplayed()
+        !journal.isDeferred(deferred.getImei())
+
+        when: "the writers store the payload after its message was released"
+        def entry = submitted[0].getJournalEntry()
+        submitted[0].release()
+        journal.commit(entry)
+
+        then:
+        journal.getCommittedCount() == 1
+        journal.getSegmentCount() == 1
+
+        cleanup:
+        journal.stop()
+    }
+
+    def "A segment of which only a few payloads are left is compacted, and those payloads are still replayed"() {
+        given: "a journal with a few segments of which all payloads but two are processed"
+        def journal = open()
+        journal.start({ true })
+        def messages = (0..<200).collect { message(it) }
+        messages.each { journal.append(it) }
+        messages.findAll { it.getReceivedAt() != 3L && it.getReceivedAt() != 150L }.each { journal.commit(it) }
+
+        expect: "the segments of both payloads are compacted into the active segment"
+        conditions.eventually {
+            assert journal.getCompactedCount() == 2
+            assert journal.getSegmentCount() == 1
+        }
+
+        when: "the journal is opened again"
+        journal.stop()
+        journal = open()
+        def replayed = Collections.synchronizedList([])
+        journal.start({ replayed.add(it) })
+
+        then: "both payloads are replayed in the order they were appended"
+        conditions.eventually {
+            assert replayed.collect { it.getReceivedAt() } == [3L, 150L]
+        }
+
+        cleanup:
+        journal.stop()
+    }
+
+    def "A payload that keeps failing is dead-lettered"() {
+        given: "a journal with a payload that failed"
+        def journal = open(3)
+        def replayed = Collections.synchronizedList([])
+        journal.start({ replayed.add(it) })
+        def failed = message(0)
+        journal.append(failed)
+        journal.fail(failed)
+
+        when: "it is replayed after a restart and fails again"
+        journal.stop()
+        journal = open(3)
+        journal.start({ replayed.add(it) })
+
+        then:
+        conditions.eventually {
+            assert replayed.size() == 1
+        }
+
+        when:
+        journal.fail(replayed[0])
+
+        then: "it reached the maximum amount of attempts and is committed, which deletes its segment"
+        journal.getDeadLetteredCount() == 1
+        journal.getSegmentCount() == 0
+
+        when: "the journal is opened again"
+        journal.stop()
+        journal = open(3)
+
+        then: "it is not replayed"
+        journal.start({ replayed.add(it) })
+        replayed.size() == 1
+        journal.getSegmentCount() == 0
+
+        cleanup:
+        journal.stop()
+    }
+}
@@ -0,0 +1,138 @@
+package org.openremote.test.custom
+
+import io.netty.buffer.Unpooled
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+import telematics.teltonika.ingest.TeltonikaIngestMessage
+import telematics.teltonika.ingest.TeltonikaIngestPipeline
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CopyOnWriteArrayList
+
+import static telematics.teltonika.ingest.TeltonikaIngestMessage.Priority.*
+
+class TeltonikaIngestPipelineTest extends Specification {
+
+    CountDownLatch gate = new CountDownLatch(1)
+    List<String> processed = new CopyOnWriteArrayList<>()
+    List<String> completed = new CopyOnWriteArrayList<>()
+    Map<String, TeltonikaIngestMessage.Outcome> outcomes = new ConcurrentHashMap<>()
+
+    // A single stripe, sampling low priority messages from 5 queued messages and shedding them from 8
+    TeltonikaIngestPipeline pipeline = new TeltonikaIngestPipeline(new TeltonikaIngestPipeline.Options()
+            .setStripes(1)
+            .setQueueCapacity(10)
+            .setSampleWatermarkPercent(50)
+            .setHighWatermarkPercent(80)
+            .setSampleInterval(2)
+            .setOfferTimeoutMillis(0))
+            .addStage("test", { message ->
+                gate.await()
+                processed.add(message.getClientId())
+                return true
+            } as TeltonikaIngestPipeline.Stage)
+            .onProcessed({ message ->
+                completed.add(message.getClientId())
+                outcomes.put(message.getClientId(), message.getOutcome())
+            })
+
+    def setup() {
+        pipeline.start()
+    }
+
+    def cleanup() {
+        gate.countDown()
+        pipeline.stop()
+    }
+
+    boolean submit(String id, TeltonikaIngestMessage.Priority priority, String realm = "master") {
+        def message = new TeltonikaIngestMessage(realm, id, "352093086403655", Unpooled.buffer(1), 0)
+        message.setPriority(priority)
+        return pipeline.submit(message)
+    }
+
+    def "Low priority messages are sampled and shed when the queue fills up"() {
+        given: "a worker that is busy with the first message"
+        def conditions = new PollingConditions(timeout: 5)
+        submit("first", HIGH)
+        conditions.eventually {
+            assert pipeline.getQueueDepth() == 0
+        }
+
+        when: "low priority messages are submitted until the queue is above the high watermark"
+        def accepted = (0..<12).collect { submit("low" + it, LOW, "fleet") }
+
+        and: "a high priority message is submitted"
+        def highAccepted = submit("high", HIGH)
+
+        then: "all messages are accepted, but every other low priority message is sampled out above the sample watermark, and all are shed above the high watermark"
+        accepted.every()
+        highAccepted
+        pipeline.getQueueDepth() == 9
+        pipeline.getShedCounts() == [fleet: 4L]
+
+        and: "the shed messages are completed without being processed"
+        completed == ["low6", "low8", "low10", "low11"]
+
+        when: "the worker continues"
+        gate.countDown()
+
+        then: "the queued messages are processed in order"
+        conditions.eventually {
+            assert processed == ["first", "low0", "low1", "low2", "low3", "low4", "low5", "low7", "low9", "high"]
+        }
+
+        and: "the outcome of every message tells the shed messages apart"
+        conditions.eventually {
+            assert outcomes.findAll { it.value == TeltonikaIngestMessage.Outcome.SHED }.keySet() == ["low6", "low8", "low10", "low11"] as Set
+            assert outcomes.findAll { it.value == TeltonikaIngestMessage.Outcome.PROCESSED }.keySet() == processed as Set
+        }
+    }
+
+    def "A message for a full stripe is rejected without waiting when no timeout is given"() {
+        given: "a worker that is busy with the first message, and a full queue behind it"
+        def conditions = new PollingConditions(timeout: 5)
+        submit("first", HIGH)
+        conditions.eventually {
+            assert pipeline.getQueueDepth() == 0
+        }
+        (0..<10).each { submit("high" + it, HIGH) }
+
+        when: "another message is submitted without a timeout"
+        def message = new TeltonikaIngestMessage("master", "rejected", "352093086403655", Unpooled.buffer(1), 0)
+        long start = System.nanoTime()
+        def accepted = pipeline.submit(message, 0)
+
+        then: "it is rejected right away, and left to the caller to release"
+        !accepted
+        System.nanoTime() - start < 50_000_000L
+        pipeline.getRejectedCount() == 1
+        message.getBody().refCnt() == 1
+
+        cleanup:
+        message.release()
+    }
+
+    def "Panic messages overtake the queued messages of their stripe"() {
+        given: "a worker that is busy with the first message, and queued messages behind it"
+        def conditions = new PollingConditions(timeout: 5)
+        submit("first", HIGH)
+        conditions.eventually {
+            assert pipeline.getQueueDepth() == 0
+        }
+        submit("low", LOW)
+        submit("high", HIGH)
+
+        when: "a panic message is submitted"
+        submit("panic", PANIC)
+        gate.countDown()
+
+        then: "it is processed before the messages that were queued before it"
+        conditions.eventually {
+            assert processed == ["first", "panic", "low", "high"]
+        }
+        pipeline.getExpressCount() == 1
+        pipeline.getShedCount() == 0
+    }
+}
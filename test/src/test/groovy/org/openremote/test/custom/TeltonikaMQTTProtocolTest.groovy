@@ -10,10 +10,12 @@ import org.openremote.model.util.UniqueIdentifierGenerator
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.datapoint.AssetDatapointService
 import org.openremote.manager.event.ClientEventService
 import org.openremote.manager.mqtt.MQTTBrokerService
 import org.openremote.model.custom.AssetStateDuration
 import org.openremote.model.custom.CustomValueTypes
+import org.openremote.model.datapoint.query.AssetDatapointAllQuery
 import org.openremote.model.query.AssetQuery
 import telematics.teltonika.TeltonikaMQTTHandler
 import org.openremote.manager.setup.SetupService
@@ -34,6 +36,9 @@ import spock.lang.Shared
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.function.Consumer
+
 class TeltonikaMQTTProtocolTest extends Specification implements ManagerContainerTrait {
     @Shared public def conditions = new PollingConditions(timeout: 10, delay: 0.1)
     public static Map<String, TeltonikaParameter> params;
@@ -44,6 +49,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
     public static AgentService agentService;
     public static MQTTBrokerService mqttBrokerService
     public static ClientEventService clientEventService
+    public static AssetDatapointService assetDatapointService
     public static String mqttHost
     public static int mqttPort
     public static String mqttClientId
@@ -80,6 +86,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         agentService = container.getService(AgentService.class)
         mqttBrokerService = container.getService(MQTTBrokerService.class)
         clientEventService = container.getService(ClientEventService.class)
+        assetDatapointService = container.getService(AssetDatapointService.class)
         def keycloakTestSetup = container.getService(SetupService.class).getTaskOfType(CustomKeycloakSetup.class)
         handler = mqttBrokerService.customHandlers.find {it instanceof TeltonikaMQTTHandler} as TeltonikaMQTTHandler
 
@@ -147,7 +154,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
 //            FOR SOME REASON, MQTTBrokerService.java:252 considers this connection internal,
 //            so it returns void without going through with the subscription *??????????*
 //            I think that client.cleanSession is what allows this to not be internal
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
         }
 
         cleanup: "disconnect client from broker"
@@ -174,7 +181,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         then: "A subscription should not exist"
         conditions.eventually {
             assert client.topicConsumerMap.get(incorrectDataTopic1) == null // Consumer added and removed on failure
-            assert !handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert !handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
         }
 
         cleanup: "disconnect client from broker"
@@ -202,7 +209,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         then: "A subscription should not exist"
         // This works because I am expecting either "data" or "command" on the 5th token, but the 5th token does not exist in the Topic
         conditions.eventually {
-            assert !handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert !handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
             assert client.topicConsumerMap.get(incorrectDataTopic2) == null // Consumer added and removed on failure
         }
         cleanup: "disconnect client from broker"
@@ -230,7 +237,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         // This works because I am expecting either "data" or "command" on the 5th token, but the 5th token does not exist in the Topic
         conditions.eventually {
             assert client.topicConsumerMap.get(incorrectDataTopic3) == null // Consumer added and removed on failure
-            assert !handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert !handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
         }
 
         cleanup: "disconnect client from broker"
@@ -256,7 +263,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         then: "A subscription should exist"
         conditions.eventually {
             assert client.topicConsumerMap.get(correctTopic1) != null
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
         }
 
         cleanup: "disconnect client from broker"
@@ -285,8 +292,8 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         conditions.eventually {
             assert client.topicConsumerMap.get(correctTopicData) != null
             assert client.topicConsumerMap.get(correctTopicCommands) != null
-            assert handler.connectionSubscriberInfoMap.size() == 1;
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.getSubscribedCount() == 1;
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
 
         }
 
@@ -313,8 +320,8 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         then: "Two subscriptions should exist"
         conditions.eventually {
             assert client.topicConsumerMap.get(correctTopicData) != null
-            assert handler.connectionSubscriberInfoMap.size() == 1;
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.getSubscribedCount() == 1;
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
 
         }
 
@@ -404,8 +411,8 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         conditions.eventually {
             assert client.topicConsumerMap.get(correctTopicData) != null
             assert client.topicConsumerMap.get(correctTopicCommands) != null
-            assert handler.connectionSubscriberInfoMap.size() == 1;
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.getSubscribedCount() == 1;
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
 
         }
 
@@ -496,7 +503,7 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
         then: "A subscription should exist"
         conditions.eventually {
             assert client.topicConsumerMap.get(correctTopic1) != null
-            assert handler.connectionSubscriberInfoMap.containsKey(getTELTONIKA_DEVICE_IMEI());
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(getTELTONIKA_DEVICE_IMEI()));
         }
 
         when: "the JSON with all the payloads is parsed"
@@ -540,5 +547,99 @@ class TeltonikaMQTTProtocolTest extends Specification implements ManagerContaine
 
     }
 
-    //TODO: Write a test for AssetStateDuration (Multiple trip payloads etc.)
+    def "the handler applies all records of a multi-record payload in order"() {
+        when: "a device without an asset connects to the MQTT broker to a data topic with a RX endpoint"
+        // Not the device of the other features, whose asset already holds newer records than these
+        String imei = "358491098808503"
+        String correctTopic1 = "${Constants.MASTER_REALM}/${mqttClientId}/${TELTONIKA_DEVICE_TOKEN}/${imei}/${TELTONIKA_DEVICE_RECEIVE_TOPIC}".toString();
+        client.connect();
+        client.addMessageConsumer(correctTopic1, { _ -> return });
+
+        then: "A subscription should exist"
+        conditions.eventually {
+            assert client.getConnectionStatus() == ConnectionStatus.CONNECTED
+            assert handler.deviceRegistry.isSubscribed(Long.parseLong(imei));
+        }
+
+        when: "the device publishes a batch of records in a single payload, out of order"
+        def slurp = new JsonSlurper()
+        List<Object> payloads = (slurp.parseText(getClass().getResource("/teltonika/SortedPayloads.json").text) as List<Object>).take(20)
+        List<Object> shuffled = new ArrayList<>(payloads)
+        Collections.shuffle(shuffled, new Random(42))
+        client.sendMessage(new MQTTMessage<String>(correctTopic1, JsonOutput.toJson([records: shuffled])))
+
+        then: "the asset holds the state of the latest record"
+        String assetId = UniqueIdentifierGenerator.generateId(imei)
+        long latestTimestamp = payloads.collect { it['state']['reported']['ts'] as long }.max()
+        conditions.eventually {
+            Asset<VehicleAsset> asset = assetStorageService.find(new AssetQuery().ids(assetId).types(VehicleAsset.class))
+            assert asset != null
+            assert asset.getAttribute(VehicleAsset.LAST_CONTACT).get().getValue().get().getTime() == latestTimestamp
+        }
+
+        cleanup: "disconnect client from broker"
+        client.disconnect()
+        client.removeAllMessageConsumers();
+    }
+
+    def "the handler stores a record that is older than the asset as history only"() {
+        given: "a device with its own asset, and the attribute events of that asset"
+        String imei = "358491098808495"
+        String assetId = UniqueIdentifierGenerator.generateId(imei)
+        String topic = "${Constants.MASTER_REALM}/${mqttClientId}/${TELTONIKA_DEVICE_TOKEN}/${imei}/${TELTONIKA_DEVICE_RECEIVE_TOPIC}".toString()
+        List<AttributeEvent> events = new CopyOnWriteArrayList<>()
+        Consumer<AttributeEvent> eventConsumer = { AttributeEvent event ->
+            if (event.getId() == assetId) {
+                events.add(event)
+            }
+        }
+        clientEventService.addSubscription(AttributeEvent.class, null, eventConsumer)
+
+        List<Object> payloads = new JsonSlurper().parseText(getClass().getResource("/teltonika/SortedPayloads.json").text) as List<Object>
+        def latest = payloads[101]
+        def older = payloads[100]
+        long latestTimestamp = latest['state']['reported']['ts'] as long
+        long olderTimestamp = older['state']['reported']['ts'] as long
+
+        when: "the device publishes its latest record"
+        client.connect()
+        client.addMessageConsumer(topic, { _ -> return })
+        conditions.eventually {
+            assert client.getConnectionStatus() == ConnectionStatus.CONNECTED
+        }
+        client.sendMessage(new MQTTMessage<String>(topic, JsonOutput.toJson(latest)))
+
+        then: "the asset holds the latest record"
+        Map<String, Object> current = [:]
+        conditions.eventually {
+            Asset<VehicleAsset> asset = assetStorageService.find(new AssetQuery().ids(assetId).types(VehicleAsset.class))
+            assert asset != null
+            assert asset.getAttribute(VehicleAsset.LAST_CONTACT).get().getValue().get().getTime() == latestTimestamp
+            asset.getAttributes().forEach { current.put(it.getName(), it.getValue().orElse(null)) }
+        }
+
+        when: "the device publishes a record that it buffered while it was offline"
+        events.clear()
+        client.sendMessage(new MQTTMessage<String>(topic, JsonOutput.toJson(older)))
+
+        then: "the record is stored as datapoints"
+        conditions.eventually {
+            // The external voltage, which is stored for every record
+            assert assetDatapointService.queryDatapoints(assetId, "66",
+                    new AssetDatapointAllQuery(olderTimestamp, olderTimestamp)).size() == 1
+        }
+
+        and: "the current state of the asset is untouched, and no attribute events are sent for it"
+        Asset<VehicleAsset> asset = assetStorageService.find(new AssetQuery().ids(assetId).types(VehicleAsset.class))
+        asset.getAttribute(VehicleAsset.LAST_CONTACT).get().getValue().get().getTime() == latestTimestamp
+        current.every { name, value -> asset.getAttribute(name).flatMap { it.getValue() }.orElse(null) == value }
+        events.findAll { it.getTimestamp() == olderTimestamp }.isEmpty()
+
+        cleanup: "disconnect client from broker"
+        clientEventService.removeSubscription(eventConsumer)
+        client.disconnect()
+        client.removeAllMessageConsumers()
+    }
+
+    // The trips that produce the AssetStateDuration are covered by TeltonikaTripTrackerTest
 }
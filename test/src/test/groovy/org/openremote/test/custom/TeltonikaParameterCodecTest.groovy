@@ -0,0 +1,53 @@
+package org.openremote.test.custom
+
+import org.openremote.model.geo.GeoJSONPoint
+import org.openremote.model.teltonika.TeltonikaParameter
+import spock.lang.Specification
+import telematics.teltonika.TeltonikaParameterCodec
+
+class TeltonikaParameterCodecTest extends Specification {
+
+    static TeltonikaParameterCodec compile(String parameterId, String bytes, String type, String min, String max, String multiplier) {
+        return TeltonikaParameterCodec.compile(parameterId, new TeltonikaParameter(Integer.parseInt(parameterId), "Parameter " + parameterId, bytes, type, min, max, multiplier, "-", "-", "all", "Permanent I/O Elements"), [:])
+    }
+
+    def "Signed values are sign extended from the width of the parameter"() {
+        given: "the codec of a parameter"
+        def codec = compile(parameterId, bytes, type, min, max, multiplier)
+
+        expect: "the raw value is decoded as the reported value"
+        codec.toAttribute(raw).getValue().orElseThrow() == expected
+
+        where:
+        parameterId | bytes | type       | min      | max     | multiplier | raw           | expected
+        "17"        | "2"   | "Signed"   | "-8000"  | "8000"  | "-"        | 65479L        | -57d
+        "17"        | "2"   | "Signed"   | "-8000"  | "8000"  | "-"        | -57           | -57d
+        "17"        | "2"   | "Signed"   | "-8000"  | "8000"  | "-"        | 1000          | 1000d
+        "32"        | "1"   | "Signed"   | "-128"   | "127"   | "-"        | 200           | -56d
+        "72"        | "4"   | "Signed"   | "-550"   | "1150"  | "0.1"      | 4294967196L   | -10d
+        "66"        | "2"   | "Unsigned" | "0"      | "65535" | "-"        | 65479L        | 65479d
+    }
+
+    def "Coordinates are parsed without a regular expression"() {
+        given: "the codec of the coordinates"
+        def codec = TeltonikaParameterCodec.compile("latlng", new TeltonikaParameter(-1, "Coordinates", "8", "ASCII", "-", "-", "-", "-", "-", "all", "Permanent I/O Elements"), [:])
+
+        when: "coordinates are converted"
+        def point = codec.toAttribute(latlng)?.getValue()?.orElseThrow() as GeoJSONPoint
+
+        then: "the point is in long-lat form, or there is none for invalid coordinates"
+        point == null ? expected == null : [point.getY(), point.getX()] == expected
+
+        where:
+        latlng                 | expected
+        "51.4416420,5.4697225" | [51.441642d, 5.4697225d]
+        "-33.8688,-151.2093"   | [-33.8688d, -151.2093d]
+        "+90.0,180"            | [90d, 180d]
+        "0.000000,0.000000"    | null
+        "91.0,5.0"             | null
+        "51.4,180.1"           | null
+        "51.,5.4"              | null
+        "51.4;5.4"             | null
+        "51.4,5.4,1"           | null
+    }
+}
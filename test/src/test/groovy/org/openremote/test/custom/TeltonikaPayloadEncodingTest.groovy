@@ -0,0 +1,187 @@
+package org.openremote.test.custom
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper
+import io.netty.buffer.Unpooled
+import org.msgpack.jackson.dataformat.MessagePackFactory
+import org.openremote.model.teltonika.TeltonikaParameter
+import org.openremote.model.util.ValueUtil
+import spock.lang.Specification
+import telematics.teltonika.ITeltonikaPayload
+import telematics.teltonika.TeltonikaConfiguration
+import telematics.teltonika.TeltonikaDataPayload
+import telematics.teltonika.TeltonikaParameterIndex
+import telematics.teltonika.TeltonikaPayloadEncoding
+import telematics.teltonika.TeltonikaPayloadFactory
+
+import java.util.logging.Logger
+import java.util.zip.Deflater
+
+class TeltonikaPayloadEncodingTest extends Specification {
+
+    static final Map<String, Object> PAYLOAD = [state: [reported: [ts: 1700000000000L, "66": 11922]]]
+
+    static final Map<String, Object> RECORD = [state: [reported: [ts: 1700000000000L, pr: 1, latlng: "51.4416,5.4697", "66": 11922, "16": 123456, "239": 1]]]
+    static final Map<String, Object> EARLIER_RECORD = [state: [reported: [ts: 1699999990000L, pr: 0, latlng: "51.4410,5.4690", "66": 11800, "16": 123400, "239": 0]]]
+
+    TeltonikaConfiguration config = Stub(TeltonikaConfiguration) {
+        getParameterIndex(_) >> new TeltonikaParameterIndex("FMC003", [
+                16 : parameter(16, "4"),
+                66 : parameter(66, "2"),
+                239: parameter(239, "1")
+        ], 1, [:])
+    }
+
+    static TeltonikaParameter parameter(int id, String bytes) {
+        return new TeltonikaParameter(id, "Parameter " + id, bytes, "Unsigned", "0", "-", "1", "-", "-", "all", "Permanent I/O Elements")
+    }
+
+    static byte[] encode(Object payload, String encoding) {
+        switch (encoding) {
+            case "json": return new ObjectMapper().writeValueAsBytes(payload)
+            case "cbor": return new CBORMapper().writeValueAsBytes(payload)
+            case "msgpack": return new ObjectMapper(new MessagePackFactory()).writeValueAsBytes(payload)
+            case "deflate": return deflate(new ObjectMapper().writeValueAsBytes(payload), false)
+            case "raw deflate": return deflate(new ObjectMapper().writeValueAsBytes(payload), true)
+            case "deflated cbor": return deflate(new CBORMapper().writeValueAsBytes(payload), false)
+            default: throw new IllegalArgumentException(encoding)
+        }
+    }
+
+    /**
+     * @return The JSON values of the attributes of each payload, keyed by attribute name.
+     */
+    List<Map<String, Object>> decode(byte[] body) {
+        def payloads = TeltonikaPayloadFactory.getPayloads(Unpooled.wrappedBuffer(body), "FMC003", config)
+        return payloads.collect { ITeltonikaPayload payload ->
+            def dataPayload = payload as TeltonikaDataPayload
+            def attributes = dataPayload.getAttributes(dataPayload.getAttributesFromPayload(config, null), config, Logger.getLogger(TeltonikaPayloadEncodingTest.name))
+            attributes.values().collectEntries { [it.getName(), ValueUtil.asJSON(it.getValue().orElse(null)).orElse(null)] }
+        }
+    }
+
+    static byte[] deflate(byte[] data, boolean nowrap) {
+        def deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap)
+        deflater.setInput(data)
+        deflater.finish()
+        def compressed = new byte[data.length + 64]
+        int length = deflater.deflate(compressed)
+        deflater.end()
+        return Arrays.copyOf(compressed, length)
+    }
+
+    def "The encoding of a payload is detected from its first bytes"() {
+        expect:
+        TeltonikaPayloadEncoding.detect(Unpooled.wrappedBuffer(payload)) == encoding
+
+        where:
+        payload                                                                         | encoding
+        new ObjectMapper().writeValueAsBytes(PAYLOAD)                                   | TeltonikaPayloadEncoding.JSON
+        " \n[{}]".getBytes()                                                            | TeltonikaPayloadEncoding.JSON
+        new byte[0]                                                                     | TeltonikaPayloadEncoding.JSON
+        new CBORMapper().writeValueAsBytes(PAYLOAD)                                     | TeltonikaPayloadEncoding.CBOR
+        [0xD9, 0xD9, 0xF7, 0x81, 0xA0] as byte[]                                        | TeltonikaPayloadEncoding.CBOR
+        new ObjectMapper(new MessagePackFactory()).writeValueAsBytes(PAYLOAD)           | TeltonikaPayloadEncoding.MESSAGE_PACK
+        new ObjectMapper(new MessagePackFactory()).writeValueAsBytes([PAYLOAD, PAYLOAD]) | TeltonikaPayloadEncoding.MESSAGE_PACK
+        deflate(new ObjectMapper().writeValueAsBytes(PAYLOAD), false)                   | TeltonikaPayloadEncoding.DEFLATE
+    }
+
+    def "The encoding of a payload is taken from the topic suffix"() {
+        expect:
+        TeltonikaPayloadEncoding.fromTopicSuffix(suffix) == encoding
+
+        where:
+        suffix    | encoding
+        "json"    | TeltonikaPayloadEncoding.JSON
+        "cbor"    | TeltonikaPayloadEncoding.CBOR
+        "msgpack" | TeltonikaPayloadEncoding.MESSAGE_PACK
+        "deflate" | TeltonikaPayloadEncoding.DEFLATE
+        "zlib"    | TeltonikaPayloadEncoding.DEFLATE
+        "xml"     | null
+    }
+
+    def "A payload decodes to the same attributes in every encoding"() {
+        given:
+        def expected = decode(encode(RECORD, "json"))
+
+        expect: "the JSON payload decodes to all of its parameters"
+        expected.size() == 1
+        expected[0].keySet().containsAll(["66", "16", "239", "pr"])
+        expected[0]["66"] == "11922.0"
+
+        and:
+        decode(encode(RECORD, encoding)) == expected
+
+        where:
+        encoding << ["cbor", "msgpack", "deflate", "raw deflate", "deflated cbor"]
+    }
+
+    def "The records of an envelope decode in the order in which they were recorded, in every encoding"() {
+        given:
+        def expected = [decode(encode(EARLIER_RECORD, "json"))[0], decode(encode(RECORD, "json"))[0]]
+
+        expect:
+        decode(encode([records: [RECORD, EARLIER_RECORD]], encoding)) == expected
+        decode(encode([RECORD, EARLIER_RECORD], encoding)) == expected
+
+        where:
+        encoding << ["json", "cbor", "msgpack", "deflate", "deflated cbor"]
+    }
+
+    def "A deflate compressed payload that inflates to more than the maximum length is rejected"() {
+        given: "a payload that compresses well, but inflates to more than the maximum length"
+        def padding = "0" * (TeltonikaPayloadFactory.MAX_INFLATED_LENGTH + 1)
+        def body = encode([state: [reported: [ts: 1700000000000L, "66": 11922]], padding: padding], "deflate")
+
+        when:
+        TeltonikaPayloadFactory.getPayloads(Unpooled.wrappedBuffer(body), "FMC003", config)
+
+        then:
+        def e = thrown(IOException)
+        e.getMessage().contains("exceeds")
+        body.length < 64 * 1024
+    }
+
+    def "The placeholder of an unknown key is compiled once per index, up to a bound"() {
+        given:
+        def index = config.getParameterIndex("FMC003")
+
+        when: "payloads with an unknown key are decoded"
+        decode(encode([state: [reported: [ts: 1700000000000L, "9999": 1]]], "json"))
+        decode(encode([state: [reported: [ts: 1700000001000L, "9999": 2]]], "json"))
+
+        then:
+        index.getUnknownParameterCount() == 1
+        index.unknownParameter("9999").is(index.unknownParameter("9999"))
+
+        when: "more unknown keys arrive than are cached"
+        (0..<TeltonikaParameterIndex.MAX_UNKNOWN_PARAMETERS + 10).each { index.unknownParameter("unknown" + it) }
+
+        then:
+        index.getUnknownParameterCount() == TeltonikaParameterIndex.MAX_UNKNOWN_PARAMETERS
+        index.unknownParameter("unknown" + TeltonikaParameterIndex.MAX_UNKNOWN_PARAMETERS).getParameterId() == "unknown" + TeltonikaParameterIndex.MAX_UNKNOWN_PARAMETERS
+    }
+
+    def "Only the priority of a single JSON record is read before the payload is decoded"() {
+        expect:
+        TeltonikaPayloadFactory.getPriority(Unpooled.wrappedBuffer(encode(payload, encoding)), null) == priority
+
+        where:
+        payload                                                            | encoding  | priority
+        RECORD                                                             | "json"    | 1
+        EARLIER_RECORD                                                     | "json"    | 0
+        PAYLOAD                                                            | "json"    | -1
+        [RSP: "OK"]                                                        | "json"    | -1
+        [records: [RECORD]]                                                | "json"    | -1
+        [RECORD, EARLIER_RECORD]                                           | "json"    | -1
+        RECORD                                                             | "cbor"    | -1
+        RECORD                                                             | "msgpack" | -1
+        RECORD                                                             | "deflate" | -1
+        [state: [desired: [pr: 2], reported: [ts: 1700000000000L, pr: 1]]] | "json"    | 1
+        [state: [reported: [ts: 1700000000000L, "66": [pr: 2], pr: 0]]]    | "json"    | 0
+        [state: [reported: [ts: 1700000000000L, "66": [[pr: 2]]]]]         | "json"    | -1
+        [state: [desired: [reported: [pr: 2]]]]                            | "json"    | -1
+        [meta: [pr: 2], state: [reported: [pr: 1]]]                        | "json"    | -1
+        [state: [reported: [ts: 1700000000000L]], pr: 2]                   | "json"    | -1
+    }
+}
@@ -0,0 +1,139 @@
+package org.openremote.test.custom
+
+import org.openremote.manager.datapoint.AssetDatapointService
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeMap
+import org.openremote.model.custom.AssetStateDuration
+import org.openremote.model.custom.VehicleAsset
+import org.openremote.model.datapoint.ValueDatapoint
+import org.openremote.model.value.ValueType
+import spock.lang.Specification
+import telematics.teltonika.trip.TeltonikaTripTracker
+
+import static telematics.teltonika.trip.TeltonikaTripTracker.LAST_TRIP
+import static telematics.teltonika.trip.TeltonikaTripTracker.TRIP_ATTRIBUTE_NAME
+import static telematics.teltonika.trip.TeltonikaTripTracker.TRIP_STARTED_AT
+
+class TeltonikaTripTrackerTest extends Specification {
+
+    static final long MIN_DURATION = 10000
+    static final long RECOVERY_WINDOW = 60 * 60 * 1000
+
+    AssetDatapointService datapointService = Mock()
+    TeltonikaTripTracker tracker = new TeltonikaTripTracker(datapointService, MIN_DURATION, RECOVERY_WINDOW)
+    VehicleAsset asset = null
+
+    static AttributeMap payload(int trip, long timestamp) {
+        def attributes = new AttributeMap()
+        attributes.add(new Attribute<>(TRIP_ATTRIBUTE_NAME, ValueType.INTEGER, trip, timestamp))
+        return attributes
+    }
+
+    AttributeMap update(int trip, long timestamp) {
+        def attributes = payload(trip, timestamp)
+        tracker.update("asset", { asset }, attributes)
+        return attributes
+    }
+
+    static List<Long> trip(AttributeMap attributes) {
+        def duration = attributes.get(LAST_TRIP).flatMap { it.getValue() }.orElse(null) as AssetStateDuration
+        return duration != null ? [duration.getStartTime().getTime(), duration.getEndTime().getTime()] : null
+    }
+
+    def "A trip is recorded from its rising edge to the last payload in which it was active"() {
+        when: "the trip becomes active"
+        def started = update(1, 1000)
+
+        then: "its start is added to the payload"
+        started.get(TRIP_STARTED_AT).flatMap { it.getValue() }.orElse(null) == 1000L
+        trip(started) == null
+
+        when: "the trip stays active"
+        def active = update(1, 20000)
+
+        then: "neither the start nor the trip are added again"
+        !active.get(TRIP_STARTED_AT).isPresent()
+        trip(active) == null
+
+        when: "the trip becomes inactive"
+        def ended = update(0, 25000)
+
+        then: "the trip ended with the last active payload"
+        trip(ended) == [1000L, 20000L]
+
+        when: "the trip stays inactive"
+        def inactive = update(0, 30000)
+
+        then: "no trip is recorded again"
+        trip(inactive) == null
+    }
+
+    def "Trips shorter than the minimum duration are not recorded"() {
+        when: "a trip of less than the minimum duration ends"
+        update(1, 1000)
+        update(1, 1000 + MIN_DURATION - 1)
+        def ended = update(0, 1000 + MIN_DURATION)
+
+        then: "no trip is recorded"
+        trip(ended) == null
+
+        when: "the next trip lasts long enough"
+        update(1, 50000)
+        update(1, 50000 + MIN_DURATION)
+        ended = update(0, 70000)
+
+        then: "it is recorded from its own start"
+        trip(ended) == [50000L, 50000L + MIN_DURATION]
+    }
+
+    def "The state of a trip in progress is recovered from the start stored in the asset"() {
+        given: "an asset that is in a trip whose start was stored"
+        asset = new VehicleAsset("Teltonika Asset")
+        asset.getAttributes().add(new Attribute<>(TRIP_ATTRIBUTE_NAME, ValueType.INTEGER, 1, 50000L))
+        asset.getAttributes().add(new Attribute<>(TRIP_STARTED_AT, ValueType.TIMESTAMP, 30000L, 30000L))
+
+        when: "the first payload after a restart ends the trip"
+        def ended = update(0, 60000)
+
+        then: "the trip is recorded from the stored start, without reading any datapoints"
+        trip(ended) == [30000L, 50000L]
+        0 * datapointService.queryDatapoints(*_)
+    }
+
+    def "The start of a trip in progress is recovered from the datapoints within the recovery window"() {
+        given: "an asset that is in a trip that started before its start was stored"
+        asset = new VehicleAsset("Teltonika Asset")
+        asset.setId("asset")
+        asset.getAttributes().add(new Attribute<>(TRIP_ATTRIBUTE_NAME, ValueType.INTEGER, 1, 100000L))
+
+        when: "the first payload after a restart ends the trip"
+        def ended = update(0, 110000)
+
+        then: "the datapoints are only queried within the recovery window"
+        1 * datapointService.queryDatapoints("asset", TRIP_ATTRIBUTE_NAME, { it.fromTimestamp == 100000L - RECOVERY_WINDOW && it.toTimestamp == 100000L }) >> [
+                new ValueDatapoint<>(100000L, 1),
+                new ValueDatapoint<>(60000L, 1),
+                new ValueDatapoint<>(40000L, 0),
+                new ValueDatapoint<>(80000L, 1),
+                new ValueDatapoint<>(20000L, 1)
+        ]
+
+        and: "the trip starts at the earliest active datapoint after the last inactive one"
+        trip(ended) == [60000L, 100000L]
+    }
+
+    def "A failing datapoint query starts the recovered trip at its last active payload"() {
+        given: "an asset that is in a trip that started before its start was stored"
+        asset = new VehicleAsset("Teltonika Asset")
+        asset.setId("asset")
+        asset.getAttributes().add(new Attribute<>(TRIP_ATTRIBUTE_NAME, ValueType.INTEGER, 1, 100000L))
+        datapointService.queryDatapoints(*_) >> { throw new IllegalStateException("Database is down") }
+
+        when: "the trip continues and then ends"
+        update(1, 120000)
+        def ended = update(0, 130000)
+
+        then: "the trip is recorded from the last active payload before the restart"
+        trip(ended) == [100000L, 120000L]
+    }
+}
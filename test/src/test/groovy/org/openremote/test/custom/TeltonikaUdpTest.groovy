@@ -0,0 +1,202 @@
+package org.openremote.test.custom
+
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import telematics.teltonika.codec.TeltonikaAvlPacket
+import telematics.teltonika.codec.TeltonikaTcpServer
+import telematics.teltonika.codec.TeltonikaUdpHandler
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+
+class TeltonikaUdpTest extends Specification {
+
+    // Sample packet from the Teltonika Codec 8 protocol documentation
+    static final String CODEC_8_UDP_PACKET = "003DCAFE0105000F33353230393330383634303336353508010000016B4F815B30010000000000000000000000000000000103021503010101425DBC000001"
+
+    static final InetSocketAddress DEVICE_ADDRESS = new InetSocketAddress("127.0.0.1", 40000)
+    static final InetSocketAddress SERVER_ADDRESS = new InetSocketAddress("127.0.0.1", 5027)
+
+    List<TeltonikaAvlPacket> packets = []
+    List<Long> accepted = []
+    List<String> connected = []
+    List<String> disconnected = []
+    boolean acceptDevices = true
+    int maxAcceptedRecords = Integer.MAX_VALUE
+    // Completes with the records that were accepted unless set, as if they were stored right away
+    CompletableFuture<Integer> stored
+
+    TeltonikaUdpHandler handler = new TeltonikaUdpHandler(new TeltonikaTcpServer.Listener() {
+        @Override
+        boolean onConnect(String imei, SocketAddress remoteAddress) {
+            connected.add(imei)
+            return acceptDevices
+        }
+
+        @Override
+        CompletionStage<Integer> onRecords(String imei, TeltonikaAvlPacket packet) {
+            packets.add(packet)
+            int count = Math.min(maxAcceptedRecords, packet.getRecords().size())
+            accepted.addAll(packet.getRecords().take(count).collect { it.getTimestamp() })
+            return stored != null ? stored : CompletableFuture.completedFuture(count)
+        }
+
+        @Override
+        void onDisconnect(String imei) {
+            disconnected.add(imei)
+        }
+    }, 0)
+
+    EmbeddedChannel channel = new EmbeddedChannel(handler)
+
+    /**
+     * Builds a packet of the device of {@link #CODEC_8_UDP_PACKET} with a copy of its record for every timestamp.
+     */
+    static String packet(int avlPacketId, List<Long> timestamps) {
+        def records = timestamps.collect { String.format("%016X", it) + "01" + "00" * 15 + "0103021503010101425DBC0000" }.join()
+        def count = String.format("%02X", timestamps.size())
+        def body = "CAFE01" + String.format("%02X", avlPacketId) + "000F" + ByteBufUtil.hexDump("352093086403655".getBytes()) + "08" + count + records + count
+        return String.format("%04X", body.length().intdiv(2)) + body.toUpperCase()
+    }
+
+    void send(String hex) {
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex)), SERVER_ADDRESS, DEVICE_ADDRESS))
+    }
+
+    String readAcknowledgement() {
+        DatagramPacket ack = channel.readOutbound()
+        if (ack == null) {
+            return null
+        }
+        try {
+            assert ack.recipient() == DEVICE_ADDRESS
+            return ByteBufUtil.hexDump(ack.content()).toUpperCase()
+        } finally {
+            ack.release()
+        }
+    }
+
+    def "A UDP packet is decoded and acknowledged with its packet ID"() {
+        when: "a device sends a packet"
+        send(CODEC_8_UDP_PACKET)
+
+        then: "the device is accepted and the record is decoded"
+        connected == ["352093086403655"]
+        packets.size() == 1
+        packets[0].getRecords()[0].getTimestamp() == 1560407006000L
+
+        and: "the packet is acknowledged with the packet ID, the AVL packet ID and the amount of records"
+        readAcknowledgement() == "0005CAFE010501"
+    }
+
+    def "A packet that is sent again is acknowledged without submitting its records twice"() {
+        when: "a device sends the same packet twice, as the first acknowledgement was lost"
+        send(CODEC_8_UDP_PACKET)
+        send(CODEC_8_UDP_PACKET)
+
+        then: "both are acknowledged, but the records are only submitted once"
+        readAcknowledgement() == "0005CAFE010501"
+        readAcknowledgement() == "0005CAFE010501"
+        packets.size() == 1
+        connected.size() == 1
+    }
+
+    def "Only the records that were not accepted are submitted when a packet is sent again"() {
+        given: "a pipeline that only accepts two records at a time"
+        maxAcceptedRecords = 2
+        def timestamps = [1000L, 2000L, 3000L, 4000L, 5000L]
+
+        when: "a device sends a packet with five records"
+        send(packet(7, timestamps))
+
+        then: "two records are accepted and acknowledged"
+        readAcknowledgement() == "0005CAFE010702"
+        accepted == [1000L, 2000L]
+
+        when: "the device sends the packet again, twice"
+        send(packet(7, timestamps))
+        send(packet(7, timestamps))
+
+        then: "the records are accepted where the previous attempt stopped"
+        readAcknowledgement() == "0005CAFE010704"
+        readAcknowledgement() == "0005CAFE010705"
+        accepted == timestamps
+
+        when: "the acknowledgement was lost, and the device sends the packet once more"
+        send(packet(7, timestamps))
+
+        then: "it is acknowledged without submitting any record"
+        readAcknowledgement() == "0005CAFE010705"
+        accepted == timestamps
+        packets.size() == 3
+
+        when: "the device sends its next packet"
+        send(packet(8, [6000L]))
+
+        then: "all of its records are submitted"
+        readAcknowledgement() == "0005CAFE010801"
+        accepted == timestamps + [6000L]
+    }
+
+    def "A packet is acknowledged once its records are stored, and ignored when it is sent again before"() {
+        given: "records that are not stored yet"
+        stored = new CompletableFuture<>()
+
+        when: "a device sends a packet, and sends it again before its records are stored"
+        send(CODEC_8_UDP_PACKET)
+        send(CODEC_8_UDP_PACKET)
+
+        then: "its records are only submitted once, and nothing is acknowledged yet"
+        packets.size() == 1
+        readAcknowledgement() == null
+
+        when: "the records are stored"
+        stored.complete(1)
+        channel.runPendingTasks()
+
+        then: "the packet is acknowledged"
+        readAcknowledgement() == "0005CAFE010501"
+
+        when: "the acknowledgement was lost, and the device sends the packet once more"
+        send(CODEC_8_UDP_PACKET)
+
+        then: "it is acknowledged without submitting its records again"
+        readAcknowledgement() == "0005CAFE010501"
+        packets.size() == 1
+    }
+
+    def "Packets of rejected devices and invalid packets are not acknowledged"() {
+        when: "a rejected device sends a packet"
+        acceptDevices = false
+        send(CODEC_8_UDP_PACKET)
+
+        then: "the packet is ignored"
+        readAcknowledgement() == null
+        packets.isEmpty()
+
+        when: "an accepted device sends a truncated packet"
+        acceptDevices = true
+        send(CODEC_8_UDP_PACKET.substring(0, CODEC_8_UDP_PACKET.length() - 2))
+
+        then: "the packet is ignored"
+        readAcknowledgement() == null
+        packets.isEmpty()
+    }
+
+    def "Devices that stop sending are disconnected"() {
+        given: "a device that sent a packet"
+        send(CODEC_8_UDP_PACKET)
+        readAcknowledgement()
+
+        when: "its session expires"
+        sleep(5)
+        handler.expireSessions()
+
+        then: "the device is disconnected"
+        disconnected == ["352093086403655"]
+        handler.getSessionCount() == 0
+    }
+}